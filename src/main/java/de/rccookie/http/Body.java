@@ -918,68 +918,14 @@ public interface Body extends AutoCloseable, JsonSerializable {
      * Returns a body with the contents of the given file as content. This should be preferred
      * over <code>of(new FileInputStream(file))</code> and especially over <code>of(Files.newInputStream(file))</code>
      * as for the latter it will be impossible to determine the file size in advance (for the
-     * Content-Length header).
+     * Content-Length header). The file is only opened once its contents are read, and servers
+     * may send the file directly from the file system.
      *
      * @param file The file who's content to use, must exist and be a readable file
      * @return A body with the contents of the file
      */
     static Body of(@NotNull Path file) {
-        Arguments.checkNull(file, "file");
-        long size;
-        InputStream stream;
-        try {
-            size = Files.size(file);
-            //noinspection resource
-            stream = Files.newInputStream(file);
-        } catch(IOException e) {
-            throw Utils.rethrow(e);
-        }
-        return new BufferableBody("base64", b -> Utils.toBase64(b.data()), new Body() {
-            @Override
-            public long contentLength() {
-                return size;
-            }
-
-            @Override
-            public InputStream stream() {
-                return stream;
-            }
-
-            @Override
-            public HttpRequest.BodyPublisher toBodyPublisher() {
-                try {
-                    return HttpRequest.BodyPublishers.ofFile(file);
-                } catch (FileNotFoundException e) {
-                    throw Utils.rethrow(e);
-                }
-            }
-
-            @Override
-            public Multipart asMultipart() {
-                return Multipart.parse(this);
-            }
-
-            @Override
-            public void buffer() {
-                throw new UnsupportedOperationException();
-            }
-
-            @Override
-            public void writeTo(OutputStream out) throws IOException {
-                stream.transferTo(out);
-                out.flush();
-            }
-
-            @Override
-            public void close() throws Exception {
-                stream.close();
-            }
-
-            @Override
-            public Object toJson() {
-                throw new UnsupportedOperationException();
-            }
-        });
+        return new OfFile(file);
     }
 
     /**
@@ -1437,4 +1383,169 @@ public interface Body extends AutoCloseable, JsonSerializable {
             return new JsonObject(jsonAsString ? "text" : "base64", jsonAsString ? text() : Utils.toBase64(data()));
         }
     }
+
+    /**
+     * A body with the contents of a file, see {@link Body#of(Path)}. The size of the file is
+     * determined when the body is created, but the file is only opened once its contents
+     * are read. Until then, or until the body is {@linkplain #buffer() buffered}, servers
+     * may send the file directly from the file system. Unless buffered, the content is read
+     * from the file only when it is used, so the file should not be modified meanwhile.
+     */
+    class OfFile implements Body {
+
+        private final Path file;
+        private final long size;
+        private InputStream stream = null;
+        /**
+         * The contents of the file at the time the body was buffered, or <code>null</code>
+         * if not buffered.
+         */
+        private byte[] data = null;
+        private boolean closed = false;
+
+        /**
+         * Creates a new body with the contents of the given file.
+         *
+         * @param file The file who's content to use, must exist and be a readable file
+         */
+        public OfFile(@NotNull Path file) {
+            this.file = Arguments.checkNull(file, "file");
+            try {
+                size = Files.size(file);
+            } catch(IOException e) {
+                throw Utils.rethrow(e);
+            }
+        }
+
+        /**
+         * Returns the file containing the content of this body. If the body has been
+         * buffered, the buffered content may differ from the current content of the file.
+         *
+         * @return The file of this body
+         */
+        public Path file() {
+            return file;
+        }
+
+        /**
+         * Returns whether the content has already been (partially) read through {@link #stream()}
+         * without the body being buffered. If not, the whole content can still be read, and
+         * unless {@linkplain #isBuffered() buffered}, directly from {@link #file()}.
+         *
+         * @return Whether the body has been consumed
+         */
+        public synchronized boolean isConsumed() {
+            return stream != null && data == null;
+        }
+
+        /**
+         * Returns whether the contents of the file have been read into memory using
+         * {@link #buffer()}, in which case the body holds a snapshot of the file at the time
+         * it was buffered.
+         *
+         * @return Whether the body has been buffered
+         */
+        public synchronized boolean isBuffered() {
+            return data != null;
+        }
+
+        @Override
+        public synchronized long contentLength() {
+            if(data != null)
+                return data.length;
+            if(isConsumed())
+                throw new IllegalStateException("Body already (partially) consumed, cannot determine size");
+            return size;
+        }
+
+        @Override
+        public synchronized InputStream stream() {
+            if(closed)
+                throw new IllegalStateException("Body has been closed");
+            if(data != null)
+                return new ByteArrayInputStream(data);
+            try {
+                if(stream == null)
+                    stream = Files.newInputStream(file);
+                return stream;
+            } catch(IOException e) {
+                throw Utils.rethrow(e);
+            }
+        }
+
+        @Override
+        public synchronized byte[] data() {
+            if(data != null)
+                return data;
+            if(!isConsumed()) try {
+                return Files.readAllBytes(file);
+            } catch(IOException e) {
+                throw Utils.rethrow(e);
+            }
+            return Body.super.data();
+        }
+
+        @Override
+        public synchronized HttpRequest.BodyPublisher toBodyPublisher() {
+            if(data != null)
+                return HttpRequest.BodyPublishers.ofByteArray(data);
+            try {
+                return HttpRequest.BodyPublishers.ofFile(file);
+            } catch(FileNotFoundException e) {
+                throw Utils.rethrow(e);
+            }
+        }
+
+        @Override
+        public Multipart asMultipart() {
+            return Multipart.parse(this);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            data = null;
+            if(stream != null)
+                stream.close();
+        }
+
+        /**
+         * Reads the contents of the file into memory, such that the body keeps its content
+         * even if the file gets modified or deleted afterwards.
+         */
+        @Override
+        public synchronized void buffer() {
+            if(closed)
+                throw new IllegalStateException("Body has already been closed, cannot buffer anymore");
+            if(data != null) return;
+            if(isConsumed())
+                throw new IllegalStateException("Body already (partially) consumed, cannot buffer anymore");
+            try {
+                data = Files.readAllBytes(file);
+            } catch(IOException e) {
+                throw Utils.rethrow(e);
+            }
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            byte[] data;
+            synchronized(this) {
+                if(closed)
+                    throw new IllegalStateException("Body has already been closed, cannot be written anymore");
+                data = this.data;
+            }
+            if(data != null)
+                out.write(data);
+            else if(isConsumed())
+                stream().transferTo(out);
+            else Files.copy(file, out);
+            out.flush();
+        }
+
+        @Override
+        public Object toJson() {
+            return new JsonObject("base64", Utils.toBase64(data()));
+        }
+    }
 }
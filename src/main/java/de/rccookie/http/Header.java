@@ -199,7 +199,7 @@ public interface Header extends Map<String, Header.Values> {
     default Values setConnection(@Nullable Boolean keepAlive) {
         if(keepAlive == null)
             return remove("Connection");
-        return set("Connection", keepAlive ? "Connection" : "close");
+        return set("Connection", keepAlive ? "keep-alive" : "close");
     }
 
 
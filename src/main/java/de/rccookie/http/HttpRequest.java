@@ -67,6 +67,16 @@ public interface HttpRequest extends JsonSerializable {
      */
     URL url();
 
+    /**
+     * Returns the target of this http request as sent in the request line, that is, the
+     * path and the query of the url.
+     *
+     * @return The path and query of the url
+     */
+    default String target() {
+        return url().getFile();
+    }
+
     /**
      * Returns the host name this http request is targeting.
      *
@@ -19,6 +19,11 @@ final class MultipartStream implements Iterator<Body.Multipart.Part> {
     private final String boundaryStr;
     private final byte[] boundary;
     private final byte[] startOfPart;
+    /**
+     * Reused by all calls to readUntil, such that the buffer only grows to the size of the
+     * largest part instead of being reallocated for each part.
+     */
+    private final ExposedByteArrayOutputStream read = new ExposedByteArrayOutputStream();
     Boolean hasNext = null;
 
     MultipartStream(InputStream in, Charset charset) {
@@ -103,7 +108,8 @@ final class MultipartStream implements Iterator<Body.Multipart.Part> {
     }
 
     private byte[] readUntil(byte[] end, String endDesc) throws IOException {
-        ExposedByteArrayOutputStream read = new ExposedByteArrayOutputStream();
+        ExposedByteArrayOutputStream read = this.read;
+        read.reset();
 
         while(read.size() < end.length || !Arrays.equals(end, 0, end.length, read.buf(), read.size() - end.length, read.size())) {
             int b = in.read();
@@ -1,8 +1,12 @@
 package de.rccookie.http;
 
 import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Map;
 
+import de.rccookie.util.Arguments;
 import de.rccookie.util.URLBuilder;
 
 public interface Query extends Map<String, String> {
@@ -16,4 +20,32 @@ public interface Query extends Map<String, String> {
     static Query of(URLBuilder url) {
         return new QueryImpl(url.query());
     }
+
+    /**
+     * Parses the given url-encoded query string, without the leading '?'. Parameters
+     * without value are mapped to an empty string, if a parameter is present multiple
+     * times, the last value is used.
+     *
+     * @param queryString The query string to parse
+     * @return The parsed query parameters
+     * @throws IllegalArgumentException If the query string contains a malformed percent-encoding
+     */
+    static Query parse(String queryString) {
+        if(Arguments.checkNull(queryString, "queryString").isEmpty())
+            return EMPTY;
+        Map<String, String> params = new HashMap<>();
+        int start = 0;
+        while(start <= queryString.length()) {
+            int end = queryString.indexOf('&', start);
+            if(end < 0) end = queryString.length();
+            if(end != start) {
+                int eq = queryString.indexOf('=', start);
+                if(eq < 0 || eq > end)
+                    params.put(URLDecoder.decode(queryString.substring(start, end), StandardCharsets.UTF_8), "");
+                else params.put(URLDecoder.decode(queryString.substring(start, eq), StandardCharsets.UTF_8), URLDecoder.decode(queryString.substring(eq + 1, end), StandardCharsets.UTF_8));
+            }
+            start = end + 1;
+        }
+        return new QueryImpl(params);
+    }
 }
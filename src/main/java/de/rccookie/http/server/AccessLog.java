@@ -0,0 +1,644 @@
+package de.rccookie.http.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.diogonunes.jcolor.Attribute;
+import de.rccookie.http.HttpRequest;
+import de.rccookie.http.HttpResponse;
+import de.rccookie.http.Method;
+import de.rccookie.http.ResponseCode;
+import de.rccookie.util.Arguments;
+import de.rccookie.util.Console;
+import de.rccookie.util.Utils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes the access log of http servers asynchronously. Logging a request or response
+ * only captures the logged values into a preallocated entry of a lock-free ring buffer;
+ * formatting and writing is done in batches by a background thread. If the ring buffer
+ * is full because the writer can't keep up, new entries are dropped rather than blocking
+ * the request thread. The number of dropped entries can be queried using
+ * {@link #droppedCount()}.
+ *
+ * <p>The format of the log lines is determined by a {@link Format}. Log lines are either
+ * written to the {@link Console}, using the log level of each entry, or to an output
+ * stream, one line per entry.</p>
+ */
+public final class AccessLog implements Closeable {
+
+    /**
+     * The default number of entries of the ring buffer.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * The maximum time the writer waits for new entries before checking again.
+     */
+    private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static AccessLog defaultLog = null;
+
+    /**
+     * Returns the shared access log writing to the console using {@link Format#CONSOLE},
+     * which is used by http servers by default.
+     *
+     * @return The default access log
+     */
+    public static synchronized AccessLog defaultLog() {
+        if(defaultLog == null) {
+            AccessLog log = new AccessLog(Format.CONSOLE);
+            Runtime.getRuntime().addShutdownHook(new Thread(log::close, "Access log shutdown"));
+            defaultLog = log;
+        }
+        return defaultLog;
+    }
+
+
+    private final Format format;
+    @Nullable
+    private final OutputStream out;
+    private final boolean capturesHeaders;
+
+    private final Entry[] entries;
+    /**
+     * The sequence number expected in each slot: equal to the position for a free slot,
+     * the position + 1 once the entry at the position has been published.
+     */
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Only accessed by the writer thread.
+     */
+    private long head = 0;
+
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new access log writing to the console in the given format, using the
+     * default capacity.
+     *
+     * @param format The format of the log lines
+     */
+    public AccessLog(@NotNull Format format) {
+        this(format, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new access log writing to the console in the given format.
+     *
+     * @param format The format of the log lines
+     * @param capacity The number of entries that can be pending before further entries
+     *                 are dropped. Rounded up to a power of two
+     */
+    public AccessLog(@NotNull Format format, int capacity) {
+        this(capacity, format, null);
+    }
+
+    /**
+     * Creates a new access log writing to the given output stream in the given format,
+     * using the default capacity. The output stream is flushed after each batch of log
+     * lines, and closed when the access log is closed.
+     *
+     * @param format The format of the log lines
+     * @param out The stream to write the log lines to, UTF-8 encoded
+     */
+    public AccessLog(@NotNull Format format, @NotNull OutputStream out) {
+        this(DEFAULT_CAPACITY, format, Arguments.checkNull(out, "out"));
+    }
+
+    /**
+     * Creates a new access log writing to the given output stream in the given format.
+     * The output stream is flushed after each batch of log lines, and closed when the
+     * access log is closed.
+     *
+     * @param format The format of the log lines
+     * @param out The stream to write the log lines to, UTF-8 encoded
+     * @param capacity The number of entries that can be pending before further entries
+     *                 are dropped. Rounded up to a power of two
+     */
+    public AccessLog(@NotNull Format format, @NotNull OutputStream out, int capacity) {
+        this(capacity, format, Arguments.checkNull(out, "out"));
+    }
+
+    private AccessLog(int capacity, Format format, @Nullable OutputStream out) {
+        this.format = Arguments.checkNull(format, "format");
+        this.out = out;
+        this.capturesHeaders = format.usesHeaders();
+        Arguments.checkRange(capacity, 1, 1 << 30);
+        capacity = Integer.highestOneBit(capacity - 1) << 1;
+        if(capacity == 0) capacity = 1;
+
+        entries = new Entry[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for(int i=0; i<capacity; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+
+        writer = new Thread(this::runWriter, "Access log writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Logs that the given request has been received.
+     *
+     * @param request The received request
+     * @param level The log level to log with, when logging to the console
+     */
+    public void logRequest(@NotNull HttpRequest request, @NotNull String level) {
+        Entry entry = claim();
+        if(entry == null) return;
+        // Always publish the claimed entry, the writer would otherwise wait for it forever
+        try {
+            entry.response = false;
+            entry.code = null;
+            entry.level = level;
+            entry.error = false;
+            entry.client = request.client();
+            captureRequest(entry, request);
+        } finally {
+            publish(entry);
+        }
+    }
+
+    /**
+     * Logs that the given response has been sent, or failed to be sent.
+     *
+     * @param response The sent response
+     * @param level The log level to log with, when logging to the console
+     * @param error Whether to log the response as error, e.g. because of a server error
+     *              or a network error while sending it
+     */
+    public void logResponse(@NotNull HttpResponse response, @NotNull String level, boolean error) {
+        Entry entry = claim();
+        if(entry == null) return;
+        try {
+            entry.response = true;
+            entry.code = response.code();
+            entry.level = level;
+            entry.error = error;
+            entry.client = response.client();
+            captureRequest(entry, response.request());
+        } finally {
+            publish(entry);
+        }
+    }
+
+    private void captureRequest(Entry entry, @Nullable HttpRequest request) {
+        entry.time = System.currentTimeMillis();
+        if(request == null) {
+            entry.method = null;
+            entry.target = null;
+            entry.version = null;
+            entry.referer = entry.userAgent = null;
+            return;
+        }
+        entry.method = request.method();
+        entry.target = request.target();
+        entry.version = request.httpVersion();
+        if(capturesHeaders) {
+            entry.referer = request.header().getString("referer");
+            entry.userAgent = request.header().getString("user-agent");
+        }
+        else entry.referer = entry.userAgent = null;
+    }
+
+    /**
+     * Claims the next free entry of the ring buffer.
+     *
+     * @return The claimed entry, or <code>null</code> if the buffer is full or the log is closed
+     */
+    private Entry claim() {
+        if(closed) return null;
+        while(true) {
+            long pos = tail.get();
+            long seq = sequences.get((int) pos & mask);
+            if(seq < pos) {
+                // Slot not yet consumed, buffer is full
+                dropped.increment();
+                return null;
+            }
+            if(seq == pos && tail.compareAndSet(pos, pos + 1)) {
+                Entry entry = entries[(int) pos & mask];
+                entry.position = pos;
+                return entry;
+            }
+        }
+    }
+
+    private void publish(Entry entry) {
+        sequences.set((int) entry.position & mask, entry.position + 1);
+    }
+
+    private void runWriter() {
+        StringBuilder line = new StringBuilder(256);
+        StringBuilder batch = out != null ? new StringBuilder(4096) : null;
+        while(true) {
+            boolean wasClosed = closed;
+            int count = 0;
+            long pos;
+            while(sequences.get((int) (pos = head) & mask) == pos + 1) {
+                Entry entry = entries[(int) pos & mask];
+                try {
+                    line.setLength(0);
+                    format.format(entry, line);
+                    if(line.length() != 0)
+                        write(entry, line, batch);
+                } catch(Exception e) {
+                    Console.error("Failed to format access log entry:", e);
+                }
+                entry.clear();
+                sequences.set((int) pos & mask, pos + mask + 1);
+                head = pos + 1;
+                count++;
+            }
+            if(count != 0 && batch != null)
+                flush(batch);
+            if(wasClosed) break;
+            if(count == 0)
+                LockSupport.parkNanos(this, POLL_INTERVAL);
+        }
+        if(out != null) try {
+            out.close();
+        } catch(IOException e) {
+            Console.error("Failed to close access log:", e);
+        }
+    }
+
+    private void write(Entry entry, StringBuilder line, @Nullable StringBuilder batch) {
+        if(batch != null)
+            batch.append(line).append('\n');
+        else if(entry.error)
+            Console.error(line.toString());
+        else Console.write(entry.level, line.toString());
+    }
+
+    private void flush(StringBuilder batch) {
+        try {
+            out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch(IOException e) {
+            Console.error("Failed to write access log:", e);
+        }
+        batch.setLength(0);
+    }
+
+    /**
+     * Returns the number of entries dropped because the ring buffer was full.
+     *
+     * @return The number of dropped entries
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the format of the log lines of this access log.
+     *
+     * @return The log format
+     */
+    @NotNull
+    public Format format() {
+        return format;
+    }
+
+    /**
+     * Stops accepting new entries, writes all pending entries and then stops the writer
+     * thread. If the log writes to an output stream, the stream gets closed.
+     */
+    @Override
+    public void close() {
+        if(closed) return;
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * A logged request or response. Entries are reused and must not be retained by
+     * formats after formatting.
+     */
+    public static final class Entry {
+
+        long position;
+        boolean response;
+        long time;
+        String level;
+        boolean error;
+        InetSocketAddress client;
+        Method method;
+        String target;
+        String version;
+        ResponseCode code;
+        String referer;
+        String userAgent;
+
+        private Entry() { }
+
+        private void clear() {
+            level = null;
+            client = null;
+            method = null;
+            target = null;
+            version = null;
+            code = null;
+            referer = userAgent = null;
+        }
+
+        /**
+         * Returns whether this entry logs a sent response, rather than a received request.
+         *
+         * @return Whether this is a response entry
+         */
+        public boolean isResponse() {
+            return response;
+        }
+
+        /**
+         * Returns the time the entry was logged, in milliseconds since the epoch.
+         *
+         * @return The time of the entry
+         */
+        public long time() {
+            return time;
+        }
+
+        /**
+         * Returns the log level of this entry, used when logging to the console.
+         *
+         * @return The log level
+         */
+        @NotNull
+        public String level() {
+            return level;
+        }
+
+        /**
+         * Returns whether this entry should be logged as error, because of a server error
+         * or because the response could not be sent.
+         *
+         * @return Whether this entry is an error
+         */
+        public boolean isError() {
+            return error;
+        }
+
+        /**
+         * Returns the address of the client.
+         *
+         * @return The client address
+         */
+        public InetSocketAddress client() {
+            return client;
+        }
+
+        /**
+         * Returns the method of the request.
+         *
+         * @return The request method, or <code>null</code> if the request could not be parsed
+         */
+        @Nullable
+        public Method method() {
+            return method;
+        }
+
+        /**
+         * Returns the target of the request, that is, the path and query of the url.
+         *
+         * @return The request target, or <code>null</code> if the request could not be parsed
+         */
+        @Nullable
+        public String target() {
+            return target;
+        }
+
+        /**
+         * Returns the http version of the request.
+         *
+         * @return The request's http version, or <code>null</code> if the request could not
+         *         be parsed
+         */
+        @Nullable
+        public String version() {
+            return version;
+        }
+
+        /**
+         * Returns the response code of the response.
+         *
+         * @return The response code, or <code>null</code> for request entries
+         */
+        @Nullable
+        public ResponseCode code() {
+            return code;
+        }
+
+        /**
+         * Returns the 'Referer' header field of the request. Only captured if
+         * {@link Format#usesHeaders()} returns <code>true</code>.
+         *
+         * @return The referer, or <code>null</code> if not present or not captured
+         */
+        @Nullable
+        public String referer() {
+            return referer;
+        }
+
+        /**
+         * Returns the 'User-Agent' header field of the request. Only captured if
+         * {@link Format#usesHeaders()} returns <code>true</code>.
+         *
+         * @return The user agent, or <code>null</code> if not present or not captured
+         */
+        @Nullable
+        public String userAgent() {
+            return userAgent;
+        }
+
+    }
+
+
+    /**
+     * Formats access log entries into log lines. Formats are invoked by the writer thread
+     * of the access log only.
+     */
+    @FunctionalInterface
+    public interface Format {
+
+        /**
+         * The format used by default, which logs both requests and responses in a human
+         * readable, colored format.
+         */
+        Format CONSOLE = new ConsoleFormat();
+
+        /**
+         * The Combined Log Format, as used by Apache and nginx. Only responses are logged.
+         * The response size is not known and always logged as <code>-</code>.
+         */
+        Format COMBINED = new CombinedFormat();
+
+        /**
+         * Logs responses as JSON objects, one per line.
+         */
+        Format JSON_LINES = new JsonFormat();
+
+        /**
+         * Appends the log line for the given entry, without line break, to the given
+         * string builder. If nothing is appended, the entry is not logged.
+         *
+         * @param entry The entry to format
+         * @param out The string builder to append the log line to
+         */
+        void format(@NotNull Entry entry, @NotNull StringBuilder out);
+
+        /**
+         * Returns whether this format uses the 'Referer' and 'User-Agent' header fields,
+         * which are only captured if needed.
+         *
+         * @return Whether the format logs request header fields
+         */
+        default boolean usesHeaders() {
+            return false;
+        }
+    }
+
+    private static final class ConsoleFormat implements Format {
+
+        private static final char LINE_CHAR = '=';
+        private static final int MIN_LINE_SIZE = 4;
+        private static final int PREFERRED_LOG_SIZE = 90;
+
+        @Override
+        public void format(@NotNull Entry entry, @NotNull StringBuilder out) {
+            String str;
+            String arrows;
+            String colored;
+            if(entry.response) {
+                str = entry.code.toString();
+                arrows = ">>";
+                colored = Console.colored(str, getColor(entry.error ? ResponseCode.Type.SERVER_ERROR : entry.code.type()), Attribute.BOLD());
+            }
+            else {
+                str = entry.method + " " + entry.target;
+                arrows = "<<";
+                colored = Console.colored(str, Attribute.BOLD());
+            }
+
+            int l,r;
+            int min = str.length() + 2 * (MIN_LINE_SIZE + 1);
+            if(min >= PREFERRED_LOG_SIZE)
+                l = r = MIN_LINE_SIZE;
+            else {
+                l = MIN_LINE_SIZE + (PREFERRED_LOG_SIZE - min) / 2;
+                r = MIN_LINE_SIZE + (PREFERRED_LOG_SIZE - min) - l;
+            }
+
+            out.append(arrows).append(Utils.repeat(LINE_CHAR, l)).append(' ').append(colored).append(' ')
+                    .append(Utils.repeat(LINE_CHAR, r)).append(arrows).append(' ').append(entry.client.toString().substring(1));
+        }
+
+        private static Attribute getColor(ResponseCode.Type type) {
+            switch(type) {
+                case INFORMATIONAL: return Attribute.BLUE_TEXT();
+                case SUCCESS: return Attribute.GREEN_TEXT();
+                case REDIRECT: return Attribute.WHITE_TEXT();
+                case CLIENT_ERROR: return Attribute.MAGENTA_TEXT();
+                case SERVER_ERROR: return Attribute.RED_TEXT();
+                default: throw new NullPointerException();
+            }
+        }
+    }
+
+    private static final class CombinedFormat implements Format {
+
+        private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH).withZone(ZoneId.systemDefault());
+
+        @Override
+        public void format(@NotNull Entry entry, @NotNull StringBuilder out) {
+            if(!entry.response) return;
+            out.append(entry.client.getAddress().getHostAddress()).append(" - - [");
+            DATE_FORMAT.formatTo(Instant.ofEpochMilli(entry.time), out);
+            out.append("] \"");
+            if(entry.method != null && entry.target != null)
+                out.append(entry.method).append(' ').append(entry.target).append(' ').append(entry.version);
+            else out.append('-');
+            out.append("\" ").append(entry.code.code()).append(" - \"");
+            out.append(entry.referer != null ? entry.referer : "-").append("\" \"");
+            out.append(entry.userAgent != null ? entry.userAgent : "-").append('"');
+        }
+
+        @Override
+        public boolean usesHeaders() {
+            return true;
+        }
+    }
+
+    private static final class JsonFormat implements Format {
+
+        @Override
+        public void format(@NotNull Entry entry, @NotNull StringBuilder out) {
+            if(!entry.response) return;
+            out.append("{\"time\":\"").append(Instant.ofEpochMilli(entry.time)).append('"');
+            out.append(",\"client\":");
+            appendString(out, entry.client.getAddress().getHostAddress());
+            out.append(",\"method\":");
+            appendString(out, entry.method != null ? entry.method.toString() : null);
+            out.append(",\"target\":");
+            appendString(out, entry.target);
+            out.append(",\"version\":");
+            appendString(out, entry.version);
+            out.append(",\"status\":").append(entry.code.code());
+            out.append(",\"referer\":");
+            appendString(out, entry.referer);
+            out.append(",\"userAgent\":");
+            appendString(out, entry.userAgent);
+            out.append('}');
+        }
+
+        @Override
+        public boolean usesHeaders() {
+            return true;
+        }
+
+        private static void appendString(StringBuilder out, @Nullable String str) {
+            if(str == null) {
+                out.append("null");
+                return;
+            }
+            out.append('"');
+            for(int i=0; i<str.length(); i++) {
+                char c = str.charAt(i);
+                if(c == '"' || c == '\\')
+                    out.append('\\').append(c);
+                else if(c < 0x20)
+                    out.append(String.format("\\u%04x", (int) c));
+                else out.append(c);
+            }
+            out.append('"');
+        }
+    }
+}
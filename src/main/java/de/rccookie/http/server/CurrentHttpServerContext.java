@@ -1,8 +1,5 @@
 package de.rccookie.http.server;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
-
 import de.rccookie.http.HttpRequest;
 
 public final class CurrentHttpServerContext {
@@ -10,24 +7,43 @@ public final class CurrentHttpServerContext {
     private CurrentHttpServerContext() { }
 
 
-    private static final ThreadLocal<Deque<HttpRequest.Received>> currentRequest = ThreadLocal.withInitial(ArrayDeque::new);
+    /**
+     * The top of the request stack of the current thread. The thread local gets removed
+     * once the stack is empty, so that short-lived (virtual) threads don't each keep an
+     * empty stack around.
+     */
+    private static final ThreadLocal<Node> currentRequest = new ThreadLocal<>();
 
 
     public static HttpRequest.Received request() {
-        Deque<HttpRequest.Received> current = currentRequest.get();
-        if(current.isEmpty())
+        Node current = currentRequest.get();
+        if(current == null)
             throw new IllegalStateException("No http request in process");
-        HttpRequest.Received request = current.getFirst();
-        if(request == null)
+        if(current.request == null)
             throw new IllegalStateException("Current http request is not valid during async http requests");
-        return current.getFirst();
+        return current.request;
     }
 
     static void pushRequest(HttpRequest.Received request) {
-        currentRequest.get().push(request);
+        currentRequest.set(new Node(request, currentRequest.get()));
     }
 
     static void popRequest() {
-        currentRequest.get().pop();
+        Node current = currentRequest.get();
+        if(current == null)
+            throw new IllegalStateException("No http request in process");
+        if(current.next != null)
+            currentRequest.set(current.next);
+        else currentRequest.remove();
+    }
+
+    private static final class Node {
+        final HttpRequest.Received request;
+        final Node next;
+
+        Node(HttpRequest.Received request, Node next) {
+            this.request = request;
+            this.next = next;
+        }
     }
 }
@@ -287,10 +287,11 @@ class HttpRequestListenerHandler implements HttpRequestHandler {
             throw new IllegalHttpRequestListenerException(method+" parameter "+(param+1)+": cannot be annotated with multiple of @Parse, @PathVar and @QueryParam");
 
         if(pathVar != null) {
-            if(!routePattern.containsVariable(pathVar.value()))
+            int index = routePattern.variableIndex(pathVar.value());
+            if(index < 0)
                 throw new IllegalHttpRequestListenerException(method+" parameter "+(param+1)+" '"+pathVar.value()+": path variable does not exist in route");
             return r -> {
-                String val = routePattern.getVariable(r.route(), pathVar.value());
+                String val = routePattern.getVariable(r, index);
                 try {
                     return JsonElement.wrap(val, JsonDeserializer.STRING_CONVERSION).as(type);
                 } catch(Exception e) {
@@ -11,8 +11,7 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -32,24 +31,29 @@ import org.jetbrains.annotations.Nullable;
  */
 public class HttpServer extends RawHttpServer {
 
+    private static final HttpProcessor[] NO_PROCESSORS = new HttpProcessor[0];
 
     Handler _404Handler = new Handler(this::default404Handler, true);
     HttpHeadHandler headHandler = HttpHeadHandler.DEFAULT;
 
     private final RootProcessor rootProcessor = new RootProcessor();
     private final List<HttpProcessor> processors = new ArrayList<>();
+    /**
+     * Snapshot of {@link #processors}, replaced whenever the processors change. Handlers
+     * rebuild their processor chain when they see a new snapshot.
+     */
+    private volatile HttpProcessor[] commonProcessors = NO_PROCESSORS;
 
-    private final ReadWriteLock handlersLock = new ReentrantReadWriteLock();
-    private final Map<Method, Map<Route, Handler>> concreteHandlers = new EnumMap<>(Method.class);
-    private final Map<Method, Map<RoutePattern, Handler>> patternHandlers = new EnumMap<>(Method.class);
-    private final Map<Method, Map<RoutePattern, Handler>> doubleWildcardPatternHandlers = new EnumMap<>(Method.class);
-    {
-        for(Method method : Method.values()) {
-            concreteHandlers.put(method, new HashMap<>());
-            patternHandlers.put(method, new HashMap<>());
-            doubleWildcardPatternHandlers.put(method, new HashMap<>());
-        }
-    }
+    /**
+     * The current routing table. The table is never modified once published, changes are
+     * made to a copy which then replaces the table, such that requests can be routed
+     * without locking.
+     */
+    private volatile Routes routes = new Routes();
+    /**
+     * Lock for modifying the routing table, such that concurrent modifications don't get lost.
+     */
+    private final Object routesLock = new Object();
 
     private final Map<Class<?>, Object> implementations = new ConcurrentHashMap<>();
 
@@ -74,33 +78,37 @@ public class HttpServer extends RawHttpServer {
     @NotNull
     private Handler findHandler(HttpRequest.Received request) {
 
+        Routes routes = this.routes;
         Route route = request.route();
 
-        handlersLock.readLock().lock();
-        try {
-            Handler handler = findHandler(route, request.method());
-            if(handler != null) return handler;
+        Handler handler = findHandler(routes, request, route, request.method());
+        if(handler != null) return handler;
 
-            if(request.method() == Method.HEAD && (handler = findHandler(route, Method.GET)) != null)
-                return new Handler(headHandler.getHandler(handler.handler), handler.useCommonProcessors, handler.extraProcessors);
-        } finally {
-            handlersLock.readLock().unlock();
-        }
+        if(request.method() == Method.HEAD && (handler = findHandler(routes, request, route, Method.GET)) != null)
+            return handler.head(headHandler);
 
         return _404Handler;
     }
 
+    /**
+     * Finds the handler for the given route and method. If the handler was registered on a
+     * pattern with path variables, the variable values captured while matching are stored
+     * in the request.
+     */
     @Nullable
-    private Handler findHandler(Route route, Method method) {
-        if(concreteHandlers.get(method).containsKey(route))
-            return concreteHandlers.get(method).get(route);
-        for(RoutePattern pattern : patternHandlers.get(method).keySet())
-            if(pattern.matches(route))
-                return patternHandlers.get(method).get(pattern);
-        for(RoutePattern pattern : doubleWildcardPatternHandlers.get(method).keySet())
-            if(pattern.matches(route))
-                return doubleWildcardPatternHandlers.get(method).get(pattern);
-        return null;
+    private static Handler findHandler(Routes routes, HttpRequest.Received request, Route route, Method method) {
+        Handler handler = routes.concreteHandlers.get(method).get(route);
+        if(handler != null) return handler;
+
+        RouteTrie.Match<Handler> match = routes.patternHandlers.get(method).match(route);
+        if(match == null)
+            match = routes.doubleWildcardPatternHandlers.get(method).match(route);
+        if(match == null) return null;
+        if(match.variables.length != 0 && request instanceof ReceivedHttpRequest) {
+            ((ReceivedHttpRequest) request).pathPattern = match.pattern;
+            ((ReceivedHttpRequest) request).pathVariables = match.variables;
+        }
+        return match.value;
     }
 
     /**
@@ -113,6 +121,7 @@ public class HttpServer extends RawHttpServer {
         Arguments.checkNull(processor, "processor");
         synchronized(processors) {
             processors.add(processor);
+            commonProcessors = processors.toArray(NO_PROCESSORS);
         }
     }
 
@@ -124,7 +133,9 @@ public class HttpServer extends RawHttpServer {
      */
     public boolean removeProcessor(HttpProcessor processor) {
         synchronized(processors) {
-            return processors.remove(processor);
+            if(!processors.remove(processor)) return false;
+            commonProcessors = processors.toArray(NO_PROCESSORS);
+            return true;
         }
     }
 
@@ -133,7 +144,9 @@ public class HttpServer extends RawHttpServer {
      *
      * @param route The pattern to bind to. In general, handlers for specific routes will be prioritized
      *              over ones for a pattern with wildcards, which themselves will be prioritized over ones
-     *              for a wildcard pattern including <code>"**"</code>.
+     *              for a wildcard pattern including <code>"**"</code>. Among patterns of the same kind,
+     *              static segments are prioritized over segments with wildcards or variables, from
+     *              left to right; equally specific patterns are prioritized in registration order.
      * @param handler The handler to register for the given route pattern
      * @param extraProcessors Additional http processors to execute before / after the given handler only
      * @param useCommonProcessors Setting this to <code>false</code> allows to bypass the http processors
@@ -150,28 +163,27 @@ public class HttpServer extends RawHttpServer {
 
         if(RoutePattern.containsPattern(route)) {
             RoutePattern pattern = RoutePattern.parse(route);
-            handlersLock.writeLock().lock();
-            try {
+            synchronized(routesLock) {
+                Routes routes = new Routes(this.routes);
                 if(pattern.containsDoubleWildcard()) {
                     for(Method method : methods)
-                        doubleWildcardPatternHandlers.get(method).put(pattern, h);
+                        routes.doubleWildcardPatternHandlers.get(method).put(pattern, h);
                 } else {
                     for(Method method : methods)
-                        patternHandlers.get(method).put(pattern, h);
+                        routes.patternHandlers.get(method).put(pattern, h);
                 }
-            }
-            finally {
-                handlersLock.writeLock().unlock();
+                routes.indexMethods();
+                this.routes = routes;
             }
         }
         else{
             Route routeObj = Route.of(route);
-            handlersLock.writeLock().lock();
-            try {
+            synchronized(routesLock) {
+                Routes routes = new Routes(this.routes);
                 for(Method method : methods)
-                    concreteHandlers.get(method).put(routeObj, h);
-            } finally {
-                handlersLock.writeLock().unlock();
+                    routes.concreteHandlers.get(method).put(routeObj, h);
+                routes.indexMethods();
+                this.routes = routes;
             }
         }
         String methodsStr = Arrays.stream(methods).map(Object::toString).collect(Collectors.joining("|"));
@@ -266,15 +278,17 @@ public class HttpServer extends RawHttpServer {
      */
     public boolean removeHandler(HttpRequestHandler handler) {
         boolean change = false;
-        handlersLock.writeLock().lock();
-        try {
+        synchronized(routesLock) {
+            Routes routes = new Routes(this.routes);
             for(Method method : Method.values()) {
-                change |= concreteHandlers.get(method).values().removeIf(h -> h.handler.equals(handler));
-                change |= patternHandlers.get(method).values().removeIf(h -> h.handler.equals(handler));
-                change |= doubleWildcardPatternHandlers.get(method).values().removeIf(h -> h.handler.equals(handler));
+                change |= routes.concreteHandlers.get(method).values().removeIf(h -> h.handler.equals(handler));
+                change |= routes.patternHandlers.get(method).removeIf(h -> h.handler.equals(handler));
+                change |= routes.doubleWildcardPatternHandlers.get(method).removeIf(h -> h.handler.equals(handler));
+            }
+            if(change) {
+                routes.indexMethods();
+                this.routes = routes;
             }
-        } finally {
-            handlersLock.writeLock().unlock();
         }
         return change;
     }
@@ -310,21 +324,7 @@ public class HttpServer extends RawHttpServer {
 //        if(request.method() == de.rccookie.http.Method.GET || request.method() == de.rccookie.http.Method.HEAD)
 //            throw HttpRequestFailure.notFound();
 
-        Route route = request.route();
-        Set<Method> allowed = EnumSet.noneOf(Method.class);
-
-        handlersLock.readLock().lock();
-        try {
-            for(Method method : Method.values()) {
-                if(concreteHandlers.get(method).containsKey(route)
-                   || patternHandlers.get(method).keySet().stream().anyMatch(p -> p.matches(route))
-                   || doubleWildcardPatternHandlers.get(method).keySet().stream().anyMatch(p -> p.matches(route))) {
-                    allowed.add(method);
-                }
-            }
-        } finally {
-            handlersLock.readLock().unlock();
-        }
+        Set<Method> allowed = routes.allowedMethods(request.route());
         if(allowed.isEmpty())
             throw HttpRequestFailure.notFound();
         if(allowed.contains(Method.GET) && headHandler.listHeadWithGet())
@@ -387,54 +387,116 @@ public class HttpServer extends RawHttpServer {
 
 
 
+    /**
+     * A routing table, mapping the routes and route patterns to the handlers for each method.
+     */
+    private static final class Routes {
+        final Map<Method, Map<Route, Handler>> concreteHandlers = new EnumMap<>(Method.class);
+        final Map<Method, RouteTrie<Handler>> patternHandlers = new EnumMap<>(Method.class);
+        final Map<Method, RouteTrie<Handler>> doubleWildcardPatternHandlers = new EnumMap<>(Method.class);
+
+        /**
+         * The methods with a handler for each concrete route.
+         */
+        private final Map<Route, Set<Method>> concreteMethods = new HashMap<>();
+        /**
+         * The methods with a handler for each route pattern, of both pattern tables.
+         */
+        private final RouteTrie<Set<Method>> patternMethods = new RouteTrie<>();
+
+        Routes() {
+            for(Method method : Method.values()) {
+                concreteHandlers.put(method, new HashMap<>());
+                patternHandlers.put(method, new RouteTrie<>());
+                doubleWildcardPatternHandlers.put(method, new RouteTrie<>());
+            }
+        }
+
+        /**
+         * Creates a copy of the given routing table which can be modified independently.
+         */
+        Routes(Routes copy) {
+            for(Method method : Method.values()) {
+                concreteHandlers.put(method, new HashMap<>(copy.concreteHandlers.get(method)));
+                patternHandlers.put(method, copy.patternHandlers.get(method).copy());
+                doubleWildcardPatternHandlers.put(method, copy.doubleWildcardPatternHandlers.get(method).copy());
+            }
+        }
+
+        /**
+         * Builds the index of methods per route and pattern from the handler tables. Must
+         * be called once, after modifying a new copy of the table and before publishing it.
+         */
+        void indexMethods() {
+            Map<RoutePattern, Set<Method>> patterns = new HashMap<>();
+            for(Method method : Method.values()) {
+                for(Route route : concreteHandlers.get(method).keySet())
+                    concreteMethods.computeIfAbsent(route, r -> EnumSet.noneOf(Method.class)).add(method);
+                BiConsumer<RoutePattern, Handler> indexPattern = (pattern, h) ->
+                        patterns.computeIfAbsent(pattern, p -> EnumSet.noneOf(Method.class)).add(method);
+                patternHandlers.get(method).forEach(indexPattern);
+                doubleWildcardPatternHandlers.get(method).forEach(indexPattern);
+            }
+            patterns.forEach(patternMethods::put);
+        }
+
+        /**
+         * Returns the methods for which a handler for the given route exists, determined by
+         * a single lookup in the method index.
+         *
+         * @param route The route to get the allowed methods for
+         * @return The methods with a handler for the route, in a new mutable set
+         */
+        Set<Method> allowedMethods(Route route) {
+            Set<Method> concrete = concreteMethods.get(route);
+            Set<Method> allowed = concrete != null ? EnumSet.copyOf(concrete) : EnumSet.noneOf(Method.class);
+            patternMethods.forEachMatch(route, allowed::addAll);
+            return allowed;
+        }
+    }
+
     private final class Handler {
         private final HttpRequestHandler handler;
         private final boolean useCommonProcessors;
         private final HttpProcessor[] extraProcessors;
+        /**
+         * The head handler this handler was derived with from a <code>GET</code> handler, if any.
+         */
+        @Nullable
+        private final HttpHeadHandler headSource;
+
+        private volatile ProcessorChain chain = null;
+        private volatile Handler head = null;
 
         private Handler(HttpRequestHandler handler, boolean useCommonProcessors, HttpProcessor... extraProcessors) {
+            this(handler, useCommonProcessors, null, extraProcessors);
+        }
+
+        private Handler(HttpRequestHandler handler, boolean useCommonProcessors, @Nullable HttpHeadHandler headSource, HttpProcessor[] extraProcessors) {
             this.handler = Arguments.checkNull(handler, "handler");
             this.useCommonProcessors = useCommonProcessors;
+            this.headSource = headSource;
             this.extraProcessors = Arguments.deepCheckNull(extraProcessors, "extraProcessors");
         }
 
-        void execute(HttpRequest.Received request) {
+        /**
+         * Returns the handler to use for <code>HEAD</code> requests if this handler is the
+         * <code>GET</code> handler for the route. The handler is cached until the head handler
+         * of the server changes.
+         */
+        Handler head(HttpHeadHandler headHandler) {
+            Handler head = this.head;
+            if(head == null || head.headSource != headHandler)
+                this.head = head = new Handler(headHandler.getHandler(handler), useCommonProcessors, headHandler, extraProcessors);
+            return head;
+        }
 
-            List<HttpProcessor> processors = new ArrayList<>();
-            processors.add(rootProcessor);
-            if(useCommonProcessors) {
-                synchronized(HttpServer.this.processors) {
-                    processors.addAll(HttpServer.this.processors);
-                }
-            }
-            processors.addAll(Arrays.asList(extraProcessors));
-            processors.add(new HandlerProcessor(handler));
-
-            ThrowingRunnable[] executors = new ThrowingRunnable[processors.size() + 2];
-            executors[executors.length - 1] = () -> { throw new AssertionError("Request handler called next function"); };
-            for(int i=processors.size() - 1; i >= 0; i--) {
-                HttpProcessor processor = processors.get(i);
-                ThrowingRunnable next = executors[i+1];
-                executors[i] = () -> {
-                    try {
-                        processor.process(request, next);
-                        if(request.getResponse() == null)
-                            throw new IllegalStateException("Http processor "+processor+" caught exception but did not write response");
-                    } catch(Exception e) {
-                        if(request.getResponse() != null && e instanceof HttpControlFlowException)
-                            Console.warn("Http processor "+processor+" configured response but threw control flow exception. Response will be discarded");
-                        request.invalidateResponse();
-                        throw e;
-                    }
-                };
-            }
-            try {
-                executors[0].run();
-            } catch(RuntimeException e) {
-                throw e;
-            } catch(Exception e) {
-                throw new AssertionError("Root processor threw checked exception: "+e, e);
-            }
+        void execute(HttpRequest.Received request) {
+            HttpProcessor[] common = useCommonProcessors ? commonProcessors : NO_PROCESSORS;
+            ProcessorChain chain = this.chain;
+            if(chain == null || chain.common != common)
+                this.chain = chain = new ProcessorChain(rootProcessor, common, extraProcessors, handler);
+            chain.execute(request);
         }
     }
 }
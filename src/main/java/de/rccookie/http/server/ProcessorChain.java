@@ -0,0 +1,90 @@
+package de.rccookie.http.server;
+
+import de.rccookie.http.HttpRequest;
+import de.rccookie.util.Arguments;
+import de.rccookie.util.Console;
+
+/**
+ * The immutable stack of http processors of a handler, from the root processor down to the
+ * handler itself, built once per handler and set of common processors.
+ */
+final class ProcessorChain {
+
+    /**
+     * The common processors this chain was built with, used to detect when the common
+     * processors of the server changed.
+     */
+    final HttpProcessor[] common;
+    private final HttpProcessor[] processors;
+
+    ProcessorChain(HttpProcessor root, HttpProcessor[] common, HttpProcessor[] extraProcessors, HttpRequestHandler handler) {
+        this.common = Arguments.checkNull(common, "common");
+        processors = new HttpProcessor[common.length + extraProcessors.length + 2];
+        processors[0] = Arguments.checkNull(root, "root");
+        System.arraycopy(common, 0, processors, 1, common.length);
+        System.arraycopy(extraProcessors, 0, processors, 1 + common.length, extraProcessors.length);
+        processors[processors.length - 1] = new HandlerProcessor(handler);
+    }
+
+    /**
+     * Executes the chain for the given request. After this method returns, the response of
+     * the request is configured.
+     *
+     * @param request The request to process
+     */
+    void execute(HttpRequest.Received request) {
+        try {
+            new Cursor(request).run();
+        } catch(RuntimeException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new AssertionError("Root processor threw checked exception: "+e, e);
+        }
+    }
+
+    /**
+     * Runs the processor at the given position of the chain, which gets passed the cursor
+     * to run the rest of the chain after it.
+     */
+    private void run(HttpRequest.Received request, int index, Cursor next) throws Exception {
+        if(index == processors.length)
+            throw new AssertionError("Request handler called next function");
+
+        HttpProcessor processor = processors[index];
+        try {
+            processor.process(request, next);
+            if(request.getResponse() == null)
+                throw new IllegalStateException("Http processor "+processor+" caught exception but did not write response");
+        } catch(Exception e) {
+            if(request.getResponse() != null && e instanceof HttpControlFlowException)
+                Console.warn("Http processor "+processor+" configured response but threw control flow exception. Response will be discarded");
+            request.invalidateResponse();
+            throw e;
+        }
+    }
+
+    /**
+     * The position of a request in the chain, passed to every processor to run the rest of
+     * the chain after it. The position is restored when the rest of the chain returns, such
+     * that a processor may also run it multiple times.
+     */
+    private final class Cursor implements ThrowingRunnable {
+
+        private final HttpRequest.Received request;
+        private int index = -1;
+
+        Cursor(HttpRequest.Received request) {
+            this.request = request;
+        }
+
+        @Override
+        public void run() throws Exception {
+            int next = ++index;
+            try {
+                ProcessorChain.this.run(request, next, this);
+            } finally {
+                index = next - 1;
+            }
+        }
+    }
+}
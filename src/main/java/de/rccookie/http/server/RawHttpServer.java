@@ -1,19 +1,22 @@
 package de.rccookie.http.server;
 
 import java.net.InetSocketAddress;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
-import com.diogonunes.jcolor.Attribute;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 import de.rccookie.http.HttpRequest;
 import de.rccookie.http.HttpResponse;
 import de.rccookie.http.ResponseCode;
+import de.rccookie.http.util.VirtualThreads;
+import de.rccookie.util.Arguments;
 import de.rccookie.util.Console;
 import de.rccookie.util.Utils;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.Range;
 
@@ -24,17 +27,23 @@ import org.jetbrains.annotations.Range;
  */
 public abstract class RawHttpServer {
 
-    private static final Object LOG_LOCK = new Object();
-
     private Executor executor;
     private final List<HttpServer> servers = new ArrayList<>();
 
     @Nullable
     private String logLevel = "debug";
+    @NotNull
+    private AccessLog accessLog = AccessLog.defaultLog();
 
     @Nullable
     String name = "RcCookie";
 
+    private boolean virtualThreads = false;
+    @Nullable
+    private Duration pinningThreshold = null;
+    @Nullable
+    private VirtualThreads.PinningMonitor pinningMonitor = null;
+
 
     /**
      * Creates a new http server not yet bound to any port. The server should
@@ -85,6 +94,8 @@ public abstract class RawHttpServer {
             synchronized(this) {
                 if(executor == null)
                     executor = createExecutor();
+                if(pinningThreshold != null && pinningMonitor == null)
+                    pinningMonitor = VirtualThreads.monitorPinning(pinningThreshold);
             }
             HttpServer server = HttpServer.create(address, backlog);
             server.setExecutor(executor);
@@ -102,11 +113,15 @@ public abstract class RawHttpServer {
 
     /**
      * Returns the executor to be used to execute request handlers. This method will
-     * only be called once. The default implementation returns {@link Executors#newCachedThreadPool()}.
+     * only be called once. The default implementation returns {@link Executors#newCachedThreadPool()},
+     * or an executor running each request on a new virtual thread if {@link #setVirtualThreads(boolean)}
+     * is enabled.
      *
      * @return The executor to use in the server
      */
     protected Executor createExecutor() {
+        if(virtualThreads)
+            return VirtualThreads.newExecutor("Http handler");
         return Executors.newCachedThreadPool();
     }
 
@@ -185,6 +200,12 @@ public abstract class RawHttpServer {
             servers.stream().parallel().forEach(s -> s.stop(maxDelaySeconds));
             servers.clear();
         }
+        synchronized(this) {
+            if(pinningMonitor != null) {
+                pinningMonitor.close();
+                pinningMonitor = null;
+            }
+        }
     }
 
     /**
@@ -231,68 +252,105 @@ public abstract class RawHttpServer {
     }
 
     /**
-     * Called once per received request, before it gets processed.
+     * Sets whether request handlers should run on virtual threads instead of a pool of
+     * platform threads. This allows blocking handlers to scale far beyond the number of
+     * platform threads. Must be configured before the server starts listening, and has
+     * no effect if {@link #createExecutor()} is overridden. Virtual threads being pinned
+     * to their carrier thread can be monitored using {@link #setPinningThreshold(Duration)}.
      *
-     * @param request The request to log
+     * @param virtualThreads Whether to use virtual threads
+     * @throws UnsupportedOperationException If enabled and the runtime does not support
+     *                                       virtual threads (Java 21 or newer required)
      */
-    protected void logRequest(HttpRequest request) {
-        String level = logLevel;
-        if(level == null) return;
+    public void setVirtualThreads(boolean virtualThreads) {
+        if(virtualThreads && !VirtualThreads.isSupported())
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+        this.virtualThreads = virtualThreads;
+    }
 
-        String str = request.toString();
-        String msg = "<<"+surroundWithLine(str)+"<< "+request.client().toString().substring(1);
-        msg = msg.replace(str, Console.colored(str, Attribute.BOLD()));
-        synchronized(LOG_LOCK) {
-            Console.write(level, msg);
-        }
+    /**
+     * Returns whether request handlers run on virtual threads.
+     *
+     * @return Whether virtual threads are used
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
     }
 
     /**
-     * Called once per responded request, after it has been sent back to the client.
+     * Sets the minimum duration for which a virtual thread has to block while being pinned
+     * to its carrier thread to be recorded while the server is running, see
+     * {@link VirtualThreads#monitorPinning(Duration)}. Recording uses the JDK flight recorder
+     * and is disabled by default. Must be configured before the server starts listening.
+     * Monitoring stops when the server is stopped.
      *
-     * @param response The response to log
-     * @param forceError Whether to force this log to be an error, e.g. because there was a network error
+     * @param pinningThreshold The threshold for recording pinned virtual threads, or
+     *                         <code>null</code> to disable monitoring
      */
-    protected void logResponse(HttpResponse response, boolean forceError) {
-        String level = logLevel;
-        if(level == null && !forceError && response.code().type() != ResponseCode.Type.SERVER_ERROR) return;
-
-        String str = response.toString();
-        String msg = ">>"+surroundWithLine(str)+">> "+response.client().toString().substring(1);
-        msg = msg.replace(str, Console.colored(str, getColor(forceError ? ResponseCode.Type.SERVER_ERROR : response.code().type()), Attribute.BOLD()));
-        synchronized(LOG_LOCK) {
-            if(forceError || response.code().type() == ResponseCode.Type.SERVER_ERROR)
-                Console.error(msg);
-            else Console.write(level, msg);
-        }
+    public void setPinningThreshold(@Nullable Duration pinningThreshold) {
+        if(pinningThreshold != null && pinningThreshold.isNegative())
+            throw new IllegalArgumentException("Pinning threshold must not be negative");
+        this.pinningThreshold = pinningThreshold;
     }
 
-    private static Attribute getColor(ResponseCode.Type type) {
-        switch(type) {
-            case INFORMATIONAL: return Attribute.BLUE_TEXT();
-            case SUCCESS: return Attribute.GREEN_TEXT();
-            case REDIRECT: return Attribute.WHITE_TEXT();
-            case CLIENT_ERROR: return Attribute.MAGENTA_TEXT();
-            case SERVER_ERROR: return Attribute.RED_TEXT();
-            default: throw new NullPointerException();
-        }
+    /**
+     * Returns the minimum duration for which a pinned virtual thread has to block to be
+     * recorded, or <code>null</code> if pinning is not monitored.
+     *
+     * @return The threshold for recording pinned virtual threads, or <code>null</code>
+     */
+    @Nullable
+    public Duration getPinningThreshold() {
+        return pinningThreshold;
     }
 
-    private static final char LINE_CHAR = '=';
-    private static final int MIN_LINE_SIZE = 4;
-    private static final int PREFERRED_LOG_SIZE = 90;
+    /**
+     * Sets the access log that received requests and sent responses are logged to. By
+     * default, the shared {@link AccessLog#defaultLog()} is used, which writes to the
+     * console. Whether requests and responses are logged at all is still controlled by
+     * the {@linkplain #setLogLevel(String) log level}.
+     *
+     * @param accessLog The access log to use
+     */
+    public void setAccessLog(@NotNull AccessLog accessLog) {
+        this.accessLog = Arguments.checkNull(accessLog, "accessLog");
+    }
 
-    private static String surroundWithLine(String str) {
-        int l,r;
+    /**
+     * Returns the access log that received requests and sent responses are logged to.
+     *
+     * @return The access log in use
+     */
+    @NotNull
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
 
-        int min = str.length() + 2 * (MIN_LINE_SIZE + 1);
-        if(min >= PREFERRED_LOG_SIZE)
-            l = r = MIN_LINE_SIZE;
-        else {
-            l = MIN_LINE_SIZE + (PREFERRED_LOG_SIZE - min) / 2;
-            r = MIN_LINE_SIZE + (PREFERRED_LOG_SIZE - min) - l;
-        }
+    /**
+     * Called once per received request, before it gets processed. By default, this
+     * enqueues the request to the server's {@linkplain #getAccessLog() access log}, which
+     * formats and writes it asynchronously.
+     *
+     * @param request The request to log
+     */
+    protected void logRequest(HttpRequest request) {
+        String level = logLevel;
+        if(level == null) return;
+        accessLog.logRequest(request, level);
+    }
 
-        return Utils.repeat(LINE_CHAR, l)+" "+str+" "+Utils.repeat(LINE_CHAR, r);
+    /**
+     * Called once per responded request, after it has been sent back to the client. By
+     * default, this enqueues the response to the server's {@linkplain #getAccessLog() access log},
+     * which formats and writes it asynchronously.
+     *
+     * @param response The response to log
+     * @param forceError Whether to force this log to be an error, e.g. because there was a network error
+     */
+    protected void logResponse(HttpResponse response, boolean forceError) {
+        String level = logLevel;
+        boolean error = forceError || response.code().type() == ResponseCode.Type.SERVER_ERROR;
+        if(level == null && !error) return;
+        accessLog.logResponse(response, error ? "error" : level, error);
     }
 }
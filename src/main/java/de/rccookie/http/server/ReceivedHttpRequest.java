@@ -17,7 +17,9 @@ import de.rccookie.http.Header;
 import de.rccookie.http.HttpRequest;
 import de.rccookie.http.HttpResponse;
 import de.rccookie.http.Method;
+import de.rccookie.http.Query;
 import de.rccookie.http.ResponseCode;
+import de.rccookie.http.Route;
 import de.rccookie.util.Arguments;
 import de.rccookie.util.Console;
 import org.jetbrains.annotations.NotNull;
@@ -27,7 +29,7 @@ class ReceivedHttpRequest implements HttpRequest.Respondable {
 
     private final RawHttpServer server;
     private final HttpExchange connection;
-    private final URL url;
+    private final RequestTarget target;
     private final String version;
     private final Method method;
     private final Header header;
@@ -39,6 +41,15 @@ class ReceivedHttpRequest implements HttpRequest.Respondable {
     SendableHttpResponse response = null;
     Consumer<HttpResponse.Editable> configurators = null;
     private Map<Class<?>, Object> optionalParams = null;
+    /**
+     * The pattern the request was routed with, if it has path variables.
+     */
+    RoutePattern pathPattern = null;
+    /**
+     * The decoded values of the path variables captured while routing the request, indexed
+     * by {@link RoutePattern#variableIndex(String)}.
+     */
+    String[] pathVariables = null;
 
     public ReceivedHttpRequest(RawHttpServer server, HttpExchange connection)  {
         this.server = server;
@@ -65,7 +76,7 @@ class ReceivedHttpRequest implements HttpRequest.Respondable {
             host = host.substring(0, host.length() - 3);
 
         try {
-            this.url = new URL((https ? "https" : "http") + "://" + host + connection.getRequestURI().toASCIIString());//connection.getRequestURI().toURL();
+            this.target = RequestTarget.parse(https ? "https" : "http", host, connection.getRequestURI().toASCIIString());
         } catch(MalformedURLException e) {
             throw new HttpSyntaxException("Unable to parse request url", e);
         }
@@ -89,17 +100,42 @@ class ReceivedHttpRequest implements HttpRequest.Respondable {
         if(this == obj) return true;
         if(!(obj instanceof HttpRequest)) return false;
         HttpRequest r = (HttpRequest) obj;
-        return method == r.method() && url.toString().equals(r.url().toString()) && header.equals(r.header());
+        return method == r.method() && target.target().equals(r.target()) && host().equals(r.host()) && header.equals(r.header());
     }
 
     @Override
     public String toString() {
-        return method + " " + url;
+        return method + " " + target;
     }
 
     @Override
     public URL url() {
-        return url;
+        return target.url();
+    }
+
+    @Override
+    public String target() {
+        return target.target();
+    }
+
+    @Override
+    public String host() {
+        return target.host();
+    }
+
+    @Override
+    public Route route() {
+        return target.route();
+    }
+
+    @Override
+    public Query query() {
+        return target.query();
+    }
+
+    @Override
+    public boolean isHttps() {
+        return target.scheme().equalsIgnoreCase("https");
     }
 
     @Override
@@ -0,0 +1,238 @@
+package de.rccookie.http.server;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import de.rccookie.http.Query;
+import de.rccookie.http.Route;
+import de.rccookie.util.Arguments;
+import de.rccookie.util.Utils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The parsed target of a received request. The target is kept as received, only the
+ * positions of the path and the query within it are determined up front. The route, the
+ * query parameters and the full url are decoded lazily on first access and then cached,
+ * such that e.g. routing a request does not require constructing and re-parsing a
+ * {@link URL}. Used by server implementations to implement {@link de.rccookie.http.HttpRequest#url()},
+ * {@link de.rccookie.http.HttpRequest#route()} and {@link de.rccookie.http.HttpRequest#query()}.
+ *
+ * <p>The lazily computed values are immutable, concurrent first accesses may compute them
+ * multiple times but always yield equal results.</p>
+ */
+public final class RequestTarget {
+
+    @NotNull
+    private final String scheme;
+    @NotNull
+    private final String host;
+    /**
+     * The target in origin-form, i.e. the path followed by the optional query.
+     */
+    @NotNull
+    private final String target;
+    /**
+     * The index of the end of the path within the target, which is the start of the query
+     * or fragment if present.
+     */
+    private final int pathEnd;
+    /**
+     * The index of the first character of the query within the target, or -1 if the target
+     * has no query.
+     */
+    private final int queryStart;
+    private final int queryEnd;
+
+    private Route route = null;
+    private Query query = null;
+    private URL url = null;
+    private String string = null;
+
+    private RequestTarget(@NotNull String scheme, @NotNull String host, @NotNull String target, @Nullable URL url) {
+        this.scheme = scheme;
+        this.host = host;
+        this.target = target;
+        this.url = url;
+
+        int end = target.indexOf('#');
+        if(end < 0) end = target.length();
+        int question = target.indexOf('?');
+        if(question >= 0 && question < end) {
+            pathEnd = question;
+            queryStart = question + 1;
+            queryEnd = end;
+        }
+        else {
+            pathEnd = end;
+            queryStart = queryEnd = -1;
+        }
+    }
+
+    /**
+     * Parses the given request target. The target may either be in origin-form (starting
+     * with '/'), in which case the given scheme and host are used for the url, or in
+     * absolute-form, in which case the url is parsed immediately.
+     *
+     * @param scheme The scheme the request was received with, e.g. "http"
+     * @param host The value of the host header field, or <code>null</code> if not present
+     * @param target The request target as received
+     * @return The parsed request target
+     * @throws MalformedURLException If the target or host is malformed
+     */
+    @NotNull
+    public static RequestTarget parse(@NotNull String scheme, @Nullable String host, @NotNull String target) throws MalformedURLException {
+        Arguments.checkNull(scheme, "scheme");
+        Arguments.checkNull(target, "target");
+        if(target.startsWith("/")) {
+            if(host == null)
+                host = "";
+            else checkPort(host);
+            return new RequestTarget(scheme, host, target, null);
+        }
+
+        URL url = new URL(target);
+        String file = url.getFile();
+        if(!file.startsWith("/"))
+            file = "/" + file;
+        return new RequestTarget(url.getProtocol(), url.getAuthority() != null ? url.getAuthority() : "", file, url);
+    }
+
+    /**
+     * Checks that the port of the host, if any, is a number, which would otherwise fail
+     * when the url gets constructed lazily.
+     */
+    private static void checkPort(String host) throws MalformedURLException {
+        int colon = host.lastIndexOf(':');
+        if(colon < 0 || host.indexOf(']', colon) >= 0) return;
+        for(int i=colon+1; i<host.length(); i++)
+            if(host.charAt(i) < '0' || host.charAt(i) > '9')
+                throw new MalformedURLException("Invalid port in host: "+host);
+    }
+
+    /**
+     * Returns the request target in origin-form, that is, the path and the query.
+     *
+     * @return The path and query
+     */
+    @NotNull
+    public String target() {
+        return target;
+    }
+
+    /**
+     * Returns the raw, still encoded path of the request target.
+     *
+     * @return The raw path
+     */
+    @NotNull
+    public String rawPath() {
+        return target.substring(0, pathEnd);
+    }
+
+    /**
+     * Returns the raw, still encoded query of the request target, excluding the '?'.
+     *
+     * @return The raw query, or <code>null</code> if the target has no query
+     */
+    @Nullable
+    public String rawQuery() {
+        return queryStart >= 0 ? target.substring(queryStart, queryEnd) : null;
+    }
+
+    /**
+     * Returns the scheme of the request, e.g. "http".
+     *
+     * @return The scheme
+     */
+    @NotNull
+    public String scheme() {
+        return scheme;
+    }
+
+    /**
+     * Returns the host name the request targets, without port.
+     *
+     * @return The host name
+     */
+    @NotNull
+    public String host() {
+        if(host.startsWith("[")) {
+            int end = host.indexOf(']');
+            return end >= 0 ? host.substring(0, end + 1) : host;
+        }
+        int colon = host.indexOf(':');
+        return colon >= 0 ? host.substring(0, colon) : host;
+    }
+
+    /**
+     * Returns the decoded route of the request target.
+     *
+     * @return The route
+     * @throws HttpRequestFailure <code>400 Bad Request</code> if the path contains a malformed
+     *                            percent-encoding
+     */
+    @NotNull
+    public Route route() {
+        Route route = this.route;
+        if(route == null) {
+            try {
+                this.route = route = Route.of(rawPath());
+            } catch(IllegalArgumentException e) {
+                throw HttpRequestFailure.badRequest("Malformed path encoding", null, e);
+            }
+        }
+        return route;
+    }
+
+    /**
+     * Returns the decoded query parameters of the request target.
+     *
+     * @return The query parameters
+     * @throws HttpRequestFailure <code>400 Bad Request</code> if the query contains a malformed
+     *                            percent-encoding
+     */
+    @NotNull
+    public Query query() {
+        Query query = this.query;
+        if(query == null) {
+            try {
+                this.query = query = queryStart >= 0 ? Query.parse(target.substring(queryStart, queryEnd)) : Query.EMPTY;
+            } catch(IllegalArgumentException e) {
+                throw HttpRequestFailure.badRequest("Malformed query encoding", null, e);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Returns the full url of the request.
+     *
+     * @return The request url
+     */
+    @NotNull
+    public URL url() {
+        URL url = this.url;
+        if(url == null) {
+            try {
+                this.url = url = new URL(toString());
+            } catch(MalformedURLException e) {
+                throw Utils.rethrow(e);
+            }
+        }
+        return url;
+    }
+
+    /**
+     * Returns the full url of the request as string, without constructing a {@link URL}.
+     *
+     * @return The request url as string
+     */
+    @Override
+    public String toString() {
+        String string = this.string;
+        if(string == null)
+            this.string = string = scheme + "://" + host + target;
+        return string;
+    }
+}
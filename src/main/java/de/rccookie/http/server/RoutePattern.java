@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import de.rccookie.http.HttpRequest;
 import de.rccookie.http.Route;
 import de.rccookie.util.Arguments;
 
@@ -60,6 +61,13 @@ class RoutePattern {
         this.regex = Pattern.compile(regex);
     }
 
+    /**
+     * Returns the regex the whole route has to match.
+     */
+    Pattern regex() {
+        return regex;
+    }
+
     public boolean matches(Route route) {
         return regex.matcher(route.toString()).matches();
     }
@@ -70,7 +78,49 @@ class RoutePattern {
         Matcher matcher = regex.matcher(route.toString());
         if(!matcher.matches())
             throw new IllegalArgumentException("Route does not match pattern");
-        return URLDecoder.decode(matcher.group("v" + variables.indexOf(varName)), StandardCharsets.UTF_8);
+        return decode(matcher.group("v" + variables.indexOf(varName)));
+    }
+
+    /**
+     * Returns the value of the variable with the given index for the given request. If the
+     * request was routed using this pattern, the value captured during routing is used,
+     * otherwise the request's route is matched against this pattern.
+     *
+     * @param request The request to get the variable value for
+     * @param index The index of the variable, see {@link #variableIndex(String)}
+     * @return The decoded value of the variable
+     */
+    String getVariable(HttpRequest.Received request, int index) {
+        if(request instanceof ReceivedHttpRequest) {
+            ReceivedHttpRequest received = (ReceivedHttpRequest) request;
+            if(received.pathVariables != null && equals(received.pathPattern))
+                return received.pathVariables[index];
+        }
+        return getVariable(request.route(), variables.get(index));
+    }
+
+    /**
+     * Returns the index of the variable with the given name, which is the index of its value
+     * in the variables captured while routing a request.
+     *
+     * @param name The name of the variable
+     * @return The index of the variable, or -1 if the pattern does not contain the variable
+     */
+    int variableIndex(String name) {
+        return variables.indexOf(name);
+    }
+
+    /**
+     * Returns the number of variables in this pattern, including duplicates.
+     *
+     * @return The number of variables
+     */
+    int variableCount() {
+        return variables.size();
+    }
+
+    static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
     }
 
     public boolean containsVariable(String name) {
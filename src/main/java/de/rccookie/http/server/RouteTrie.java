@@ -0,0 +1,482 @@
+package de.rccookie.http.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import de.rccookie.http.Route;
+import de.rccookie.util.Arguments;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Maps route patterns to values, such that the value of the most specific matching pattern
+ * for a route can be found in a single pass over the route's segments. Each trie node
+ * corresponds to a segment of a pattern. On each level, candidates are tried in the
+ * following order, backtracking if the rest of the route does not match:
+ * <ol>
+ *     <li>A static segment equal to the route's segment</li>
+ *     <li>Single-segment patterns, e.g. <code>file-*.txt</code> or <code>&lt;id:[0-9]+&gt;</code>,
+ *     in the order they were added</li>
+ *     <li>Single-segment wildcards, i.e. <code>*</code> and <code>&lt;var&gt;</code>, in the
+ *     order they were added</li>
+ *     <li>Patterns matching the rest of the route which can't be split into segments, e.g.
+ *     because of a variable with a regex possibly matching multiple segments</li>
+ *     <li>A <code>**</code> segment, matching any number of segments, preferring as many
+ *     as possible</li>
+ * </ol>
+ * Segments of a pattern match exactly the same as the pattern's regex would, see
+ * {@link RoutePattern}; the regex is simply not applied to the whole route at once.
+ * Path variables are captured while matching, see {@link #match(Route)}.
+ *
+ * <p>This class is not thread safe. A trie that is no longer modified may however be read
+ * concurrently, which allows to publish a modified {@link #copy()} instead of modifying
+ * a shared trie.</p>
+ *
+ * @param <T> The type of values mapped
+ */
+final class RouteTrie<T> {
+
+    /**
+     * Characters with special meaning in the regex a pattern gets translated to. Segments
+     * without any of these characters are matched by string comparison.
+     */
+    private static final String REGEX_CHARS = "\\.[]{}()^$|?+*<>";
+
+    /**
+     * A custom variable regex containing any of these may match more than a single segment.
+     */
+    private static final Pattern MULTI_SEGMENT_REGEX = Pattern.compile("\\.|\\\\|\\[\\^|/");
+
+    private static final String[] NO_VARIABLES = new String[0];
+
+    private final Node<T> root;
+    private int size = 0;
+
+
+    /**
+     * Creates a new, empty route trie.
+     */
+    RouteTrie() {
+        this(new Node<>(null, null, 0));
+    }
+
+    private RouteTrie(Node<T> root) {
+        this.root = root;
+    }
+
+
+    /**
+     * Maps the given pattern to the given value, replacing the value previously mapped to an
+     * equal pattern.
+     *
+     * @param pattern The pattern to map
+     * @param value The value to map the pattern to
+     * @return The value previously mapped to the pattern, or <code>null</code>
+     */
+    @Nullable
+    T put(RoutePattern pattern, T value) {
+        Arguments.checkNull(value, "value");
+        String str = pattern.toString();
+        List<String> segments = str.startsWith("/") ? split(str) : null;
+
+        Node<T> node = root;
+        if(segments == null || segments.stream().anyMatch(s -> s.contains("**") && !s.equals("**"))) {
+            // "**" within a segment may also match the preceding '/', match the whole route at once
+            node = root.tailChild(str, pattern);
+        }
+        else for(int i=0; i<segments.size(); i++) {
+            String segment = segments.get(i);
+            Node<T> parent = node;
+            if(segment.equals("**"))
+                node = node.multi != null ? node.multi : (node.multi = new Node<>("**", null, node.variablesAfter()));
+            else if(isStatic(segment))
+                node = node.statics.computeIfAbsent(segment, s -> new Node<>(s, null, parent.variablesAfter()));
+            else if(isSingleSegment(segment))
+                node = node.segmentChild(segment);
+            else {
+                String tail = "/" + String.join("/", segments.subList(i, segments.size()));
+                node = node.tailChild(tail, RoutePattern.parse(tail));
+                break;
+            }
+        }
+
+        T old = node.value;
+        node.value = value;
+        node.pattern = pattern;
+        if(old == null) size++;
+        return old;
+    }
+
+    /**
+     * Returns the value mapped to the most specific pattern matching the given route.
+     *
+     * @param route The route to find the value for
+     * @return The value for the route, or <code>null</code> if no pattern matches
+     */
+    @Nullable
+    T get(Route route) {
+        if(size == 0) return null;
+        Node<T> node = find(root, route.toString(), 0, null, null);
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * Finds the most specific pattern matching the given route, like {@link #get(Route)},
+     * and captures the values of the pattern's path variables while matching.
+     *
+     * @param route The route to find the value for
+     * @return The match, or <code>null</code> if no pattern matches
+     */
+    @Nullable
+    Match<T> match(Route route) {
+        if(size == 0) return null;
+        Match<T> match = new Match<>();
+        Node<T> node = find(root, route.toString(), 0, match, null);
+        if(node == null) return null;
+        match.value = node.value;
+        match.pattern = node.pattern;
+        return match;
+    }
+
+    /**
+     * Passes the values of all patterns matching the given route to the given action, in a
+     * single pass over the route. A value may be passed multiple times if its pattern can
+     * match the route in multiple ways.
+     *
+     * @param route The route to find the values for
+     * @param action The action to perform for each value
+     */
+    void forEachMatch(Route route, Consumer<? super T> action) {
+        Arguments.checkNull(action, "action");
+        if(size != 0)
+            find(root, route.toString(), 0, null, action);
+    }
+
+    /**
+     * Passes all mapped patterns and their values to the given action.
+     *
+     * @param action The action to perform for each mapping
+     */
+    void forEach(BiConsumer<? super RoutePattern, ? super T> action) {
+        forEach(root, action);
+    }
+
+    private static <T> void forEach(Node<T> node, BiConsumer<? super RoutePattern, ? super T> action) {
+        if(node.value != null)
+            action.accept(node.pattern, node.value);
+        for(Node<T> child : node.statics.values())
+            forEach(child, action);
+        for(Node<T> child : node.segments)
+            forEach(child, action);
+        for(Node<T> child : node.tails)
+            forEach(child, action);
+        if(node.multi != null)
+            forEach(node.multi, action);
+    }
+
+    /**
+     * Returns whether any pattern matches the given route.
+     *
+     * @param route The route to test
+     * @return Whether a value is mapped to a pattern matching the route
+     */
+    boolean matches(Route route) {
+        return get(route) != null;
+    }
+
+    /**
+     * Removes all mappings whose value matches the given filter.
+     *
+     * @param filter The filter to determine which values to remove
+     * @return Whether any mapping was removed
+     */
+    boolean removeIf(Predicate<? super T> filter) {
+        int before = size;
+        removeIf(root, filter);
+        return size != before;
+    }
+
+    /**
+     * Returns a copy of this trie which can be modified independently of this trie. The
+     * values themselves are not copied.
+     *
+     * @return A copy of this trie
+     */
+    RouteTrie<T> copy() {
+        RouteTrie<T> copy = new RouteTrie<>(new Node<>(root));
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Returns the number of mapped patterns.
+     *
+     * @return The number of mappings
+     */
+    int size() {
+        return size;
+    }
+
+    private boolean removeIf(Node<T> node, Predicate<? super T> filter) {
+        if(node.value != null && filter.test(node.value)) {
+            node.value = null;
+            node.pattern = null;
+            size--;
+        }
+        node.statics.values().removeIf(n -> removeIf(n, filter));
+        node.segments.removeIf(n -> removeIf(n, filter));
+        node.tails.removeIf(n -> removeIf(n, filter));
+        if(node.multi != null && removeIf(node.multi, filter))
+            node.multi = null;
+        return node.isEmpty();
+    }
+
+    /**
+     * Finds the value for the rest of the route starting at the given index, which is
+     * either the index of the '/' preceding the next segment, or the end of the route. If
+     * a visitor is given, the values of all matching nodes are passed to it instead and no
+     * node is returned.
+     */
+    @Nullable
+    private static <T> Node<T> find(Node<T> node, String path, int pos, @Nullable Match<T> match, @Nullable Consumer<? super T> visitor) {
+        int length = path.length();
+        if(pos == length) {
+            if(node.value != null) {
+                if(visitor == null)
+                    return terminal(node, match);
+                visitor.accept(node.value);
+            }
+        }
+        else {
+            int end = path.indexOf('/', pos + 1);
+            if(end < 0) end = length;
+
+            Node<T> result;
+            if(!node.statics.isEmpty()) {
+                Node<T> child = node.statics.get(path.substring(pos + 1, end));
+                if(child != null && (result = find(child, path, end, match, visitor)) != null)
+                    return result;
+            }
+            for(Node<T> child : node.segments) {
+                // The segment regex includes the preceding '/'
+                Matcher matcher = child.segmentPattern.regex().matcher(path).region(pos, end);
+                if(matcher.matches() && (result = find(child, path, end, match, visitor)) != null) {
+                    if(match != null)
+                        child.capture(matcher, match.variables);
+                    return result;
+                }
+            }
+        }
+        for(Node<T> child : node.tails) {
+            if(child.value == null) continue;
+            Matcher matcher = child.segmentPattern.regex().matcher(path).region(pos, length);
+            if(matcher.matches()) {
+                if(visitor != null) {
+                    visitor.accept(child.value);
+                    continue;
+                }
+                terminal(child, match);
+                if(match != null)
+                    child.capture(matcher, match.variables);
+                return child;
+            }
+        }
+
+        if(node.multi != null) {
+            // Any number of segments, preferring as many as possible like the greedy regex
+            for(int p = length; ; p = path.lastIndexOf('/', p - 1)) {
+                if(p < pos) p = pos;
+                Node<T> result = find(node.multi, path, p, match, visitor);
+                if(result != null) return result;
+                if(p == pos) break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Prepares the match for capturing the variables of the matched node's pattern, which
+     * are captured by the nodes on the path to it while unwinding.
+     */
+    private static <T> Node<T> terminal(Node<T> node, @Nullable Match<T> match) {
+        if(match != null) {
+            int count = node.pattern.variableCount();
+            match.variables = count != 0 ? new String[count] : NO_VARIABLES;
+        }
+        return node;
+    }
+
+    /**
+     * Splits the pattern, which starts with '/', into its segments. Escaped slashes, which
+     * may occur within variables, do not separate segments.
+     */
+    private static List<String> split(String pattern) {
+        List<String> segments = new ArrayList<>();
+        int start = 1;
+        for(int i=1; i<pattern.length(); i++) {
+            if(pattern.charAt(i) == '/' && pattern.charAt(i - 1) != '\\') {
+                segments.add(pattern.substring(start, i));
+                start = i + 1;
+            }
+        }
+        segments.add(pattern.substring(start));
+        return segments;
+    }
+
+    private static boolean isStatic(String segment) {
+        for(int i=0; i<segment.length(); i++)
+            if(REGEX_CHARS.indexOf(segment.charAt(i)) >= 0) return false;
+        return true;
+    }
+
+    /**
+     * Returns whether the segment's regex can only ever match within a single segment.
+     */
+    private static boolean isSingleSegment(String segment) {
+        if(segment.contains("**"))
+            return false;
+        int varStart = segment.indexOf('<');
+        while(varStart >= 0) {
+            int colon = segment.indexOf(':', varStart);
+            int varEnd = segment.indexOf('>', varStart);
+            if(colon >= 0 && (varEnd < 0 || colon < varEnd)) {
+                // Custom regex, conservatively check whether it may match a '/'
+                int regexEnd = varEnd >= 0 ? varEnd : segment.length();
+                if(MULTI_SEGMENT_REGEX.matcher(segment).region(colon + 1, regexEnd).find())
+                    return false;
+            }
+            varStart = varEnd >= 0 ? segment.indexOf('<', varEnd) : -1;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the segment is a wildcard matching any single, non-empty segment.
+     */
+    private static boolean isWildcard(String segment) {
+        if(segment.equals("*")) return true;
+        return segment.length() > 2 && segment.charAt(0) == '<' && segment.indexOf('>') == segment.length() - 1
+                && segment.indexOf(':') < 0 && segment.indexOf('\\') < 0 && segment.indexOf('<', 1) < 0;
+    }
+
+
+    /**
+     * The result of {@link #match(Route)}.
+     *
+     * @param <T> The type of value
+     */
+    static final class Match<T> {
+
+        /**
+         * The value mapped to the matched pattern.
+         */
+        T value;
+        /**
+         * The matched pattern.
+         */
+        RoutePattern pattern;
+        /**
+         * The values of the path variables of the matched pattern, in the order of
+         * {@link RoutePattern#variableIndex(String)}. Values are url-decoded.
+         */
+        String[] variables;
+
+        private Match() { }
+    }
+
+
+    private static final class Node<T> {
+
+        /**
+         * The pattern segment(s) this node was created for.
+         */
+        final String source;
+        /**
+         * For segment and tail nodes, the pattern of the segment(s), including the preceding
+         * '/' if any.
+         */
+        final RoutePattern segmentPattern;
+        /**
+         * The number of path variables in the segments preceding this node's segment(s),
+         * which is the index of the first variable of this node.
+         */
+        final int variableOffset;
+        final Map<String, Node<T>> statics = new HashMap<>();
+        final List<Node<T>> segments = new ArrayList<>();
+        final List<Node<T>> tails = new ArrayList<>();
+        Node<T> multi = null;
+
+        T value = null;
+        RoutePattern pattern = null;
+
+        Node(String source, RoutePattern segmentPattern, int variableOffset) {
+            this.source = source;
+            this.segmentPattern = segmentPattern;
+            this.variableOffset = variableOffset;
+        }
+
+        /**
+         * Creates a deep copy of the given node and its children.
+         */
+        Node(Node<T> copy) {
+            this(copy.source, copy.segmentPattern, copy.variableOffset);
+            copy.statics.forEach((s,n) -> statics.put(s, new Node<>(n)));
+            for(Node<T> n : copy.segments)
+                segments.add(new Node<>(n));
+            for(Node<T> n : copy.tails)
+                tails.add(new Node<>(n));
+            if(copy.multi != null)
+                multi = new Node<>(copy.multi);
+            value = copy.value;
+            pattern = copy.pattern;
+        }
+
+        /**
+         * Returns the number of path variables in the segments up to and including this
+         * node's segment(s).
+         */
+        int variablesAfter() {
+            return variableOffset + (segmentPattern != null ? segmentPattern.variableCount() : 0);
+        }
+
+        /**
+         * Stores the values of the variables of this node's segment(s), matched by the given
+         * matcher.
+         */
+        void capture(Matcher matcher, String[] variables) {
+            int count = segmentPattern.variableCount();
+            for(int i=0; i<count; i++)
+                variables[variableOffset + i] = RoutePattern.decode(matcher.group("v" + i));
+        }
+
+        Node<T> segmentChild(String segment) {
+            for(Node<T> child : segments)
+                if(child.source.equals(segment)) return child;
+            Node<T> child = new Node<>(segment, RoutePattern.parse("/" + segment), variablesAfter());
+            // Wildcards after segments with literal parts, otherwise in insertion order
+            int index = segments.size();
+            if(!isWildcard(segment))
+                while(index > 0 && isWildcard(segments.get(index - 1).source)) index--;
+            segments.add(index, child);
+            return child;
+        }
+
+        Node<T> tailChild(String tail, RoutePattern tailPattern) {
+            for(Node<T> child : tails)
+                if(child.source.equals(tail)) return child;
+            Node<T> child = new Node<>(tail, tailPattern, variablesAfter());
+            tails.add(child);
+            return child;
+        }
+
+        boolean isEmpty() {
+            return value == null && statics.isEmpty() && segments.isEmpty() && tails.isEmpty() && multi == null;
+        }
+    }
+}
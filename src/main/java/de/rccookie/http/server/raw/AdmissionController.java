@@ -0,0 +1,153 @@
+package de.rccookie.http.server.raw;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.rccookie.http.ResponseCode;
+
+/**
+ * Limits the number of requests of a {@link RawHttpServer} that are processed concurrently.
+ * Requests exceeding the limit wait in a bounded queue for a limited time; if the queue is
+ * full or the time runs out, the request gets rejected with a pre-serialized
+ * <code>503 Service Unavailable</code> response, without creating a request object or
+ * calling any handler.
+ */
+final class AdmissionController {
+
+    /**
+     * The result of {@link #acquire()}.
+     */
+    enum Result {
+        ADMITTED,
+        QUEUE_FULL,
+        QUEUE_TIMEOUT
+    }
+
+    private final ServerMetrics metrics;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private int inFlight = 0;
+    private int queued = 0;
+
+    // Configuration, 0 means unlimited
+    volatile int maxInFlight = 0;
+    volatile int maxQueued = 0;
+    volatile long maxQueueTime = Duration.ofSeconds(10).toNanos();
+
+    private volatile byte[] rejection;
+    private volatile long retryAfter;
+
+    AdmissionController(ServerMetrics metrics) {
+        this.metrics = metrics;
+        setRetryAfter(Duration.ofSeconds(5));
+    }
+
+    /**
+     * Acquires permission to process a request, waiting in the queue if the maximum number
+     * of requests is already being processed. If admitted, {@link #release()} has to be called
+     * once the request has been responded to.
+     *
+     * @return Whether the request was admitted or the reason why it was rejected
+     */
+    Result acquire() {
+        lock.lock();
+        try {
+            int max = maxInFlight;
+            // Don't overtake queued requests
+            if(max <= 0 || (inFlight < max && queued == 0)) {
+                admit();
+                return Result.ADMITTED;
+            }
+            if(queued >= maxQueued) {
+                metrics.rejectedQueueFull.increment();
+                return Result.QUEUE_FULL;
+            }
+
+            queued++;
+            metrics.queuedRequests.increment();
+            try {
+                long remaining = maxQueueTime;
+                while(inFlight >= (max = maxInFlight) && max > 0) {
+                    if(remaining <= 0) {
+                        // May have consumed a signal meant for the next queued request
+                        released.signal();
+                        metrics.rejectedQueueTimeout.increment();
+                        return Result.QUEUE_TIMEOUT;
+                    }
+                    remaining = released.awaitNanos(remaining);
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                metrics.rejectedQueueTimeout.increment();
+                return Result.QUEUE_TIMEOUT;
+            } finally {
+                queued--;
+                metrics.queuedRequests.decrement();
+            }
+            admit();
+            return Result.ADMITTED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void admit() {
+        inFlight++;
+        metrics.inFlightRequests.increment();
+    }
+
+    /**
+     * Releases the permission acquired for a request, allowing the next queued request
+     * to be processed.
+     */
+    void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            metrics.inFlightRequests.decrement();
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the complete serialized response to send for rejected requests.
+     *
+     * @return The rejection response bytes
+     */
+    byte[] rejection() {
+        return rejection;
+    }
+
+    /**
+     * Sets the value of the <code>Retry-After</code> header in rejection responses, and
+     * serializes the rejection response.
+     *
+     * @param retryAfter The time after which clients should retry a rejected request,
+     *                   rounded up to seconds
+     */
+    void setRetryAfter(Duration retryAfter) {
+        long seconds = retryAfter.getSeconds() + (retryAfter.getNano() != 0 ? 1 : 0);
+        ResponseCode code = ResponseCode.SERVICE_UNAVAILABLE;
+        rejection = ("HTTP/1.1 " + code.code() + " " + code.httpName() + "\r\n" +
+                     "Retry-After: " + seconds + "\r\n" +
+                     "Content-Length: 0\r\n" +
+                     "Connection: close\r\n" +
+                     "\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.retryAfter = seconds;
+    }
+
+    /**
+     * Returns the value of the <code>Retry-After</code> header in rejection responses.
+     *
+     * @return The retry delay in seconds
+     */
+    Duration getRetryAfter() {
+        return Duration.ofSeconds(retryAfter);
+    }
+}
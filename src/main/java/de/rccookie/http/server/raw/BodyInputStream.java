@@ -0,0 +1,30 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The stream of a received request body, reading from the connection's input stream.
+ * Closing the stream does not close the connection; before the next request on the
+ * connection gets received, the unread remainder of the body is discarded using
+ * {@link #discard(long)}.
+ */
+abstract class BodyInputStream extends InputStream {
+
+    boolean closed = false;
+
+    /**
+     * Reads and discards the remainder of the body, regardless of whether the stream has
+     * been closed.
+     *
+     * @param limit The maximum number of bytes to discard
+     * @return Whether the end of the body was reached, <code>false</code> if the body is
+     *         longer than the limit or the connection was closed before the end
+     */
+    abstract boolean discard(long limit) throws IOException;
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
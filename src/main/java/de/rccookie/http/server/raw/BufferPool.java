@@ -0,0 +1,146 @@
+package de.rccookie.http.server.raw;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.rccookie.util.Console;
+
+/**
+ * A shared pool of byte arrays used for connection I/O, e.g. the read buffers of idle
+ * connections and the buffers of response body streams. Arrays are pooled in size classes
+ * of powers of two from {@link #MIN_SIZE} to {@link #MAX_SIZE}; larger requests are simply
+ * allocated and not pooled. Arrays obtained with {@link #acquire(int)} should be returned
+ * using {@link #release(byte[])} once no longer used, and must not be used afterwards.
+ *
+ * <p>If the system property <code>rccookie.http.leakDetection</code> is set, the stack
+ * trace of each acquisition is recorded, and a warning is logged if an array gets garbage
+ * collected without having been released, or if an array gets released twice.</p>
+ */
+final class BufferPool {
+
+    static final int MIN_SIZE = 4096;
+    static final int MAX_SIZE = 1 << 16;
+
+    /**
+     * The maximum number of pooled bytes per size class.
+     */
+    private static final int MAX_CLASS_BYTES = 4 << 20;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+    @SuppressWarnings("unchecked")
+    private static final Queue<byte[]>[] POOLS = new Queue[CLASS_COUNT];
+    private static final AtomicInteger[] POOL_SIZES = new AtomicInteger[CLASS_COUNT];
+    static {
+        for(int i=0; i<CLASS_COUNT; i++) {
+            POOLS[i] = new ConcurrentLinkedQueue<>();
+            POOL_SIZES[i] = new AtomicInteger();
+        }
+    }
+
+    static final boolean LEAK_DETECTION = System.getProperty("rccookie.http.leakDetection") != null;
+
+    // Only used with leak detection. Arrays use identity equality, so the map is keyed by identity
+    private static final Map<byte[], Allocation> ALLOCATIONS = LEAK_DETECTION ? Collections.synchronizedMap(new WeakHashMap<>()) : null;
+    private static final Set<Allocation> LIVE = LEAK_DETECTION ? ConcurrentHashMap.newKeySet() : null;
+    private static final ReferenceQueue<byte[]> COLLECTED = LEAK_DETECTION ? new ReferenceQueue<>() : null;
+
+    private BufferPool() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns an array of at least the given size, from the pool if possible. The contents
+     * of the array are undefined.
+     *
+     * @param minSize The minimum size of the array
+     * @return An array of at least the given size
+     */
+    static byte[] acquire(int minSize) {
+        int sizeClass = sizeClass(minSize);
+        byte[] buffer = null;
+        if(sizeClass >= 0) {
+            buffer = POOLS[sizeClass].poll();
+            if(buffer != null)
+                POOL_SIZES[sizeClass].decrementAndGet();
+            else buffer = new byte[MIN_SIZE << sizeClass];
+        }
+        else buffer = new byte[minSize];
+        if(LEAK_DETECTION)
+            track(buffer);
+        return buffer;
+    }
+
+    /**
+     * Returns the given array to the pool. Arrays not obtained from {@link #acquire(int)} are
+     * ignored, unless their size matches a size class.
+     *
+     * @param buffer The array to release
+     */
+    static void release(byte[] buffer) {
+        if(LEAK_DETECTION && !untrack(buffer))
+            return;
+        int sizeClass = sizeClass(buffer.length);
+        if(sizeClass < 0 || buffer.length != MIN_SIZE << sizeClass)
+            return;
+        if(POOL_SIZES[sizeClass].incrementAndGet() <= MAX_CLASS_BYTES / buffer.length)
+            POOLS[sizeClass].add(buffer);
+        else POOL_SIZES[sizeClass].decrementAndGet();
+    }
+
+    private static int sizeClass(int size) {
+        if(size > MAX_SIZE) return -1;
+        if(size <= MIN_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    private static void track(byte[] buffer) {
+        reportLeaks();
+        Allocation allocation = new Allocation(buffer);
+        ALLOCATIONS.put(buffer, allocation);
+        LIVE.add(allocation);
+    }
+
+    private static boolean untrack(byte[] buffer) {
+        Allocation allocation = ALLOCATIONS.remove(buffer);
+        if(allocation == null) {
+            Console.warn("Buffer released twice or not acquired from the pool:");
+            Console.warn(new Exception("Released here"));
+            return false;
+        }
+        LIVE.remove(allocation);
+        allocation.clear();
+        return true;
+    }
+
+    private static void reportLeaks() {
+        Allocation allocation;
+        while((allocation = (Allocation) COLLECTED.poll()) != null) {
+            if(!LIVE.remove(allocation)) continue;
+            Console.warn("Buffer was garbage collected without being released:");
+            Console.warn(allocation.trace);
+        }
+    }
+
+    /**
+     * Records where a tracked array was acquired, and gets enqueued once the array has
+     * been garbage collected.
+     */
+    private static final class Allocation extends PhantomReference<byte[]> {
+        final Exception trace;
+
+        Allocation(byte[] buffer) {
+            super(buffer, COLLECTED);
+            trace = new Exception("Acquired here (" + buffer.length + " bytes)");
+        }
+    }
+}
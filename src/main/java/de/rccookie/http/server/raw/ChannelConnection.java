@@ -0,0 +1,262 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import de.rccookie.util.Console;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A connection using a non-blocking socket channel managed by an {@link EventLoop}.
+ * While the connection is idle, the event loop reads incoming data into the buffer
+ * and only dispatches the connection to the server's executor once a complete request
+ * head has been received. While a request is being processed, the handler thread reads
+ * and writes the channel itself, waiting for readiness using a temporary selector.
+ */
+class ChannelConnection extends Connection {
+
+    /**
+     * Selectors used by handler threads to wait for the channel to become readable or
+     * writable. A channel may be registered with multiple selectors at once, so this
+     * does not interfere with the event loop.
+     */
+    private static final Queue<Selector> SELECTORS = new ConcurrentLinkedQueue<>();
+
+    final SocketChannel channel;
+    final EventLoop eventLoop;
+    SelectionKey key = null;
+    /**
+     * The handler of the protocol the connection was upgraded to, if any.
+     */
+    private volatile ProtocolHandler handler = null;
+    /**
+     * The selector a handler thread is currently waiting on in {@link #await(int)}, if any.
+     * Closing the channel does not wake up the selector, so {@link #close()} does.
+     */
+    private volatile Selector waiting = null;
+    private final OutputStream out = new ChannelOutputStream();
+
+    ChannelConnection(RawHttpServer server, SocketChannel channel, EventLoop eventLoop) throws IOException {
+        super(server, inetAddress(channel.getLocalAddress()), inetAddress(channel.getRemoteAddress()));
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+    }
+
+    @Override
+    OutputStream out() {
+        return out;
+    }
+
+    @Override
+    void write(ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for(ByteBuffer buffer : buffers)
+            remaining += buffer.remaining();
+        while(remaining > 0) {
+            long written = channel.write(buffers);
+            if(written == 0)
+                await(SelectionKey.OP_WRITE);
+            remaining -= written;
+        }
+    }
+
+    @Override
+    void transferFrom(FileChannel file, long count) throws IOException {
+        long position = file.position(), end = position + count;
+        while(position < end) {
+            long transferred = file.transferTo(position, end - position, channel);
+            if(transferred == 0) {
+                if(position >= file.size())
+                    throw new IOException("File is shorter than the content length");
+                await(SelectionKey.OP_WRITE);
+            }
+            position += transferred;
+        }
+        file.position(position);
+    }
+
+    @Override
+    int read0(byte[] b, int off, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+        int read;
+        while((read = channel.read(buf)) == 0)
+            await(SelectionKey.OP_READ);
+        return read;
+    }
+
+    @Override
+    void shutdownInput() throws IOException {
+        channel.shutdownInput();
+    }
+
+    @Override
+    void close() throws IOException {
+        server.connections.closed(this);
+        channel.close();
+        Selector waiting = this.waiting;
+        if(waiting != null)
+            waiting.wakeup();
+        // The event loop won't notice that the channel was closed
+        ProtocolHandler handler = this.handler;
+        if(handler != null)
+            handler.onClosed(null);
+    }
+
+    @Override
+    boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    void awaitNextRequest() {
+        if(containsCompleteHead())
+            server.handleAsync(this);
+        else {
+            // Don't hold a buffer while idle, the event loop acquires one once data arrives
+            if(buffered() == 0)
+                releaseBuffer();
+            eventLoop.resume(this);
+        }
+    }
+
+    /**
+     * Lets the event loop read the data for the upgraded protocol, such that the connection
+     * does not occupy a thread while no data is received.
+     */
+    @Override
+    void upgrade(ProtocolHandler handler) {
+        upgraded = true;
+        this.handler = handler;
+        eventLoop.execute(() -> {
+            try {
+                // Data may have been received together with the upgrade request
+                if(buffered() > 0)
+                    handler.onData();
+                if(key.isValid() && !readPaused)
+                    key.interestOps(SelectionKey.OP_READ);
+            } catch(IOException e) {
+                fail(e);
+            }
+        });
+    }
+
+    @Override
+    void pauseReading() {
+        // Called on the event loop thread
+        readPaused = true;
+        if(key.isValid())
+            key.interestOps(0);
+    }
+
+    @Override
+    void resumeReading() {
+        readPaused = false;
+        eventLoop.execute(() -> {
+            // May have been paused again in the meantime
+            if(!readPaused && key.isValid())
+                key.interestOps(SelectionKey.OP_READ);
+        });
+    }
+
+    /**
+     * Called by the event loop when the channel is readable while the connection is idle
+     * or has been upgraded to a different protocol.
+     * Reads the available data into the buffer and dispatches the connection once a complete
+     * request head is present.
+     */
+    void onReadable() {
+        try {
+            compact();
+            int read = channel.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit));
+            if(read < 0) {
+                if(headerTimedOut) {
+                    // The event loop must not block, drop the response if it doesn't fit into the send buffer
+                    headerTimedOut = false;
+                    channel.write(ByteBuffer.wrap(ConnectionManager.REQUEST_TIMEOUT));
+                }
+                close();
+                releaseBuffer();
+                Console.debug("Connection to", this, "closed");
+                return;
+            }
+            limit += read;
+            ProtocolHandler handler = this.handler;
+            if(handler != null) {
+                handler.onData();
+                return;
+            }
+            server.connections.receiving(this);
+            // If the buffer is full, let the parser handle the oversized request head
+            if(limit == buffer.length || containsCompleteHead()) {
+                key.interestOps(0);
+                server.handleAsync(this);
+            }
+        } catch(IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        Console.debug("Error reading from", this+":", e);
+        ProtocolHandler handler = this.handler;
+        if(handler != null)
+            handler.onClosed(e);
+        try {
+            close();
+        } catch(IOException ignored) { }
+        releaseBuffer();
+    }
+
+    private void await(int op) throws IOException {
+        Selector selector = SELECTORS.poll();
+        if(selector == null)
+            selector = Selector.open();
+        waiting = selector;
+        try {
+            // Closed before the selector was published, close() did not wake it up
+            if(!channel.isOpen())
+                throw new ClosedChannelException();
+            SelectionKey key = channel.register(selector, op);
+            try {
+                selector.select();
+            } finally {
+                key.cancel();
+                // Deregister the channel from the selector before it can be reused
+                selector.selectNow();
+            }
+        } finally {
+            waiting = null;
+            SELECTORS.add(selector);
+        }
+    }
+
+
+    private final class ChannelOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte @NotNull [] b, int off, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while(buf.hasRemaining())
+                if(channel.write(buf) == 0)
+                    await(SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            ChannelConnection.this.close();
+        }
+    }
+}
@@ -1,108 +1,287 @@
 package de.rccookie.http.server.raw;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-class ChunkedInputStream extends InputStream {
+import de.rccookie.http.ResponseCode;
+import de.rccookie.http.server.HttpRequestFailure;
+import org.jetbrains.annotations.Nullable;
 
-    private final InputStream src;
-    private long currentChunk = 0;
+/**
+ * Decodes a request body sent using the chunked transfer encoding. The chunk framing is
+ * parsed directly from the read buffer of the connection, and chunk data is copied out of
+ * the buffer (or read directly into the caller's array, for large reads) without going
+ * through an intermediate stream. Trailer fields following the last chunk are added to
+ * the request's header once the end of the body has been read.
+ */
+final class ChunkedInputStream extends BodyInputStream {
+
+    /**
+     * The maximum length of a chunk size line, including chunk extensions.
+     */
+    private static final int MAX_SIZE_LINE_LENGTH = 4096;
+
+    /**
+     * Fields which must not be sent as trailers, as they are needed before the body is
+     * received (RFC 9110, section 6.5.1). Such trailers are ignored.
+     */
+    private static final Set<String> PROHIBITED_TRAILERS = Set.of(
+            "transfer-encoding", "content-length", "host", "connection", "trailer", "te",
+            "content-type", "content-encoding", "content-range", "expect", "authorization",
+            "cookie", "cache-control", "max-forwards", "pragma", "range"
+    );
+
+    private final Connection connection;
+    private final LazyHeader header;
+    private final long maxChunkSize;
+    private final long maxBodySize;
+    @Nullable
+    private ContinueInputStream expectation;
+
+    /**
+     * The number of bytes left in the current chunk.
+     */
+    private long remaining = 0;
+    private long total = 0;
     private boolean start = true;
     private boolean end = false;
+    /**
+     * Set if the body was malformed or exceeded a limit, the remainder cannot be read.
+     */
+    private boolean broken = false;
 
-    public ChunkedInputStream(InputStream src) {
-        this.src = src;
+    ChunkedInputStream(Connection connection, LazyHeader header, @Nullable ContinueInputStream expectation) {
+        this.connection = connection;
+        this.header = header;
+        this.expectation = expectation;
+        this.maxChunkSize = connection.server.maxChunkSize;
+        this.maxBodySize = connection.server.maxBodySize;
     }
 
+    /**
+     * Parses the framing up to the data of the next chunk, if the current chunk has been
+     * read completely.
+     *
+     * @return Whether the end of the body has been reached
+     */
     private boolean nextChunkIfNeeded() throws IOException {
         if(end) return true;
-        if(currentChunk > 0) return false;
-
-        int c;
-        if(!start) {
-            c = src.read();
-            if(c == -1)
-                return end = true;
-            else if(c == '\r') {
-                if((c = src.read()) == -1)
-                    return end = true;
-                else if(c != '\n')
-                    throw new IOException("Invalid chunked stream: \\r not followed by \\n");
-            } else if(c != '\n')
-                throw new IOException("Invalid chunked stream: chunk not followed by \\r\\n");
+        if(remaining > 0) return false;
+        if(broken)
+            throw new IOException("Malformed chunked body");
+        if(expectation != null) {
+            expectation.beforeRead();
+            expectation = null;
         }
-        else start = false;
-
-        currentChunk = 0;
-        while((c = src.read()) != '\r' && c != '\n' && c != ';' && c != -1) {
-            if(currentChunk >= 'a')
-                currentChunk -= 'a' - 10;
-            else if(currentChunk >= 'A')
-                currentChunk -= 'A' - 10;
-            currentChunk = 10 * currentChunk + c - '0';
+
+        boolean ok = false;
+        try {
+            Connection c = connection;
+            if(!start) {
+                // Line break after the chunk data
+                int lineEnd = readLine(2);
+                if(lineEnd - c.pos > 1 || (lineEnd != c.pos && c.buffer[c.pos] != '\r'))
+                    throw HttpRequestFailure.badRequest("Chunk data not followed by line break");
+                c.pos = lineEnd + 1;
+            }
+            start = false;
+
+            int lineEnd = readLine(MAX_SIZE_LINE_LENGTH);
+            long size = parseSize(c.buffer, c.pos, lineEnd);
+            c.pos = lineEnd + 1;
+
+            if(size == 0) {
+                readTrailers();
+                end = true;
+            }
+            else {
+                if(size > maxChunkSize || size > maxBodySize - total)
+                    throw new HttpRequestFailure(ResponseCode.PAYLOAD_TOO_LARGE, size > maxChunkSize ? "Chunk too large" : "Request body too large");
+                total += size;
+                remaining = size;
+            }
+            ok = true;
+            return end;
+        } finally {
+            broken = !ok;
         }
-        if(c == ';')
-            while((c = src.read()) != '\r' && c != '\n' && c != -1);
-
-        if(c == -1)
-            return end = true;
-        if(c == '\r') {
-            if((c = src.read()) == -1)
-                return end = true;
-            else if(c != '\n')
-                throw new IOException("Invalid chunked stream: chunk length not followed by \\r\\n");
+    }
+
+    /**
+     * Parses the hex chunk size at the start of the line, ignoring chunk extensions.
+     */
+    private static long parseSize(byte[] buf, int from, int lineEnd) {
+        long size = 0;
+        int i = from;
+        for(; i<lineEnd; i++) {
+            int digit = Character.digit(buf[i], 16);
+            if(digit < 0) break;
+            if(size > Long.MAX_VALUE >>> 4)
+                throw new HttpRequestFailure(ResponseCode.PAYLOAD_TOO_LARGE, "Chunk too large");
+            size = (size << 4) | digit;
         }
+        if(i == from)
+            throw HttpRequestFailure.badRequest("Invalid chunk size");
+        // Only whitespace, chunk extensions or the line break may follow
+        if(i < lineEnd && buf[i] != ';' && buf[i] != ' ' && buf[i] != '\t' && buf[i] != '\r')
+            throw HttpRequestFailure.badRequest("Invalid chunk size");
+        return size;
+    }
 
-        if(currentChunk == 0) {
-            end = true;
-            while((c = src.read()) != '\n' && c != -1);
+    /**
+     * Ensures that a complete line is buffered, starting at the read position.
+     *
+     * @param maxLength The maximum length of the line, excluding the final <code>\n</code>
+     * @return The index of the <code>\n</code> terminating the line
+     */
+    private int readLine(int maxLength) throws IOException {
+        Connection c = connection;
+        int scanned = 0;
+        while(true) {
+            byte[] buf = c.buffer;
+            for(int i=c.pos+scanned, limit=c.limit; i<limit; i++)
+                if(buf[i] == '\n') return i;
+            scanned = c.limit - c.pos;
+            if(scanned > maxLength)
+                throw HttpRequestFailure.badRequest("Line too long in chunked body");
+            // Filling may move the buffered data, the scanned count is relative to the read position
+            if(c.readBody(null, 0, 0) <= 0)
+                throw new EOFException("Connection closed before the end of the chunked body");
         }
-        return end;
+    }
+
+    private void readTrailers() throws IOException {
+        Connection c = connection;
+        int maxSize = c.server.maxHeaderSize, maxCount = c.server.maxHeaderCount;
+        int size = 0, count = 0;
+        Map<String, List<String>> trailers = null;
+        List<String> lastValues = null;
+        while(true) {
+            int lineEnd = readLine(maxSize);
+            size += lineEnd + 1 - c.pos;
+            if(size > maxSize)
+                throw new HttpRequestFailure(ResponseCode.REQUEST_HEADER_FIELDS_TOO_LARGE, "Trailer fields too large");
+            int lineLimit = lineEnd > c.pos && c.buffer[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            int lineStart = c.pos;
+            c.pos = lineEnd + 1;
+            if(lineLimit == lineStart)
+                break; // Empty line, end of trailers
+            if(++count > maxCount)
+                throw new HttpRequestFailure(ResponseCode.REQUEST_HEADER_FIELDS_TOO_LARGE, "Too many trailer fields");
+
+            byte[] buf = c.buffer;
+            if(buf[lineStart] == ' ' || buf[lineStart] == '\t') {
+                // Folded continuation of the previous field
+                if(lastValues != null) {
+                    int last = lastValues.size() - 1;
+                    lastValues.set(last, lastValues.get(last) + " " + trimmed(buf, lineStart, lineLimit));
+                }
+                continue;
+            }
+            int colon = lineStart;
+            while(colon < lineLimit && buf[colon] != ':') colon++;
+            if(colon == lineLimit) {
+                lastValues = null;
+                continue;
+            }
+            String name = new String(buf, lineStart, colon - lineStart, StandardCharsets.ISO_8859_1).toLowerCase();
+            if(PROHIBITED_TRAILERS.contains(name)) {
+                lastValues = null;
+                continue;
+            }
+            if(trailers == null)
+                trailers = new HashMap<>();
+            lastValues = trailers.computeIfAbsent(name, $ -> new ArrayList<>(1));
+            lastValues.add(trimmed(buf, colon + 1, lineLimit));
+        }
+        if(trailers != null)
+            header.addTrailers(trailers);
+    }
+
+    private static String trimmed(byte[] buf, int from, int to) {
+        while(from < to && (buf[from] == ' ' || buf[from] == '\t')) from++;
+        while(to > from && (buf[to - 1] == ' ' || buf[to - 1] == '\t')) to--;
+        return new String(buf, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Ensures that chunk data is buffered.
+     */
+    private void fill() throws IOException {
+        if(connection.pos == connection.limit && connection.readBody(null, 0, 0) <= 0)
+            throw new EOFException("Connection closed before the end of the chunked body");
     }
 
     @Override
     public int read() throws IOException {
-        if(nextChunkIfNeeded())
+        if(closed || nextChunkIfNeeded())
             return -1;
-
-        int b = src.read();
-        if(b == -1)
-            end = true;
-        else currentChunk--;
-        return b;
+        fill();
+        remaining--;
+        return connection.buffer[connection.pos++] & 0xFF;
     }
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        if(nextChunkIfNeeded())
+        if(len == 0) return 0;
+        if(closed || nextChunkIfNeeded())
             return -1;
 
-        int read = src.read(b, off, (int) Math.min(len, currentChunk));
-        if(read == -1)
-            end = true;
-        else currentChunk -= read;
-        return read;
+        Connection c = connection;
+        int count = (int) Math.min(len, remaining);
+        if(c.pos == c.limit && count >= c.buffer.length) {
+            // Don't copy large reads through the buffer
+            count = c.readBody(b, off, count);
+            if(count <= 0)
+                throw new EOFException("Connection closed before the end of the chunked body");
+        }
+        else {
+            fill();
+            count = Math.min(count, c.limit - c.pos);
+            System.arraycopy(c.buffer, c.pos, b, off, count);
+            c.pos += count;
+        }
+        remaining -= count;
+        return count;
     }
 
     @Override
     public long skip(long n) throws IOException {
-        if(n < 0) return 0;
-        long skipped = src.skip(Math.min(currentChunk, n));
-        currentChunk -= skipped;
-        return skipped;
+        if(n <= 0 || closed || nextChunkIfNeeded()) return 0;
+        fill();
+        int count = (int) Math.min(Math.min(n, remaining), connection.limit - connection.pos);
+        connection.pos += count;
+        remaining -= count;
+        return count;
     }
 
     @Override
-    public int available() throws IOException {
-        return (int) Math.min(currentChunk, src.available());
+    public int available() {
+        if(closed) return 0;
+        return (int) Math.min(remaining, connection.limit - connection.pos);
     }
 
     @Override
-    public void close() throws IOException {
-        if(!end) {
-            currentChunk = 0;
-            end = true;
-            src.close();
+    boolean discard(long limit) throws IOException {
+        if(broken) return false;
+        try {
+            while(!nextChunkIfNeeded()) {
+                if(limit <= 0) return false;
+                fill();
+                int count = (int) Math.min(Math.min(limit, remaining), connection.limit - connection.pos);
+                connection.pos += count;
+                remaining -= count;
+                limit -= count;
+            }
+            return true;
+        } catch(EOFException | HttpRequestFailure e) {
+            return false;
         }
     }
 }
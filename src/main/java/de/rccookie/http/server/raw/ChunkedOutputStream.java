@@ -2,34 +2,61 @@ package de.rccookie.http.server.raw;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 import org.jetbrains.annotations.NotNull;
 
+/**
+ * Writes a response body using the chunked transfer encoding. Each chunk, including its
+ * size line and the trailing line break, is sent with a single write: the buffer reserves
+ * space in front of the data for the size line, and large writes are sent together with
+ * their framing as a single gathering write.
+ */
 class ChunkedOutputStream extends OutputStream {
 
     private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
 
+    /**
+     * Space reserved in front of the data for the chunk size line, at most 8 hex digits
+     * and a line break.
+     */
+    private static final int HEAD_SPACE = 10;
+    /**
+     * Space reserved after the data for the line break terminating the chunk and, when
+     * closing, the last chunk.
+     */
+    private static final int TAIL_SPACE = CRLF.length + LAST_CHUNK.length;
+
+    private final Connection connection;
     private final OutputStream dst;
-    private final byte[] buf;
+    private final boolean sendOnFlush;
+    private byte[] buf;
+    private final int capacity;
     private int bufLen = 0;
+    private final byte[] head = new byte[HEAD_SPACE];
     private boolean closed = false;
 
-    public ChunkedOutputStream(OutputStream dst, int bufferLength) {
-        this.dst = dst;
-        this.buf = new byte[bufferLength];
+    ChunkedOutputStream(Connection connection, int bufferLength, RawHttpServer.ChunkFlushPolicy flushPolicy) throws IOException {
+        this.connection = connection;
+        this.dst = connection.out();
+        this.sendOnFlush = flushPolicy == RawHttpServer.ChunkFlushPolicy.ON_FLUSH;
+        this.buf = BufferPool.acquire(HEAD_SPACE + bufferLength + TAIL_SPACE);
+        this.capacity = buf.length - HEAD_SPACE - TAIL_SPACE;
     }
 
-    public ChunkedOutputStream(OutputStream dst) {
-        this(dst, 4096);
+    ChunkedOutputStream(Connection connection, RawHttpServer.ChunkFlushPolicy flushPolicy) throws IOException {
+        this(connection, 4096 - HEAD_SPACE - TAIL_SPACE, flushPolicy);
     }
 
     @Override
     public void write(int b) throws IOException {
         checkState();
-        buf[bufLen++] = (byte) b;
-        if(bufLen == buf.length)
-            flush(false);
+        buf[HEAD_SPACE + bufLen++] = (byte) b;
+        if(bufLen == capacity)
+            sendBuffered(false);
     }
 
     @Override
@@ -40,20 +67,31 @@ class ChunkedOutputStream extends OutputStream {
     @Override
     public void write(byte @NotNull [] b, int off, int len) throws IOException {
         checkState();
-        if(bufLen + len < buf.length) {
-            System.arraycopy(b, off, buf, bufLen, len);
+        if(len == 0) return;
+        if(bufLen + len < capacity) {
+            System.arraycopy(b, off, buf, HEAD_SPACE + bufLen, len);
             bufLen += len;
         }
         else {
-            flush();
-            writeChunk(b, off, len);
+            // Send the buffered chunk and the written data as its own chunk at once
+            ByteBuffer buffered = bufLen != 0 ? frameBuffered(false) : ByteBuffer.allocate(0);
+            bufLen = 0;
+            int headStart = writeSizeLine(head, HEAD_SPACE, len);
+            connection.write(buffered, ByteBuffer.wrap(head, headStart, HEAD_SPACE - headStart), ByteBuffer.wrap(b, off, len), ByteBuffer.wrap(CRLF));
         }
     }
 
+    /**
+     * Sends the buffered data as chunk if the flush policy is {@link RawHttpServer.ChunkFlushPolicy#ON_FLUSH},
+     * otherwise does nothing.
+     */
     @Override
     public void flush() throws IOException {
         checkState();
-        flush(true);
+        if(sendOnFlush) {
+            sendBuffered(false);
+            dst.flush();
+        }
     }
 
     private void checkState() {
@@ -61,30 +99,57 @@ class ChunkedOutputStream extends OutputStream {
             throw new IllegalStateException("Stream closed");
     }
 
-    private void flush(boolean recursive) throws IOException {
+    private void sendBuffered(boolean last) throws IOException {
+        if(bufLen == 0 && !last) return;
+        ByteBuffer chunk = frameBuffered(last);
+        bufLen = 0;
+        dst.write(chunk.array(), chunk.position(), chunk.remaining());
+    }
+
+    /**
+     * Adds the size line and trailing line break around the buffered data, and the last
+     * chunk if requested.
+     */
+    private ByteBuffer frameBuffered(boolean last) {
+        int start = HEAD_SPACE, end = HEAD_SPACE;
         if(bufLen != 0) {
-            writeChunk(buf, 0, bufLen);
-            bufLen = 0;
+            start = writeSizeLine(buf, HEAD_SPACE, bufLen);
+            end += bufLen;
+            buf[end++] = '\r';
+            buf[end++] = '\n';
         }
-        if(recursive)
-            dst.flush();
+        if(last) {
+            System.arraycopy(LAST_CHUNK, 0, buf, end, LAST_CHUNK.length);
+            end += LAST_CHUNK.length;
+        }
+        return ByteBuffer.wrap(buf, start, end - start);
     }
 
-    private void writeChunk(byte[] b, int off, int len) throws IOException {
-        dst.write(Integer.toHexString(len).toUpperCase().getBytes(StandardCharsets.US_ASCII));
-        dst.write('\r');
-        dst.write('\n');
-        dst.write(b, off, len);
-        dst.write('\r');
-        dst.write('\n');
+    /**
+     * Writes the chunk size line for the given length such that it ends at <code>end</code>.
+     *
+     * @return The index of the start of the size line
+     */
+    private static int writeSizeLine(byte[] b, int end, int length) {
+        b[--end] = '\n';
+        b[--end] = '\r';
+        do {
+            b[--end] = HEX_DIGITS[length & 0xF];
+            length >>>= 4;
+        } while(length != 0);
+        return end;
     }
 
     @Override
     public void close() throws IOException {
         if(closed) return;
         closed = true;
-        flush(false);
-        dst.write(LAST_CHUNK);
-        dst.flush();
+        try {
+            sendBuffered(true);
+            dst.flush();
+        } finally {
+            BufferPool.release(buf);
+            buf = null;
+        }
     }
 }
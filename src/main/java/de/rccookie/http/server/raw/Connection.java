@@ -0,0 +1,570 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.rccookie.http.ResponseCode;
+import de.rccookie.http.server.HttpRequestFailure;
+import de.rccookie.util.Console;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A single client connection of a {@link RawHttpServer}, independent of the
+ * underlying transport. Incoming data is read through a per-connection buffer
+ * which keeps bytes that were received but not yet consumed by the current
+ * request, e.g. the start of the next request on a kept-alive connection.
+ *
+ * <p>Requests are numbered in the order they are received. Multiple requests of a
+ * connection may be processed concurrently if they were pipelined by the client, but
+ * their responses are always written in request order, see {@link #awaitTurn(int)}.</p>
+ */
+abstract class Connection {
+
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * The address reported for peers of unix domain sockets, see {@link #inetAddress(SocketAddress)}.
+     */
+    private static final InetSocketAddress UNIX_PEER = new InetSocketAddress("127.0.0.1", 0);
+
+    final RawHttpServer server;
+    final InetSocketAddress local;
+    final InetSocketAddress remote;
+
+    /**
+     * Placeholder while the connection holds no read buffer, see {@link #releaseBuffer()}.
+     */
+    private static final byte[] NO_BUFFER = new byte[0];
+
+    // Acquired from the BufferPool on the first read
+    byte[] buffer = NO_BUFFER;
+    int pos = 0, limit = 0;
+
+    final RequestParser parser = new RequestParser(this);
+
+    // Lifecycle state, managed by the server's ConnectionManager
+    final AtomicReference<ConnectionManager.Phase> phase = new AtomicReference<>(ConnectionManager.Phase.IDLE);
+    volatile long deadline = 0;
+    volatile int requestCount = 0;
+    /**
+     * Whether the connection has been taken over by a protocol other than http/1.x, in
+     * which case no http/1.x error responses may be sent on it.
+     */
+    volatile boolean upgraded = false;
+    /**
+     * Whether reading data for the upgraded protocol is paused, see {@link #pauseReading()}.
+     */
+    volatile boolean readPaused = false;
+
+    // Throughput of the request body currently being received, see startBody()
+    private boolean readingBody = false;
+    private long bodyReceived = 0;
+    private long bodyWaitTime = 0;
+    /**
+     * The time until which the next chunk of the request body has to be received, or 0 if
+     * no body data is being waited for.
+     */
+    volatile long bodyDeadline = 0;
+    /**
+     * Set by the server's ConnectionManager if the body was not received fast enough, after
+     * which the input of the connection gets shut down.
+     */
+    volatile boolean bodyTimedOut = false;
+    /**
+     * Set by the server's ConnectionManager if the request head was not received in time,
+     * after which the input of the connection gets shut down. The thread owning the
+     * connection then responds with <code>408 Request Timeout</code>, see
+     * {@link #sendHeaderTimeout()}.
+     */
+    volatile boolean headerTimedOut = false;
+
+    private final InputStream in = new ConnectionInputStream();
+
+    private final Lock pipelineLock = new ReentrantLock();
+    private final Condition turnChanged = pipelineLock.newCondition();
+    /**
+     * Sequence number of the next request to be received.
+     */
+    private int nextSequence = 0;
+    /**
+     * Sequence number of the request whose response may be written next.
+     */
+    private int writeSequence = 0;
+
+    Connection(RawHttpServer server, InetSocketAddress local, InetSocketAddress remote) {
+        this.server = server;
+        this.local = local;
+        this.remote = remote;
+    }
+
+    @Override
+    public String toString() {
+        return remote.toString().substring(1);
+    }
+
+    /**
+     * Returns the given socket address as internet socket address. Peers of unix domain
+     * sockets have no internet address, they are reported as local peers on
+     * <code>127.0.0.1</code> with port 0.
+     *
+     * @param address The address to convert
+     * @return The address as internet socket address
+     */
+    static InetSocketAddress inetAddress(SocketAddress address) {
+        if(address instanceof InetSocketAddress)
+            return (InetSocketAddress) address;
+        return UNIX_PEER;
+    }
+
+    /**
+     * Returns an input stream reading the data received from the client, starting
+     * with the buffered data.
+     *
+     * @return The input stream of the connection
+     */
+    InputStream in() {
+        return in;
+    }
+
+    /**
+     * Returns the output stream to write data to the client.
+     *
+     * @return The output stream of the connection
+     */
+    abstract OutputStream out() throws IOException;
+
+    /**
+     * Writes the remaining contents of the given heap buffers to the client and flushes
+     * them. Implementations may use a single gathering write.
+     *
+     * @param buffers The buffers to write
+     */
+    void write(ByteBuffer... buffers) throws IOException {
+        OutputStream out = out();
+        for(ByteBuffer buffer : buffers) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes <code>count</code> bytes of the given file, starting at its current position,
+     * to the client and flushes them. Implementations may transfer the data without copying
+     * it through the heap, e.g. using <code>sendfile</code>.
+     *
+     * @param file The file to send data from. Its position will be advanced by <code>count</code>
+     * @param count The number of bytes to send
+     * @throws IOException If an I/O error occurs, or the file contains less than <code>count</code>
+     *                     bytes after its position
+     */
+    void transferFrom(FileChannel file, long count) throws IOException {
+        OutputStream out = out();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 8192));
+        while(count > 0) {
+            buffer.clear().limit((int) Math.min(count, buffer.capacity()));
+            if(file.read(buffer) < 0)
+                throw new IOException("File is shorter than the content length");
+            out.write(buffer.array(), 0, buffer.position());
+            count -= buffer.position();
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads at most <code>len</code> bytes directly from the underlying transport, blocking
+     * until at least one byte is available.
+     *
+     * @return The number of bytes read, or -1 if the connection was closed by the client
+     */
+    abstract int read0(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Shuts down the input of the connection, such that blocked and future reads return
+     * end of stream. Responses can still be written.
+     */
+    abstract void shutdownInput() throws IOException;
+
+    /**
+     * Closes the connection.
+     */
+    abstract void close() throws IOException;
+
+    /**
+     * Returns whether the connection has been closed.
+     *
+     * @return Whether the connection is closed
+     */
+    abstract boolean isClosed();
+
+    /**
+     * Called after a response has been sent completely and the connection should be
+     * kept alive. Schedules the connection to process the next request once it
+     * arrives.
+     */
+    abstract void awaitNextRequest();
+
+    /**
+     * Hands the connection over to a different protocol after a <code>101 Switching
+     * Protocols</code> response has been sent. Instead of receiving further requests,
+     * the given handler gets notified whenever data has been read into the buffer. By
+     * default, a thread of the server's executor reads from the connection until it
+     * gets closed.
+     *
+     * @param handler The handler to process the received data
+     */
+    void upgrade(ProtocolHandler handler) {
+        upgraded = true;
+        server.executor.execute(() -> {
+            IOException error = null;
+            try {
+                // Data may have been received together with the upgrade request
+                if(buffered() > 0)
+                    handler.onData();
+                awaitReadResumed();
+                while(fill() > 0) {
+                    handler.onData();
+                    awaitReadResumed();
+                }
+            } catch(IOException e) {
+                // Not an error if the connection was closed by the server
+                if(!isClosed())
+                    error = e;
+            }
+            releaseBuffer();
+            handler.onClosed(error);
+        });
+    }
+
+    /**
+     * Stops reading data for the upgraded protocol until {@link #resumeReading()} gets
+     * called, e.g. because the handler can't keep up processing the data. Must be called
+     * from within {@link ProtocolHandler#onData()}.
+     */
+    void pauseReading() {
+        readPaused = true;
+    }
+
+    /**
+     * Continues reading data for the upgraded protocol after {@link #pauseReading()}. May
+     * be called from any thread.
+     */
+    void resumeReading() {
+        readPaused = false;
+        wakeReader();
+    }
+
+    /**
+     * Wakes up the thread of the default {@link #upgrade(ProtocolHandler)} implementation
+     * waiting for reading to be resumed, if any. Implementations relying on it have to call
+     * this after the connection has been closed.
+     */
+    final void wakeReader() {
+        synchronized(this) {
+            notifyAll();
+        }
+    }
+
+    private void awaitReadResumed() throws IOException {
+        synchronized(this) {
+            while(readPaused && !isClosed()) {
+                try {
+                    wait();
+                } catch(InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Responds with <code>408 Request Timeout</code> if the header timeout expired while
+     * receiving the request head. Called by the thread owning the connection before it
+     * closes the connection. If the client does not read the response, the connection
+     * manager closes the connection after a short grace period, which aborts the write.
+     */
+    void sendHeaderTimeout() {
+        if(!headerTimedOut) return;
+        headerTimedOut = false;
+        try {
+            write(ByteBuffer.wrap(ConnectionManager.REQUEST_TIMEOUT));
+        } catch(IOException e) {
+            Console.debug("Failed to send timeout response to", this+":", e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the sequence number for the next request to be received on this connection.
+     *
+     * @return The sequence number of the request to receive
+     */
+    int nextSequence() {
+        pipelineLock.lock();
+        try {
+            return nextSequence++;
+        } finally {
+            pipelineLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests that have been received, but whose responses have
+     * not been written completely yet.
+     *
+     * @return The number of pending requests
+     */
+    int pending() {
+        pipelineLock.lock();
+        try {
+            return nextSequence - writeSequence;
+        } finally {
+            pipelineLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the responses of all requests preceding the request with the given
+     * sequence number have been written.
+     *
+     * @param sequence The sequence number of the request
+     * @throws IOException If the connection was closed before it was the request's turn
+     */
+    void awaitTurn(int sequence) throws IOException {
+        pipelineLock.lock();
+        try {
+            while(writeSequence != sequence)
+                turnChanged.await();
+        } catch(InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for preceding responses");
+        } finally {
+            pipelineLock.unlock();
+        }
+        if(isClosed())
+            throw new IOException("Connection closed before response could be sent");
+    }
+
+    /**
+     * Marks the response to the request with the given sequence number as written, allowing
+     * the response to the next request to be written. Has no effect if the request's turn is
+     * already over.
+     *
+     * @param sequence The sequence number of the request whose response was written
+     */
+    void finishTurn(int sequence) {
+        pipelineLock.lock();
+        try {
+            if(writeSequence == sequence) {
+                writeSequence++;
+                turnChanged.signalAll();
+            }
+        } finally {
+            pipelineLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently buffered and not yet consumed.
+     *
+     * @return The number of available bytes in the buffer
+     */
+    int buffered() {
+        return limit - pos;
+    }
+
+    /**
+     * Starts or stops measuring the throughput of data read through {@link #in()}, which
+     * is used to receive the body of the current request. If the body is received slower
+     * than the server's minimum body rate, reading fails with <code>408 Request Timeout</code>.
+     *
+     * @param readingBody Whether the current request has a body
+     */
+    void startBody(boolean readingBody) {
+        this.readingBody = readingBody;
+        bodyReceived = bodyWaitTime = 0;
+    }
+
+    /**
+     * Reads from the transport into the given array, or into the buffer if <code>b</code>
+     * is <code>null</code>. While receiving the request body, the minimum body rate is
+     * enforced; only the time spent waiting for data counts, not the time the handler takes
+     * between reads.
+     */
+    int readBody(byte[] b, int off, int len) throws IOException {
+        if(!readingBody)
+            return b != null ? read0(b, off, len) : fill();
+
+        long rate = server.connections.minBodyRate;
+        long start = System.nanoTime();
+        if(rate > 0) {
+            long budget = server.connections.bodyGracePeriod + bodyReceived * 1_000_000_000L / rate - bodyWaitTime;
+            bodyDeadline = (start + Math.max(budget, 0)) | 1;
+        }
+        int read;
+        try {
+            read = b != null ? read0(b, off, len) : fill();
+        } finally {
+            bodyDeadline = 0;
+            bodyWaitTime += System.nanoTime() - start;
+        }
+        if(read <= 0 && bodyTimedOut) {
+            // Report once, further reads just see the end of the stream
+            readingBody = bodyTimedOut = false;
+            throw new HttpRequestFailure(ResponseCode.REQUEST_TIMEOUT, "Request body received too slowly");
+        }
+        if(read > 0)
+            bodyReceived += read;
+        return read;
+    }
+
+    /**
+     * Reads more data from the transport into the buffer, blocking until at least one
+     * byte was read.
+     *
+     * @return The number of bytes read, or -1 if the connection was closed
+     */
+    int fill() throws IOException {
+        compact();
+        int read = read0(buffer, limit, buffer.length - limit);
+        if(read > 0) {
+            limit += read;
+            server.connections.receiving(this);
+        }
+        return read;
+    }
+
+    /**
+     * Ensures that there is free space at the end of the buffer, by moving the
+     * unconsumed data to the start of the buffer or by growing the buffer, if it
+     * is full.
+     */
+    void compact() {
+        if(buffer == NO_BUFFER)
+            buffer = BufferPool.acquire(BUFFER_SIZE);
+        if(pos == limit)
+            pos = limit = 0;
+        else if(limit == buffer.length) {
+            if(pos == 0) {
+                byte[] newBuffer = BufferPool.acquire(buffer.length * 2);
+                System.arraycopy(buffer, 0, newBuffer, 0, limit);
+                BufferPool.release(buffer);
+                buffer = newBuffer;
+            }
+            else {
+                System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the read buffer to the {@link BufferPool}, discarding any unconsumed data.
+     * A new buffer is acquired on the next read. Must only be called by the thread reading
+     * from the connection, when it stops reading, e.g. once the connection is closed or
+     * while waiting for the next request on the event loop.
+     */
+    void releaseBuffer() {
+        if(buffer == NO_BUFFER) return;
+        BufferPool.release(buffer);
+        buffer = NO_BUFFER;
+        pos = limit = 0;
+    }
+
+    /**
+     * Returns whether the buffer contains the complete head (request line and header)
+     * of a request.
+     *
+     * @return Whether a complete request head is buffered
+     */
+    boolean containsCompleteHead() {
+        for(int i=pos; i<limit-1; i++) {
+            if(buffer[i] == '\n') {
+                if(buffer[i+1] == '\n')
+                    return true;
+                if(buffer[i+1] == '\r' && i + 2 < limit && buffer[i+2] == '\n')
+                    return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Processes the data received on a connection after it was upgraded to a different
+     * protocol, see {@link #upgrade(ProtocolHandler)}.
+     */
+    interface ProtocolHandler {
+
+        /**
+         * Called when new data has been read into the buffer of the connection. The handler
+         * should consume all complete units of data; incomplete data may be left in the
+         * buffer. May be called on an event loop thread and must thus not block.
+         */
+        void onData() throws IOException;
+
+        /**
+         * Called when the connection was closed, either by the peer or locally. May be
+         * called more than once.
+         *
+         * @param error The error that caused the connection to close, if any
+         */
+        void onClosed(@Nullable IOException error);
+    }
+
+
+    private final class ConnectionInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            if(pos == limit && readBody(null, 0, 0) <= 0)
+                return -1;
+            return buffer[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte @NotNull [] b, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            if(pos == limit) {
+                // Don't copy large reads through the buffer
+                if(len >= buffer.length)
+                    return readBody(b, off, len);
+                if(readBody(null, 0, 0) <= 0)
+                    return -1;
+            }
+            int count = Math.min(len, limit - pos);
+            System.arraycopy(buffer, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if(n <= 0) return 0;
+            if(pos == limit && readBody(null, 0, 0) <= 0)
+                return 0;
+            int count = (int) Math.min(n, limit - pos);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Connection.this.close();
+        }
+    }
+}
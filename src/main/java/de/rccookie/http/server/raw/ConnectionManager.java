@@ -0,0 +1,289 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import de.rccookie.util.Console;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps track of the open connections of a {@link RawHttpServer} and of their lifecycle
+ * phase, enforces the idle and header timeouts and the minimum request body rate and
+ * decides whether a connection may be kept alive after a response. Timeouts are enforced
+ * by a single background thread which periodically closes connections whose deadline has
+ * passed; this works the same for blocking sockets and for channels of an event loop. The
+ * thread never writes to a connection itself, such that a client not reading can't stall
+ * the enforcement of the timeouts of all other connections.
+ */
+final class ConnectionManager implements Runnable {
+
+    /**
+     * The lifecycle phases of a connection.
+     */
+    enum Phase {
+        /**
+         * Waiting for the next request, no data received yet.
+         */
+        IDLE,
+        /**
+         * The head of the next request is being received.
+         */
+        RECEIVING,
+        /**
+         * A request is being processed.
+         */
+        ACTIVE,
+        /**
+         * The connection has been closed.
+         */
+        CLOSED
+    }
+
+    /**
+     * The maximum number of bytes of an unread request body that get discarded to keep
+     * the connection alive. If more is left, the connection gets closed instead.
+     */
+    static final long MAX_DISCARDED_BODY_SIZE = 1 << 16;
+
+    static final byte[] REQUEST_TIMEOUT = ("HTTP/1.1 408 Request Timeout\r\n" +
+                                           "Connection: close\r\n" +
+                                           "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The time the thread owning a connection gets to send <code>408 Request Timeout</code>
+     * after the header timeout expired, before the connection gets closed regardless.
+     */
+    private static final long TIMEOUT_RESPONSE_GRACE_PERIOD = 1_000_000_000L;
+
+    private static final long MIN_SWEEP_INTERVAL = 10_000_000L;
+    private static final long MAX_SWEEP_INTERVAL = 1_000_000_000L;
+
+    private final RawHttpServer server;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private Thread sweeper = null;
+
+    volatile long idleTimeout = Duration.ofSeconds(60).toNanos();
+    volatile long headerTimeout = Duration.ofSeconds(20).toNanos();
+    volatile long minBodyRate = 240;
+    volatile long bodyGracePeriod = Duration.ofSeconds(5).toNanos();
+    volatile int maxRequestsPerConnection = 1000;
+    volatile int maxKeepAliveConnections = 10_000;
+
+    ConnectionManager(RawHttpServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Starts the thread enforcing timeouts, if not already running.
+     */
+    synchronized void start() {
+        if(sweeper != null) return;
+        sweeper = new Thread(this, "Connection timeout watcher");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /**
+     * Stops the thread enforcing timeouts. Connections are not closed.
+     */
+    synchronized void stop() {
+        if(sweeper == null) return;
+        sweeper.interrupt();
+        sweeper = null;
+    }
+
+    /**
+     * Registers a newly accepted connection, which is now waiting for its first request.
+     *
+     * @param connection The new connection
+     */
+    void opened(Connection connection) {
+        connections.add(connection);
+        server.metrics.openConnections.increment();
+        server.metrics.idleConnections.increment();
+        connection.deadline = deadline(idleTimeout);
+    }
+
+    /**
+     * Called when the connection starts waiting for the next request.
+     *
+     * @param connection The connection that is now idle
+     */
+    void idle(Connection connection) {
+        transition(connection, Phase.IDLE, deadline(idleTimeout));
+    }
+
+    /**
+     * Called when data has been received on a connection. If the connection was idle,
+     * this starts the header timeout.
+     *
+     * @param connection The connection that received data
+     */
+    void receiving(Connection connection) {
+        if(connection.phase.compareAndSet(Phase.IDLE, Phase.RECEIVING))
+            connection.deadline = deadline(headerTimeout);
+    }
+
+    /**
+     * Called when a request has been received on the connection and is being processed.
+     *
+     * @param connection The connection that received a request
+     */
+    void active(Connection connection) {
+        connection.requestCount++;
+        // The head was received after all, the timeout response is no longer appropriate
+        connection.headerTimedOut = false;
+        transition(connection, Phase.ACTIVE, 0);
+    }
+
+    /**
+     * Unregisters a closed connection. Has no effect if the connection was already
+     * unregistered.
+     *
+     * @param connection The connection that was closed
+     */
+    void closed(Connection connection) {
+        Phase phase = connection.phase.getAndSet(Phase.CLOSED);
+        if(phase == Phase.CLOSED) return;
+        connections.remove(connection);
+        server.metrics.openConnections.decrement();
+        counter(phase).decrement();
+    }
+
+    /**
+     * Returns whether the given connection may be kept alive after the response to its
+     * current request, with respect to the request limit per connection and the total
+     * number of kept-alive connections.
+     *
+     * @param connection The connection to test
+     * @return Whether the connection may be kept alive
+     */
+    boolean mayKeepAlive(Connection connection) {
+        return connection.requestCount < maxRequestsPerConnection
+            && server.metrics.idleConnections.sum() < maxKeepAliveConnections;
+    }
+
+    private void transition(Connection connection, Phase to, long deadline) {
+        AtomicReference<Phase> phase = connection.phase;
+        Phase from;
+        do {
+            from = phase.get();
+            if(from == Phase.CLOSED) return;
+        } while(!phase.compareAndSet(from, to));
+        connection.deadline = deadline;
+        if(from != to) {
+            counter(from).decrement();
+            counter(to).increment();
+        }
+    }
+
+    private LongAdder counter(Phase phase) {
+        return phase == Phase.ACTIVE ? server.metrics.activeConnections : server.metrics.idleConnections;
+    }
+
+    private static long deadline(long timeout) {
+        // 0 means no deadline
+        return timeout <= 0 ? 0 : (System.nanoTime() + timeout) | 1;
+    }
+
+    @Override
+    public void run() {
+        while(!Thread.interrupted()) {
+            long now = System.nanoTime();
+            for(Connection connection : connections) {
+                Phase phase = connection.phase.get();
+                if(phase == Phase.ACTIVE) {
+                    long bodyDeadline = connection.bodyDeadline;
+                    if(bodyDeadline != 0 && bodyDeadline - now <= 0)
+                        bodyTimeout(connection);
+                    continue;
+                }
+                long deadline = connection.deadline;
+                if(deadline == 0 || deadline - now > 0)
+                    continue;
+                if(phase == Phase.IDLE)
+                    Console.debug("Closing idle connection", connection);
+                else if(!connection.headerTimedOut && !connection.upgraded) {
+                    headerTimeout(connection);
+                    continue;
+                }
+                try {
+                    connection.close();
+                } catch(IOException e) {
+                    Console.debug("Error closing connection:", e);
+                }
+            }
+            LockSupport.parkNanos(sweepInterval());
+        }
+    }
+
+    /**
+     * Lets the thread owning the connection respond with <code>408 Request Timeout</code>
+     * and close the connection, by shutting down its input. If that does not happen within
+     * the grace period, the connection gets closed without response.
+     */
+    private void headerTimeout(Connection connection) {
+        Console.debug("Timeout receiving request header from", connection);
+        server.metrics.headerTimeouts.increment();
+        connection.headerTimedOut = true;
+        connection.deadline = deadline(TIMEOUT_RESPONSE_GRACE_PERIOD);
+        try {
+            connection.shutdownInput();
+        } catch(IOException e) {
+            Console.debug("Error shutting down input of", connection+":", e);
+            try {
+                connection.close();
+            } catch(IOException f) {
+                Console.debug("Error closing connection:", f);
+            }
+        }
+    }
+
+    /**
+     * Lets the thread receiving the body fail with <code>408 Request Timeout</code>, which
+     * can still be sent as response as the output of the connection stays open.
+     */
+    private void bodyTimeout(Connection connection) {
+        Console.debug("Request body received too slowly from", connection);
+        connection.bodyDeadline = 0;
+        connection.bodyTimedOut = true;
+        server.metrics.bodyTimeouts.increment();
+        try {
+            connection.shutdownInput();
+        } catch(IOException e) {
+            Console.debug("Error shutting down input of", connection+":", e);
+            try {
+                connection.close();
+            } catch(IOException f) {
+                Console.debug("Error closing connection:", f);
+            }
+        }
+    }
+
+    private long sweepInterval() {
+        long timeout = Math.min(Math.min(nonZero(idleTimeout), nonZero(headerTimeout)), minBodyRate > 0 ? bodyGracePeriod : Long.MAX_VALUE);
+        return Math.max(MIN_SWEEP_INTERVAL, Math.min(MAX_SWEEP_INTERVAL, timeout / 4));
+    }
+
+    private static long nonZero(long timeout) {
+        return timeout <= 0 ? Long.MAX_VALUE : timeout;
+    }
+
+    static long toNanos(@Nullable Duration timeout) {
+        if(timeout == null) return 0;
+        if(timeout.isNegative() || timeout.isZero())
+            throw new IllegalArgumentException("Timeout must be positive");
+        return timeout.toNanos();
+    }
+
+    @Nullable
+    static Duration toDuration(long nanos) {
+        return nanos <= 0 ? null : Duration.ofNanos(nanos);
+    }
+}
@@ -0,0 +1,86 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The source of a request body for requests with <code>Expect: 100-continue</code>. The
+ * client waits for the interim <code>100 Continue</code> response before sending the body,
+ * which is only sent once the body is first read. If the final response is sent before,
+ * the body is skipped instead and the connection gets closed after the response, as it
+ * is unknown whether the client will still send the body.
+ */
+final class ContinueInputStream extends InputStream {
+
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int PENDING = 0;
+    private static final int CONTINUED = 1;
+    private static final int SKIPPED = 2;
+
+    private final Connection connection;
+    private final InputStream src;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    ContinueInputStream(Connection connection) {
+        this.connection = connection;
+        this.src = connection.in();
+    }
+
+    /**
+     * Sends <code>100 Continue</code>, if neither sent nor skipped yet.
+     */
+    void sendContinue() throws IOException {
+        if(state.compareAndSet(PENDING, CONTINUED))
+            connection.write(ByteBuffer.wrap(CONTINUE));
+    }
+
+    /**
+     * Marks the body as skipped if <code>100 Continue</code> has not been sent yet.
+     *
+     * @return Whether the body was skipped, in which case the connection must be closed
+     *         after the response
+     */
+    boolean skip() {
+        return state.compareAndSet(PENDING, SKIPPED) || state.get() == SKIPPED;
+    }
+
+    /**
+     * Sends <code>100 Continue</code> if not yet sent, before the body is read.
+     *
+     * @throws IOException If the body was skipped or sending fails
+     */
+    void beforeRead() throws IOException {
+        if(state.get() == PENDING)
+            sendContinue();
+        if(state.get() == SKIPPED)
+            throw new IOException("Request body was skipped because the response was sent before reading it");
+    }
+
+    @Override
+    public int read() throws IOException {
+        beforeRead();
+        return src.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        beforeRead();
+        return src.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        beforeRead();
+        return src.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        // Nothing can be available before the client received 100 Continue
+        return state.get() == CONTINUED ? src.available() : 0;
+    }
+}
@@ -0,0 +1,169 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import de.rccookie.util.Console;
+
+/**
+ * A single selector thread of a {@link RawHttpServer} using the {@link RawHttpServer.Engine#EVENT_LOOP}
+ * engine. Accepts new connections and reads from idle connections without blocking. Once
+ * a complete request head has been received, the connection gets passed to the server's
+ * executor.
+ */
+final class EventLoop implements Runnable {
+
+    private final RawHttpServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    EventLoop(RawHttpServer server, String name) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        new Thread(this, name).start();
+    }
+
+    /**
+     * Executes the given task on the event loop thread.
+     *
+     * @param task The task to execute
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Starts accepting connections from the given server channel.
+     *
+     * @param channel The non-blocking server channel to accept connections from
+     * @param config The config of the listener the channel belongs to
+     */
+    void listen(ServerSocketChannel channel, ListenerConfig config) {
+        execute(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_ACCEPT, config);
+            } catch(IOException e) {
+                Console.error("Failed to listen on server channel:", e);
+            }
+        });
+    }
+
+    /**
+     * Registers a new connection to this event loop, waiting for its first request.
+     *
+     * @param connection The connection to register
+     */
+    void register(ChannelConnection connection) {
+        execute(() -> {
+            try {
+                connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch(IOException e) {
+                Console.debug("Failed to register connection:", e);
+                try {
+                    connection.close();
+                } catch(IOException ignored) { }
+            }
+        });
+    }
+
+    /**
+     * Continues to wait for the next request on the given connection.
+     *
+     * @param connection The connection to read from again
+     */
+    void resume(ChannelConnection connection) {
+        execute(() -> {
+            if(connection.key.isValid())
+                connection.key.interestOps(SelectionKey.OP_READ);
+        });
+    }
+
+    /**
+     * Stops the event loop and closes all connections registered to it.
+     */
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(running) {
+                selector.select();
+
+                Runnable task;
+                while((task = tasks.poll()) != null) try {
+                    task.run();
+                } catch(Exception e) {
+                    Console.error(e);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) continue;
+                    if(key.isAcceptable())
+                        accept((ServerSocketChannel) key.channel(), (ListenerConfig) key.attachment());
+                    else if(key.isReadable())
+                        ((ChannelConnection) key.attachment()).onReadable();
+                }
+            }
+        } catch(ClosedSelectorException ignored) {
+        } catch(Exception e) {
+            Console.error("Event loop failed:");
+            Console.error(e);
+        } finally {
+            // Register connections handed over by other event loops while stopping, such
+            // that they get closed below
+            Runnable task;
+            while((task = tasks.poll()) != null) try {
+                task.run();
+            } catch(Exception ignored) { }
+            for(SelectionKey key : selector.keys()) {
+                try {
+                    if(key.attachment() instanceof ChannelConnection)
+                        ((ChannelConnection) key.attachment()).close();
+                } catch(IOException ignored) { }
+            }
+            try {
+                selector.close();
+            } catch(IOException e) {
+                Console.warn("Error closing selector:", e);
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel channel, ListenerConfig config) {
+        try {
+            SocketChannel client;
+            while((client = channel.accept()) != null) {
+                client.configureBlocking(false);
+                config.configure(client);
+                EventLoop eventLoop = server.nextEventLoop();
+                if(eventLoop == null) {
+                    // The server was stopped concurrently
+                    client.close();
+                    return;
+                }
+                ChannelConnection connection = new ChannelConnection(server, client, eventLoop);
+                Console.map("New connection from", connection);
+                server.connections.opened(connection);
+                eventLoop.register(connection);
+            }
+        } catch(IOException e) {
+            if(channel.isOpen())
+                Console.error(e);
+        }
+    }
+}
@@ -3,7 +3,7 @@ package de.rccookie.http.server.raw;
 import java.io.IOException;
 import java.io.InputStream;
 
-class FixedLengthInputStream extends InputStream {
+class FixedLengthInputStream extends BodyInputStream {
 
     private final InputStream src;
     private long length;
@@ -15,7 +15,7 @@ class FixedLengthInputStream extends InputStream {
 
     @Override
     public int read() throws IOException {
-        if(length <= 0)
+        if(length <= 0 || closed)
             return -1;
         length--;
         return src.read();
@@ -23,7 +23,7 @@ class FixedLengthInputStream extends InputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        if(length <= 0)
+        if(length <= 0 || closed)
             return -1;
         if(len > length)
             len = (int) length;
@@ -34,6 +34,8 @@ class FixedLengthInputStream extends InputStream {
 
     @Override
     public byte[] readNBytes(int len) throws IOException {
+        if(closed)
+            return new byte[0];
         if(len > length)
             len = (int) length;
         byte[] bytes = src.readNBytes(len);
@@ -43,7 +45,7 @@ class FixedLengthInputStream extends InputStream {
 
     @Override
     public int readNBytes(byte[] b, int off, int len) throws IOException {
-        if(length <= 0)
+        if(length <= 0 || closed)
             return 0;
         if(len > length)
             len = (int) length;
@@ -54,6 +56,7 @@ class FixedLengthInputStream extends InputStream {
 
     @Override
     public long skip(long n) throws IOException {
+        if(closed) return 0;
         long skipped = src.skip(Math.min(n, length));
         length -= skipped;
         return skipped;
@@ -61,15 +64,20 @@ class FixedLengthInputStream extends InputStream {
 
     @Override
     public int available() throws IOException {
+        if(closed) return 0;
         return (int) Math.min(src.available(), length);
     }
 
     @Override
-    public void close() throws IOException {
-        if(length != 0) {
-            length = 0;
-            src.close();
+    boolean discard(long limit) throws IOException {
+        while(length > 0) {
+            if(limit <= 0) return false;
+            long skipped = src.skip(Math.min(length, limit));
+            if(skipped <= 0) return false;
+            length -= skipped;
+            limit -= skipped;
         }
+        return true;
     }
 
     @Override
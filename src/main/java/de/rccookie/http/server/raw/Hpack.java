@@ -0,0 +1,352 @@
+package de.rccookie.http.server.raw;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Shared parts of the HPACK header compression for http/2 (RFC 7541): the static table,
+ * the dynamic table and the huffman code. See {@link HpackDecoder} and {@link HpackEncoder}.
+ */
+final class Hpack {
+
+    private Hpack() { }
+
+
+    /**
+     * The static table, 1-based. Names are lowercase, entries without value have an
+     * empty value.
+     */
+    static final String[][] STATIC_TABLE = {
+            null,
+            { ":authority", "" },
+            { ":method", "GET" },
+            { ":method", "POST" },
+            { ":path", "/" },
+            { ":path", "/index.html" },
+            { ":scheme", "http" },
+            { ":scheme", "https" },
+            { ":status", "200" },
+            { ":status", "204" },
+            { ":status", "206" },
+            { ":status", "304" },
+            { ":status", "400" },
+            { ":status", "404" },
+            { ":status", "500" },
+            { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" },
+            { "accept-language", "" },
+            { "accept-ranges", "" },
+            { "accept", "" },
+            { "access-control-allow-origin", "" },
+            { "age", "" },
+            { "allow", "" },
+            { "authorization", "" },
+            { "cache-control", "" },
+            { "content-disposition", "" },
+            { "content-encoding", "" },
+            { "content-language", "" },
+            { "content-length", "" },
+            { "content-location", "" },
+            { "content-range", "" },
+            { "content-type", "" },
+            { "cookie", "" },
+            { "date", "" },
+            { "etag", "" },
+            { "expect", "" },
+            { "expires", "" },
+            { "from", "" },
+            { "host", "" },
+            { "if-match", "" },
+            { "if-modified-since", "" },
+            { "if-none-match", "" },
+            { "if-range", "" },
+            { "if-unmodified-since", "" },
+            { "last-modified", "" },
+            { "link", "" },
+            { "location", "" },
+            { "max-forwards", "" },
+            { "proxy-authenticate", "" },
+            { "proxy-authorization", "" },
+            { "range", "" },
+            { "referer", "" },
+            { "refresh", "" },
+            { "retry-after", "" },
+            { "server", "" },
+            { "set-cookie", "" },
+            { "strict-transport-security", "" },
+            { "transfer-encoding", "" },
+            { "user-agent", "" },
+            { "vary", "" },
+            { "via", "" },
+            { "www-authenticate", "" }
+    };
+
+    /**
+     * The number of entries in the static table.
+     */
+    static final int STATIC_TABLE_SIZE = STATIC_TABLE.length - 1;
+
+    /**
+     * The default maximum size of the dynamic table.
+     */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+
+    /**
+     * The huffman codes of all 256 octets and of EOS (index 256), right-aligned.
+     */
+    private static final int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa,
+        0x16, 0x17, 0x18, 0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+        0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64,
+        0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc,
+        0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25,
+        0x26, 0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77,
+        0x78, 0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2,
+        0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda, 0x7fffdb,
+        0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0,
+        0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9,
+        0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8,
+        0x7fffe9, 0x1fffde, 0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb,
+        0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0,
+        0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3,
+        0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+        0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5,
+        0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3,
+        0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee,
+        0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec,
+        0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec,
+        0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff
+    };
+
+    /**
+     * The bit lengths of the huffman codes.
+     */
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30,
+        28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5,
+        7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22,
+        22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23,
+        22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22,
+        21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26,
+        26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20,
+        24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27,
+        27, 28, 27, 27, 27, 27, 27, 26, 30
+    };
+
+    /**
+     * The huffman code as binary tree for decoding. Each node has two slots for the next
+     * node on a 0 and 1 bit; leaves are stored as the negated symbol minus one.
+     */
+    private static final int[] HUFFMAN_TREE;
+    static {
+        int[] tree = new int[2 * 256];
+        int nodes = 1;
+        for(int symbol=0; symbol<HUFFMAN_CODES.length; symbol++) {
+            int code = HUFFMAN_CODES[symbol], length = HUFFMAN_LENGTHS[symbol];
+            int node = 0;
+            for(int i=length-1; i>0; i--) {
+                int slot = 2 * node + ((code >>> i) & 1);
+                if(tree[slot] == 0)
+                    tree[slot] = nodes++;
+                node = tree[slot];
+            }
+            tree[2 * node + (code & 1)] = -symbol - 1;
+        }
+        HUFFMAN_TREE = tree;
+    }
+
+
+    /**
+     * Returns the number of bytes needed to encode the given string using the huffman code.
+     *
+     * @param str The string to measure, characters are encoded as ISO-8859-1
+     * @return The length of the huffman encoded string
+     */
+    static int huffmanLength(String str) {
+        long bits = 0;
+        for(int i=0; i<str.length(); i++)
+            bits += HUFFMAN_LENGTHS[latin1(str.charAt(i))];
+        return (int) ((bits + 7) >> 3);
+    }
+
+    /**
+     * Encodes the given string using the huffman code.
+     *
+     * @param str The string to encode, characters are encoded as ISO-8859-1
+     * @param out The buffer to write the encoded string to
+     */
+    static void huffmanEncode(String str, ResponseHead out) {
+        long bits = 0;
+        int count = 0;
+        for(int i=0; i<str.length(); i++) {
+            int symbol = latin1(str.charAt(i));
+            bits = (bits << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            count += HUFFMAN_LENGTHS[symbol];
+            while(count >= 8) {
+                count -= 8;
+                out.write((int) (bits >>> count));
+            }
+        }
+        // Pad with the most significant bits of EOS, which are all ones
+        if(count > 0)
+            out.write((int) ((bits << (8 - count)) | (0xFF >>> count)));
+    }
+
+    /**
+     * Decodes a huffman encoded string.
+     *
+     * @param data The buffer containing the encoded string
+     * @param off The offset of the string in the buffer
+     * @param len The number of bytes of the encoded string
+     * @return The decoded string
+     * @throws Http2Exception If the encoded string is invalid
+     */
+    static String huffmanDecode(byte[] data, int off, int len) throws Http2Exception {
+        byte[] out = new byte[len * 8 / 5];
+        int count = 0;
+        int node = 0;
+        // Padding: bits since the last symbol, and whether they were all ones
+        int padding = 0;
+        boolean ones = true;
+        for(int i=off; i<off+len; i++) {
+            int b = data[i];
+            for(int j=7; j>=0; j--) {
+                int bit = (b >>> j) & 1;
+                node = HUFFMAN_TREE[2 * node + bit];
+                padding++;
+                ones &= bit == 1;
+                if(node < 0) {
+                    int symbol = -node - 1;
+                    if(symbol == 256)
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "EOS in huffman encoded string");
+                    out[count++] = (byte) symbol;
+                    node = 0;
+                    padding = 0;
+                    ones = true;
+                }
+            }
+        }
+        if(padding > 7 || !ones)
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid huffman padding");
+        return new String(out, 0, count, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int latin1(char c) {
+        return c <= 0xFF ? c : '?';
+    }
+
+
+    /**
+     * The dynamic table of an encoder or decoder, a ring buffer of entries where index 0
+     * is the most recently added entry.
+     */
+    static final class Table {
+
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        /**
+         * Position of the next entry to be added within the ring buffer.
+         */
+        private int next = 0;
+        private int count = 0;
+        private int size = 0;
+        private int maxSize = DEFAULT_TABLE_SIZE;
+        /**
+         * The total number of entries ever added to the table.
+         */
+        private long inserted = 0;
+
+        /**
+         * Returns the number of entries in the table.
+         *
+         * @return The entry count
+         */
+        int count() {
+            return count;
+        }
+
+        /**
+         * Returns the total number of entries that have ever been added to the table. The
+         * entry with index <code>i</code> is the <code>(inserted() - i)</code>th entry added.
+         *
+         * @return The number of inserted entries
+         */
+        long inserted() {
+            return inserted;
+        }
+
+        String name(int index) {
+            return names[slot(index)];
+        }
+
+        String value(int index) {
+            return values[slot(index)];
+        }
+
+        private int slot(int index) {
+            return Math.floorMod(next - 1 - index, names.length);
+        }
+
+        /**
+         * Adds an entry to the table, evicting old entries as needed.
+         *
+         * @param name The name of the entry
+         * @param value The value of the entry
+         */
+        void add(String name, String value) {
+            int entrySize = entrySize(name, value);
+            evict(maxSize - entrySize);
+            inserted++;
+            if(entrySize > maxSize) return; // Table was emptied
+            if(count == names.length) {
+                String[] newNames = new String[2 * count], newValues = new String[2 * count];
+                for(int i=0; i<count; i++) {
+                    newNames[count - 1 - i] = name(i);
+                    newValues[count - 1 - i] = value(i);
+                }
+                names = newNames;
+                values = newValues;
+                next = count;
+            }
+            names[next] = name;
+            values[next] = value;
+            next = (next + 1) % names.length;
+            count++;
+            size += entrySize;
+        }
+
+        /**
+         * Sets the maximum size of the table, evicting entries as needed.
+         *
+         * @param maxSize The new maximum size in octets
+         */
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        int maxSize() {
+            return maxSize;
+        }
+
+        private void evict(int targetSize) {
+            while(count > 0 && size > targetSize) {
+                int oldest = slot(count - 1);
+                size -= entrySize(names[oldest], values[oldest]);
+                names[oldest] = values[oldest] = null;
+                count--;
+            }
+        }
+
+        static int entrySize(String name, String value) {
+            return name.length() + value.length() + 32;
+        }
+    }
+}
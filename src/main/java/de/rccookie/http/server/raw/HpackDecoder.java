@@ -0,0 +1,142 @@
+package de.rccookie.http.server.raw;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Decodes HPACK compressed header blocks of an http/2 connection. The decoder keeps the
+ * dynamic table shared by all header blocks received on the connection, so header blocks
+ * must be decoded in the order they were received. Not thread-safe.
+ */
+final class HpackDecoder {
+
+    private final Hpack.Table table = new Hpack.Table();
+    private final int maxTableSize;
+
+    private byte[] data;
+    private int pos, end;
+
+    /**
+     * Creates a new decoder.
+     *
+     * @param maxTableSize The maximum size of the dynamic table the peer may choose, as
+     *                     announced in <code>SETTINGS_HEADER_TABLE_SIZE</code>
+     */
+    HpackDecoder(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        table.setMaxSize(maxTableSize);
+    }
+
+    /**
+     * Decodes a complete header block.
+     *
+     * @param block The buffer containing the header block
+     * @param off The offset of the header block in the buffer
+     * @param len The length of the header block
+     * @param fields The list to add the decoded fields to, name and value alternating
+     * @return The size of the decoded header list as defined for <code>SETTINGS_MAX_HEADER_LIST_SIZE</code>
+     * @throws Http2Exception If the header block is malformed
+     */
+    long decode(byte[] block, int off, int len, List<String> fields) throws Http2Exception {
+        data = block;
+        pos = off;
+        end = off + len;
+        long listSize = 0;
+        boolean fieldSeen = false;
+        try {
+            while(pos < end) {
+                int b = data[pos] & 0xFF;
+                String name, value;
+                if((b & 0x80) != 0) { // Indexed field
+                    int index = readInt(7);
+                    name = name(index);
+                    value = value(index);
+                }
+                else if((b & 0x40) != 0) { // Literal with incremental indexing
+                    int index = readInt(6);
+                    name = index != 0 ? name(index) : readString();
+                    value = readString();
+                    table.add(name, value);
+                }
+                else if((b & 0x20) != 0) { // Dynamic table size update
+                    if(fieldSeen)
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Dynamic table size update after header field");
+                    int size = readInt(5);
+                    if(size > maxTableSize)
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Dynamic table size exceeds limit");
+                    table.setMaxSize(size);
+                    continue;
+                }
+                else { // Literal without indexing or never indexed
+                    int index = readInt(4);
+                    name = index != 0 ? name(index) : readString();
+                    value = readString();
+                }
+                fieldSeen = true;
+                fields.add(name);
+                fields.add(value);
+                listSize += Hpack.Table.entrySize(name, value);
+            }
+            return listSize;
+        } finally {
+            data = null;
+        }
+    }
+
+    private String name(int index) throws Http2Exception {
+        if(index <= 0)
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid header table index 0");
+        if(index <= Hpack.STATIC_TABLE_SIZE)
+            return Hpack.STATIC_TABLE[index][0];
+        index -= Hpack.STATIC_TABLE_SIZE + 1;
+        if(index >= table.count())
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Header table index out of bounds");
+        return table.name(index);
+    }
+
+    private String value(int index) throws Http2Exception {
+        if(index <= 0)
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid header table index 0");
+        if(index <= Hpack.STATIC_TABLE_SIZE)
+            return Hpack.STATIC_TABLE[index][1];
+        index -= Hpack.STATIC_TABLE_SIZE + 1;
+        if(index >= table.count())
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Header table index out of bounds");
+        return table.value(index);
+    }
+
+    private int readInt(int prefixBits) throws Http2Exception {
+        int max = (1 << prefixBits) - 1;
+        int value = data[pos++] & max;
+        if(value < max) return value;
+        long result = value;
+        int shift = 0;
+        while(true) {
+            if(pos >= end)
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Incomplete integer");
+            int b = data[pos++] & 0xFF;
+            result += (long) (b & 0x7F) << shift;
+            if(result > Integer.MAX_VALUE)
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Integer overflow");
+            if((b & 0x80) == 0)
+                return (int) result;
+            shift += 7;
+            if(shift > 28)
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Integer overflow");
+        }
+    }
+
+    private String readString() throws Http2Exception {
+        if(pos >= end)
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Incomplete string");
+        boolean huffman = (data[pos] & 0x80) != 0;
+        int length = readInt(7);
+        if(length > end - pos)
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "String length exceeds header block");
+        String str = huffman
+                ? Hpack.huffmanDecode(data, pos, length)
+                : new String(data, pos, length, StandardCharsets.ISO_8859_1);
+        pos += length;
+        return str;
+    }
+}
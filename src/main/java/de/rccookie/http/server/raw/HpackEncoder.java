@@ -0,0 +1,162 @@
+package de.rccookie.http.server.raw;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes header blocks of an http/2 connection using HPACK. Fields which are likely to
+ * be repeated in subsequent responses are added to the dynamic table, such that they
+ * only have to be sent once per connection. Since the peer's decoder mirrors the dynamic
+ * table, header blocks must be sent in the order they were encoded. Not thread-safe.
+ */
+final class HpackEncoder {
+
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    static {
+        for(int i=Hpack.STATIC_TABLE_SIZE; i>0; i--) {
+            STATIC_FIELDS.put(key(Hpack.STATIC_TABLE[i][0], Hpack.STATIC_TABLE[i][1]), i);
+            STATIC_NAMES.put(Hpack.STATIC_TABLE[i][0], i);
+        }
+    }
+
+    /**
+     * Fields whose values change too often to be worth indexing.
+     */
+    private static final Set<String> NOT_INDEXED = Set.of("content-length", "date", "etag", "last-modified", "location", "content-range", "age", "expires");
+    /**
+     * Fields which must not be indexed by any intermediary either.
+     */
+    private static final Set<String> NEVER_INDEXED = Set.of("set-cookie", "authorization", "proxy-authorization");
+
+    private static final int MAX_INDEXED_VALUE_LENGTH = 256;
+
+
+    private final Hpack.Table table = new Hpack.Table();
+    /**
+     * Insertion numbers of the entries of the dynamic table, by name and value and by name
+     * only. May contain entries that have already been evicted.
+     */
+    private final Map<String, Long> fields = new HashMap<>();
+    private final Map<String, Long> names = new HashMap<>();
+
+    private int minSizeUpdate = -1, sizeUpdate = -1;
+
+    /**
+     * Limits the maximum size of the dynamic table to the size the peer announced in
+     * <code>SETTINGS_HEADER_TABLE_SIZE</code>. The size change will be signaled at the
+     * start of the next header block.
+     *
+     * @param peerMaxSize The maximum table size supported by the peer
+     */
+    void setMaxTableSize(int peerMaxSize) {
+        int size = Math.min(peerMaxSize, Hpack.DEFAULT_TABLE_SIZE);
+        if(size == table.maxSize()) return;
+        table.setMaxSize(size);
+        minSizeUpdate = minSizeUpdate < 0 ? size : Math.min(minSizeUpdate, size);
+        sizeUpdate = size;
+    }
+
+    /**
+     * Starts a new header block, signaling pending table size changes.
+     *
+     * @param out The buffer to write the header block to
+     */
+    void startBlock(ResponseHead out) {
+        if(sizeUpdate < 0) return;
+        // If the size was reduced in between, the decoder has to evict accordingly
+        if(minSizeUpdate < sizeUpdate)
+            writeInt(out, 0x20, 5, minSizeUpdate);
+        writeInt(out, 0x20, 5, sizeUpdate);
+        minSizeUpdate = sizeUpdate = -1;
+    }
+
+    /**
+     * Encodes a single header field.
+     *
+     * @param name The name of the field, must be lowercase
+     * @param value The value of the field
+     * @param out The buffer to write the encoded field to
+     */
+    void encode(String name, String value, ResponseHead out) {
+        String key = key(name, value);
+        Integer staticIndex = STATIC_FIELDS.get(key);
+        if(staticIndex != null) {
+            writeInt(out, 0x80, 7, staticIndex);
+            return;
+        }
+        int index = dynamicIndex(fields.get(key));
+        if(index != 0) {
+            writeInt(out, 0x80, 7, index);
+            return;
+        }
+
+        int nameIndex = STATIC_NAMES.getOrDefault(name, 0);
+        if(nameIndex == 0)
+            nameIndex = dynamicIndex(names.get(name));
+
+        boolean indexed = false;
+        if(NEVER_INDEXED.contains(name))
+            writeInt(out, 0x10, 4, nameIndex);
+        else if(NOT_INDEXED.contains(name) || value.length() > MAX_INDEXED_VALUE_LENGTH)
+            writeInt(out, 0x00, 4, nameIndex);
+        else {
+            writeInt(out, 0x40, 6, nameIndex);
+            indexed = true;
+        }
+        if(nameIndex == 0)
+            writeString(out, name);
+        writeString(out, value);
+
+        if(indexed) {
+            table.add(name, value);
+            fields.put(key, table.inserted());
+            names.put(name, table.inserted());
+            if(fields.size() > 4 * table.count() + 64)
+                removeEvicted();
+        }
+    }
+
+    private int dynamicIndex(Long insertion) {
+        if(insertion == null) return 0;
+        long index = table.inserted() - insertion;
+        return index < table.count() ? Hpack.STATIC_TABLE_SIZE + 1 + (int) index : 0;
+    }
+
+    private void removeEvicted() {
+        fields.values().removeIf(i -> dynamicIndex(i) == 0);
+        names.values().removeIf(i -> dynamicIndex(i) == 0);
+    }
+
+    private static void writeInt(ResponseHead out, int pattern, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if(value < max) {
+            out.write(pattern | value);
+            return;
+        }
+        out.write(pattern | max);
+        value -= max;
+        while(value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ResponseHead out, String str) {
+        int huffmanLength = Hpack.huffmanLength(str);
+        if(huffmanLength < str.length()) {
+            writeInt(out, 0x80, 7, huffmanLength);
+            Hpack.huffmanEncode(str, out);
+        }
+        else {
+            writeInt(out, 0x00, 7, str.length());
+            out.latin1(str);
+        }
+    }
+
+    private static String key(String name, String value) {
+        return name + '\0' + value;
+    }
+}
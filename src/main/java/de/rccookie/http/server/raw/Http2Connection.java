@@ -0,0 +1,839 @@
+package de.rccookie.http.server.raw;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.rccookie.http.Body;
+import de.rccookie.http.Header;
+import de.rccookie.http.Method;
+import de.rccookie.http.server.RequestTarget;
+import de.rccookie.util.Console;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An http/2 connection (RFC 9113) without TLS, either started by the client sending the
+ * connection preface right away (prior knowledge), or by upgrading an http/1.1 request
+ * using <code>Upgrade: h2c</code>. The thread calling {@link #serve(HttpRequestImpl)} reads
+ * and processes all frames received on the connection; each request is processed on its
+ * own stream on the server's executor, like an http/1.1 request, and the responses of
+ * different streams are sent interleaved on the connection.
+ */
+final class Http2Connection {
+
+    // Frame types, RFC 9113 section 6
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    // Frame flags
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    // Settings, RFC 9113 section 6.5.2
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    /**
+     * The connection preface sent by the client.
+     */
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * The part of the connection preface following the pseudo http/1.x request head
+     * <code>PRI * HTTP/2.0</code>.
+     */
+    private static final int PREFACE_BODY_LENGTH = 6;
+
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    private static final int MAX_FRAME_SIZE = (1 << 24) - 1;
+
+    private static final int MAX_CONCURRENT_STREAMS = 128;
+    private static final int CONNECTION_WINDOW_SIZE = 1 << 20;
+    private static final int MAX_HEADER_LIST_SIZE = 1 << 16;
+    private static final int MAX_HEADER_BLOCK_SIZE = 1 << 18;
+
+    /**
+     * Header fields specific to an http/1.x connection, which are not allowed in http/2.
+     */
+    static final Set<String> CONNECTION_SPECIFIC_FIELDS = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+
+    final RawHttpServer server;
+    final Connection connection;
+    private final InputStream in;
+
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+    private volatile boolean goAway = false;
+    private volatile boolean closed = false;
+
+    // Reader state, only accessed by the thread serving the connection
+    private final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final byte[] frameHead = new byte[9];
+    private final byte[] frame = new byte[DEFAULT_MAX_FRAME_SIZE];
+    private int lastStreamId = 0;
+    private Http2Stream headerStream = null;
+    private boolean headerEndStream = false;
+    private byte[] headerBlock = new byte[1024];
+    private int headerBlockLength = 0;
+
+    /**
+     * Guards writing to the connection. Header blocks are encoded while holding the lock,
+     * so that they are sent in the order the encoder's dynamic table was updated.
+     */
+    private final Lock writeLock = new ReentrantLock();
+    private final HpackEncoder encoder = new HpackEncoder();
+    private volatile int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    /**
+     * Guards the send windows of the connection and its streams.
+     */
+    private final Lock flowLock = new ReentrantLock();
+    private final Condition windowChanged = flowLock.newCondition();
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+
+    private final AtomicInteger receiveWindow = new AtomicInteger(CONNECTION_WINDOW_SIZE);
+    private final AtomicInteger unacknowledged = new AtomicInteger();
+
+
+    Http2Connection(RawHttpServer server, Connection connection) {
+        this.server = server;
+        this.connection = connection;
+        this.in = connection.in();
+        connection.upgraded = true;
+    }
+
+    @Override
+    public String toString() {
+        return connection.toString();
+    }
+
+    /**
+     * Serves the connection until it gets closed. Must be called either right after the
+     * pseudo request <code>PRI * HTTP/2.0</code> of the connection preface has been
+     * received, or after <code>101 Switching Protocols</code> has been sent in response to
+     * an upgrade request.
+     *
+     * @param upgrade The request that upgraded the connection, which will be processed
+     *                as stream 1, or <code>null</code> if the client started with the
+     *                connection preface
+     */
+    void serve(@Nullable HttpRequestImpl upgrade) {
+        if(upgrade == null)
+            server.connections.idle(connection);
+        try {
+            if(upgrade != null) {
+                String settings = upgrade.header().getString("HTTP2-Settings");
+                byte[] payload;
+                try {
+                    payload = Base64.getUrlDecoder().decode(settings.trim());
+                } catch(IllegalArgumentException e) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid HTTP2-Settings");
+                }
+                if(payload.length % 6 != 0)
+                    throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid HTTP2-Settings");
+                applySettings(payload, payload.length);
+            }
+            writeSettings();
+            if(upgrade != null) {
+                // Stream 1 is half-closed, the request has already been received completely
+                lastStreamId = 1;
+                Http2Stream stream = new Http2Stream(this, 1, peerInitialWindowSize);
+                stream.remoteClosed();
+                streams.put(1, stream);
+                server.handleAsync(new Http2Request(upgrade, stream));
+            }
+            readPreface(upgrade != null ? PREFACE.length : PREFACE_BODY_LENGTH);
+
+            while(!closed && readFrame()) {
+                if(streams.isEmpty())
+                    server.connections.idle(connection);
+            }
+        } catch(Http2Exception e) {
+            Console.debug("Http/2 connection error on", connection+":", e.getMessage());
+            goAway(e.errorCode);
+        } catch(IOException e) {
+            if(!closed && !connection.isClosed() && !(e instanceof EOFException))
+                Console.debug("Error reading from", connection+":", e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    private void readPreface(int length) throws IOException {
+        byte[] preface = new byte[length];
+        readFully(preface, length, false);
+        if(!Arrays.equals(preface, 0, length, PREFACE, PREFACE.length - length, PREFACE.length))
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+    }
+
+    /**
+     * Reads exactly the given number of bytes into the buffer.
+     *
+     * @return <code>false</code> if the connection was closed before any data was read and
+     *         <code>eofAllowed</code> is true
+     */
+    private boolean readFully(byte[] buf, int length, boolean eofAllowed) throws IOException {
+        int count = 0;
+        while(count < length) {
+            int read = in.read(buf, count, length - count);
+            if(read < 0) {
+                if(count == 0 && eofAllowed)
+                    return false;
+                throw new EOFException("Connection closed mid-frame");
+            }
+            count += read;
+        }
+        return true;
+    }
+
+    private boolean readFrame() throws IOException {
+        byte[] head = frameHead;
+        if(!readFully(head, 9, true))
+            return false;
+        int length = (head[0] & 0xFF) << 16 | (head[1] & 0xFF) << 8 | head[2] & 0xFF;
+        int type = head[3] & 0xFF;
+        int flags = head[4] & 0xFF;
+        int streamId = ((head[5] & 0x7F) << 24 | (head[6] & 0xFF) << 16 | (head[7] & 0xFF) << 8 | head[8] & 0xFF);
+
+        if(length > frame.length)
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame exceeds maximum frame size");
+        readFully(frame, length, false);
+
+        if(headerStream != null && (type != CONTINUATION || streamId != headerStream.id))
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected CONTINUATION frame");
+
+        switch(type) {
+            case DATA: onData(streamId, flags, length); break;
+            case HEADERS: onHeaders(streamId, flags, length); break;
+            case PRIORITY:
+                if(streamId == 0)
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+                break; // Prioritization is not supported
+            case RST_STREAM: onResetStream(streamId, length); break;
+            case SETTINGS: onSettings(streamId, flags, length); break;
+            case PUSH_PROMISE: throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE sent by client");
+            case PING: onPing(streamId, flags, length); break;
+            case GOAWAY:
+                if(streamId != 0)
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY on stream "+streamId);
+                // Running streams get finished, the client won't open new ones
+                break;
+            case WINDOW_UPDATE: onWindowUpdate(streamId, length); break;
+            case CONTINUATION: onContinuation(streamId, flags, length); break;
+            default: break; // Unknown frame types must be ignored
+        }
+        return true;
+    }
+
+    private void onData(int streamId, int flags, int length) throws IOException {
+        if(streamId == 0)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        if(streamId > lastStreamId)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream");
+        // Padding counts towards flow control
+        if(receiveWindow.addAndGet(-length) < 0)
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection receive window exceeded");
+
+        int off = 0, padding = 0;
+        if((flags & FLAG_PADDED) != 0) {
+            if(length == 0)
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Missing pad length");
+            padding = frame[0] & 0xFF;
+            off = 1;
+        }
+        int dataLength = length - off - padding;
+        if(dataLength < 0)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Padding exceeds frame");
+
+        Http2Stream stream = streams.get(streamId);
+        if(stream == null || stream.isRemoteClosed()) {
+            // Possibly sent before the client received our reset of the stream
+            consumed(null, length);
+            if(stream != null)
+                resetStream(stream, Http2Exception.STREAM_CLOSED);
+            return;
+        }
+        if(stream.receiveWindow.addAndGet(-length) < 0) {
+            consumed(null, length);
+            resetStream(stream, Http2Exception.FLOW_CONTROL_ERROR);
+            return;
+        }
+
+        if(dataLength != 0 && !stream.in.receive(Arrays.copyOfRange(frame, off, off + dataLength)))
+            consumed(null, dataLength); // Body is being discarded
+        // The padding is never read from the stream
+        consumed(stream, length - dataLength);
+        if((flags & FLAG_END_STREAM) != 0)
+            stream.remoteClosed();
+    }
+
+    private void onHeaders(int streamId, int flags, int length) throws IOException {
+        if(streamId == 0)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream 0");
+
+        int off = 0, padding = 0;
+        if((flags & FLAG_PADDED) != 0) {
+            if(length == 0)
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Missing pad length");
+            padding = frame[0] & 0xFF;
+            off = 1;
+        }
+        if((flags & FLAG_PRIORITY) != 0)
+            off += 5;
+        if(length - padding < off)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Padding exceeds frame");
+
+        Http2Stream stream = streams.get(streamId);
+        if(stream == null) {
+            if((streamId & 1) == 0)
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Client initiated stream with even id");
+            if(streamId <= lastStreamId) {
+                // Trailers of a stream that was already reset, the header block still has
+                // to be decoded to keep the dynamic table in sync
+                stream = new Http2Stream(this, streamId, 0);
+                stream.reset();
+            }
+            else {
+                lastStreamId = streamId;
+                flowLock.lock();
+                try {
+                    stream = new Http2Stream(this, streamId, peerInitialWindowSize);
+                } finally {
+                    flowLock.unlock();
+                }
+                stream.refused = goAway || streams.size() >= MAX_CONCURRENT_STREAMS;
+                if(!stream.refused)
+                    streams.put(streamId, stream);
+            }
+        }
+        else if(stream.request != null && !stream.reset && (flags & FLAG_END_STREAM) == 0)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Trailers without END_STREAM");
+
+        headerStream = stream;
+        headerEndStream = (flags & FLAG_END_STREAM) != 0;
+        headerBlockLength = 0;
+        appendHeaderBlock(off, length - padding);
+        if((flags & FLAG_END_HEADERS) != 0)
+            endHeaderBlock();
+    }
+
+    private void onContinuation(int streamId, int flags, int length) throws IOException {
+        if(headerStream == null)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+        appendHeaderBlock(0, length);
+        if((flags & FLAG_END_HEADERS) != 0)
+            endHeaderBlock();
+    }
+
+    private void appendHeaderBlock(int from, int to) throws Http2Exception {
+        int length = to - from;
+        if(headerBlockLength + length > MAX_HEADER_BLOCK_SIZE)
+            throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "Header block too large");
+        if(headerBlockLength + length > headerBlock.length)
+            headerBlock = Arrays.copyOf(headerBlock, Math.max(2 * headerBlock.length, headerBlockLength + length));
+        System.arraycopy(frame, from, headerBlock, headerBlockLength, length);
+        headerBlockLength += length;
+    }
+
+    private void endHeaderBlock() throws IOException {
+        Http2Stream stream = headerStream;
+        headerStream = null;
+
+        List<String> fields = new ArrayList<>();
+        long size = decoder.decode(headerBlock, 0, headerBlockLength, fields);
+        if(headerBlock.length > 4 * DEFAULT_MAX_FRAME_SIZE)
+            headerBlock = new byte[1024];
+
+        if(stream.refused) {
+            writeResetStream(stream.id, Http2Exception.REFUSED_STREAM);
+            return;
+        }
+        if(stream.reset)
+            return;
+        if(stream.request != null) {
+            // Trailers, which are not exposed by the request api
+            stream.remoteClosed();
+            return;
+        }
+
+        Http2Request request = size <= MAX_HEADER_LIST_SIZE ? createRequest(stream, fields, headerEndStream) : null;
+        if(request == null) {
+            resetStream(stream, Http2Exception.PROTOCOL_ERROR);
+            return;
+        }
+        stream.request = request;
+        if(headerEndStream)
+            stream.remoteClosed();
+
+        server.connections.active(connection);
+        if(!server.connections.mayKeepAlive(connection))
+            goAway(Http2Exception.NO_ERROR);
+        server.handleAsync(request);
+    }
+
+    /**
+     * Creates the request from the decoded header fields, or returns <code>null</code> if
+     * the request is malformed.
+     */
+    @Nullable
+    private Http2Request createRequest(Http2Stream stream, List<String> fields, boolean endStream) {
+        String method = null, scheme = null, authority = null, path = null;
+        Map<String, List<String>> header = new HashMap<>();
+        boolean regularField = false;
+
+        for(int i=0; i<fields.size(); i+=2) {
+            String name = fields.get(i), value = fields.get(i+1);
+            if(name.startsWith(":")) {
+                if(regularField) return null;
+                switch(name) {
+                    case ":method": if(method != null) return null; method = value; break;
+                    case ":scheme": if(scheme != null) return null; scheme = value; break;
+                    case ":authority": if(authority != null) return null; authority = value; break;
+                    case ":path": if(path != null) return null; path = value; break;
+                    default: return null;
+                }
+            }
+            else {
+                regularField = true;
+                for(int j=0; j<name.length(); j++)
+                    if(name.charAt(j) >= 'A' && name.charAt(j) <= 'Z') return null;
+                if(CONNECTION_SPECIFIC_FIELDS.contains(name) || (name.equals("te") && !value.equals("trailers")))
+                    return null;
+                header.computeIfAbsent(name, n -> new ArrayList<>(1)).add(value);
+            }
+        }
+
+        Method m = null;
+        for(Method candidate : Method.values()) {
+            if(candidate.name().equals(method)) {
+                m = candidate;
+                break;
+            }
+        }
+        if(m == null) {
+            Console.warn("Client sent illegal http method:", method);
+            return null;
+        }
+        if(m != Method.CONNECT && (scheme == null || path == null || path.isEmpty()))
+            return null;
+
+        // Cookies may be split into multiple fields to compress better
+        List<String> cookies = header.get("cookie");
+        if(cookies != null && cookies.size() > 1)
+            header.put("cookie", List.of(String.join("; ", cookies)));
+
+        if(authority == null && header.containsKey("host"))
+            authority = header.get("host").get(0);
+        else if(authority != null)
+            header.putIfAbsent("host", List.of(authority));
+
+        try {
+            BodyInputStream bodyStream = endStream ? null : stream.in;
+            Body body = bodyStream != null ? Body.of(bodyStream) : Body.EMPTY;
+            Http2Request request = new Http2Request(server, stream, RequestTarget.parse(scheme != null ? scheme : "http", authority, path == null || path.equals("*") ? "/" : path), m, Header.ofReceived(header), body);
+            request.bodyStream = bodyStream;
+            return request;
+        } catch(MalformedURLException e) {
+            Console.warn("Client sent invalid url:", e.getMessage());
+            return null;
+        }
+    }
+
+    private void onResetStream(int streamId, int length) throws IOException {
+        if(streamId == 0)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        if(length != 4)
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+        if(streamId > lastStreamId)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream");
+        Http2Stream stream = streams.get(streamId);
+        if(stream != null) {
+            stream.reset();
+            signalWindowChanged();
+        }
+    }
+
+    private void onSettings(int streamId, int flags, int length) throws IOException {
+        if(streamId != 0)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on stream "+streamId);
+        if((flags & FLAG_ACK) != 0) {
+            if(length != 0)
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS acknowledgement with payload");
+            return;
+        }
+        if(length % 6 != 0)
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+        applySettings(frame, length);
+        write(frameHead(0, SETTINGS, FLAG_ACK, 0));
+    }
+
+    private void applySettings(byte[] payload, int length) throws IOException {
+        for(int i=0; i<length; i+=6) {
+            int id = (payload[i] & 0xFF) << 8 | payload[i+1] & 0xFF;
+            long value = readUnsignedInt(payload, i+2);
+            switch(id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    writeLock.lock();
+                    try {
+                        encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if(value > 1)
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                    break; // Server push is not used
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if(value > MAX_WINDOW_SIZE)
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    flowLock.lock();
+                    try {
+                        // Applies retroactively to all open streams
+                        long delta = value - peerInitialWindowSize;
+                        peerInitialWindowSize = (int) value;
+                        for(Http2Stream stream : streams.values())
+                            stream.sendWindow += delta;
+                        windowChanged.signalAll();
+                    } finally {
+                        flowLock.unlock();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if(value < DEFAULT_MAX_FRAME_SIZE || value > MAX_FRAME_SIZE)
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default: break; // Unknown or irrelevant settings must be ignored
+            }
+        }
+    }
+
+    private void onPing(int streamId, int flags, int length) throws IOException {
+        if(streamId != 0)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING on stream "+streamId);
+        if(length != 8)
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid PING frame");
+        if((flags & FLAG_ACK) == 0)
+            write(frameHead(8, PING, FLAG_ACK, 0), ByteBuffer.wrap(Arrays.copyOf(frame, 8)));
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws IOException {
+        if(length != 4)
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+        int increment = (int) (readUnsignedInt(frame, 0) & 0x7FFFFFFF);
+        Http2Stream stream = null;
+        if(streamId != 0) {
+            if(streamId > lastStreamId)
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream");
+            stream = streams.get(streamId);
+            if(stream == null) return;
+        }
+        if(increment == 0) {
+            if(stream == null)
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Window increment of 0");
+            resetStream(stream, Http2Exception.PROTOCOL_ERROR);
+            return;
+        }
+
+        boolean overflow;
+        flowLock.lock();
+        try {
+            if(stream == null)
+                overflow = (sendWindow += increment) > MAX_WINDOW_SIZE;
+            else overflow = (stream.sendWindow += increment) > MAX_WINDOW_SIZE;
+            windowChanged.signalAll();
+        } finally {
+            flowLock.unlock();
+        }
+        if(overflow) {
+            if(stream == null)
+                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection send window overflow");
+            resetStream(stream, Http2Exception.FLOW_CONTROL_ERROR);
+        }
+    }
+
+    /**
+     * Called when received data has been consumed, to allow the peer to send more data once
+     * enough has been consumed.
+     *
+     * @param stream The stream the data was consumed from, or <code>null</code> if the data
+     *               only needs to be credited to the connection
+     * @param count The number of bytes consumed
+     */
+    void consumed(@Nullable Http2Stream stream, int count) throws IOException {
+        if(count <= 0 || closed) return;
+        int pending = unacknowledged.addAndGet(count);
+        if(pending >= CONNECTION_WINDOW_SIZE / 2 && unacknowledged.compareAndSet(pending, 0)) {
+            receiveWindow.addAndGet(pending);
+            writeWindowUpdate(0, pending);
+        }
+        if(stream != null && !stream.isRemoteClosed()) {
+            pending = stream.unacknowledged.addAndGet(count);
+            if(pending >= DEFAULT_WINDOW_SIZE / 2 && stream.unacknowledged.compareAndSet(pending, 0)) {
+                stream.receiveWindow.addAndGet(pending);
+                writeWindowUpdate(stream.id, pending);
+            }
+        }
+    }
+
+    /**
+     * Sends the head of a response, optionally followed by the complete body.
+     *
+     * @param stream The stream to send the response on
+     * @param fields The response header fields, name and value alternating, with lowercase
+     *               names and pseudo-header fields first
+     * @param data The complete body to send, or <code>null</code> if the body will be sent
+     *             separately using {@link #writeData(Http2Stream, byte[], int, int, boolean)}
+     *             or if there is no body
+     * @param endStream Whether the response is complete after the header (and the data,
+     *                  if given)
+     */
+    void writeHeaders(Http2Stream stream, List<String> fields, byte @Nullable [] data, boolean endStream) throws IOException {
+        boolean dataSent = false;
+        ResponseHead block = ResponseHead.acquire();
+        writeLock.lock();
+        try {
+            checkOpen(stream);
+            encoder.startBlock(block);
+            for(int i=0; i<fields.size(); i+=2)
+                encoder.encode(fields.get(i), fields.get(i+1), block);
+
+            // The header block may have to be split into a HEADERS and CONTINUATION frames
+            int maxFrameSize = peerMaxFrameSize;
+            ByteBuffer blockData = block.buffer();
+            int frameCount = Math.max(1, (block.size() + maxFrameSize - 1) / maxFrameSize);
+            ByteBuffer[] buffers = new ByteBuffer[2 * frameCount + 2];
+            boolean endWithHeaders = endStream && data == null;
+            for(int i=0; i<frameCount; i++) {
+                int off = i * maxFrameSize, length = Math.min(maxFrameSize, block.size() - off);
+                int type = i == 0 ? HEADERS : CONTINUATION;
+                int flags = (i == frameCount - 1 ? FLAG_END_HEADERS : 0) | (i == 0 && endWithHeaders ? FLAG_END_STREAM : 0);
+                buffers[2*i] = frameHead(length, type, flags, stream.id);
+                ByteBuffer part = blockData.duplicate();
+                part.position(off).limit(off + length);
+                buffers[2*i+1] = part;
+            }
+
+            // Send small bodies together with the head, if the windows allow it
+            if(data != null && data.length <= maxFrameSize && reserveSendWindow(stream, data.length)) {
+                buffers[2 * frameCount] = frameHead(data.length, DATA, endStream ? FLAG_END_STREAM : 0, stream.id);
+                buffers[2 * frameCount + 1] = ByteBuffer.wrap(data);
+                dataSent = true;
+            }
+            else buffers = Arrays.copyOf(buffers, 2 * frameCount);
+            connection.write(buffers);
+        } finally {
+            writeLock.unlock();
+            block.release();
+        }
+        if(data != null && !dataSent)
+            writeData(stream, data, 0, data.length, endStream);
+    }
+
+    /**
+     * Sends (part of) a response body as <code>DATA</code> frames, waiting for the peer to
+     * grant enough flow control window.
+     *
+     * @param stream The stream to send the data on
+     * @param data The buffer containing the data
+     * @param off The offset of the data in the buffer
+     * @param len The number of bytes to send
+     * @param endStream Whether this is the end of the response
+     */
+    void writeData(Http2Stream stream, byte[] data, int off, int len, boolean endStream) throws IOException {
+        if(len == 0 && !endStream) return;
+        do {
+            int count;
+            flowLock.lock();
+            try {
+                while(len > 0 && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+                    checkOpen(stream);
+                    windowChanged.await();
+                }
+                checkOpen(stream);
+                count = (int) Math.min(len, Math.min(peerMaxFrameSize, Math.min(sendWindow, stream.sendWindow)));
+                sendWindow -= count;
+                stream.sendWindow -= count;
+            } catch(InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for flow control window");
+            } finally {
+                flowLock.unlock();
+            }
+            boolean end = endStream && count == len;
+            write(frameHead(count, DATA, end ? FLAG_END_STREAM : 0, stream.id), ByteBuffer.wrap(data, off, count));
+            off += count;
+            len -= count;
+        } while(len > 0);
+    }
+
+    /**
+     * Takes the given number of bytes from the send windows, if both windows are large
+     * enough.
+     */
+    private boolean reserveSendWindow(Http2Stream stream, int count) {
+        flowLock.lock();
+        try {
+            if(sendWindow < count || stream.sendWindow < count)
+                return false;
+            sendWindow -= count;
+            stream.sendWindow -= count;
+            return true;
+        } finally {
+            flowLock.unlock();
+        }
+    }
+
+    private void checkOpen(Http2Stream stream) throws IOException {
+        if(closed || stream.reset)
+            throw new IOException("Stream closed before response could be sent");
+    }
+
+    private void signalWindowChanged() {
+        flowLock.lock();
+        try {
+            windowChanged.signalAll();
+        } finally {
+            flowLock.unlock();
+        }
+    }
+
+    /**
+     * Resets the given stream, stopping both sides from sending any more data on it.
+     *
+     * @param stream The stream to reset
+     * @param errorCode The reason why the stream is reset
+     */
+    void resetStream(Http2Stream stream, int errorCode) throws IOException {
+        if(stream.reset) return;
+        stream.reset();
+        signalWindowChanged();
+        writeResetStream(stream.id, errorCode);
+    }
+
+    /**
+     * Called once a stream has been closed by both sides.
+     */
+    void removeStream(Http2Stream stream) {
+        if(!streams.remove(stream.id, stream) || !streams.isEmpty() || closed)
+            return;
+        if(goAway) {
+            // All streams before the GOAWAY are finished
+            close();
+            return;
+        }
+        server.connections.idle(connection);
+        // A new stream may have been opened concurrently
+        if(!streams.isEmpty())
+            server.connections.active(connection);
+    }
+
+    private void writeSettings() throws IOException {
+        ByteBuffer settings = ByteBuffer.allocate(18);
+        settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS);
+        settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+        settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE);
+        settings.flip();
+        ByteBuffer windowUpdate = ByteBuffer.allocate(4).putInt(CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE).flip();
+        write(frameHead(settings.remaining(), SETTINGS, 0, 0), settings, frameHead(4, WINDOW_UPDATE, 0, 0), windowUpdate);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        write(frameHead(4, WINDOW_UPDATE, 0, streamId), ByteBuffer.allocate(4).putInt(increment).flip());
+    }
+
+    private void writeResetStream(int streamId, int errorCode) throws IOException {
+        write(frameHead(4, RST_STREAM, 0, streamId), ByteBuffer.allocate(4).putInt(errorCode).flip());
+    }
+
+    /**
+     * Sends a <code>GOAWAY</code> frame, after which no new streams will be accepted. With
+     * {@link Http2Exception#NO_ERROR}, streams that have already been opened are finished
+     * before the connection gets closed.
+     */
+    private void goAway(int errorCode) {
+        if(goAway) return;
+        goAway = true;
+        try {
+            write(frameHead(8, GOAWAY, 0, 0), ByteBuffer.allocate(8).putInt(lastStreamId).putInt(errorCode).flip());
+        } catch(IOException e) {
+            Console.debug("Failed to send GOAWAY to", connection+":", e.getMessage());
+        }
+        if(errorCode == Http2Exception.NO_ERROR && streams.isEmpty())
+            close();
+    }
+
+    private void write(ByteBuffer... buffers) throws IOException {
+        writeLock.lock();
+        try {
+            if(closed)
+                throw new IOException("Connection closed");
+            connection.write(buffers);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static ByteBuffer frameHead(int length, int type, int flags, int streamId) {
+        return ByteBuffer.wrap(new byte[] {
+                (byte) (length >>> 16), (byte) (length >>> 8), (byte) length,
+                (byte) type,
+                (byte) flags,
+                (byte) (streamId >>> 24), (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId
+        });
+    }
+
+    private static long readUnsignedInt(byte[] buf, int off) {
+        return ((buf[off] & 0xFFL) << 24) | (buf[off+1] & 0xFF) << 16 | (buf[off+2] & 0xFF) << 8 | buf[off+3] & 0xFF;
+    }
+
+    /**
+     * Closes the connection and resets all open streams.
+     */
+    void close() {
+        if(closed) return;
+        closed = true;
+        for(Http2Stream stream : streams.values())
+            stream.reset();
+        streams.clear();
+        signalWindowChanged();
+        try {
+            connection.close();
+        } catch(IOException e) {
+            Console.error("Error closing stream:", e);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an http/2 peer violates the protocol. Depending on where it is thrown, the
+ * error is either a connection error, which causes a <code>GOAWAY</code> frame to be sent
+ * and the connection to be closed, or a stream error, which causes the stream to be reset.
+ */
+class Http2Exception extends IOException {
+
+    // Error codes, RFC 9113 section 7
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int SETTINGS_TIMEOUT = 0x4;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    final int errorCode;
+
+    Http2Exception(int errorCode, String message) {
+        super(message);
+        this.errorCode = errorCode;
+    }
+}
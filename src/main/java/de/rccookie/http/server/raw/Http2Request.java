@@ -0,0 +1,36 @@
+package de.rccookie.http.server.raw;
+
+import de.rccookie.http.Body;
+import de.rccookie.http.Header;
+import de.rccookie.http.Method;
+import de.rccookie.http.ResponseCode;
+import de.rccookie.http.server.RequestTarget;
+
+/**
+ * A request received on a stream of an {@link Http2Connection}, whose response gets sent
+ * on the same stream.
+ */
+final class Http2Request extends HttpRequestImpl {
+
+    final Http2Stream stream;
+
+    Http2Request(RawHttpServer httpServer, Http2Stream stream, RequestTarget target, Method method, Header header, Body body) {
+        super(httpServer, stream.connection.connection, target, "2", method, header, body, stream.connection.connection.local, stream.connection.connection.remote);
+        this.stream = stream;
+        readsNext = false;
+    }
+
+    /**
+     * Creates the request on stream 1 from the http/1.1 request that upgraded the connection.
+     */
+    Http2Request(HttpRequestImpl upgrade, Http2Stream stream) {
+        this(upgrade.httpServer, stream, upgrade.target, upgrade.method(), upgrade.header(), upgrade.body());
+        admitted = upgrade.admitted;
+        upgrade.admitted = false;
+    }
+
+    @Override
+    HttpResponseImpl newResponse(ResponseCode code) {
+        return new Http2Response(this, code);
+    }
+}
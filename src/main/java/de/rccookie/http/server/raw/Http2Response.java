@@ -0,0 +1,112 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.rccookie.http.Body;
+import de.rccookie.http.Method;
+import de.rccookie.http.ResponseCode;
+import de.rccookie.http.server.HttpSendException;
+import de.rccookie.http.util.HttpDate;
+import de.rccookie.util.Console;
+
+/**
+ * A response sent on the stream of an {@link Http2Request}. The header gets HPACK encoded
+ * and sent as <code>HEADERS</code> frame, the body as <code>DATA</code> frames, subject to
+ * the flow control of the stream and the connection.
+ */
+final class Http2Response extends HttpResponseImpl {
+
+    private final Http2Stream stream;
+
+    Http2Response(Http2Request request, ResponseCode code) {
+        super(request, code);
+        this.stream = request.stream;
+    }
+
+    @Override
+    Void sendBlocking0() throws HttpSendException {
+        Http2Connection connection = stream.connection;
+        try(Body body = this.body) {
+
+            header.locked = false;
+            long length = body.contentLength();
+            List<String> fields = new ArrayList<>(2 * header.size() + 8);
+            fields.add(":status");
+            fields.add(Integer.toString(code.code()));
+            String serverName = httpServer.getServerName();
+            if(serverName != null && !header.containsKey("Server")) {
+                fields.add("server");
+                fields.add(serverName);
+            }
+            if(!header.containsKey("Date")) {
+                fields.add("date");
+                fields.add(HttpDate.now());
+            }
+            header.forEach((n,vs) -> {
+                String name = n.toLowerCase();
+                if(Http2Connection.CONNECTION_SPECIFIC_FIELDS.contains(name) || (length >= 0 && name.equals("content-length")))
+                    return;
+                for(String v : vs) {
+                    fields.add(name);
+                    fields.add(v);
+                }
+            });
+            if(length >= 0) {
+                fields.add("content-length");
+                fields.add(Long.toString(length));
+            }
+            header.locked = true;
+
+            if(length == 0 || request.method() == Method.HEAD)
+                connection.writeHeaders(stream, fields, null, true);
+            else if(length > 0 && length <= ResponseHead.MAX_INLINE_BODY_SIZE && (body instanceof Body.OfData || body instanceof Body.OfJson)) {
+                byte[] data = body.data();
+                if(data.length != length)
+                    throw new IOException("Body length differs from content length");
+                connection.writeHeaders(stream, fields, data, true);
+            }
+            else {
+                connection.writeHeaders(stream, fields, null, false);
+                try(OutputStream out = stream.out(length)) {
+                    writeBody(body, out);
+                }
+            }
+
+        } catch(Exception e) {
+            if(e instanceof IOException && e.getMessage() != null && e.getMessage().contains("closed before"))
+                Console.warn("Stream closed during send: " + e.getMessage());
+            else {
+                try {
+                    connection.resetStream(stream, Http2Exception.INTERNAL_ERROR);
+                } catch(IOException f) {
+                    Console.debug("Failed to reset stream", stream+":", f.getMessage());
+                }
+                try {
+                    httpServer.logResponse(this, true);
+                } catch(Exception f) {
+                    Console.error("Error in response logger:");
+                    Console.error(f);
+                }
+                throw new HttpSendException(e);
+            }
+        } finally {
+            header.locked = true;
+            try {
+                stream.localClosed();
+            } catch(IOException e) {
+                Console.debug("Failed to reset stream", stream+":", e.getMessage());
+            }
+            ((Http2Request) request).releaseAdmission();
+        }
+        try {
+            httpServer.logResponse(this, false);
+        } catch(Exception e) {
+            Console.error("Error in response logger:");
+            Console.error(e);
+        }
+        return null;
+    }
+}
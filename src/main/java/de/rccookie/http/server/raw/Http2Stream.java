@@ -0,0 +1,326 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A single request / response exchange of an {@link Http2Connection}. The request body is
+ * received by the connection's reader thread and buffered until it is read by the handler,
+ * the response is sent by the thread sending the response.
+ */
+final class Http2Stream {
+
+    private static final int REMOTE_CLOSED = 1, LOCAL_CLOSED = 2;
+
+    final Http2Connection connection;
+    final int id;
+
+    /**
+     * The number of bytes that may still be sent on this stream. Guarded by the connection's
+     * flow lock.
+     */
+    long sendWindow;
+    /**
+     * The number of bytes the peer may still send on this stream.
+     */
+    final AtomicInteger receiveWindow = new AtomicInteger(Http2Connection.DEFAULT_WINDOW_SIZE);
+    /**
+     * The number of received bytes that have been consumed but not yet been announced to
+     * the peer using a <code>WINDOW_UPDATE</code> frame.
+     */
+    final AtomicInteger unacknowledged = new AtomicInteger();
+
+    final Http2InputStream in = new Http2InputStream();
+
+    /**
+     * The request received on this stream, <code>null</code> until the header block has
+     * been received completely. Only accessed by the reader thread.
+     */
+    Http2Request request = null;
+    /**
+     * Whether the stream was refused because of the concurrent stream limit. Only accessed
+     * by the reader thread.
+     */
+    boolean refused = false;
+
+    private final AtomicInteger closed = new AtomicInteger();
+    volatile boolean reset = false;
+
+    Http2Stream(Http2Connection connection, int id, long sendWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.sendWindow = sendWindow;
+    }
+
+    @Override
+    public String toString() {
+        return connection.connection + "#" + id;
+    }
+
+    /**
+     * Returns whether the peer has finished sending on this stream.
+     *
+     * @return Whether the remote side is closed
+     */
+    boolean isRemoteClosed() {
+        return (closed.get() & REMOTE_CLOSED) != 0;
+    }
+
+    /**
+     * Called when the peer has finished sending on this stream, i.e. the request body
+     * has been received completely.
+     */
+    void remoteClosed() {
+        in.end();
+        close(REMOTE_CLOSED);
+    }
+
+    /**
+     * Called when the response on this stream has been sent completely or failed. If the
+     * request has not been received completely, the peer gets asked to stop sending.
+     */
+    void localClosed() throws IOException {
+        if(!reset && !isRemoteClosed()) {
+            in.discard(Long.MAX_VALUE);
+            connection.resetStream(this, Http2Exception.NO_ERROR);
+        }
+        close(LOCAL_CLOSED);
+    }
+
+    /**
+     * Called when the stream has been reset by either side, or the connection was closed.
+     */
+    void reset() {
+        reset = true;
+        in.fail(new IOException("Stream closed before request body was received"));
+        close(REMOTE_CLOSED | LOCAL_CLOSED);
+    }
+
+    private void close(int half) {
+        int before = closed.getAndAccumulate(half, (a,b) -> a | b);
+        if(before != (REMOTE_CLOSED | LOCAL_CLOSED) && (before | half) == (REMOTE_CLOSED | LOCAL_CLOSED))
+            connection.removeStream(this);
+    }
+
+    /**
+     * Returns a stream for sending the response body as <code>DATA</code> frames. Closing
+     * the stream ends the stream.
+     *
+     * @param length The length of the body, or -1 if unknown
+     * @return A stream for the response body
+     */
+    OutputStream out(long length) {
+        return new Http2OutputStream(length);
+    }
+
+
+    /**
+     * The request body, buffering the received <code>DATA</code> frames. Consumed data is
+     * announced to the peer so that it may continue sending.
+     */
+    final class Http2InputStream extends BodyInputStream {
+
+        private final Lock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final Queue<byte[]> chunks = new ArrayDeque<>();
+        private int chunkPos = 0;
+        private boolean end = false;
+        private boolean discarding = false;
+        private IOException error = null;
+
+        /**
+         * Adds received data to the stream.
+         *
+         * @return Whether the data was buffered, <code>false</code> if it was discarded
+         */
+        boolean receive(byte[] data) {
+            lock.lock();
+            try {
+                if(discarding) return false;
+                chunks.add(data);
+                changed.signalAll();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void end() {
+            lock.lock();
+            try {
+                end = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void fail(IOException error) {
+            lock.lock();
+            try {
+                if(!end)
+                    this.error = error;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte @NotNull [] b, int off, int len) throws IOException {
+            if(closed) return -1;
+            if(len == 0) return 0;
+            int count = 0;
+            lock.lock();
+            try {
+                while(chunks.isEmpty() && !end && error == null)
+                    changed.await();
+                while(count < len && !chunks.isEmpty()) {
+                    byte[] chunk = chunks.peek();
+                    int n = Math.min(len - count, chunk.length - chunkPos);
+                    System.arraycopy(chunk, chunkPos, b, off + count, n);
+                    count += n;
+                    chunkPos += n;
+                    if(chunkPos == chunk.length) {
+                        chunks.poll();
+                        chunkPos = 0;
+                    }
+                }
+                if(count == 0) {
+                    if(error != null)
+                        throw error;
+                    return -1;
+                }
+            } catch(InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for request body");
+            } finally {
+                lock.unlock();
+            }
+            connection.consumed(Http2Stream.this, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                int available = -chunkPos;
+                for(byte[] chunk : chunks)
+                    available += chunk.length;
+                return available;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Drops all buffered and further received data. Unlike with http/1.1, the remainder
+         * of the body does not need to be received to continue using the connection.
+         */
+        @Override
+        boolean discard(long limit) throws IOException {
+            int count;
+            lock.lock();
+            try {
+                discarding = true;
+                count = -chunkPos;
+                for(byte[] chunk : chunks)
+                    count += chunk.length;
+                chunks.clear();
+                chunkPos = 0;
+            } finally {
+                lock.unlock();
+            }
+            connection.consumed(null, count);
+            return true;
+        }
+    }
+
+
+    /**
+     * Sends the response body as <code>DATA</code> frames, buffering small writes.
+     */
+    private final class Http2OutputStream extends OutputStream {
+
+        private byte[] buf = BufferPool.acquire(Http2Connection.DEFAULT_MAX_FRAME_SIZE);
+        private int count = 0;
+        private long remaining;
+        private boolean closed = false;
+
+        Http2OutputStream(long length) {
+            remaining = length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkLength(1);
+            if(count == buf.length)
+                flushBuffer(false);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte @NotNull [] b, int off, int len) throws IOException {
+            checkLength(len);
+            if(len >= buf.length) {
+                flushBuffer(false);
+                connection.writeData(Http2Stream.this, b, off, len, false);
+                return;
+            }
+            if(len > buf.length - count)
+                flushBuffer(false);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        private void checkLength(int len) throws IOException {
+            if(closed)
+                throw new IOException("Stream closed");
+            if(remaining < 0) return;
+            if(len > remaining)
+                throw new IOException("Body is longer than the content length");
+            remaining -= len;
+        }
+
+        private void flushBuffer(boolean end) throws IOException {
+            if(count != 0 || end)
+                connection.writeData(Http2Stream.this, buf, 0, count, end);
+            count = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if(!closed)
+                flushBuffer(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) return;
+            closed = true;
+            try {
+                if(remaining > 0)
+                    throw new IOException("Body is shorter than the content length");
+                flushBuffer(true);
+            } finally {
+                BufferPool.release(buf);
+                buf = null;
+            }
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package de.rccookie.http.server.raw;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.URL;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 import de.rccookie.http.Body;
@@ -14,7 +16,10 @@ import de.rccookie.http.Header;
 import de.rccookie.http.HttpRequest;
 import de.rccookie.http.HttpResponse;
 import de.rccookie.http.Method;
+import de.rccookie.http.Query;
 import de.rccookie.http.ResponseCode;
+import de.rccookie.http.Route;
+import de.rccookie.http.server.RequestTarget;
 import de.rccookie.util.Arguments;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -22,8 +27,8 @@ import org.jetbrains.annotations.Nullable;
 class HttpRequestImpl implements HttpRequest.Respondable {
 
     final RawHttpServer httpServer;
-    final Socket socket;
-    private final URL url;
+    final Connection connection;
+    final RequestTarget target;
     private final String version;
     private final Method method;
     private final Header header;
@@ -32,14 +37,67 @@ class HttpRequestImpl implements HttpRequest.Respondable {
     private final InetSocketAddress client;
 
 
+    /**
+     * The value of the 'Connection' header field, if it is 'close' or 'keep-alive'.
+     * Used to avoid decoding the header just to determine whether to keep the
+     * connection alive.
+     */
+    Boolean keepAlive = null;
+
+    /**
+     * The value of the 'Upgrade' header field, or <code>null</code> if not present.
+     */
+    String upgrade = null;
+
+    /**
+     * Takes over the connection once a <code>101 Switching Protocols</code> response to
+     * this request has been sent, instead of receiving the next request.
+     */
+    Runnable onUpgrade = null;
+
+    /**
+     * The position of this request within the requests received on the connection.
+     */
+    int sequence = 0;
+
+    /**
+     * Whether the connection should wait for the next request once the response to this
+     * request was sent. <code>false</code> if the next request has already been received
+     * because this request was pipelined.
+     */
+    volatile boolean readsNext = true;
+
+    /**
+     * The stream the body is read from, or <code>null</code> if the request has no body.
+     */
+    BodyInputStream bodyStream = null;
+
+    /**
+     * The source of the body if the client waits for <code>100 Continue</code> before sending
+     * it, otherwise <code>null</code>.
+     */
+    ContinueInputStream expectContinue = null;
+
+    /**
+     * Whether the request holds a permit of the server's admission control, which has to be
+     * released once the response has been sent.
+     */
+    boolean admitted = false;
+
+    /**
+     * Guards the response and the configurators. A lock instead of synchronized, so that
+     * virtual threads waiting for it don't get pinned to their carrier thread.
+     */
+    private final Lock lock = new ReentrantLock();
+
     HttpResponseImpl response = null;
     Consumer<HttpResponse.Editable> configurators = null;
     private Map<Class<?>, Object> optionalParams = null;
 
-    HttpRequestImpl(RawHttpServer httpServer, Socket socket, URL url, String version, Method method, Header header, Body body, InetSocketAddress server, InetSocketAddress client) {
+    HttpRequestImpl(RawHttpServer httpServer, Connection connection, RequestTarget target, String version, Method method, Header header, Body body, InetSocketAddress server, InetSocketAddress client) {
         this.httpServer = httpServer;
-        this.socket = socket;
-        this.url = url;
+        this.connection = connection;
+        this.target = target;
         this.version = version;
         this.method = method;
         this.header = header;
@@ -49,22 +107,79 @@ class HttpRequestImpl implements HttpRequest.Respondable {
     }
 
 
+    /**
+     * Discards the unread remainder of the request body, which would otherwise be received
+     * as the start of the next request.
+     *
+     * @param limit The maximum number of bytes to discard
+     * @return Whether the body was discarded completely and the connection can receive
+     *         the next request
+     */
+    boolean discardBody(long limit) throws IOException {
+        return bodyStream == null || bodyStream.discard(limit);
+    }
+
+    /**
+     * Releases the admission control permit of this request, if it holds one.
+     */
+    void releaseAdmission() {
+        if(admitted) {
+            admitted = false;
+            httpServer.admission.release();
+        }
+    }
+
+    /**
+     * Creates a new response to this request, to be sent over the request's connection.
+     *
+     * @param code The response code of the response
+     * @return A new response
+     */
+    HttpResponseImpl newResponse(ResponseCode code) {
+        return new HttpResponseImpl(this, code);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(this == obj) return true;
         if(!(obj instanceof HttpRequest)) return false;
         HttpRequest r = (HttpRequest) obj;
-        return method == r.method() && url.toString().equals(r.url().toString()) && header.equals(r.header());
+        return method == r.method() && target.target().equals(r.target()) && host().equals(r.host()) && header.equals(r.header());
     }
 
     @Override
     public String toString() {
-        return method + " " + url;
+        return method + " " + target;
     }
 
     @Override
     public URL url() {
-        return url;
+        return target.url();
+    }
+
+    @Override
+    public String target() {
+        return target.target();
+    }
+
+    @Override
+    public String host() {
+        return target.host();
+    }
+
+    @Override
+    public Route route() {
+        return target.route();
+    }
+
+    @Override
+    public Query query() {
+        return target.query();
+    }
+
+    @Override
+    public boolean isHttps() {
+        return target.scheme().equalsIgnoreCase("https");
     }
 
     @Override
@@ -109,11 +224,16 @@ class HttpRequestImpl implements HttpRequest.Respondable {
     }
 
     @Override
-    public synchronized HttpResponse.Sendable respond(ResponseCode code) {
+    public HttpResponse.Sendable respond(ResponseCode code) {
         Arguments.checkNull(code, "code");
-        if(response != null)
-            response.invalidate();
-        return response = new HttpResponseImpl(this, code);
+        lock.lock();
+        try {
+            if(response != null)
+                response.invalidate();
+            return response = newResponse(code);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -129,10 +249,13 @@ class HttpRequestImpl implements HttpRequest.Respondable {
     @Override
     public HttpRequest.Respondable addResponseConfigurator(Consumer<? super HttpResponse.Editable> configurator) {
         Arguments.checkNull(configurator, "configurator");
-        synchronized(this) {
+        lock.lock();
+        try {
             if(configurators == null)
                 configurators = (Consumer<HttpResponse.Editable>) configurator;
             else configurators = configurators.andThen(configurator);
+        } finally {
+            lock.unlock();
         }
         return this;
     }
@@ -144,8 +267,11 @@ class HttpRequestImpl implements HttpRequest.Respondable {
 
     @Override
     public Respondable clearResponseConfigurators() {
-        synchronized(this) {
+        lock.lock();
+        try {
             configurators = null;
+        } finally {
+            lock.unlock();
         }
         return this;
     }
@@ -153,9 +279,12 @@ class HttpRequestImpl implements HttpRequest.Respondable {
     @Override
     public <T> Respondable bindOptionalParam(Class<T> type, T value) {
         Arguments.checkNull(type, "type").cast(value);
-        synchronized(this) {
+        lock.lock();
+        try {
             if(optionalParams == null)
                 optionalParams = Collections.synchronizedMap(new HashMap<>());
+        } finally {
+            lock.unlock();
         }
         optionalParams.put(type, value);
         return this;
@@ -2,13 +2,14 @@ package de.rccookie.http.server.raw;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.time.OffsetDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import de.rccookie.http.Body;
 import de.rccookie.http.Header;
@@ -25,29 +26,34 @@ import de.rccookie.util.Utils;
 
 class HttpResponseImpl implements HttpResponse.Sendable {
 
-    private static final DateTimeFormatter HTTP_TIME_FORMATTER = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneId.of("GMT"));
-
-    private final RawHttpServer httpServer;
+    final RawHttpServer httpServer;
     final HttpRequest.Received request;
     private final String version;
     private final InetSocketAddress server, client;
-    private final Socket socket;
+    private final Connection connection;
+    private final int sequence;
+    /**
+     * Guards the response state. A lock instead of synchronized, so that virtual threads
+     * waiting for it don't get pinned to their carrier thread.
+     */
+    final Lock lock = new ReentrantLock();
     State state = State.EDITABLE;
     ResponseCode code;
     Body body = Body.EMPTY;
     StatefulHeader header = new StatefulHeader(this);
 
     HttpResponseImpl(HttpRequestImpl request, ResponseCode code) {
-        this(request.httpServer, request, request.httpVersion(), request.server(), request.client(), request.socket, code);
+        this(request.httpServer, request, request.httpVersion(), request.server(), request.client(), request.connection, request.sequence, code);
     }
 
-    HttpResponseImpl(RawHttpServer httpServer, HttpRequest.Received request, String version, InetSocketAddress server, InetSocketAddress client, Socket socket, ResponseCode code) {
+    HttpResponseImpl(RawHttpServer httpServer, HttpRequest.Received request, String version, InetSocketAddress server, InetSocketAddress client, Connection connection, int sequence, ResponseCode code) {
         this.httpServer = httpServer;
         this.request = request;
         this.version = version;
         this.server = server;
         this.client = client;
-        this.socket = socket;
+        this.connection = connection;
+        this.sequence = sequence;
         this.code = Arguments.checkNull(code, "code");
     }
 
@@ -106,8 +112,13 @@ class HttpResponseImpl implements HttpResponse.Sendable {
     }
 
     @Override
-    public synchronized State state() {
-        return state;
+    public State state() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @SuppressWarnings("NullableProblems") // Don't annotate with @NotNull, IntelliJ causes an exception then if the method still returns null, which is internally possible
@@ -131,89 +142,133 @@ class HttpResponseImpl implements HttpResponse.Sendable {
 
     private void beforeSend() {
         checkState();
-        request.getResponseConfigurators().accept(this);
-        synchronized(this) {
+        // Error responses to requests that could not be parsed have no request
+        if(request != null)
+            request.getResponseConfigurators().accept(this);
+        lock.lock();
+        try {
             checkState();
             state = State.SENT;
+        } finally {
+            lock.unlock();
         }
     }
 
-    private Void sendBlocking0() throws HttpSendException {
+    /**
+     * Sends the response on the calling thread, once {@link #beforeSend()} succeeded.
+     */
+    Void sendBlocking0() throws HttpSendException {
         boolean close = true;
+        boolean awaitNext = false;
+        // The connection is taken over by a different protocol right after the head
+        Runnable upgrade = code == ResponseCode.SWITCHING_PROTOCOLS && request instanceof HttpRequestImpl
+                ? ((HttpRequestImpl) request).onUpgrade : null;
 
         try(Body body = this.body) {
 
+            // Responses to pipelined requests have to be sent in request order
+            connection.awaitTurn(sequence);
+
             header.locked = false;
-            if(httpServer.name != null)
-                header.putIfAbsent("Server", httpServer.name);
-            header.putIfAbsent("Date", HTTP_TIME_FORMATTER.format(OffsetDateTime.now()));
+            // Written pre-encoded into the head, unless set explicitly
+            byte[] serverField = header.containsKey("Server") ? null : httpServer.serverField;
+            boolean addDate = !header.containsKey("Date");
 
-            if(version().equals("1.1")) {
+            if(upgrade != null)
+                close = false;
+            else if(version().equals("1.1")) {
                 Boolean keepAlive = header.getKeepAlive();
-                if(keepAlive != null)
-                    close = keepAlive;
-                else {
-                    close = request == null || request.header().getKeepAlive() == Boolean.FALSE;
-                    header.setKeepAlive(!close);
+                if(keepAlive == null)
+                    keepAlive = request != null && (request instanceof HttpRequestImpl
+                            ? ((HttpRequestImpl) request).keepAlive
+                            : request.header().getKeepAlive()) != Boolean.FALSE;
+                if(keepAlive && !httpServer.connections.mayKeepAlive(connection))
+                    keepAlive = false;
+                // Skip the body of a rejected request, which the client only sends after 100 Continue
+                ContinueInputStream expectation = request instanceof HttpRequestImpl ? ((HttpRequestImpl) request).expectContinue : null;
+                if(expectation != null) {
+                    if(code.ok())
+                        expectation.sendContinue();
+                    else if(expectation.skip())
+                        keepAlive = false;
                 }
+                header.setKeepAlive(keepAlive);
+                close = !keepAlive;
             }
 
             long length = body.contentLength();
-            if(length >= 0)
+            if(upgrade != null) {
+                if(length != 0)
+                    throw new IOException("Upgrade response must not have a body");
+            }
+            else if(length >= 0)
                 header.putIfAbsent("Content-Length", length+"");
             else if(header.containsKey("Transfer-Encoding"))
                 header.set("Transfer-Encoding", "chunked, " + header.getString("Transfer-Encoding"));
             else header.set("Transfer-Encoding", "chunked");
             header.locked = true;
 
-            OutputStream rawOut = socket.getOutputStream();
-
-            Console.map("Version", version);
-
-            PrintWriter out = new PrintWriter(rawOut);
-            out.write("HTTP/");
-            out.write(version());
-            out.write(' ');
-            out.print(code.code());
-            out.print(' ');
-            out.print(code.httpName());
-            out.print('\r');
-            out.print('\n');
-            header.forEach((n,vs) -> {
-                for(String v : vs) {
-                    out.print(n);
-                    out.print(':');
-                    out.print(' ');
-                    out.print(v);
-                    out.print('\r');
-                    out.print('\n');
+            ResponseHead head = ResponseHead.acquire();
+            try {
+                head.statusLine(version(), code);
+                if(serverField != null)
+                    head.field(serverField);
+                if(addDate)
+                    head.dateField();
+                header.forEach((n,vs) -> {
+                    for(String v : vs)
+                        head.field(n, v);
+                });
+                head.end();
+
+                if(length == 0)
+                    connection.write(head.buffer());
+                else if(length > 0 && length <= ResponseHead.MAX_INLINE_BODY_SIZE) {
+                    // Send small bodies together with the head
+                    if(body instanceof Body.OfData || body instanceof Body.OfJson) {
+                        byte[] data = body.data();
+                        if(data.length != length)
+                            throw new IOException("Body length differs from content length");
+                        connection.write(head.buffer(), ByteBuffer.wrap(data));
+                    }
+                    else {
+                        int headSize = head.size();
+                        writeBody(body, new FixedLengthOutputStream(head, length));
+                        if(head.size() - headSize != length)
+                            throw new IOException("Body length differs from content length");
+                        connection.write(head.buffer());
+                    }
+                }
+                else if(length > 0 && body instanceof Body.OfFile && !((Body.OfFile) body).isConsumed() && !((Body.OfFile) body).isBuffered()) {
+                    // Send large files without copying them through the heap
+                    connection.write(head.buffer());
+                    try(FileChannel file = FileChannel.open(((Body.OfFile) body).file(), StandardOpenOption.READ)) {
+                        connection.transferFrom(file, length);
+                    }
                 }
-            });
-            out.print('\r');
-            out.print('\n');
-            out.flush();
-
-            if(length != 0) {
-                try(OutputStream outProxy = length > 0 ? new FixedLengthOutputStream(rawOut, length) : new ChunkedOutputStream(rawOut)) {
-                    body.writeTo(outProxy);
+                else {
+                    connection.write(head.buffer());
+                    OutputStream out = connection.out();
+                    try(OutputStream outProxy = length > 0 ? new FixedLengthOutputStream(out, length) : new ChunkedOutputStream(connection, httpServer.getChunkFlushPolicy())) {
+                        writeBody(body, outProxy);
+                    }
                     out.flush();
-                } catch(IOException | UncheckedIOException e) {
-                    close = true;
-                    throw e;
-                } catch(RuntimeException e) {
-                    close = true;
-                    if(e instanceof UncheckedException && e.getCause() instanceof IOException)
-                        throw (IOException) e.getCause();
-                    throw new RuntimeException("Exception while writing response body to stream", e);
                 }
+            } finally {
+                head.release();
+            }
+
+            if(!close && upgrade == null && request instanceof HttpRequestImpl && ((HttpRequestImpl) request).readsNext) {
+                httpServer.connections.idle(connection);
+                close = !((HttpRequestImpl) request).discardBody(ConnectionManager.MAX_DISCARDED_BODY_SIZE);
+                awaitNext = !close;
             }
 
             // Close here if successful to catch potential errors in the main catch clause
             if(close) {
-                socket.close();
+                connection.close();
                 close = false;
             }
-            else httpServer.handleAsync(socket);
 
         } catch(Exception e) {
             if(e instanceof IOException && e.getMessage() != null && (
@@ -222,6 +277,7 @@ class HttpResponseImpl implements HttpResponse.Sendable {
                     e.getMessage().contains("Broken pipe") ||
                     e.getMessage().contains("closed before"))) {
                 Console.warn("Connection closed during send: " + e.getMessage());
+                close = true;
             }
             else {
                 close = true;
@@ -237,12 +293,19 @@ class HttpResponseImpl implements HttpResponse.Sendable {
             header.locked = true;
             if(close) {
                 try {
-                    socket.close();
+                    connection.close();
                 } catch(IOException e) {
                     Console.error("Error closing stream:", e);
                 }
             }
+            connection.finishTurn(sequence);
+            if(request instanceof HttpRequestImpl)
+                ((HttpRequestImpl) request).releaseAdmission();
         }
+        if(awaitNext)
+            connection.awaitNextRequest();
+        else if(upgrade != null && !close)
+            upgrade.run();
         try {
             httpServer.logResponse(this, false);
         } catch(Exception e) {
@@ -252,21 +315,43 @@ class HttpResponseImpl implements HttpResponse.Sendable {
         return null;
     }
 
-    synchronized void checkState() {
-        if(state == State.SENT)
-            throw new IllegalStateException("Response has already been sent");
-        if(state == State.INVALID)
-            throw new IllegalStateException("Response has been invalidated because a new response has been requested");
+    static void writeBody(Body body, OutputStream out) throws IOException {
+        try {
+            body.writeTo(out);
+        } catch(IOException | UncheckedIOException e) {
+            throw e;
+        } catch(InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while writing response body");
+        } catch(RuntimeException e) {
+            if(e instanceof UncheckedException && e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException("Exception while writing response body to stream", e);
+        }
     }
 
-    synchronized void invalidate() {
-        if(state == State.SENT)
-            throw new IllegalStateException("Response has already been sent");
-        state = State.INVALID;
+    void checkState() {
+        lock.lock();
         try {
+            if(state == State.SENT)
+                throw new IllegalStateException("Response has already been sent");
+            if(state == State.INVALID)
+                throw new IllegalStateException("Response has been invalidated because a new response has been requested");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void invalidate() {
+        lock.lock();
+        try {
+            if(state == State.SENT)
+                throw new IllegalStateException("Response has already been sent");
+            state = State.INVALID;
             if(body != null) body.close();
         } catch(Exception e) {
             throw Utils.rethrow(e);
+        } finally {
+            lock.unlock();
         }
     }
 }
@@ -0,0 +1,207 @@
+package de.rccookie.http.server.raw;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.rccookie.http.ContentType;
+import de.rccookie.http.ContentTypes;
+import de.rccookie.http.Cookie;
+import de.rccookie.http.Header;
+import de.rccookie.http.auth.AuthChallenge;
+import de.rccookie.http.useragent.UserAgent;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A received, readonly header which keeps the raw header bytes and the offsets of
+ * the individual fields, and only decodes them into a {@link Header} the first
+ * time it gets accessed.
+ */
+final class LazyHeader implements Header {
+
+    private final byte[] data;
+    private final int[] fields;
+    private volatile Header header = null;
+    /**
+     * Trailer fields received after a chunked body, or <code>null</code>.
+     */
+    private volatile Map<String, List<String>> trailers = null;
+
+    /**
+     * Creates a new lazy header.
+     *
+     * @param data The raw header bytes
+     * @param fields Four offsets per field into <code>data</code>: name start, name end,
+     *               value start, value end. A name start of -1 marks a folded continuation
+     *               of the previous field's value
+     */
+    LazyHeader(byte[] data, int[] fields) {
+        this.data = data;
+        this.fields = fields;
+    }
+
+    private Header data() {
+        Header header = this.header;
+        if(header == null) {
+            Map<String, List<String>> map = new HashMap<>();
+            List<String> lastValues = null;
+            for(int i=0; i<fields.length; i+=4) {
+                String value = new String(data, fields[i+2], fields[i+3] - fields[i+2], StandardCharsets.ISO_8859_1);
+                if(fields[i] < 0) {
+                    int last = lastValues.size() - 1;
+                    lastValues.set(last, lastValues.get(last) + " " + value);
+                }
+                else {
+                    String name = new String(data, fields[i], fields[i+1] - fields[i], StandardCharsets.ISO_8859_1);
+                    lastValues = map.computeIfAbsent(name.toLowerCase(), $ -> new ArrayList<>(1));
+                    lastValues.add(value);
+                }
+            }
+            Map<String, List<String>> trailers = this.trailers;
+            if(trailers != null)
+                trailers.forEach((n,vs) -> map.computeIfAbsent(n, $ -> new ArrayList<>(vs.size())).addAll(vs));
+            // Benign race: worst case the header gets decoded multiple times
+            this.header = header = Header.ofReceived(map);
+        }
+        return header;
+    }
+
+    /**
+     * Adds the trailer fields of the request body to this header.
+     *
+     * @param trailers The received trailer fields, with lowercase names
+     */
+    void addTrailers(Map<String, List<String>> trailers) {
+        this.trailers = trailers;
+        // Decode again including the trailers
+        header = null;
+    }
+
+    @Override
+    public String toString() {
+        return data().toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return data().equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        return data().hashCode();
+    }
+
+    @Override
+    public int size() {
+        return data().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return fields.length == 0 && trailers == null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return data().containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return data().containsValue(value);
+    }
+
+    @Override
+    public Values get(Object key) {
+        return data().get(key);
+    }
+
+    @Override
+    public Values put(String key, Values value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Values remove(Object key) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void putAll(@NotNull Map<? extends String, ? extends Values> m) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    @NotNull
+    @Override
+    public Set<String> keySet() {
+        return data().keySet();
+    }
+
+    @NotNull
+    @Override
+    public Collection<Values> values() {
+        return data().values();
+    }
+
+    @NotNull
+    @Override
+    public Set<Entry<String, Values>> entrySet() {
+        return data().entrySet();
+    }
+
+    @Override
+    public Values addSetCookie(@NotNull Cookie cookie) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Instant getDate() {
+        return data().getDate();
+    }
+
+    @Override
+    public @NotNull Map<String, Cookie> getCookies() {
+        return data().getCookies();
+    }
+
+    @Override
+    public @NotNull Map<String, Cookie> getSetCookies() {
+        return data().getSetCookies();
+    }
+
+    @Override
+    public @NotNull ContentTypes getAccept() {
+        return data().getAccept();
+    }
+
+    @Override
+    public ContentType getContentType() {
+        return data().getContentType();
+    }
+
+    @Override
+    public @NotNull UserAgent getUserAgent() {
+        return data().getUserAgent();
+    }
+
+    @Override
+    public @NotNull List<AuthChallenge> getAuthenticate() {
+        return data().getAuthenticate();
+    }
+
+    @Override
+    public @NotNull List<AuthChallenge> getProxyAuthenticate() {
+        return data().getProxyAuthenticate();
+    }
+}
@@ -0,0 +1,294 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+import de.rccookie.util.Arguments;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Range;
+
+/**
+ * Describes an address a {@link RawHttpServer} listens on, and how, to be used with
+ * {@link RawHttpServer#listen(ListenerConfig)}. Besides the backlog, this configures the
+ * number of acceptor sockets bound to the address, and the socket options applied to
+ * accepted connections.
+ * <p>With more than one acceptor, each acceptor socket is bound to the same address
+ * using <code>SO_REUSEPORT</code>, such that the kernel balances new connections across
+ * them (and thus across multiple accepting threads or event loops), rather than funneling
+ * all connections through a single accept queue. If the platform does not support
+ * <code>SO_REUSEPORT</code>, a single acceptor is used.</p>
+ * <p>A listener config can be modified after listening on it without affecting the
+ * listener.</p>
+ */
+public final class ListenerConfig {
+
+    @NotNull
+    InetSocketAddress address;
+    int backlog = 0;
+    int acceptors = 1;
+    Boolean tcpNoDelay = null;
+    Boolean keepAlive = null;
+    int receiveBufferSize = 0;
+    int sendBufferSize = 0;
+    /**
+     * The path of the unix domain socket to listen on instead of {@link #address}, if any.
+     */
+    Path unixSocket = null;
+
+    /**
+     * Creates a new listener config for the given address, using the platform default
+     * backlog, a single acceptor and the platform default socket options.
+     *
+     * @param address The address and port to bind to
+     */
+    public ListenerConfig(@NotNull InetSocketAddress address) {
+        address(address);
+    }
+
+    /**
+     * Creates a new listener config for the given port on all local addresses, using the
+     * platform default backlog, a single acceptor and the platform default socket options.
+     *
+     * @param port The port to bind to
+     */
+    public ListenerConfig(@Range(from = 0, to = 65536) int port) {
+        this(new InetSocketAddress(port));
+    }
+
+    /**
+     * Creates a new listener config for a unix domain socket at the given path. The address
+     * is only a placeholder used to report the server address of connections.
+     *
+     * @param unixSocket The path of the socket file to create
+     */
+    ListenerConfig(@NotNull Path unixSocket) {
+        this(new InetSocketAddress("127.0.0.1", 0));
+        this.unixSocket = Arguments.checkNull(unixSocket, "unixSocket");
+    }
+
+    ListenerConfig(ListenerConfig config) {
+        address = config.address;
+        backlog = config.backlog;
+        acceptors = config.acceptors;
+        tcpNoDelay = config.tcpNoDelay;
+        keepAlive = config.keepAlive;
+        receiveBufferSize = config.receiveBufferSize;
+        sendBufferSize = config.sendBufferSize;
+        unixSocket = config.unixSocket;
+    }
+
+    @Override
+    public String toString() {
+        if(unixSocket != null)
+            return "unix socket "+unixSocket;
+        return address.getAddress().isAnyLocalAddress() ? "port "+address.getPort() : address.toString();
+    }
+
+    /**
+     * Sets the address and port to bind to.
+     *
+     * @param address The address to bind to
+     * @return This config
+     */
+    public ListenerConfig address(@NotNull InetSocketAddress address) {
+        this.address = Arguments.checkNull(address, "address");
+        return this;
+    }
+
+    /**
+     * Returns the address and port to bind to.
+     *
+     * @return The address to bind to
+     */
+    @NotNull
+    public InetSocketAddress address() {
+        return address;
+    }
+
+    /**
+     * Sets the maximum number of pending connections of each acceptor socket.
+     *
+     * @param backlog The backlog per acceptor, or 0 for platform default
+     * @return This config
+     */
+    public ListenerConfig backlog(int backlog) {
+        this.backlog = Arguments.checkRange(backlog, 0, null);
+        return this;
+    }
+
+    /**
+     * Returns the maximum number of pending connections of each acceptor socket.
+     *
+     * @return The backlog per acceptor, or 0 for platform default
+     */
+    public int backlog() {
+        return backlog;
+    }
+
+    /**
+     * Sets the number of sockets bound to the address to accept connections on. Multiple
+     * acceptors require <code>SO_REUSEPORT</code>, see {@link #isReusePortSupported()}.
+     * With the {@link RawHttpServer.Engine#BLOCKING} engine, each acceptor has its own
+     * thread, with the {@link RawHttpServer.Engine#EVENT_LOOP} engine, the acceptors are
+     * distributed across the event loops.
+     *
+     * @param acceptors The number of acceptor sockets, at least 1
+     * @return This config
+     */
+    public ListenerConfig acceptors(int acceptors) {
+        this.acceptors = Arguments.checkRange(acceptors, 1, null);
+        return this;
+    }
+
+    /**
+     * Returns the number of sockets bound to the address to accept connections on.
+     *
+     * @return The number of acceptor sockets
+     */
+    public int acceptors() {
+        return acceptors;
+    }
+
+    /**
+     * Sets whether to disable Nagle's algorithm (<code>TCP_NODELAY</code>) on accepted
+     * connections.
+     *
+     * @param tcpNoDelay Whether to disable Nagle's algorithm, or <code>null</code> for
+     *                   platform default
+     * @return This config
+     */
+    public ListenerConfig tcpNoDelay(Boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * Returns whether Nagle's algorithm gets disabled on accepted connections.
+     *
+     * @return Whether <code>TCP_NODELAY</code> gets set, or <code>null</code> for platform default
+     */
+    public Boolean tcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Sets whether to enable TCP keep-alive probes (<code>SO_KEEPALIVE</code>) on accepted
+     * connections. This is unrelated to http keep-alive.
+     *
+     * @param keepAlive Whether to enable keep-alive probes, or <code>null</code> for platform
+     *                  default
+     * @return This config
+     */
+    public ListenerConfig keepAlive(Boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    /**
+     * Returns whether TCP keep-alive probes get enabled on accepted connections.
+     *
+     * @return Whether <code>SO_KEEPALIVE</code> gets set, or <code>null</code> for platform default
+     */
+    public Boolean keepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Sets the size of the socket receive buffer (<code>SO_RCVBUF</code>). The size is set
+     * on the acceptor sockets, such that it already applies when connections are established
+     * (which is required for buffers larger than 64K), and on the accepted connections.
+     *
+     * @param receiveBufferSize The receive buffer size in bytes, or 0 for platform default
+     * @return This config
+     */
+    public ListenerConfig receiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = Arguments.checkRange(receiveBufferSize, 0, null);
+        return this;
+    }
+
+    /**
+     * Returns the size of the socket receive buffer.
+     *
+     * @return The receive buffer size in bytes, or 0 for platform default
+     */
+    public int receiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Sets the size of the socket send buffer (<code>SO_SNDBUF</code>) of accepted connections.
+     *
+     * @param sendBufferSize The send buffer size in bytes, or 0 for platform default
+     * @return This config
+     */
+    public ListenerConfig sendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = Arguments.checkRange(sendBufferSize, 0, null);
+        return this;
+    }
+
+    /**
+     * Returns the size of the socket send buffer of accepted connections.
+     *
+     * @return The send buffer size in bytes, or 0 for platform default
+     */
+    public int sendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Applies the options of this config to an unbound acceptor socket.
+     *
+     * @param server The acceptor socket to configure
+     * @param reusePort Whether to set <code>SO_REUSEPORT</code>
+     */
+    void configureAcceptor(NetworkChannel server, boolean reusePort) throws IOException {
+        if(reusePort)
+            server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        if(receiveBufferSize != 0)
+            server.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+    }
+
+    /**
+     * Applies the options of this config to an accepted connection.
+     *
+     * @param client The accepted connection to configure
+     */
+    void configure(SocketChannel client) throws IOException {
+        // TCP options are not supported on unix domain sockets
+        if(unixSocket == null) {
+            if(tcpNoDelay != null)
+                client.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+            if(keepAlive != null)
+                client.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+        }
+        if(receiveBufferSize != 0)
+            client.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        if(sendBufferSize != 0)
+            client.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+    }
+
+
+    private static Boolean reusePortSupported = null;
+
+    /**
+     * Returns whether the platform supports binding multiple sockets to the same address
+     * using <code>SO_REUSEPORT</code>, which is required for multiple acceptors.
+     *
+     * @return Whether <code>SO_REUSEPORT</code> is supported
+     */
+    public static synchronized boolean isReusePortSupported() {
+        if(reusePortSupported == null) {
+            try(NetworkChannel channel = ServerSocketChannel.open()) {
+                reusePortSupported = channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            } catch(IOException e) {
+                reusePortSupported = false;
+            }
+        }
+        return reusePortSupported;
+    }
+}
@@ -1,34 +1,40 @@
 package de.rccookie.http.server.raw;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.URL;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.diogonunes.jcolor.Attribute;
 import de.rccookie.http.Body;
-import de.rccookie.http.Header;
 import de.rccookie.http.HttpRequest;
 import de.rccookie.http.HttpResponse;
 import de.rccookie.http.Method;
 import de.rccookie.http.ResponseCode;
+import de.rccookie.http.server.AccessLog;
 import de.rccookie.http.server.HttpControlFlowException;
 import de.rccookie.http.server.HttpErrorFormatter;
 import de.rccookie.http.server.HttpRedirect;
 import de.rccookie.http.server.HttpRequestFailure;
 import de.rccookie.http.server.HttpSendException;
+import de.rccookie.http.server.RequestTarget;
+import de.rccookie.http.util.VirtualThreads;
+import de.rccookie.util.Arguments;
 import de.rccookie.util.Console;
 import de.rccookie.util.Utils;
 import de.rccookie.util.Wrapper;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.Range;
 
@@ -36,6 +42,10 @@ import org.jetbrains.annotations.Range;
  * A bare-bones http server using the {@link HttpRequest} and {@link HttpResponse} API.
  * Does not include routing, method-specific special handling (e.g. HEAD requests) or
  * other more advanced stuff.
+ *
+ * <p>I/O buffers are shared between connections using a pool. If the system property
+ * <code>rccookie.http.leakDetection</code> is set, buffers that are never returned to the
+ * pool are logged together with the stack trace of their allocation.</p>
  */
 public abstract class RawHttpServer {
 
@@ -43,16 +53,60 @@ public abstract class RawHttpServer {
         System.setProperty("sun.net.http.allowRestrictedHeaders", "true");
     }
 
-    private static final Object LOG_LOCK = new Object();
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n" +
+                                                       "Connection: Upgrade\r\n" +
+                                                       "Upgrade: h2c\r\n" +
+                                                       "\r\n").getBytes(StandardCharsets.US_ASCII);
 
     Executor executor;
-    private final List<ServerSocket> servers = new ArrayList<>();
+    private final List<Closeable> servers = new ArrayList<>();
+    final ServerMetrics metrics = new ServerMetrics();
+    final ConnectionManager connections = new ConnectionManager(this);
+    final AdmissionController admission = new AdmissionController(metrics);
+
+    private Engine engine = Engine.BLOCKING;
+    private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+    /**
+     * The event loops of the event loop engine, or <code>null</code> if not listening.
+     * Replaced only while holding the lock on {@link #servers}, but read by the event
+     * loops without locking.
+     */
+    private volatile EventLoop[] eventLoops = null;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
 
     @Nullable
     private String logLevel = "debug";
+    @NotNull
+    private AccessLog accessLog = AccessLog.defaultLog();
 
     @Nullable
-    String name = "RcCookie";
+    private String name = "RcCookie";
+    /**
+     * The pre-encoded 'Server' header field, or <code>null</code> if not set by default.
+     */
+    @Nullable
+    volatile byte[] serverField = ResponseHead.encodeField("Server", name);
+
+    private boolean virtualThreads = false;
+    @Nullable
+    private Duration pinningThreshold = null;
+    @Nullable
+    private VirtualThreads.PinningMonitor pinningMonitor = null;
+
+    private int maxPipelineDepth = 16;
+
+    private volatile boolean http2Enabled = true;
+
+    private volatile int maxWebSocketMessageSize = 1 << 20;
+
+    private volatile ChunkFlushPolicy chunkFlushPolicy = ChunkFlushPolicy.ON_FLUSH;
+
+    // Limits of the request head, enforced by the RequestParser
+    volatile int maxRequestLineLength = 8192;
+    volatile int maxHeaderCount = 100;
+    volatile int maxHeaderSize = 1 << 16;
+    volatile long maxBodySize = Long.MAX_VALUE;
+    volatile long maxChunkSize = Long.MAX_VALUE;
 
 
     /**
@@ -100,40 +154,174 @@ public abstract class RawHttpServer {
      * @param backlog The maximum number of requests to queue for execution, or 0 for platform default
      */
     public void listen(InetSocketAddress address, int backlog) {
+        listen(new ListenerConfig(address).backlog(backlog));
+    }
+
+    /**
+     * Binds the server to a unix domain socket at the given path and starts listening for
+     * incoming requests. This method does not block further execution. Requests are
+     * handled the same as requests received over TCP; as unix domain socket peers have no
+     * internet address, the client and server address of such requests are reported as
+     * <code>127.0.0.1</code> with port 0. The socket file must not exist yet, and gets
+     * deleted when the server is stopped. The server will use the platform default backlog.
+     * Unix domain sockets require Java 16 or newer.
+     *
+     * @param unixSocket The path of the socket file to create
+     * @throws UnsupportedOperationException If unix domain sockets are not supported by
+     *                                       the current runtime
+     */
+    public void listen(@NotNull Path unixSocket) {
+        listen(unixSocket, 0);
+    }
+
+    /**
+     * Binds the server to a unix domain socket at the given path and starts listening for
+     * incoming requests. This method does not block further execution. Requests are
+     * handled the same as requests received over TCP; as unix domain socket peers have no
+     * internet address, the client and server address of such requests are reported as
+     * <code>127.0.0.1</code> with port 0. The socket file must not exist yet, and gets
+     * deleted when the server is stopped. Unix domain sockets require Java 16 or newer.
+     *
+     * @param unixSocket The path of the socket file to create
+     * @param backlog The maximum number of requests to queue for execution, or 0 for platform default
+     * @throws UnsupportedOperationException If unix domain sockets are not supported by
+     *                                       the current runtime
+     */
+    public void listen(@NotNull Path unixSocket, int backlog) {
+        if(!UnixSockets.isSupported())
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16 or newer");
+        listen(new ListenerConfig(unixSocket).backlog(backlog));
+    }
+
+    /**
+     * Binds the server to the address of the given listener config and starts listening
+     * for incoming requests, using the acceptor count and socket options of the config.
+     * This method does not block further execution. A server can listen to multiple
+     * ports and addresses. If the address can't be bound to (e.g. because it is already
+     * in use) an exception will be thrown.
+     *
+     * @param config The listener config describing the address to bind to and how
+     */
+    public void listen(ListenerConfig config) {
+        config = new ListenerConfig(Arguments.checkNull(config, "config"));
         try {
             synchronized(this) {
                 if(executor == null)
                     executor = createExecutor();
+                if(pinningThreshold != null && pinningMonitor == null)
+                    pinningMonitor = VirtualThreads.monitorPinning(pinningThreshold);
             }
+            connections.start();
 
-            ServerSocket server = new ServerSocket(address.getPort(), backlog, address.getAddress());
-            new Thread(() -> {
-                while(!server.isClosed()) try {
-                    Socket client = server.accept();
-                    Console.map("New connection from", client.getInetAddress() + ":" + client.getPort());
-                    handleAsync(client);
-                } catch(IOException e) {
-                    Console.error(e);
+            for(ServerSocketChannel server : bind(config)) {
+                if(engine == Engine.EVENT_LOOP)
+                    listenEventLoop(server, config);
+                else listenBlocking(server, config);
+            }
+            if(config.unixSocket != null) {
+                Path socketFile = config.unixSocket;
+                synchronized(servers) {
+                    servers.add(() -> Files.deleteIfExists(socketFile));
                 }
-            }, address+" dispatcher thread").start();
-            synchronized(servers) {
-                servers.add(server);
             }
 
         } catch(Exception e) {
             throw Utils.rethrow(e);
         }
-        Console.write(logLevel, address.getAddress().isAnyLocalAddress() ? "Server listening on port "+address.getPort() : "Server listening on "+address);
+        Console.write(logLevel, "Server listening on "+config);
+    }
+
+    private List<ServerSocketChannel> bind(ListenerConfig config) throws IOException {
+        if(config.unixSocket != null)
+            return List.of(UnixSockets.bind(config.unixSocket, config.backlog));
+        int count = config.acceptors;
+        if(count > 1 && !ListenerConfig.isReusePortSupported()) {
+            Console.warn("SO_REUSEPORT is not supported on this platform, using a single acceptor for", config);
+            count = 1;
+        }
+        List<ServerSocketChannel> channels = new ArrayList<>(count);
+        InetSocketAddress address = config.address;
+        try {
+            for(int i=0; i<count; i++) {
+                ServerSocketChannel server = ServerSocketChannel.open();
+                channels.add(server);
+                config.configureAcceptor(server, count > 1);
+                server.bind(address, config.backlog);
+                // Bind further acceptors to the same port if an ephemeral port was requested
+                if(address.getPort() == 0)
+                    address = new InetSocketAddress(address.getAddress(), ((InetSocketAddress) server.getLocalAddress()).getPort());
+            }
+        } catch(IOException e) {
+            for(ServerSocketChannel server : channels) try {
+                server.close();
+            } catch(IOException f) {
+                e.addSuppressed(f);
+            }
+            throw e;
+        }
+        config.address = address;
+        return channels;
+    }
+
+    private void listenBlocking(ServerSocketChannel server, ListenerConfig config) {
+        new Thread(() -> {
+            while(server.isOpen()) try {
+                SocketChannel client = server.accept();
+                config.configure(client);
+                Console.map("New connection from", client.getRemoteAddress());
+                SocketConnection connection = new SocketConnection(this, client);
+                connections.opened(connection);
+                handleAsync(connection);
+            } catch(IOException e) {
+                if(server.isOpen())
+                    Console.error(e);
+            }
+        }, config+" dispatcher thread").start();
+        synchronized(servers) {
+            servers.add(server);
+        }
+    }
+
+    private void listenEventLoop(ServerSocketChannel server, ListenerConfig config) throws IOException {
+        server.configureBlocking(false);
+        synchronized(servers) {
+            if(eventLoops == null) {
+                // Only publish the array once all event loops exist
+                EventLoop[] eventLoops = new EventLoop[eventLoopCount];
+                for(int i=0; i<eventLoops.length; i++)
+                    eventLoops[i] = new EventLoop(this, "Event loop "+i);
+                this.eventLoops = eventLoops;
+            }
+            nextEventLoop().listen(server, config);
+            servers.add(server);
+        }
+    }
+
+    /**
+     * Returns the event loop to assign the next connection to.
+     *
+     * @return An event loop of this server, or <code>null</code> if the server has been
+     *         stopped
+     */
+    @Nullable
+    EventLoop nextEventLoop() {
+        EventLoop[] eventLoops = this.eventLoops;
+        if(eventLoops == null) return null;
+        return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
     }
 
 
     /**
      * Returns the executor to be used to execute request handlers. This method will
-     * only be called once. The default implementation returns {@link Executors#newCachedThreadPool()}.
+     * only be called once. The default implementation returns {@link Executors#newCachedThreadPool()},
+     * or an executor running each request on a new virtual thread if {@link #setVirtualThreads(boolean)}
+     * is enabled.
      *
      * @return The executor to use in the server
      */
     protected Executor createExecutor() {
+        if(virtualThreads)
+            return VirtualThreads.newExecutor("Http handler");
         return Executors.newCachedThreadPool();
     }
 
@@ -156,10 +344,10 @@ public abstract class RawHttpServer {
      */
     protected abstract void respond(HttpRequest.Respondable request) throws Exception;
 
-    void handleAsync(Socket client) {
+    void handleAsync(Connection connection) {
         executor.execute(() -> {
             try {
-                sendResponseToRequest(client);
+                sendResponseToRequest(connection);
             } catch(Exception e) {
                 Console.error("Failed to transfer response:");
                 Console.error(e);
@@ -167,22 +355,26 @@ public abstract class RawHttpServer {
         });
     }
 
-    private void sendResponseToRequest(Socket client) throws HttpSendException {
-        HttpRequest.Respondable request = null;
+    private void sendResponseToRequest(Connection connection) throws HttpSendException {
+        HttpRequestImpl request = null;
         Wrapper<String> version = new Wrapper<>();
+        int sequence = connection.nextSequence();
         try {
-            request = receiveRequest(client, version);
+            request = receiveRequest(connection, sequence, version);
         } catch(IOException e) {
-            Console.error(e);
+            if(connection.isClosed())
+                Console.debug("Connection to", connection, "closed while receiving request:", e.getMessage());
+            else Console.error(e);
         } catch(HttpRequestFailure f) {
             if(version.value != null) {
                 HttpResponse.Sendable response = new HttpResponseImpl(
                         this,
                         null,
-                        version.value.contains("/") ? version.value.substring(version.value.indexOf('/')) : version.value,
-                        new InetSocketAddress(client.getLocalAddress(), client.getLocalPort()),
-                        new InetSocketAddress(client.getInetAddress(), client.getPort()),
-                        client,
+                        version.value.contains("/") ? version.value.substring(version.value.indexOf('/') + 1) : version.value,
+                        connection.local,
+                        connection.remote,
+                        connection,
+                        sequence,
                         f.code()
                 );
                 HttpErrorFormatter.DEFAULT.format(response, f);
@@ -192,14 +384,71 @@ public abstract class RawHttpServer {
         }
 
         if(request == null) {
+            connection.sendHeaderTimeout();
             try {
-                if(!client.isClosed())
-                    client.close();
+                if(!connection.isClosed())
+                    connection.close();
             } catch(IOException ignored) { }
-            Console.debug("Connection to", client.getInetAddress()+":"+client.getPort(), "closed");
+            connection.releaseBuffer();
+            Console.debug("Connection to", connection, "closed");
             return;
         }
 
+        connections.active(connection);
+
+        if(http2Enabled && isHttp2Upgrade(request)) {
+            upgradeToHttp2(connection, request, sequence);
+            return;
+        }
+
+        if(isPipelinable(request)) {
+            // Receive the next request right away if the client already sent it
+            if(connection.pending() < maxPipelineDepth && connections.mayKeepAlive(connection) && connection.containsCompleteHead()) {
+                request.readsNext = false;
+                handleAsync(connection);
+            }
+        }
+        else {
+            // Only safe requests may be processed concurrently with preceding requests
+            try {
+                connection.awaitTurn(sequence);
+            } catch(IOException e) {
+                Console.debug("Connection to", connection, "closed before", request, "could be processed");
+                connection.finishTurn(sequence);
+                return;
+            }
+        }
+
+        process(request);
+    }
+
+    /**
+     * Processes a request on an http/2 stream, on the executor.
+     *
+     * @param request The request to process
+     */
+    void handleAsync(Http2Request request) {
+        executor.execute(() -> {
+            try {
+                // The upgrade request was admitted when received as http/1.1 request
+                if(!request.admitted) {
+                    if(admission.acquire() != AdmissionController.Result.ADMITTED) {
+                        HttpResponse.Sendable response = request.respond(ResponseCode.SERVICE_UNAVAILABLE);
+                        response.header().set("Retry-After", admission.getRetryAfter().getSeconds()+"");
+                        response.send();
+                        return;
+                    }
+                    request.admitted = true;
+                }
+                process(request);
+            } catch(Exception e) {
+                Console.error("Failed to transfer response:");
+                Console.error(e);
+            }
+        });
+    }
+
+    private void process(HttpRequestImpl request) throws HttpSendException {
         try {
             logRequest(request);
         } catch(Exception e) {
@@ -224,141 +473,153 @@ public abstract class RawHttpServer {
         }
     }
 
-    private HttpRequest.Respondable receiveRequest(Socket client, Wrapper<String> protocolOut) throws IOException, HttpRequestFailure {
+    private HttpRequestImpl receiveRequest(Connection connection, int sequence, Wrapper<String> protocolOut) throws IOException, HttpRequestFailure {
+        RequestParser parser = connection.parser;
         try {
+            if(!parser.parse())
+                return null;
+        } finally {
+            protocolOut.value = parser.version;
+        }
 
-            InputStream in = client.getInputStream();
-            StringBuilder method = new StringBuilder(7);
-            int c;
-            while((c = in.read()) > ' ')
-                method.append((char) c);
-            if(c == -1) return null;
-
-            c = skipWhitespaces(in);
-
-            StringBuilder uri = new StringBuilder();
-            do uri.append((char) c);
-            while((c = in.read()) > ' ');
-            if(c == -1) return null;
-
-            c = skipWhitespaces(in);
-
-            StringBuilder version = new StringBuilder(8);
-            do version.append(Character.toUpperCase((char) c));
-            while((c = in.read()) > ' ');
-            if(c == -1) return null;
-            String versionStr = version.toString().toUpperCase();
-            protocolOut.value = versionStr;
-
-            if(!versionStr.startsWith("HTTP/"))
-                throw new HttpRequestFailure(ResponseCode.HTTP_VERSION_NOT_SUPPORTED, versionStr);
-
-            Method methodObj;
-            try {
-                methodObj = Method.valueOf(method.toString().toUpperCase());
-            } catch(IllegalArgumentException e) {
-                Console.warn("Client sent illegal http method:", method);
-                throw new HttpRequestFailure(ResponseCode.METHOD_NOT_ALLOWED, "Illegal HTTP method: "+method);
-            }
-
-            while((c = in.read()) != '\n')
-                if(c == -1) return null;
+        if(parser.http2) {
+            if(!http2Enabled)
+                throw new HttpRequestFailure(ResponseCode.HTTP_VERSION_NOT_SUPPORTED, "HTTP/2 is disabled");
+            new Http2Connection(this, connection).serve(null);
+            return null;
+        }
 
-            Map<String, List<String>> header = new HashMap<>();
-            Body body = parseHeaderAndBody(methodObj, in, header);
-            if(body == null)
-                throw HttpRequestFailure.badRequest("Incomplete header");
+        // Reject before any more work is done for the request
+        if(admission.acquire() != AdmissionController.Result.ADMITTED) {
+            reject(connection, sequence);
+            return null;
+        }
 
-            String url = uri.toString();
-            if(url.startsWith("/") || url.equals("*"))
-                url = "http://" + header.getOrDefault("host", List.of("")).get(0) + (url.equals("*") ? "/" : "") + url;
+        boolean admitted = false;
+        try {
+            // The client only sends the body once it receives 100 Continue
+            ContinueInputStream expectation = parser.expectContinue && parser.version.equals("HTTP/1.1") ? new ContinueInputStream(connection) : null;
+            LazyHeader header = parser.header();
+            BodyInputStream bodyStream = receiveBody(connection, parser, header, expectation);
+            Body body = bodyStream != null ? Body.of(bodyStream) : Body.EMPTY;
 
-            return new HttpRequestImpl(
+            HttpRequestImpl request = new HttpRequestImpl(
                     this,
-                    client,
-                    new URL(url),
-                    versionStr.substring(5),
-                    methodObj,
-                    Header.ofReceived(header),
+                    connection,
+                    RequestTarget.parse("http", parser.host, parser.target.equals("*") ? "/*" : parser.target),
+                    parser.version.substring(5),
+                    parser.method,
+                    header,
                     body,
-                    new InetSocketAddress(client.getInetAddress(), client.getPort()),
-                    new InetSocketAddress(client.getLocalAddress(), client.getLocalPort())
+                    connection.local,
+                    connection.remote
             );
+            request.keepAlive = parser.keepAlive;
+            request.upgrade = parser.upgrade;
+            request.sequence = sequence;
+            request.bodyStream = bodyStream;
+            request.expectContinue = bodyStream != null ? expectation : null;
+            connection.startBody(bodyStream != null);
+            request.admitted = admitted = true;
+            return request;
         } catch(MalformedURLException e) {
             Console.warn("Client sent invalid url:", e.getMessage());
             throw HttpRequestFailure.badRequest("Invalid URI");
+        } finally {
+            if(!admitted)
+                admission.release();
         }
     }
 
-    private static Body parseHeaderAndBody(Method method, InputStream in, Map<String, List<String>> headerOut) throws IOException {
-        long length = -1;
-        boolean chunked = false;
-        int c = in.read();
-        while(true) {
-            int d = in.read();
-            if(c == '\r' && d == '\n') break;
-            if(c == -1 || d == -1)
-                return Body.EMPTY;
-
-            StringBuilder name = new StringBuilder();
-            name.append(Character.toLowerCase((char) c));
-
-            c = d;
-            while(c != ':') {
-                if(c == -1) return null;
-                name.append(Character.toLowerCase((char) c));
-                c = in.read();
-            }
-
-            while((c = in.read()) <= ' ' && c != '\r')
-                if(c == -1) return null;
-
-            StringBuilder value = new StringBuilder();
-            while(true) {
-                d = in.read();
-                while(c != '\r' || d != '\n') {
-                    if(d == -1) return null;
-                    value.append((char) c);
-                    c = d;
-                    d = in.read();
-                }
-                if((c = in.read()) == ' ' || c == '\t')
-                    value.append(' ');
-                else break;
-            }
+    /**
+     * Sends the pre-serialized <code>503 Service Unavailable</code> response and closes the
+     * connection.
+     */
+    private void reject(Connection connection, int sequence) throws IOException {
+        try {
+            connection.awaitTurn(sequence);
+            OutputStream out = connection.out();
+            out.write(admission.rejection());
+            out.flush();
+        } finally {
+            connection.close();
+            connection.finishTurn(sequence);
+        }
+    }
 
-            String nameStr = name.toString();
-            String valueStr = value.toString();
-            headerOut.computeIfAbsent(nameStr, $ -> new ArrayList<>()).add(valueStr);
+    /**
+     * Returns whether the request asks to upgrade the connection to http/2 without TLS
+     * (<code>Upgrade: h2c</code>). Requests with a body are not upgraded, as the body would
+     * have to be received before switching protocols.
+     */
+    private static boolean isHttp2Upgrade(HttpRequestImpl request) {
+        if(request.upgrade == null || !request.httpVersion().equals("1.1") || request.body() != Body.EMPTY)
+            return false;
+        if(request.header().getString("HTTP2-Settings") == null)
+            return false;
+        for(String protocol : request.upgrade.split(","))
+            if(protocol.trim().equalsIgnoreCase("h2c"))
+                return true;
+        return false;
+    }
 
-            if(nameStr.equals("content-length")) try {
-                length = Long.parseLong(valueStr);
-            } catch(NumberFormatException ignored) { }
-            else if(nameStr.equals("transfer-encoding"))
-                chunked = valueStr.equalsIgnoreCase("chunked");
+    /**
+     * Sends <code>101 Switching Protocols</code> and serves the connection as http/2
+     * connection, starting with the response to the upgrade request on stream 1.
+     */
+    private void upgradeToHttp2(Connection connection, HttpRequestImpl request, int sequence) {
+        try {
+            connection.awaitTurn(sequence);
+            OutputStream out = connection.out();
+            out.write(SWITCHING_PROTOCOLS);
+            out.flush();
+        } catch(IOException e) {
+            Console.debug("Connection to", connection, "closed before", request, "could be processed");
+            request.releaseAdmission();
+            try {
+                connection.close();
+            } catch(IOException ignored) { }
+            return;
+        } finally {
+            connection.finishTurn(sequence);
         }
+        new Http2Connection(this, connection).serve(request);
+        connection.releaseBuffer();
+    }
 
-        if(chunked)
-            return Body.of(new ChunkedInputStream(in));
-        if(length > 0)
-            return Body.of(new FixedLengthInputStream(in, length));
-        if(length == 0)
-            return Body.EMPTY;
+    /**
+     * Returns whether the request may be processed while further requests are received
+     * on the same connection. This is the case for requests with a safe method and without
+     * body (whose end would have to be known to receive the next request), if the connection
+     * will be kept alive and won't be upgraded to a different protocol.
+     */
+    private static boolean isPipelinable(HttpRequestImpl request) {
+        Method method = request.method();
+        return (method == Method.GET || method == Method.HEAD || method == Method.OPTIONS || method == Method.TRACE)
+               && request.body() == Body.EMPTY
+               && request.keepAlive != Boolean.FALSE
+               && request.upgrade == null
+               && request.httpVersion().equals("1.1");
+    }
 
+    @Nullable
+    private BodyInputStream receiveBody(Connection connection, RequestParser parser, LazyHeader header, @Nullable ContinueInputStream expectation) {
+        if(parser.chunked)
+            return new ChunkedInputStream(connection, header, expectation);
+        if(parser.contentLength > maxBodySize)
+            throw new HttpRequestFailure(ResponseCode.PAYLOAD_TOO_LARGE, "Request body too large");
+        if(parser.contentLength > 0)
+            return new FixedLengthInputStream(expectation != null ? expectation : connection.in(), parser.contentLength);
+        if(parser.contentLength == 0)
+            return null;
+
+        Method method = parser.method;
         if(method == Method.GET || method == Method.HEAD || method == Method.CONNECT || method == Method.OPTIONS || method == Method.TRACE)
-            return Body.EMPTY;
+            return null;
 
         throw new HttpRequestFailure(ResponseCode.LENGTH_REQUIRED);
     }
 
-    private static char skipWhitespaces(InputStream in) throws IOException {
-        int c;
-        while((c = in.read()) <= ' ')
-            if(c == -1)
-                throw HttpRequestFailure.badRequest("Incomplete header");
-        return (char) c;
-    }
-
 
     /**
      * Stops listening to all ports currently listened to. The server can later be
@@ -377,9 +638,475 @@ public abstract class RawHttpServer {
                 }
             });
             servers.clear();
+            EventLoop[] eventLoops = this.eventLoops;
+            if(eventLoops != null) {
+                for(EventLoop eventLoop : eventLoops)
+                    eventLoop.close();
+                this.eventLoops = null;
+            }
+            connections.stop();
+        }
+        synchronized(this) {
+            if(pinningMonitor != null) {
+                pinningMonitor.close();
+                pinningMonitor = null;
+            }
         }
     }
 
+    /**
+     * Sets whether clients may use http/2 without TLS (h2c), either by upgrading an
+     * http/1.1 request using <code>Upgrade: h2c</code>, or by sending the http/2 connection
+     * preface right away. Requests on an http/2 connection are multiplexed on a single
+     * connection and processed concurrently. The default is <code>true</code>.
+     *
+     * @param http2Enabled Whether to support http/2
+     */
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    /**
+     * Returns whether clients may use http/2 without TLS (h2c).
+     *
+     * @return Whether http/2 is supported
+     */
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    /**
+     * Sets the maximum size of a message received on a {@link WebSocket}, in bytes. If a
+     * larger message is received, the WebSocket gets closed with {@link WebSocket#MESSAGE_TOO_BIG}.
+     * The default is 1 MiB.
+     *
+     * @param maxWebSocketMessageSize The maximum message size
+     */
+    public void setMaxWebSocketMessageSize(int maxWebSocketMessageSize) {
+        this.maxWebSocketMessageSize = Arguments.checkRange(maxWebSocketMessageSize, 0, null);
+    }
+
+    /**
+     * Returns the maximum size of a message received on a {@link WebSocket}, in bytes.
+     *
+     * @return The maximum message size
+     */
+    public int getMaxWebSocketMessageSize() {
+        return maxWebSocketMessageSize;
+    }
+
+    /**
+     * Returns live statistics about the server, e.g. the number of open connections.
+     *
+     * @return The metrics of this server
+     */
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the engine used to accept connections and receive requests. The engine
+     * only applies to ports bound after this call. The default is {@link Engine#BLOCKING}.
+     *
+     * @param engine The engine to use
+     */
+    public void setEngine(Engine engine) {
+        this.engine = Arguments.checkNull(engine, "engine");
+    }
+
+    /**
+     * Returns the engine used to accept connections and receive requests.
+     *
+     * @return The engine used by the server
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Sets when the data of response bodies with unknown length, which are sent using
+     * the chunked transfer encoding, gets sent. The default is {@link ChunkFlushPolicy#ON_FLUSH}.
+     *
+     * @param chunkFlushPolicy The flush policy to use
+     */
+    public void setChunkFlushPolicy(ChunkFlushPolicy chunkFlushPolicy) {
+        this.chunkFlushPolicy = Arguments.checkNull(chunkFlushPolicy, "chunkFlushPolicy");
+    }
+
+    /**
+     * Returns when the data of response bodies with unknown length gets sent.
+     *
+     * @return The flush policy used for chunked response bodies
+     */
+    public ChunkFlushPolicy getChunkFlushPolicy() {
+        return chunkFlushPolicy;
+    }
+
+    /**
+     * Sets the number of event loop threads used by the {@link Engine#EVENT_LOOP} engine.
+     * Only has an effect if no event loops have been started yet, i.e. if the server is
+     * not currently listening on any port using that engine. The default is the number
+     * of available processors.
+     *
+     * @param eventLoopCount The number of event loops to use, at least 1
+     */
+    public void setEventLoopCount(int eventLoopCount) {
+        this.eventLoopCount = Arguments.checkRange(eventLoopCount, 1, null);
+    }
+
+    /**
+     * Returns the number of event loop threads used by the {@link Engine#EVENT_LOOP} engine.
+     *
+     * @return The number of event loops
+     */
+    public int getEventLoopCount() {
+        return eventLoopCount;
+    }
+
+    /**
+     * Sets the maximum number of pipelined requests per connection that get received
+     * ahead of time and processed concurrently. Pipelined requests are only processed
+     * concurrently if they use a safe method (GET, HEAD, OPTIONS or TRACE) and don't
+     * have a body; responses are always sent in request order. A value of 1 disables
+     * pipelining, such that the next request on a connection is only received after
+     * the previous response has been sent. The default is 16.
+     *
+     * @param maxPipelineDepth The maximum number of concurrently processed requests
+     *                         per connection, at least 1
+     */
+    public void setMaxPipelineDepth(int maxPipelineDepth) {
+        this.maxPipelineDepth = Arguments.checkRange(maxPipelineDepth, 1, null);
+    }
+
+    /**
+     * Returns the maximum number of pipelined requests per connection that get received
+     * ahead of time and processed concurrently.
+     *
+     * @return The maximum pipeline depth
+     */
+    public int getMaxPipelineDepth() {
+        return maxPipelineDepth;
+    }
+
+    /**
+     * Sets the time after which a kept-alive connection gets closed if no new request
+     * is received. This also applies to newly opened connections and to discarding the
+     * unread request body of the previous request. The default is 60 seconds.
+     *
+     * @param idleTimeout The idle timeout, or <code>null</code> for no timeout
+     */
+    public void setIdleTimeout(@Nullable Duration idleTimeout) {
+        connections.idleTimeout = ConnectionManager.toNanos(idleTimeout);
+    }
+
+    /**
+     * Returns the time after which a kept-alive connection gets closed if no new request
+     * is received.
+     *
+     * @return The idle timeout, or <code>null</code> if there is none
+     */
+    @Nullable
+    public Duration getIdleTimeout() {
+        return ConnectionManager.toDuration(connections.idleTimeout);
+    }
+
+    /**
+     * Sets the maximum time from receiving the first byte of a request until the request
+     * head (request line and header) has been received completely. If exceeded, the
+     * connection gets closed after responding with <code>408 Request Timeout</code>. The
+     * default is 20 seconds.
+     *
+     * @param headerTimeout The header timeout, or <code>null</code> for no timeout
+     */
+    public void setHeaderTimeout(@Nullable Duration headerTimeout) {
+        connections.headerTimeout = ConnectionManager.toNanos(headerTimeout);
+    }
+
+    /**
+     * Returns the maximum time from receiving the first byte of a request until the request
+     * head has been received completely.
+     *
+     * @return The header timeout, or <code>null</code> if there is none
+     */
+    @Nullable
+    public Duration getHeaderTimeout() {
+        return ConnectionManager.toDuration(connections.headerTimeout);
+    }
+
+    /**
+     * Sets the minimum rate at which request bodies have to be received, in bytes per second.
+     * Only the time spent waiting for data counts, not the time the handler takes between
+     * reads. If the body is received slower, reading it fails with <code>408 Request Timeout</code>.
+     * The default is 240 bytes per second.
+     *
+     * @param minBodyRate The minimum body rate in bytes per second, or 0 for no minimum
+     */
+    public void setMinBodyRate(long minBodyRate) {
+        connections.minBodyRate = Arguments.checkRange(minBodyRate, 0L, null);
+    }
+
+    /**
+     * Returns the minimum rate at which request bodies have to be received, in bytes per second.
+     *
+     * @return The minimum body rate, 0 if there is none
+     */
+    public long getMinBodyRate() {
+        return connections.minBodyRate;
+    }
+
+    /**
+     * Sets the time during which the minimum body rate is not enforced when starting to
+     * receive a request body, see {@link #setMinBodyRate(long)}. The default is 5 seconds.
+     *
+     * @param bodyGracePeriod The grace period
+     */
+    public void setBodyGracePeriod(Duration bodyGracePeriod) {
+        connections.bodyGracePeriod = ConnectionManager.toNanos(Arguments.checkNull(bodyGracePeriod, "bodyGracePeriod"));
+    }
+
+    /**
+     * Returns the time during which the minimum body rate is not enforced when starting to
+     * receive a request body.
+     *
+     * @return The grace period
+     */
+    public Duration getBodyGracePeriod() {
+        return ConnectionManager.toDuration(connections.bodyGracePeriod);
+    }
+
+    /**
+     * Sets the maximum length of the request line (method, target and version) in bytes.
+     * Longer requests are rejected with <code>414 URI Too Long</code>. The default is 8192.
+     *
+     * @param maxRequestLineLength The maximum request line length
+     */
+    public void setMaxRequestLineLength(int maxRequestLineLength) {
+        this.maxRequestLineLength = Arguments.checkRange(maxRequestLineLength, 16, 1 << 24);
+    }
+
+    /**
+     * Returns the maximum length of the request line in bytes.
+     *
+     * @return The maximum request line length
+     */
+    public int getMaxRequestLineLength() {
+        return maxRequestLineLength;
+    }
+
+    /**
+     * Sets the maximum number of header fields of a request. Requests with more fields are
+     * rejected with <code>431 Request Header Fields Too Large</code>. The default is 100.
+     *
+     * @param maxHeaderCount The maximum number of header fields
+     */
+    public void setMaxHeaderCount(int maxHeaderCount) {
+        this.maxHeaderCount = Arguments.checkRange(maxHeaderCount, 0, null);
+    }
+
+    /**
+     * Returns the maximum number of header fields of a request.
+     *
+     * @return The maximum number of header fields
+     */
+    public int getMaxHeaderCount() {
+        return maxHeaderCount;
+    }
+
+    /**
+     * Sets the maximum size of the request head (request line and header) in bytes. Larger
+     * requests are rejected with <code>431 Request Header Fields Too Large</code>. This also
+     * bounds the memory used to receive a request head. The default is 64 KiB.
+     *
+     * @param maxHeaderSize The maximum request head size
+     */
+    public void setMaxHeaderSize(int maxHeaderSize) {
+        this.maxHeaderSize = Arguments.checkRange(maxHeaderSize, 64, 1 << 24);
+    }
+
+    /**
+     * Returns the maximum size of the request head in bytes.
+     *
+     * @return The maximum request head size
+     */
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+
+    /**
+     * Sets the maximum size of a request body in bytes. Requests with a larger content
+     * length are rejected with <code>413 Content Too Large</code> right away; for chunked
+     * bodies, reading the body fails with <code>413</code> once the limit is exceeded. The
+     * default is {@link Long#MAX_VALUE}, i.e. no limit.
+     *
+     * @param maxBodySize The maximum request body size
+     */
+    public void setMaxBodySize(long maxBodySize) {
+        this.maxBodySize = Arguments.checkRange(maxBodySize, 0L, null);
+    }
+
+    /**
+     * Returns the maximum size of a request body in bytes.
+     *
+     * @return The maximum request body size
+     */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * Sets the maximum size of a single chunk of a request body sent using the chunked
+     * transfer encoding. If a larger chunk is received, reading the body fails with
+     * <code>413 Content Too Large</code>. The default is {@link Long#MAX_VALUE}, i.e. no limit.
+     *
+     * @param maxChunkSize The maximum chunk size
+     */
+    public void setMaxChunkSize(long maxChunkSize) {
+        this.maxChunkSize = Arguments.checkRange(maxChunkSize, 1L, null);
+    }
+
+    /**
+     * Returns the maximum size of a single chunk of a chunked request body.
+     *
+     * @return The maximum chunk size
+     */
+    public long getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    /**
+     * Sets the maximum number of requests to be received on a single connection. The
+     * response to the last request will close the connection. The default is 1000.
+     *
+     * @param maxRequestsPerConnection The maximum number of requests per connection, at least 1
+     */
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        connections.maxRequestsPerConnection = Arguments.checkRange(maxRequestsPerConnection, 1, null);
+    }
+
+    /**
+     * Returns the maximum number of requests to be received on a single connection.
+     *
+     * @return The maximum number of requests per connection
+     */
+    public int getMaxRequestsPerConnection() {
+        return connections.maxRequestsPerConnection;
+    }
+
+    /**
+     * Sets the maximum number of connections to be kept alive while waiting for their
+     * next request. Once reached, connections get closed after their response instead.
+     * The default is 10000.
+     *
+     * @param maxKeepAliveConnections The maximum number of idle kept-alive connections
+     */
+    public void setMaxKeepAliveConnections(int maxKeepAliveConnections) {
+        connections.maxKeepAliveConnections = Arguments.checkRange(maxKeepAliveConnections, 0, null);
+    }
+
+    /**
+     * Returns the maximum number of connections to be kept alive while waiting for their
+     * next request.
+     *
+     * @return The maximum number of idle kept-alive connections
+     */
+    public int getMaxKeepAliveConnections() {
+        return connections.maxKeepAliveConnections;
+    }
+
+    /**
+     * Sets the maximum number of requests that get processed concurrently. A request
+     * counts as being processed from when it has been received until its response has
+     * been sent completely. Further requests wait in a queue (see {@link #setMaxQueuedRequests(int)})
+     * and get rejected with <code>503 Service Unavailable</code> if the queue is full or they
+     * could not be admitted within {@link #setMaxQueueTime(Duration) the maximum queue time}.
+     * Rejected requests are answered directly after receiving the request head, before
+     * {@link #respond(HttpRequest.Respondable)} is called. The default is 0, meaning that the
+     * number of concurrent requests is not limited.
+     *
+     * @param maxInFlightRequests The maximum number of concurrently processed requests, or 0
+     *                            for no limit
+     */
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        admission.maxInFlight = Arguments.checkRange(maxInFlightRequests, 0, null);
+    }
+
+    /**
+     * Returns the maximum number of requests that get processed concurrently.
+     *
+     * @return The maximum number of concurrently processed requests, or 0 if not limited
+     */
+    public int getMaxInFlightRequests() {
+        return admission.maxInFlight;
+    }
+
+    /**
+     * Sets the maximum number of requests that wait to be processed if the
+     * {@link #setMaxInFlightRequests(int) maximum number of concurrently processed requests}
+     * is reached. Any further requests get rejected immediately. Each queued request blocks
+     * a thread of the executor. The default is 0, meaning that requests will be rejected
+     * immediately if the limit of concurrent requests is reached.
+     *
+     * @param maxQueuedRequests The maximum number of waiting requests
+     */
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        admission.maxQueued = Arguments.checkRange(maxQueuedRequests, 0, null);
+    }
+
+    /**
+     * Returns the maximum number of requests that wait to be processed if the maximum
+     * number of concurrently processed requests is reached.
+     *
+     * @return The maximum number of waiting requests
+     */
+    public int getMaxQueuedRequests() {
+        return admission.maxQueued;
+    }
+
+    /**
+     * Sets the maximum time a request waits to be processed if the {@link #setMaxInFlightRequests(int)
+     * maximum number of concurrently processed requests} is reached, before being rejected.
+     * The default is 10 seconds.
+     *
+     * @param maxQueueTime The maximum time to wait for admission
+     */
+    public void setMaxQueueTime(Duration maxQueueTime) {
+        admission.maxQueueTime = Arguments.checkNull(maxQueueTime, "maxQueueTime").toNanos();
+    }
+
+    /**
+     * Returns the maximum time a request waits to be processed if the maximum number of
+     * concurrently processed requests is reached.
+     *
+     * @return The maximum time to wait for admission
+     */
+    public Duration getMaxQueueTime() {
+        return Duration.ofNanos(admission.maxQueueTime);
+    }
+
+    /**
+     * Sets the value of the <code>Retry-After</code> header sent with the responses to
+     * requests rejected by the admission control. The duration will be rounded up to
+     * seconds. The default is 5 seconds.
+     *
+     * @param retryAfter The time after which clients should retry
+     */
+    public void setRetryAfter(Duration retryAfter) {
+        Arguments.checkNull(retryAfter, "retryAfter");
+        if(retryAfter.isNegative())
+            throw new IllegalArgumentException("Negative retry delay");
+        admission.setRetryAfter(retryAfter);
+    }
+
+    /**
+     * Returns the value of the <code>Retry-After</code> header sent with the responses to
+     * requests rejected by the admission control.
+     *
+     * @return The time after which clients should retry
+     */
+    public Duration getRetryAfter() {
+        return admission.getRetryAfter();
+    }
+
     /**
      * Sets the console output type for request logging, or disables any non-error logs
      * using <code>null</code>. The default level is <code>"debug"</code>.
@@ -410,6 +1137,7 @@ public abstract class RawHttpServer {
      */
     public void setServerName(@Nullable String name) {
         this.name = name;
+        serverField = name != null ? ResponseHead.encodeField("Server", name) : null;
     }
 
     /**
@@ -424,68 +1152,144 @@ public abstract class RawHttpServer {
     }
 
     /**
-     * Called once per received request, before it gets processed.
+     * Sets whether request handlers should run on virtual threads instead of a pool of
+     * platform threads. This allows blocking handlers to scale far beyond the number of
+     * platform threads. Must be configured before the server starts listening, and has
+     * no effect if {@link #createExecutor()} is overridden. Virtual threads being pinned
+     * to their carrier thread can be monitored using {@link #setPinningThreshold(Duration)}.
+     *
+     * @param virtualThreads Whether to use virtual threads
+     * @throws UnsupportedOperationException If enabled and the runtime does not support
+     *                                       virtual threads (Java 21 or newer required)
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        if(virtualThreads && !VirtualThreads.isSupported())
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Returns whether request handlers run on virtual threads.
+     *
+     * @return Whether virtual threads are used
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Sets the minimum duration for which a virtual thread has to block while being pinned
+     * to its carrier thread to be recorded while the server is running, see
+     * {@link VirtualThreads#monitorPinning(Duration)}. Recording uses the JDK flight recorder
+     * and is disabled by default. Must be configured before the server starts listening.
+     * Monitoring stops when the server is stopped.
+     *
+     * @param pinningThreshold The threshold for recording pinned virtual threads, or
+     *                         <code>null</code> to disable monitoring
+     */
+    public void setPinningThreshold(@Nullable Duration pinningThreshold) {
+        if(pinningThreshold != null && pinningThreshold.isNegative())
+            throw new IllegalArgumentException("Pinning threshold must not be negative");
+        this.pinningThreshold = pinningThreshold;
+    }
+
+    /**
+     * Returns the minimum duration for which a pinned virtual thread has to block to be
+     * recorded, or <code>null</code> if pinning is not monitored.
+     *
+     * @return The threshold for recording pinned virtual threads, or <code>null</code>
+     */
+    @Nullable
+    public Duration getPinningThreshold() {
+        return pinningThreshold;
+    }
+
+    /**
+     * Sets the access log that received requests and sent responses are logged to. By
+     * default, the shared {@link AccessLog#defaultLog()} is used, which writes to the
+     * console. Whether requests and responses are logged at all is still controlled by
+     * the {@linkplain #setLogLevel(String) log level}.
+     *
+     * @param accessLog The access log to use
+     */
+    public void setAccessLog(@NotNull AccessLog accessLog) {
+        this.accessLog = Arguments.checkNull(accessLog, "accessLog");
+    }
+
+    /**
+     * Returns the access log that received requests and sent responses are logged to.
+     *
+     * @return The access log in use
+     */
+    @NotNull
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * Called once per received request, before it gets processed. By default, this
+     * enqueues the request to the server's {@linkplain #getAccessLog() access log}, which
+     * formats and writes it asynchronously.
      *
      * @param request The request to log
      */
     protected void logRequest(HttpRequest request) {
         String level = logLevel;
         if(level == null) return;
-
-        String str = request.toString();
-        String msg = "<<"+surroundWithLine(str)+"<< "+request.client().toString().substring(1);
-        msg = msg.replace(str, Console.colored(str, Attribute.BOLD()));
-        synchronized(LOG_LOCK) {
-            Console.write(level, msg);
-        }
+        accessLog.logRequest(request, level);
     }
 
     /**
-     * Called once per responded request, after it has been sent back to the client.
+     * Called once per responded request, after it has been sent back to the client. By
+     * default, this enqueues the response to the server's {@linkplain #getAccessLog() access log},
+     * which formats and writes it asynchronously.
      *
      * @param response The response to log
      * @param forceError Whether to force this log to be an error, e.g. because there was a network error
      */
     protected void logResponse(HttpResponse response, boolean forceError) {
         String level = logLevel;
-        if(level == null && !forceError && response.code().type() != ResponseCode.Type.SERVER_ERROR) return;
-
-        String str = response.toString();
-        String msg = ">>"+surroundWithLine(str)+">> "+response.client().toString().substring(1);
-        msg = msg.replace(str, Console.colored(str, getColor(forceError ? ResponseCode.Type.SERVER_ERROR : response.code().type()), Attribute.BOLD()));
-        synchronized(LOG_LOCK) {
-            if(forceError || response.code().type() == ResponseCode.Type.SERVER_ERROR)
-                Console.error(msg);
-            else Console.write(level, msg);
-        }
-    }
-
-    private static Attribute getColor(ResponseCode.Type type) {
-        switch(type) {
-            case INFORMATIONAL: return Attribute.BLUE_TEXT();
-            case SUCCESS: return Attribute.GREEN_TEXT();
-            case REDIRECT: return Attribute.WHITE_TEXT();
-            case CLIENT_ERROR: return Attribute.MAGENTA_TEXT();
-            case SERVER_ERROR: return Attribute.RED_TEXT();
-            default: throw new NullPointerException();
-        }
+        boolean error = forceError || response.code().type() == ResponseCode.Type.SERVER_ERROR;
+        if(level == null && !error) return;
+        accessLog.logResponse(response, error ? "error" : level, error);
     }
 
-    private static final char LINE_CHAR = '=';
-    private static final int MIN_LINE_SIZE = 4;
-    private static final int PREFERRED_LOG_SIZE = 90;
-
-    private static String surroundWithLine(String str) {
-        int l,r;
 
-        int min = str.length() + 2 * (MIN_LINE_SIZE + 1);
-        if(min >= PREFERRED_LOG_SIZE)
-            l = r = MIN_LINE_SIZE;
-        else {
-            l = MIN_LINE_SIZE + (PREFERRED_LOG_SIZE - min) / 2;
-            r = MIN_LINE_SIZE + (PREFERRED_LOG_SIZE - min) - l;
-        }
+    /**
+     * The different implementations for accepting connections and receiving requests.
+     * All engines use the server's executor to run {@link #respond(HttpRequest.Respondable)}.
+     */
+    public enum Engine {
+        /**
+         * Uses one thread per port to accept connections, and blocks a thread of the
+         * executor per open connection, including idle kept-alive connections.
+         */
+        BLOCKING,
+        /**
+         * Uses a small, fixed number of event loop threads to accept connections and to
+         * read from idle connections without blocking. A thread of the executor is only
+         * used once a complete request head has been received. This scales much better
+         * with many concurrent (kept-alive) connections.
+         */
+        EVENT_LOOP
+    }
 
-        return Utils.repeat(LINE_CHAR, l)+" "+str+" "+Utils.repeat(LINE_CHAR, r);
+    /**
+     * Policies for when to send the buffered data of a response body with unknown length,
+     * which is sent in chunks. Independent of the policy, data is sent once the buffer is
+     * full and when the body is complete.
+     */
+    public enum ChunkFlushPolicy {
+        /**
+         * Sends the buffered data whenever the body's output stream gets flushed. Required
+         * for bodies which stream data over a longer time, e.g. server-sent events.
+         */
+        ON_FLUSH,
+        /**
+         * Ignores flushes of the body's output stream, such that only full chunks get
+         * sent. This results in fewer, larger packets for bodies which are written at once
+         * but flush frequently.
+         */
+        WHEN_FULL
     }
 }
@@ -0,0 +1,446 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import de.rccookie.http.Header;
+import de.rccookie.http.Method;
+import de.rccookie.http.ResponseCode;
+import de.rccookie.http.server.HttpRequestFailure;
+import de.rccookie.util.Console;
+
+/**
+ * Parses the request line and header of http/1.x requests directly from the read
+ * buffer of a {@link Connection}. The complete request head is first buffered, then
+ * all lines are located in a single pass over the buffer. Header names and values are
+ * only recorded as offsets; the strings and the {@link Header} itself are only created
+ * once the header is accessed, except for the few fields that are needed to receive
+ * the request (<code>Host</code>, <code>Content-Length</code>, <code>Transfer-Encoding</code>,
+ * <code>Connection</code>, <code>Upgrade</code> and <code>Expect</code>). A parser instance is reused for all requests of a
+ * connection and is not thread-safe.
+ */
+final class RequestParser {
+
+    private static final Method[] METHODS = Method.values();
+    private static final byte[][] METHOD_NAMES = new byte[METHODS.length][];
+    static {
+        for(int i=0; i<METHODS.length; i++)
+            METHOD_NAMES[i] = METHODS[i].name().toLowerCase().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_0 = "HTTP/1.0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PRI = "PRI".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] HOST = "host".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION = "connection".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] UPGRADE = "upgrade".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EXPECT = "expect".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTINUE = "100-continue".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE = "close".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(StandardCharsets.US_ASCII);
+
+
+    private final Connection connection;
+
+    /**
+     * Offsets of the header fields within the buffer, four per field: name start, name end,
+     * value start, value end. Folded continuation lines have a name start of -1.
+     */
+    private int[] fields = new int[64];
+    private int fieldCount;
+    private int headerStart, headEnd;
+    private boolean transferEncoding;
+
+    // Results of the last call to parse()
+    String version;
+    Method method;
+    String target;
+    String host;
+    long contentLength;
+    boolean chunked;
+    Boolean keepAlive;
+    String upgrade;
+    boolean expectContinue;
+    /**
+     * Whether the request line was the start of the http/2 connection preface,
+     * <code>PRI * HTTP/2.0</code>. No other results are set in that case.
+     */
+    boolean http2;
+
+
+    RequestParser(Connection connection) {
+        this.connection = connection;
+    }
+
+
+    /**
+     * Receives and parses the head of the next request. After this method returns, the
+     * read position of the connection points at the first byte of the request body.
+     *
+     * @return <code>false</code> if the connection was closed before any data was received
+     * @throws HttpRequestFailure If the request head is malformed. {@link #version} is set
+     *                            if the request line could be read
+     */
+    boolean parse() throws IOException, HttpRequestFailure {
+        version = null;
+        method = null;
+        target = null;
+        host = null;
+        contentLength = -1;
+        chunked = false;
+        keepAlive = null;
+        upgrade = null;
+        expectContinue = false;
+        http2 = false;
+        fieldCount = 0;
+        transferEncoding = false;
+
+        if(!receiveHead())
+            return false;
+
+        byte[] buf = connection.buffer;
+        int pos = connection.pos;
+        int lineEnd = indexOf(buf, pos, headEnd, (byte) '\n');
+        int lineLimit = lineEnd > pos && buf[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+
+        int methodEnd = indexOfWhitespace(buf, pos, lineLimit);
+        int targetStart = skipWhitespaces(buf, methodEnd, lineLimit);
+        int targetEnd = indexOfWhitespace(buf, targetStart, lineLimit);
+        int versionStart = skipWhitespaces(buf, targetEnd, lineLimit);
+        if(versionStart == lineLimit) {
+            connection.pos = headEnd;
+            throw HttpRequestFailure.badRequest("Incomplete header");
+        }
+        int versionEnd = indexOfWhitespace(buf, versionStart, lineLimit);
+
+        if(equals(buf, versionStart, versionEnd, HTTP_1_1))
+            version = "HTTP/1.1";
+        else if(equals(buf, versionStart, versionEnd, HTTP_1_0))
+            version = "HTTP/1.0";
+        else version = new String(buf, versionStart, versionEnd - versionStart, StandardCharsets.ISO_8859_1).toUpperCase();
+
+        if(!version.startsWith("HTTP/")) {
+            connection.pos = headEnd;
+            throw new HttpRequestFailure(ResponseCode.HTTP_VERSION_NOT_SUPPORTED, version);
+        }
+
+        if(version.equals("HTTP/2.0") && equals(buf, pos, methodEnd, PRI) && targetEnd - targetStart == 1 && buf[targetStart] == '*') {
+            // Client starts with http/2 right away, the remainder of the preface follows
+            http2 = true;
+            connection.pos = headEnd;
+            return true;
+        }
+
+        for(int i=0; i<METHOD_NAMES.length; i++) {
+            if(equalsIgnoreCase(buf, pos, methodEnd, METHOD_NAMES[i])) {
+                method = METHODS[i];
+                break;
+            }
+        }
+        if(method == null) {
+            connection.pos = headEnd;
+            String methodStr = new String(buf, pos, methodEnd - pos, StandardCharsets.ISO_8859_1);
+            Console.warn("Client sent illegal http method:", methodStr);
+            throw new HttpRequestFailure(ResponseCode.METHOD_NOT_ALLOWED, "Illegal HTTP method: "+methodStr);
+        }
+
+        target = new String(buf, targetStart, targetEnd - targetStart, StandardCharsets.ISO_8859_1);
+
+        headerStart = lineEnd + 1;
+        parseFields(buf);
+
+        connection.pos = headEnd;
+        if(transferEncoding) {
+            // The length of a body with other transfer codings would only be known once the
+            // connection gets closed, which the client can't do (RFC 9112, section 6.3)
+            if(!chunked)
+                throw HttpRequestFailure.badRequest("Final transfer coding is not chunked");
+            if(contentLength >= 0) {
+                // Possibly an attempt of request smuggling, the transfer encoding takes
+                // precedence, but the connection must not be reused (RFC 9112, section 6.1)
+                contentLength = -1;
+                keepAlive = false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the header of the last parsed request. The header field data is copied out of
+     * the connection buffer, but only parsed into strings once the header gets accessed.
+     *
+     * @return The header of the request
+     */
+    LazyHeader header() {
+        int base = headerStart;
+        byte[] data = Arrays.copyOfRange(connection.buffer, base, headEnd);
+        int[] offsets = Arrays.copyOf(fields, 4 * fieldCount);
+        for(int i=0; i<offsets.length; i++)
+            if(offsets[i] >= 0)
+                offsets[i] -= base;
+        return new LazyHeader(data, offsets);
+    }
+
+    private boolean receiveHead() throws IOException {
+        Connection c = connection;
+
+        // Ignore empty lines preceding the request line (RFC 9112, section 2.2)
+        while(true) {
+            while(c.pos < c.limit && (c.buffer[c.pos] == '\r' || c.buffer[c.pos] == '\n'))
+                c.pos++;
+            if(c.pos < c.limit) break;
+            if(c.fill() <= 0)
+                return false;
+        }
+
+        int scanned = 0;
+        while(true) {
+            int end = findHeadEnd(c.buffer, c.pos + scanned, c.limit);
+            if(end >= 0) {
+                headEnd = end;
+                checkHeadSize(c.buffer, c.pos, end);
+                return true;
+            }
+            checkHeadSize(c.buffer, c.pos, c.limit);
+            // Scanned region is relative to the read position, which may move when the buffer gets compacted
+            scanned = Math.max(0, c.limit - c.pos - 3);
+            if(c.fill() <= 0) {
+                if(c.buffered() == 0)
+                    return false;
+                c.pos = c.limit;
+                throw HttpRequestFailure.badRequest("Incomplete header");
+            }
+        }
+    }
+
+    /**
+     * Fails with <code>414 URI Too Long</code> or <code>431 Request Header Fields Too Large</code>
+     * if the (partially) received request head exceeds the limits of the server, so that
+     * the buffer does not grow without bounds.
+     */
+    private void checkHeadSize(byte[] buf, int from, int to) {
+        RawHttpServer server = connection.server;
+        // Allow for the line break
+        int maxLineEnd = from + server.maxRequestLineLength + 2;
+        if(to >= maxLineEnd && indexOf(buf, from, maxLineEnd, (byte) '\n') == maxLineEnd) {
+            server.metrics.requestLineTooLong.increment();
+            throw tooLarge(ResponseCode.URI_TOO_LONG, "Request line too long");
+        }
+        if(to - from > server.maxHeaderSize) {
+            server.metrics.headerTooLarge.increment();
+            throw tooLarge(ResponseCode.REQUEST_HEADER_FIELDS_TOO_LARGE, "Request header too large");
+        }
+    }
+
+    private HttpRequestFailure tooLarge(ResponseCode code, String message) {
+        // The rest of the head is not received, the connection gets closed after the response
+        connection.pos = connection.limit;
+        // The request line may not have been parsed yet, but the response should still be sent
+        version = "HTTP/1.1";
+        return new HttpRequestFailure(code, message);
+    }
+
+    private void parseFields(byte[] buf) {
+        int maxFieldCount = connection.server.maxHeaderCount;
+        int pos = headerStart;
+        while(pos < headEnd) {
+            int lineEnd = indexOf(buf, pos, headEnd, (byte) '\n');
+            int lineLimit = lineEnd > pos && buf[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            if(lineLimit == pos) break; // Empty line, end of header
+
+            if(fieldCount == maxFieldCount) {
+                connection.server.metrics.headerTooLarge.increment();
+                connection.pos = headEnd;
+                throw new HttpRequestFailure(ResponseCode.REQUEST_HEADER_FIELDS_TOO_LARGE, "Too many header fields");
+            }
+            if(fields.length < 4 * (fieldCount + 1))
+                fields = Arrays.copyOf(fields, fields.length * 2);
+            int i = 4 * fieldCount;
+
+            int valueStart;
+            if(buf[pos] == ' ' || buf[pos] == '\t') {
+                if(fieldCount == 0) { // Continuation without a field to continue, ignore
+                    pos = lineEnd + 1;
+                    continue;
+                }
+                fields[i] = fields[i+1] = -1;
+                valueStart = pos;
+            }
+            else {
+                int colon = indexOf(buf, pos, lineLimit, (byte) ':');
+                if(colon == lineLimit) { // Not a header field, ignore line
+                    pos = lineEnd + 1;
+                    continue;
+                }
+                fields[i] = pos;
+                fields[i+1] = colon;
+                valueStart = colon + 1;
+            }
+            valueStart = skipWhitespaces(buf, valueStart, lineLimit);
+            int valueEnd = lineLimit;
+            while(valueEnd > valueStart && (buf[valueEnd - 1] == ' ' || buf[valueEnd - 1] == '\t'))
+                valueEnd--;
+            fields[i+2] = valueStart;
+            fields[i+3] = valueEnd;
+            fieldCount++;
+
+            if(fields[i] >= 0)
+                checkSpecialField(buf, fields[i], fields[i+1], valueStart, valueEnd);
+
+            pos = lineEnd + 1;
+        }
+    }
+
+    private void checkSpecialField(byte[] buf, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        switch(nameEnd - nameStart) {
+            case 4:
+                if(host == null && equalsIgnoreCase(buf, nameStart, nameEnd, HOST))
+                    host = new String(buf, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+                break;
+            case 6:
+                if(equalsIgnoreCase(buf, nameStart, nameEnd, EXPECT))
+                    expectContinue = equalsIgnoreCase(buf, valueStart, valueEnd, CONTINUE);
+                break;
+            case 7:
+                if(upgrade == null && equalsIgnoreCase(buf, nameStart, nameEnd, UPGRADE))
+                    upgrade = new String(buf, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+                break;
+            case 10:
+                if(equalsIgnoreCase(buf, nameStart, nameEnd, CONNECTION)) {
+                    if(equalsIgnoreCase(buf, valueStart, valueEnd, CLOSE))
+                        keepAlive = false;
+                    else if(equalsIgnoreCase(buf, valueStart, valueEnd, KEEP_ALIVE))
+                        keepAlive = true;
+                }
+                break;
+            case 14:
+                if(equalsIgnoreCase(buf, nameStart, nameEnd, CONTENT_LENGTH))
+                    parseContentLength(buf, valueStart, valueEnd);
+                break;
+            case 17:
+                if(equalsIgnoreCase(buf, nameStart, nameEnd, TRANSFER_ENCODING))
+                    parseTransferEncoding(buf, valueStart, valueEnd);
+                break;
+        }
+    }
+
+    /**
+     * Parses a <code>Content-Length</code> field, which may also be a list of identical
+     * values, e.g. if the field has been repeated (RFC 9110, section 8.6).
+     */
+    private void parseContentLength(byte[] buf, int valueStart, int valueEnd) {
+        int pos = valueStart;
+        while(true) {
+            int end = indexOf(buf, pos, valueEnd, (byte) ',');
+            int from = skipWhitespaces(buf, pos, end), to = end;
+            while(to > from && (buf[to - 1] == ' ' || buf[to - 1] == '\t'))
+                to--;
+            long length = parseLong(buf, from, to);
+            if(length < 0) {
+                connection.pos = headEnd;
+                throw HttpRequestFailure.badRequest("Invalid content length");
+            }
+            if(contentLength >= 0 && contentLength != length) {
+                connection.pos = headEnd;
+                throw HttpRequestFailure.badRequest("Conflicting content lengths");
+            }
+            contentLength = length;
+            if(end == valueEnd) break;
+            pos = end + 1;
+        }
+    }
+
+    /**
+     * Parses a <code>Transfer-Encoding</code> field, whose codings continue the ones of
+     * previous fields. Chunked must be applied exactly once, as final transfer coding,
+     * which is checked once all fields have been parsed.
+     */
+    private void parseTransferEncoding(byte[] buf, int valueStart, int valueEnd) {
+        transferEncoding = true;
+        int pos = valueStart;
+        while(pos <= valueEnd) {
+            int end = indexOf(buf, pos, valueEnd, (byte) ',');
+            int from = skipWhitespaces(buf, pos, end), to = end;
+            while(to > from && (buf[to - 1] == ' ' || buf[to - 1] == '\t'))
+                to--;
+            if(from != to) {
+                if(chunked) {
+                    connection.pos = headEnd;
+                    throw HttpRequestFailure.badRequest("Transfer coding after chunked");
+                }
+                chunked = equalsIgnoreCase(buf, from, to, CHUNKED);
+            }
+            pos = end + 1;
+        }
+    }
+
+    /**
+     * Returns the index after the empty line terminating the request head, or -1 if
+     * the range does not contain a complete head.
+     */
+    private static int findHeadEnd(byte[] buf, int from, int to) {
+        for(int i=from; i<to; i++) {
+            if(buf[i] != '\n') continue;
+            if(i + 1 < to && buf[i+1] == '\n')
+                return i + 2;
+            if(i + 2 < to && buf[i+1] == '\r' && buf[i+2] == '\n')
+                return i + 3;
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte b) {
+        for(int i=from; i<to; i++)
+            if(buf[i] == b) return i;
+        return to;
+    }
+
+    private static int indexOfWhitespace(byte[] buf, int from, int to) {
+        for(int i=from; i<to; i++)
+            if(buf[i] == ' ' || buf[i] == '\t') return i;
+        return to;
+    }
+
+    private static int skipWhitespaces(byte[] buf, int from, int to) {
+        while(from < to && (buf[from] == ' ' || buf[from] == '\t'))
+            from++;
+        return from;
+    }
+
+    private static boolean equals(byte[] buf, int from, int to, byte[] str) {
+        if(to - from != str.length) return false;
+        for(int i=0; i<str.length; i++)
+            if(buf[from + i] != str[i]) return false;
+        return true;
+    }
+
+    /**
+     * Case-insensitive comparison with an ascii string, <code>str</code> must be all lowercase.
+     */
+    private static boolean equalsIgnoreCase(byte[] buf, int from, int to, byte[] str) {
+        if(to - from != str.length) return false;
+        for(int i=0; i<str.length; i++) {
+            int b = buf[from + i];
+            if(b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+            if(b != str[i]) return false;
+        }
+        return true;
+    }
+
+    private static long parseLong(byte[] buf, int from, int to) {
+        if(from == to || to - from > 18) return -1;
+        long value = 0;
+        for(int i=from; i<to; i++) {
+            int digit = buf[i] - '0';
+            if(digit < 0 || digit > 9) return -1;
+            value = 10 * value + digit;
+        }
+        return value;
+    }
+}
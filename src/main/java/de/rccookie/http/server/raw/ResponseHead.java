@@ -0,0 +1,237 @@
+package de.rccookie.http.server.raw;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.rccookie.http.ResponseCode;
+import de.rccookie.http.util.HttpDate;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A reusable buffer that the head of a response (status line and header fields) gets
+ * encoded into directly, optionally followed by a small body, such that the response can
+ * be sent to the client using a single write. Strings are encoded as ISO-8859-1 without
+ * going through a charset encoder; status lines and the <code>Date</code> field are
+ * written from pre-encoded bytes. Instances are pooled, use {@link #acquire()} and
+ * {@link #release()}.
+ */
+final class ResponseHead extends OutputStream {
+
+    /**
+     * The maximum length of a body with known length to be copied into the head buffer,
+     * rather than written separately.
+     */
+    static final int MAX_INLINE_BODY_SIZE = 8192;
+
+    private static final int INITIAL_SIZE = 1024;
+    private static final int MAX_POOLED_SIZE = 2 * MAX_INLINE_BODY_SIZE;
+    private static final int MAX_POOL_SIZE = 256;
+
+    private static final Queue<ResponseHead> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOL_SIZE = new AtomicInteger();
+
+    private static final byte[] DATE_FIELD_START = "Date: ".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Pre-encoded status lines for http 1.1 and 1.0, indexed by response code ordinal.
+     */
+    private static final StatusLine[] STATUS_LINES_11, STATUS_LINES_10;
+    static {
+        ResponseCode[] codes = ResponseCode.values();
+        STATUS_LINES_11 = new StatusLine[codes.length];
+        STATUS_LINES_10 = new StatusLine[codes.length];
+        for(ResponseCode code : codes) {
+            STATUS_LINES_11[code.ordinal()] = new StatusLine("1.1", code);
+            STATUS_LINES_10[code.ordinal()] = new StatusLine("1.0", code);
+        }
+    }
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int count = 0;
+
+    private ResponseHead() { }
+
+    /**
+     * Returns an empty head buffer from the pool, or a new one if the pool is empty.
+     *
+     * @return An empty head buffer
+     */
+    static ResponseHead acquire() {
+        ResponseHead head = POOL.poll();
+        if(head == null)
+            return new ResponseHead();
+        POOL_SIZE.decrementAndGet();
+        return head;
+    }
+
+    /**
+     * Clears this buffer and returns it to the pool. The buffer must not be used afterwards.
+     */
+    void release() {
+        count = 0;
+        if(buf.length <= MAX_POOLED_SIZE && POOL_SIZE.incrementAndGet() <= MAX_POOL_SIZE)
+            POOL.add(this);
+        else POOL_SIZE.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of bytes written to this buffer.
+     *
+     * @return The size of the buffered data
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns a byte buffer over the data written to this buffer, without copying.
+     *
+     * @return A byte buffer over the data
+     */
+    ByteBuffer buffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    /**
+     * Encodes the status line of the response, including the trailing line break.
+     *
+     * @param version The http version, e.g. "1.1"
+     * @param code The response code
+     */
+    void statusLine(String version, ResponseCode code) {
+        StatusLine[] lines = version.equals("1.1") ? STATUS_LINES_11 : version.equals("1.0") ? STATUS_LINES_10 : null;
+        if(lines != null) {
+            StatusLine line = lines[code.ordinal()];
+            // The name of unknown codes may be registered later
+            if(line.name != code.httpName())
+                lines[code.ordinal()] = line = new StatusLine(version, code);
+            write(line.bytes, 0, line.bytes.length);
+        }
+        else statusLine0(version, code);
+    }
+
+    private void statusLine0(String version, ResponseCode code) {
+        latin1("HTTP/");
+        latin1(version);
+        write(' ');
+        int c = code.code();
+        ensureCapacity(3);
+        buf[count++] = (byte) ('0' + c / 100);
+        buf[count++] = (byte) ('0' + c / 10 % 10);
+        buf[count++] = (byte) ('0' + c % 10);
+        write(' ');
+        String name = code.httpName();
+        if(name != null)
+            latin1(name);
+        crlf();
+    }
+
+    /**
+     * Encodes a single header field, including the trailing line break.
+     *
+     * @param name The name of the field
+     * @param value The value of the field
+     */
+    void field(String name, String value) {
+        latin1(name);
+        write(':');
+        write(' ');
+        latin1(value);
+        crlf();
+    }
+
+    /**
+     * Writes a pre-encoded header field, including the trailing line break.
+     *
+     * @param field The encoded field, as returned by {@link #encodeField(String, String)}
+     */
+    void field(byte[] field) {
+        write(field, 0, field.length);
+    }
+
+    /**
+     * Encodes the <code>Date</code> header field with the current time, including the
+     * trailing line break.
+     */
+    void dateField() {
+        write(DATE_FIELD_START, 0, DATE_FIELD_START.length);
+        byte[] date = HttpDate.nowBytes();
+        write(date, 0, date.length);
+        crlf();
+    }
+
+    /**
+     * Encodes the empty line terminating the response head.
+     */
+    void end() {
+        crlf();
+    }
+
+    /**
+     * Encodes the given header field, including the trailing line break, such that it can
+     * be written using {@link #field(byte[])}.
+     *
+     * @param name The name of the field
+     * @param value The value of the field
+     * @return The encoded field
+     */
+    static byte[] encodeField(String name, String value) {
+        ResponseHead head = new ResponseHead();
+        head.field(name, value);
+        return Arrays.copyOf(head.buf, head.count);
+    }
+
+    private void crlf() {
+        ensureCapacity(2);
+        buf[count++] = '\r';
+        buf[count++] = '\n';
+    }
+
+    void latin1(String str) {
+        int length = str.length();
+        ensureCapacity(length);
+        byte[] buf = this.buf;
+        int count = this.count;
+        for(int i=0; i<length; i++) {
+            char c = str.charAt(i);
+            buf[count++] = c <= 0xFF ? (byte) c : (byte) '?';
+        }
+        this.count = count;
+    }
+
+    private void ensureCapacity(int additional) {
+        if(count + additional > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(2 * buf.length, count + additional));
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte @NotNull [] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+
+    private static final class StatusLine {
+        final String name;
+        final byte[] bytes;
+
+        StatusLine(String version, ResponseCode code) {
+            ResponseHead head = new ResponseHead();
+            head.statusLine0(version, code);
+            this.name = code.httpName();
+            this.bytes = Arrays.copyOf(head.buf, head.count);
+        }
+    }
+}
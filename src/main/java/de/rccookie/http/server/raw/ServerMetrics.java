@@ -0,0 +1,169 @@
+package de.rccookie.http.server.raw;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live statistics of a {@link RawHttpServer}, obtained using {@link RawHttpServer#metrics()}.
+ * All values are updated concurrently while the server is running and may thus not be
+ * exactly consistent with each other.
+ */
+public final class ServerMetrics {
+
+    final LongAdder openConnections = new LongAdder();
+    final LongAdder idleConnections = new LongAdder();
+    final LongAdder activeConnections = new LongAdder();
+    final LongAdder inFlightRequests = new LongAdder();
+    final LongAdder queuedRequests = new LongAdder();
+    final LongAdder rejectedQueueFull = new LongAdder();
+    final LongAdder rejectedQueueTimeout = new LongAdder();
+    final LongAdder requestLineTooLong = new LongAdder();
+    final LongAdder headerTooLarge = new LongAdder();
+    final LongAdder headerTimeouts = new LongAdder();
+    final LongAdder bodyTimeouts = new LongAdder();
+
+    ServerMetrics() { }
+
+    @Override
+    public String toString() {
+        return "ServerMetrics{" +
+               "openConnections=" + openConnections() +
+               ", idleConnections=" + idleConnections() +
+               ", activeConnections=" + activeConnections() +
+               ", inFlightRequests=" + inFlightRequests() +
+               ", queuedRequests=" + queuedRequests() +
+               ", rejectedRequests=" + rejectedRequests() +
+               ", limitViolations=" + limitViolations() +
+               '}';
+    }
+
+    /**
+     * Returns the number of currently open client connections.
+     *
+     * @return The number of open connections
+     */
+    public long openConnections() {
+        return openConnections.sum();
+    }
+
+    /**
+     * Returns the number of open connections currently waiting for the next request,
+     * including connections which are receiving the head of a request.
+     *
+     * @return The number of idle connections
+     */
+    public long idleConnections() {
+        return idleConnections.sum();
+    }
+
+    /**
+     * Returns the number of open connections on which a request is currently being
+     * processed.
+     *
+     * @return The number of active connections
+     */
+    public long activeConnections() {
+        return activeConnections.sum();
+    }
+
+    /**
+     * Returns the number of requests currently being processed, that is, requests that
+     * have been admitted but whose response has not been sent yet.
+     *
+     * @return The number of requests in flight
+     */
+    public long inFlightRequests() {
+        return inFlightRequests.sum();
+    }
+
+    /**
+     * Returns the number of received requests currently waiting to be admitted for
+     * processing, see {@link RawHttpServer#setMaxInFlightRequests(int)}.
+     *
+     * @return The number of queued requests
+     */
+    public long queuedRequests() {
+        return queuedRequests.sum();
+    }
+
+    /**
+     * Returns the total number of requests that have been rejected with <code>503 Service
+     * Unavailable</code> by the admission control.
+     *
+     * @return The number of rejected requests
+     */
+    public long rejectedRequests() {
+        return rejectedQueueFull() + rejectedQueueTimeout();
+    }
+
+    /**
+     * Returns the number of requests that have been rejected because the admission queue
+     * was full.
+     *
+     * @return The number of requests rejected because of a full queue
+     */
+    public long rejectedQueueFull() {
+        return rejectedQueueFull.sum();
+    }
+
+    /**
+     * Returns the number of requests that have been rejected because they could not be
+     * admitted within the maximum queue time.
+     *
+     * @return The number of requests rejected because of a queue timeout
+     */
+    public long rejectedQueueTimeout() {
+        return rejectedQueueTimeout.sum();
+    }
+
+    /**
+     * Returns the total number of requests and connections that violated one of the limits
+     * of the server, i.e. the request head size limits, the header timeout and the minimum
+     * body rate.
+     *
+     * @return The number of limit violations
+     */
+    public long limitViolations() {
+        return requestLineTooLong() + headerTooLarge() + headerTimeouts() + bodyTimeouts();
+    }
+
+    /**
+     * Returns the number of requests that have been rejected with <code>414 URI Too Long</code>
+     * because the request line exceeded {@link RawHttpServer#setMaxRequestLineLength(int)}.
+     *
+     * @return The number of requests with a too long request line
+     */
+    public long requestLineTooLong() {
+        return requestLineTooLong.sum();
+    }
+
+    /**
+     * Returns the number of requests that have been rejected with <code>431 Request Header
+     * Fields Too Large</code> because the header exceeded {@link RawHttpServer#setMaxHeaderSize(int)}
+     * or {@link RawHttpServer#setMaxHeaderCount(int)}.
+     *
+     * @return The number of requests with a too large header
+     */
+    public long headerTooLarge() {
+        return headerTooLarge.sum();
+    }
+
+    /**
+     * Returns the number of connections that have been closed because a request head was
+     * not received within the header timeout, see {@link RawHttpServer#setHeaderTimeout(java.time.Duration)}.
+     *
+     * @return The number of header timeouts
+     */
+    public long headerTimeouts() {
+        return headerTimeouts.sum();
+    }
+
+    /**
+     * Returns the number of requests whose body was received slower than the minimum body
+     * rate, see {@link RawHttpServer#setMinBodyRate(long)}.
+     *
+     * @return The number of body timeouts
+     */
+    public long bodyTimeouts() {
+        return bodyTimeouts.sum();
+    }
+}
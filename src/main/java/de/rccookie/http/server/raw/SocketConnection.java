@@ -0,0 +1,96 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A connection using a blocking socket channel. While waiting for the next request, a
+ * thread of the server's executor is blocked reading from the channel. Reads and writes
+ * go directly through the channel, which allows file contents to be transferred to the
+ * socket without copying them through the heap.
+ */
+class SocketConnection extends Connection {
+
+    private final SocketChannel channel;
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte @NotNull [] b, int off, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while(buf.hasRemaining())
+                channel.write(buf);
+        }
+
+        @Override
+        public void close() throws IOException {
+            SocketConnection.this.close();
+        }
+    };
+
+    SocketConnection(RawHttpServer server, SocketChannel channel) throws IOException {
+        super(server, inetAddress(channel.getLocalAddress()), inetAddress(channel.getRemoteAddress()));
+        this.channel = channel;
+    }
+
+    @Override
+    OutputStream out() {
+        return out;
+    }
+
+    @Override
+    void write(ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for(ByteBuffer buffer : buffers)
+            remaining += buffer.remaining();
+        while(remaining > 0)
+            remaining -= channel.write(buffers);
+    }
+
+    @Override
+    void transferFrom(FileChannel file, long count) throws IOException {
+        long position = file.position(), end = position + count;
+        while(position < end) {
+            long transferred = file.transferTo(position, end - position, channel);
+            if(transferred == 0 && position >= file.size())
+                throw new IOException("File is shorter than the content length");
+            position += transferred;
+        }
+        file.position(position);
+    }
+
+    @Override
+    int read0(byte[] b, int off, int len) throws IOException {
+        return channel.read(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    void shutdownInput() throws IOException {
+        channel.shutdownInput();
+    }
+
+    @Override
+    void close() throws IOException {
+        server.connections.closed(this);
+        channel.close();
+        wakeReader();
+    }
+
+    @Override
+    boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    void awaitNextRequest() {
+        server.handleAsync(this);
+    }
+}
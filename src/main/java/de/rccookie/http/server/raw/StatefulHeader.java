@@ -69,37 +69,49 @@ class StatefulHeader implements Header {
     @Nullable
     @Override
     public Values put(String key, Values value) {
-        synchronized(response) {
+        response.lock.lock();
+        try {
             if(locked)
                 response.checkState();
             return data.put(key, value);
+        } finally {
+            response.lock.unlock();
         }
     }
 
     @Override
     public Values remove(Object key) {
-        synchronized(response) {
+        response.lock.lock();
+        try {
             if(locked)
                 response.checkState();
             return data.remove(key);
+        } finally {
+            response.lock.unlock();
         }
     }
 
     @Override
     public void putAll(@NotNull Map<? extends String, ? extends Values> m) {
-        synchronized(response) {
+        response.lock.lock();
+        try {
             if(locked)
                 response.checkState();
             data.putAll(m);
+        } finally {
+            response.lock.unlock();
         }
     }
 
     @Override
     public void clear() {
-        synchronized(response) {
+        response.lock.lock();
+        try {
             if(locked)
                 response.checkState();
             data.clear();
+        } finally {
+            response.lock.unlock();
         }
     }
 
@@ -123,8 +135,11 @@ class StatefulHeader implements Header {
 
     @Override
     public Values addSetCookie(@NotNull Cookie cookie) {
-        synchronized(response) {
+        response.lock.lock();
+        try {
             return add("Set-Cookie", Arguments.checkNull(cookie, "cookie").toString(response.request().route()));
+        } finally {
+            response.lock.unlock();
         }
     }
 }
@@ -0,0 +1,209 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+
+import de.rccookie.http.HttpRequest;
+import de.rccookie.http.server.HttpRequestFailure;
+import de.rccookie.util.Console;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A WebSocket connection (RFC 6455) accepted by a {@link RawHttpServer}, see
+ * {@link #accept(HttpRequest.Respondable, Listener)}. Received messages are passed to a
+ * {@link Listener}; no thread is occupied while waiting for messages, unless the server
+ * uses the {@link RawHttpServer.Engine#BLOCKING} engine, which blocks a thread per open
+ * connection in any case. Messages can be sent from any thread.
+ */
+public interface WebSocket {
+
+    // Close codes, RFC 6455 section 7.4.1
+    int NORMAL_CLOSURE = 1000;
+    int GOING_AWAY = 1001;
+    int PROTOCOL_ERROR = 1002;
+    int UNSUPPORTED_DATA = 1003;
+    /**
+     * Reported if the peer closed the connection without a status code. Must not be sent.
+     */
+    int NO_STATUS = 1005;
+    /**
+     * Reported if the connection was closed without a closing handshake. Must not be sent.
+     */
+    int ABNORMAL_CLOSURE = 1006;
+    int INVALID_PAYLOAD = 1007;
+    int POLICY_VIOLATION = 1008;
+    int MESSAGE_TOO_BIG = 1009;
+    int INTERNAL_ERROR = 1011;
+
+
+    /**
+     * Returns the request that opened this WebSocket.
+     *
+     * @return The upgrade request
+     */
+    HttpRequest.Received request();
+
+    /**
+     * Returns the subprotocol selected when accepting the WebSocket.
+     *
+     * @return The subprotocol, or <code>null</code> if none was selected
+     */
+    @Nullable
+    String protocol();
+
+    /**
+     * Returns whether messages can still be sent on this WebSocket, i.e. whether neither
+     * side has started the closing handshake.
+     *
+     * @return Whether the WebSocket is open
+     */
+    boolean isOpen();
+
+    /**
+     * Sends a text message.
+     *
+     * @param text The message to send
+     * @throws IOException If the WebSocket is closed or an I/O error occurs
+     */
+    void sendText(String text) throws IOException;
+
+    /**
+     * Sends a binary message.
+     *
+     * @param data The message to send
+     * @throws IOException If the WebSocket is closed or an I/O error occurs
+     */
+    void sendBinary(byte[] data) throws IOException;
+
+    /**
+     * Sends a ping. The peer answers with a pong containing the same data, which gets
+     * passed to {@link Listener#onPong(WebSocket, byte[])}.
+     *
+     * @param data The data to send with the ping, at most 125 bytes
+     * @throws IOException If the WebSocket is closed or an I/O error occurs
+     */
+    void ping(byte[] data) throws IOException;
+
+    /**
+     * Starts the closing handshake. No more messages can be sent afterwards; messages that
+     * the peer sent before receiving the close frame will still be received. If the peer
+     * does not respond, the connection gets closed after the server's idle timeout. Has
+     * no effect if the closing handshake has already been started.
+     *
+     * @param code The status code to send
+     * @param reason The reason to send, at most 123 bytes in UTF-8
+     * @throws IOException If an I/O error occurs
+     */
+    void close(int code, @Nullable String reason) throws IOException;
+
+    /**
+     * Starts the closing handshake with the status code {@link #NORMAL_CLOSURE}.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    default void close() throws IOException {
+        close(NORMAL_CLOSURE, null);
+    }
+
+
+    /**
+     * Accepts the WebSocket handshake of the given request by sending a
+     * <code>101 Switching Protocols</code> response, after which the connection is used
+     * for the WebSocket. This counts as responding to the request. The request must have
+     * been received by a {@link RawHttpServer} using http/1.1.
+     *
+     * @param request The WebSocket handshake request
+     * @param listener The listener to receive the messages and events of the WebSocket
+     * @return The opened WebSocket
+     * @throws HttpRequestFailure If the request is not a valid WebSocket handshake
+     */
+    static WebSocket accept(HttpRequest.Respondable request, Listener listener) {
+        return accept(request, null, listener);
+    }
+
+    /**
+     * Accepts the WebSocket handshake of the given request by sending a
+     * <code>101 Switching Protocols</code> response, after which the connection is used
+     * for the WebSocket. This counts as responding to the request. The request must have
+     * been received by a {@link RawHttpServer} using http/1.1.
+     *
+     * @param request The WebSocket handshake request
+     * @param protocol The subprotocol to select from the ones requested by the client in
+     *                 <code>Sec-WebSocket-Protocol</code>, or <code>null</code>
+     * @param listener The listener to receive the messages and events of the WebSocket
+     * @return The opened WebSocket
+     * @throws HttpRequestFailure If the request is not a valid WebSocket handshake
+     */
+    static WebSocket accept(HttpRequest.Respondable request, @Nullable String protocol, Listener listener) {
+        return WebSocketConnection.accept(request, protocol, listener);
+    }
+
+
+    /**
+     * Receives the messages and events of a {@link WebSocket}. The methods are called one
+     * at a time in the order of the events, on threads of the server's executor.
+     */
+    interface Listener {
+
+        /**
+         * Called once the WebSocket has been opened, before any message is received.
+         *
+         * @param webSocket The opened WebSocket
+         */
+        default void onOpen(WebSocket webSocket) throws Exception { }
+
+        /**
+         * Called when a complete text message has been received.
+         *
+         * @param webSocket The WebSocket the message was received on
+         * @param text The received message
+         */
+        default void onText(WebSocket webSocket, String text) throws Exception { }
+
+        /**
+         * Called when a complete binary message has been received.
+         *
+         * @param webSocket The WebSocket the message was received on
+         * @param data The received message
+         */
+        default void onBinary(WebSocket webSocket, byte[] data) throws Exception { }
+
+        /**
+         * Called when a ping has been received. The pong is sent automatically.
+         *
+         * @param webSocket The WebSocket the ping was received on
+         * @param data The data sent with the ping
+         */
+        default void onPing(WebSocket webSocket, byte[] data) throws Exception { }
+
+        /**
+         * Called when a pong has been received.
+         *
+         * @param webSocket The WebSocket the pong was received on
+         * @param data The data sent with the pong
+         */
+        default void onPong(WebSocket webSocket, byte[] data) throws Exception { }
+
+        /**
+         * Called once the WebSocket has been closed, either after a closing handshake or
+         * because the connection was lost. No more events follow.
+         *
+         * @param webSocket The closed WebSocket
+         * @param code The status code sent by the peer, {@link #NO_STATUS} if it did not
+         *             send one, or {@link #ABNORMAL_CLOSURE} if there was no closing handshake
+         * @param reason The reason sent by the peer, or <code>null</code>
+         */
+        default void onClose(WebSocket webSocket, int code, @Nullable String reason) throws Exception { }
+
+        /**
+         * Called if one of the other listener methods threw an exception, or if the
+         * connection failed.
+         *
+         * @param webSocket The WebSocket the error occurred on
+         * @param error The error that occurred
+         */
+        default void onError(WebSocket webSocket, Throwable error) {
+            Console.error("Error in WebSocket listener:");
+            Console.error(error);
+        }
+    }
+}
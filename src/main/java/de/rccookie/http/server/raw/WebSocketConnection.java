@@ -0,0 +1,503 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.rccookie.http.HttpRequest;
+import de.rccookie.http.HttpResponse;
+import de.rccookie.http.Method;
+import de.rccookie.http.ResponseCode;
+import de.rccookie.http.server.HttpRequestFailure;
+import de.rccookie.util.Arguments;
+import de.rccookie.util.Console;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Implements {@link WebSocket} on top of an upgraded {@link Connection}. Frames are decoded
+ * directly from the connection's buffer by whichever thread reads from the connection
+ * (an event loop thread, if the server uses the event loop engine); complete messages and
+ * other events are passed to the listener one at a time on the server's executor. While
+ * the listener lags behind by too many events, reading from the connection is paused.
+ */
+final class WebSocketConnection implements WebSocket, Connection.ProtocolHandler {
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    // Opcodes, RFC 6455 section 5.2
+    private static final int CONTINUATION = 0x0;
+    private static final int TEXT = 0x1;
+    private static final int BINARY = 0x2;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xA;
+
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final int INITIAL_MESSAGE_BUFFER_SIZE = 1024;
+    /**
+     * The number of events queued for the listener above which reading from the connection
+     * gets paused, until the listener has caught up to {@link #RESUME_PENDING_EVENTS}.
+     */
+    private static final int MAX_PENDING_EVENTS = 64;
+    private static final int RESUME_PENDING_EVENTS = 16;
+
+
+    private final HttpRequestImpl request;
+    private final Connection connection;
+    @Nullable
+    private final String protocol;
+    private final Listener listener;
+    private final int maxMessageSize;
+
+    // Reader state, only accessed by the thread reading from the connection
+    private int opcode;
+    private boolean fin;
+    private long remaining = -1;
+    private final byte[] mask = new byte[4];
+    private int maskPos;
+    private int messageType = -1;
+    private byte[] message = new byte[INITIAL_MESSAGE_BUFFER_SIZE];
+    private int messageLength = 0;
+    private final byte[] control = new byte[MAX_CONTROL_PAYLOAD];
+    private int controlLength = 0;
+    private boolean receiving = true;
+
+    private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+    private final AtomicInteger pendingEvents = new AtomicInteger();
+    private final AtomicBoolean readPaused = new AtomicBoolean();
+
+    private final Lock writeLock = new ReentrantLock();
+    private volatile boolean closeSent = false;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private WebSocketConnection(HttpRequestImpl request, @Nullable String protocol, Listener listener) {
+        this.request = request;
+        this.connection = request.connection;
+        this.protocol = protocol;
+        this.listener = listener;
+        this.maxMessageSize = request.httpServer.getMaxWebSocketMessageSize();
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocket " + connection;
+    }
+
+    /**
+     * Validates the handshake request and sends the response accepting it. The connection
+     * is taken over once the response has been sent.
+     */
+    static WebSocket accept(HttpRequest.Respondable request, @Nullable String protocol, Listener listener) {
+        Arguments.checkNull(request, "request");
+        Arguments.checkNull(listener, "listener");
+        if(!(request instanceof HttpRequestImpl) || request instanceof Http2Request || !request.httpVersion().equals("1.1"))
+            throw new IllegalArgumentException("WebSockets are only supported on http/1.1 connections of the raw http server");
+        HttpRequestImpl r = (HttpRequestImpl) request;
+
+        if(r.method() != Method.GET || r.upgrade == null || !containsToken(r.upgrade, "websocket")
+           || !containsToken(r.header().getStringOrDefault("Connection", ""), "upgrade"))
+            throw HttpRequestFailure.badRequest("Not a WebSocket handshake");
+        if(!"13".equals(r.header().getString("Sec-WebSocket-Version")))
+            throw new HttpRequestFailure(ResponseCode.UPGRADE_REQUIRED, "Unsupported WebSocket version, expected 13");
+        String key = r.header().getString("Sec-WebSocket-Key");
+        try {
+            if(key == null || Base64.getDecoder().decode(key.trim()).length != 16)
+                throw HttpRequestFailure.badRequest("Invalid Sec-WebSocket-Key");
+        } catch(IllegalArgumentException e) {
+            throw HttpRequestFailure.badRequest("Invalid Sec-WebSocket-Key");
+        }
+        if(protocol != null && !containsToken(r.header().getStringOrDefault("Sec-WebSocket-Protocol", ""), protocol))
+            throw new IllegalArgumentException("Subprotocol '"+protocol+"' was not requested by the client");
+
+        WebSocketConnection webSocket = new WebSocketConnection(r, protocol, listener);
+        r.onUpgrade = webSocket::open;
+        HttpResponse.Sendable response = r.respond(ResponseCode.SWITCHING_PROTOCOLS)
+                .setHeaderField("Upgrade", "websocket")
+                .setHeaderField("Connection", "Upgrade")
+                .setHeaderField("Sec-WebSocket-Accept", acceptKey(key.trim()));
+        if(protocol != null)
+            response.setHeaderField("Sec-WebSocket-Protocol", protocol);
+        response.send();
+        return webSocket;
+    }
+
+    private static boolean containsToken(String list, String token) {
+        for(String t : list.split(","))
+            if(t.trim().equalsIgnoreCase(token))
+                return true;
+        return false;
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch(NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Called once the handshake response has been sent.
+     */
+    private void open() {
+        dispatch(() -> listener.onOpen(this));
+        connection.upgrade(this);
+    }
+
+    @Override
+    public HttpRequest.Received request() {
+        return request;
+    }
+
+    @Override
+    public @Nullable String protocol() {
+        return protocol;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closeSent && !closed.get();
+    }
+
+    @Override
+    public void sendText(String text) throws IOException {
+        byte[] data = Arguments.checkNull(text, "text").getBytes(StandardCharsets.UTF_8);
+        sendFrame(TEXT, data, data.length);
+    }
+
+    @Override
+    public void sendBinary(byte[] data) throws IOException {
+        Arguments.checkNull(data, "data");
+        sendFrame(BINARY, data, data.length);
+    }
+
+    @Override
+    public void ping(byte[] data) throws IOException {
+        Arguments.checkNull(data, "data");
+        if(data.length > MAX_CONTROL_PAYLOAD)
+            throw new IllegalArgumentException("Ping data too long");
+        sendFrame(PING, data, data.length);
+    }
+
+    @Override
+    public void close(int code, @Nullable String reason) throws IOException {
+        if(code < 1000 || code >= 5000 || code == NO_STATUS || code == ABNORMAL_CLOSURE || code == 1015)
+            throw new IllegalArgumentException("Invalid close code: "+code);
+        byte[] reasonBytes = reason != null ? reason.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if(reasonBytes.length > MAX_CONTROL_PAYLOAD - 2)
+            throw new IllegalArgumentException("Close reason too long");
+        if(!isOpen()) return;
+        sendClose(code, reasonBytes);
+        // The idle timeout applies if the peer does not complete the handshake
+        request.httpServer.connections.idle(connection);
+    }
+
+    private void sendClose(int code, byte[] reason) throws IOException {
+        byte[] payload = new byte[code == NO_STATUS ? 0 : 2 + reason.length];
+        if(code != NO_STATUS) {
+            payload[0] = (byte) (code >>> 8);
+            payload[1] = (byte) code;
+            System.arraycopy(reason, 0, payload, 2, reason.length);
+        }
+        sendFrame(CLOSE, payload, payload.length);
+    }
+
+    private void sendFrame(int opcode, byte[] data, int length) throws IOException {
+        byte[] head;
+        if(length <= MAX_CONTROL_PAYLOAD)
+            head = new byte[] { (byte) (0x80 | opcode), (byte) length };
+        else if(length <= 0xFFFF)
+            head = new byte[] { (byte) (0x80 | opcode), 126, (byte) (length >>> 8), (byte) length };
+        else head = new byte[] { (byte) (0x80 | opcode), 127, 0, 0, 0, 0,
+                                 (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length };
+
+        writeLock.lock();
+        try {
+            if(closeSent || closed.get())
+                throw new IOException("WebSocket closed");
+            if(opcode == CLOSE)
+                closeSent = true;
+            connection.write(ByteBuffer.wrap(head), ByteBuffer.wrap(data, 0, length));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+
+    @Override
+    public void onData() {
+        Connection c = connection;
+        try {
+            while(receiving) {
+                if(remaining < 0 && !readFrameHead())
+                    break;
+                int count = (int) Math.min(remaining, c.limit - c.pos);
+                if(opcode >= CLOSE) {
+                    unmask(c.buffer, c.pos, control, controlLength, count);
+                    controlLength += count;
+                }
+                else {
+                    unmask(c.buffer, c.pos, message, messageLength, count);
+                    messageLength += count;
+                }
+                c.pos += count;
+                remaining -= count;
+                if(remaining != 0)
+                    break;
+                remaining = -1;
+                endFrame();
+            }
+        } catch(ProtocolException e) {
+            Console.debug("WebSocket protocol error on", connection+":", e.getMessage());
+            receiving = false;
+            dispatch(() -> {
+                if(!closeSent && !closed.get())
+                    sendClose(e.code, e.getMessage().getBytes(StandardCharsets.UTF_8));
+                terminate(ABNORMAL_CLOSURE, null);
+            });
+        }
+        if(!receiving)
+            c.pos = c.limit;
+        else if(pendingEvents.get() > MAX_PENDING_EVENTS && readPaused.compareAndSet(false, true)) {
+            // The listener can't keep up, stop reading until it caught up
+            c.pauseReading();
+            // The listener may have caught up before reading was paused
+            if(pendingEvents.get() <= RESUME_PENDING_EVENTS && readPaused.compareAndSet(true, false))
+                c.resumeReading();
+        }
+    }
+
+    /**
+     * Decodes the head of the next frame, if it has been received completely.
+     */
+    private boolean readFrameHead() throws ProtocolException {
+        Connection c = connection;
+        byte[] buf = c.buffer;
+        int pos = c.pos, available = c.limit - pos;
+        if(available < 2)
+            return false;
+        int b0 = buf[pos] & 0xFF, b1 = buf[pos+1] & 0xFF;
+        // Checked before waiting for the rest of the head, which may never arrive if the
+        // frame is not masked
+        if((b0 & 0x70) != 0)
+            throw new ProtocolException(PROTOCOL_ERROR, "Reserved bits set");
+        if((b1 & 0x80) == 0)
+            throw new ProtocolException(PROTOCOL_ERROR, "Unmasked client frame");
+        int length7 = b1 & 0x7F;
+        int headLength = 2 + (length7 == 126 ? 2 : length7 == 127 ? 8 : 0) + 4;
+        if(available < headLength)
+            return false;
+
+        long length = length7;
+        if(length7 == 126)
+            length = (buf[pos+2] & 0xFF) << 8 | buf[pos+3] & 0xFF;
+        else if(length7 == 127) {
+            length = 0;
+            for(int i=0; i<8; i++)
+                length = length << 8 | buf[pos+2+i] & 0xFF;
+            if(length < 0)
+                throw new ProtocolException(PROTOCOL_ERROR, "Invalid frame length");
+        }
+
+        opcode = b0 & 0x0F;
+        fin = (b0 & 0x80) != 0;
+        System.arraycopy(buf, pos + headLength - 4, mask, 0, 4);
+        maskPos = 0;
+
+        if(opcode >= CLOSE) {
+            if(opcode > PONG)
+                throw new ProtocolException(PROTOCOL_ERROR, "Unknown opcode");
+            if(!fin || length > MAX_CONTROL_PAYLOAD)
+                throw new ProtocolException(PROTOCOL_ERROR, "Invalid control frame");
+            controlLength = 0;
+        }
+        else {
+            if(opcode == CONTINUATION) {
+                if(messageType < 0)
+                    throw new ProtocolException(PROTOCOL_ERROR, "Unexpected continuation frame");
+            }
+            else if(opcode == TEXT || opcode == BINARY) {
+                if(messageType >= 0)
+                    throw new ProtocolException(PROTOCOL_ERROR, "Expected continuation frame");
+                messageType = opcode;
+                messageLength = 0;
+            }
+            else throw new ProtocolException(PROTOCOL_ERROR, "Unknown opcode");
+
+            if(messageLength + length > maxMessageSize)
+                throw new ProtocolException(MESSAGE_TOO_BIG, "Message too big");
+            if(messageLength + length > message.length)
+                message = Arrays.copyOf(message, (int) Math.max(messageLength + length, Math.min(2L * message.length, maxMessageSize)));
+        }
+
+        c.pos = pos + headLength;
+        remaining = length;
+        return true;
+    }
+
+    private void unmask(byte[] src, int srcPos, byte[] dst, int dstPos, int count) {
+        byte[] mask = this.mask;
+        int m = maskPos;
+        for(int i=0; i<count; i++)
+            dst[dstPos + i] = (byte) (src[srcPos + i] ^ mask[(m + i) & 3]);
+        maskPos = (m + count) & 3;
+    }
+
+    private void endFrame() throws ProtocolException {
+        switch(opcode) {
+            case CLOSE: {
+                if(controlLength == 1)
+                    throw new ProtocolException(PROTOCOL_ERROR, "Invalid close frame");
+                int code = NO_STATUS;
+                String reason = null;
+                if(controlLength >= 2) {
+                    code = (control[0] & 0xFF) << 8 | control[1] & 0xFF;
+                    if(!isValidCloseCode(code))
+                        throw new ProtocolException(PROTOCOL_ERROR, "Invalid close code");
+                    reason = decodeText(control, 2, controlLength - 2);
+                }
+                // No more frames may follow
+                receiving = false;
+                int c = code;
+                String r = reason;
+                dispatch(() -> {
+                    // Echo the close frame if this is the peer initiating the handshake,
+                    // after which the server closes the connection first
+                    if(!closeSent && !closed.get())
+                        sendClose(c, new byte[0]);
+                    terminate(c, r);
+                });
+                break;
+            }
+            case PING: {
+                byte[] data = Arrays.copyOf(control, controlLength);
+                dispatch(() -> {
+                    if(!closeSent && !closed.get())
+                        sendFrame(PONG, data, data.length);
+                    listener.onPing(this, data);
+                });
+                break;
+            }
+            case PONG: {
+                byte[] data = Arrays.copyOf(control, controlLength);
+                dispatch(() -> listener.onPong(this, data));
+                break;
+            }
+            default: {
+                if(!fin) break;
+                int type = messageType;
+                messageType = -1;
+                if(type == TEXT) {
+                    String text = decodeText(message, 0, messageLength);
+                    dispatch(() -> listener.onText(this, text));
+                }
+                else {
+                    byte[] data = Arrays.copyOf(message, messageLength);
+                    dispatch(() -> listener.onBinary(this, data));
+                }
+                messageLength = 0;
+                if(message.length > INITIAL_MESSAGE_BUFFER_SIZE)
+                    message = new byte[INITIAL_MESSAGE_BUFFER_SIZE];
+            }
+        }
+    }
+
+    private static boolean isValidCloseCode(int code) {
+        return (code >= 1000 && code <= 1003) || (code >= 1007 && code <= 1011) || (code >= 3000 && code < 5000);
+    }
+
+    private static String decodeText(byte[] data, int off, int len) throws ProtocolException {
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(data, off, len))
+                    .toString();
+        } catch(CharacterCodingException e) {
+            throw new ProtocolException(INVALID_PAYLOAD, "Invalid UTF-8");
+        }
+    }
+
+    @Override
+    public void onClosed(@Nullable IOException error) {
+        if(closed.get()) return;
+        dispatch(() -> {
+            if(error != null && !closeSent)
+                listener.onError(this, error);
+            terminate(ABNORMAL_CLOSURE, null);
+        });
+    }
+
+    /**
+     * Closes the connection and notifies the listener, if not already closed.
+     */
+    private void terminate(int code, @Nullable String reason) throws Exception {
+        if(!closed.compareAndSet(false, true)) return;
+        try {
+            connection.close();
+        } catch(IOException e) {
+            Console.debug("Error closing connection:", e);
+        }
+        listener.onClose(this, code, reason);
+    }
+
+    /**
+     * Queues the given event to be run on the executor after all previously queued events.
+     */
+    private void dispatch(Event event) {
+        pendingEvents.incrementAndGet();
+        events.add(event);
+        if(dispatching.compareAndSet(false, true))
+            request.httpServer.executor.execute(this::runEvents);
+    }
+
+    private void runEvents() {
+        do {
+            Event event;
+            while((event = events.poll()) != null) {
+                try {
+                    event.run();
+                } catch(Exception e) {
+                    try {
+                        listener.onError(this, e);
+                    } catch(Exception f) {
+                        Console.error("Error in WebSocket error handler:");
+                        Console.error(f);
+                    }
+                }
+                if(pendingEvents.decrementAndGet() <= RESUME_PENDING_EVENTS && readPaused.compareAndSet(true, false))
+                    connection.resumeReading();
+            }
+            dispatching.set(false);
+        } while(!events.isEmpty() && dispatching.compareAndSet(false, true));
+    }
+
+
+    @FunctionalInterface
+    private interface Event {
+        void run() throws Exception;
+    }
+
+    private static final class ProtocolException extends Exception {
+        final int code;
+
+        ProtocolException(int code, String message) {
+            super(message, null, false, false);
+            this.code = code;
+        }
+    }
+}
@@ -10,6 +10,9 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.IdentityHashMap;
 import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import de.rccookie.http.Body;
 import de.rccookie.http.HttpRequest;
@@ -152,7 +155,10 @@ public class HttpBroadcast extends HttpStream {
 
         private final HttpStream out;
         private final HttpRequest.Received request;
-        private boolean connected = true;
+        private volatile boolean connected = true;
+        // Lock instead of monitor to not pin virtual threads while waiting
+        private final Lock lock = new ReentrantLock();
+        private final Condition closed = lock.newCondition();
 
         Connection(HttpStream out, HttpRequest.Received request) {
             this.out = out;
@@ -170,19 +176,29 @@ public class HttpBroadcast extends HttpStream {
             return request;
         }
 
-        public synchronized void waitUntilClosed() throws InterruptedException {
-            while(connected)
-                wait();
+        public void waitUntilClosed() throws InterruptedException {
+            lock.lock();
+            try {
+                while(connected)
+                    closed.await();
+            } finally {
+                lock.unlock();
+            }
         }
 
         @Override
-        public synchronized void close() {
-            if(!connected) return;
-            connected = false;
-            synchronized(connections) {
-                connections.remove(this);
+        public void close() {
+            lock.lock();
+            try {
+                if(!connected) return;
+                connected = false;
+                synchronized(connections) {
+                    connections.remove(this);
+                }
+                closed.signalAll();
+            } finally {
+                lock.unlock();
             }
-            this.notifyAll();
         }
     }
 }
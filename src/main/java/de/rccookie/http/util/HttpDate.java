@@ -0,0 +1,64 @@
+package de.rccookie.http.util;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Provides the current time formatted as http date (IMF-fixdate), as used for the
+ * <code>Date</code> header. The value is only formatted once per second and shared across
+ * all threads, so that responses don't have to format the date themselves.
+ */
+public final class HttpDate {
+
+    private HttpDate() { }
+
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+
+    private static volatile Entry current = new Entry(System.currentTimeMillis() / 1000);
+
+
+    /**
+     * Returns the current time formatted as http date, with a precision of one second.
+     *
+     * @return The current http date, for example "Sun, 06 Nov 1994 08:49:37 GMT"
+     */
+    public static String now() {
+        return entry().value;
+    }
+
+    /**
+     * Returns the current time formatted as http date and encoded as ASCII, with a
+     * precision of one second. The returned array is shared and must not be modified.
+     *
+     * @return The encoded current http date
+     */
+    public static byte[] nowBytes() {
+        return entry().bytes;
+    }
+
+    private static Entry entry() {
+        long second = System.currentTimeMillis() / 1000;
+        Entry entry = current;
+        if(entry.second != second)
+            // Racing threads format the same value, no need to synchronize
+            current = entry = new Entry(second);
+        return entry;
+    }
+
+
+    private static final class Entry {
+        final long second;
+        final String value;
+        final byte[] bytes;
+
+        Entry(long second) {
+            this.second = second;
+            this.value = FORMATTER.format(Instant.ofEpochSecond(second));
+            this.bytes = value.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package de.rccookie.http.util;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+
+import de.rccookie.util.Arguments;
+
+/**
+ * Support for running http handlers on virtual threads. Virtual threads are only
+ * available on Java 21 or newer; this library is shipped as multi-release jar which
+ * contains a different implementation of this class for those Java versions. On older
+ * Java versions, {@link #isSupported()} returns <code>false</code>.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() { }
+
+
+    /**
+     * Returns whether virtual threads are supported by the current runtime.
+     *
+     * @return Whether virtual threads are supported
+     */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Returns a new executor which executes each task on a new virtual thread.
+     *
+     * @param name The name prefix for the threads created by the executor
+     * @return A new virtual thread executor
+     * @throws UnsupportedOperationException If virtual threads are not supported
+     */
+    public static ExecutorService newExecutor(String name) {
+        throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+    }
+
+    /**
+     * Starts recording events where a virtual thread blocked while being pinned to its
+     * carrier thread, e.g. inside a <code>synchronized</code> block, for at least the given
+     * duration, until the returned monitor is closed. The results can be read using
+     * {@link #pinnedCount()} and {@link #pinnedTime()}. Monitoring is shared between all
+     * open monitors: events are recorded using the smallest threshold of the open monitors,
+     * and recording stops once all of them are closed. Has no effect if virtual threads
+     * are not supported.
+     *
+     * @param threshold The minimum duration of a pinned event to be recorded
+     * @return The monitor to close to stop monitoring
+     */
+    public static PinningMonitor monitorPinning(Duration threshold) {
+        Arguments.checkNull(threshold, "threshold");
+        return () -> { };
+    }
+
+    /**
+     * Returns the number of recorded events where a virtual thread was pinned to its carrier
+     * thread while blocking.
+     *
+     * @return The number of pinned events since monitoring was started
+     */
+    public static long pinnedCount() {
+        return 0;
+    }
+
+    /**
+     * Returns the total duration of the recorded events where a virtual thread was pinned
+     * to its carrier thread while blocking.
+     *
+     * @return The total time virtual threads were pinned
+     */
+    public static Duration pinnedTime() {
+        return Duration.ZERO;
+    }
+
+
+    /**
+     * A handle to stop monitoring pinned virtual threads, returned by
+     * {@link #monitorPinning(Duration)}.
+     */
+    public interface PinningMonitor extends AutoCloseable {
+
+        /**
+         * Stops this monitor. Recording continues while other monitors are open. Has no
+         * effect if already closed.
+         */
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,47 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Support for listening on unix domain sockets. Unix domain socket channels are only
+ * available on Java 16 or newer; this library is shipped as multi-release jar which
+ * contains a different implementation of this class for those Java versions. On older
+ * Java versions, {@link #isSupported()} returns <code>false</code>.
+ */
+final class UnixSockets {
+
+    private UnixSockets() { }
+
+
+    /**
+     * Returns whether unix domain sockets are supported by the current runtime.
+     *
+     * @return Whether unix domain sockets are supported
+     */
+    static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Opens a server socket channel bound to a unix domain socket at the given path.
+     *
+     * @param path The path of the socket file to create
+     * @param backlog The maximum number of pending connections, or 0 for platform default
+     * @return The bound server socket channel
+     * @throws UnsupportedOperationException If unix domain sockets are not supported
+     */
+    static ServerSocketChannel bind(Path path, int backlog) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(path), backlog);
+        } catch(IOException e) {
+            server.close();
+            throw e;
+        }
+        return server;
+    }
+}
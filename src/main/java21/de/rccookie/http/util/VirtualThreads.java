@@ -0,0 +1,143 @@
+package de.rccookie.http.util;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.rccookie.util.Arguments;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Support for running http handlers on virtual threads. Virtual threads are only
+ * available on Java 21 or newer; this library is shipped as multi-release jar which
+ * contains a different implementation of this class for those Java versions. On older
+ * Java versions, {@link #isSupported()} returns <code>false</code>.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() { }
+
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    private static final LongAdder PINNED_COUNT = new LongAdder();
+    private static final LongAdder PINNED_NANOS = new LongAdder();
+    /**
+     * The thresholds of the open pinning monitors.
+     */
+    private static final List<Duration> THRESHOLDS = new ArrayList<>();
+    private static RecordingStream pinningMonitor = null;
+    private static Duration monitoredThreshold = null;
+
+
+    /**
+     * Returns whether virtual threads are supported by the current runtime.
+     *
+     * @return Whether virtual threads are supported
+     */
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Returns a new executor which executes each task on a new virtual thread.
+     *
+     * @param name The name prefix for the threads created by the executor
+     * @return A new virtual thread executor
+     * @throws UnsupportedOperationException If virtual threads are not supported
+     */
+    public static ExecutorService newExecutor(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + " ", 0).factory());
+    }
+
+    /**
+     * Starts recording events where a virtual thread blocked while being pinned to its
+     * carrier thread, e.g. inside a <code>synchronized</code> block, for at least the given
+     * duration, until the returned monitor is closed. The results can be read using
+     * {@link #pinnedCount()} and {@link #pinnedTime()}. Monitoring is shared between all
+     * open monitors: events are recorded using the smallest threshold of the open monitors,
+     * and recording stops once all of them are closed. Has no effect if virtual threads
+     * are not supported.
+     *
+     * @param threshold The minimum duration of a pinned event to be recorded
+     * @return The monitor to close to stop monitoring
+     */
+    public static synchronized PinningMonitor monitorPinning(Duration threshold) {
+        Arguments.checkRange(Arguments.checkNull(threshold, "threshold").toNanos(), 0L, null);
+        THRESHOLDS.add(threshold);
+        updatePinningMonitor();
+        boolean[] closed = { false };
+        return () -> {
+            synchronized(VirtualThreads.class) {
+                if(closed[0]) return;
+                closed[0] = true;
+                THRESHOLDS.remove(threshold);
+                updatePinningMonitor();
+            }
+        };
+    }
+
+    /**
+     * Starts, restarts or stops the recording such that it uses the smallest threshold of
+     * the open monitors, if any.
+     */
+    private static void updatePinningMonitor() {
+        Duration threshold = THRESHOLDS.stream().min(Duration::compareTo).orElse(null);
+        if(threshold != null && threshold.equals(monitoredThreshold)) return;
+        if(pinningMonitor != null) {
+            pinningMonitor.close();
+            pinningMonitor = null;
+        }
+        monitoredThreshold = threshold;
+        if(threshold == null) return;
+        RecordingStream stream = new RecordingStream();
+        stream.enable(PINNED_EVENT).withThreshold(threshold).withoutStackTrace();
+        stream.onEvent(PINNED_EVENT, VirtualThreads::onPinned);
+        stream.startAsync();
+        pinningMonitor = stream;
+    }
+
+    private static void onPinned(RecordedEvent event) {
+        PINNED_COUNT.increment();
+        PINNED_NANOS.add(event.getDuration().toNanos());
+    }
+
+    /**
+     * Returns the number of recorded events where a virtual thread was pinned to its carrier
+     * thread while blocking.
+     *
+     * @return The number of pinned events since monitoring was started
+     */
+    public static long pinnedCount() {
+        return PINNED_COUNT.sum();
+    }
+
+    /**
+     * Returns the total duration of the recorded events where a virtual thread was pinned
+     * to its carrier thread while blocking.
+     *
+     * @return The total time virtual threads were pinned
+     */
+    public static Duration pinnedTime() {
+        return Duration.ofNanos(PINNED_NANOS.sum());
+    }
+
+
+    /**
+     * A handle to stop monitoring pinned virtual threads, returned by
+     * {@link #monitorPinning(Duration)}.
+     */
+    public interface PinningMonitor extends AutoCloseable {
+
+        /**
+         * Stops this monitor. Recording continues while other monitors are open. Has no
+         * effect if already closed.
+         */
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,137 @@
+package de.rccookie.http.server;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import de.rccookie.http.HttpRequest;
+import de.rccookie.http.HttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares executing the precompiled {@link ProcessorChain} of a handler with the previous
+ * implementation, which collected the processors into a new list under the lock of the
+ * server's processors and wrapped each of them into a new closure for every request. Runs
+ * with the gc profiler, the allocation rate per operation is reported as
+ * <code>gc.alloc.rate.norm</code>. The request and response are allocation-free proxies,
+ * and the processors and handler do nothing, such that only the dispatch itself is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessorChainBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ProcessorChainBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()
+        ).run();
+    }
+
+
+    private static final Consumer<HttpResponse.Editable> NO_CONFIGURATORS = r -> { };
+
+
+    @Param({ "0", "3", "10" })
+    public int processorCount;
+
+    private HttpRequest.Received request;
+    private final RootProcessor rootProcessor = new RootProcessor();
+    private final List<HttpProcessor> processors = new ArrayList<>();
+    private final HttpProcessor[] extraProcessors = { new HttpProcessor() { } };
+    private final HttpRequestHandler handler = r -> { };
+    private ProcessorChain chain;
+
+    @Setup
+    public void setup() {
+        Object[] proxies = new Object[2];
+        ClassLoader loader = getClass().getClassLoader();
+        proxies[0] = Proxy.newProxyInstance(loader, new Class<?>[] { HttpRequest.Received.class }, (p, m, a) -> {
+            switch(m.getName()) {
+                case "getResponse": return proxies[1];
+                case "getResponseConfigurators": return NO_CONFIGURATORS;
+                case "invalidateResponse":
+                case "clearResponseConfigurators": return p;
+                case "toString": return "request";
+                default: throw new UnsupportedOperationException(m.getName());
+            }
+        });
+        proxies[1] = Proxy.newProxyInstance(loader, new Class<?>[] { HttpResponse.Editable.class }, (p, m, a) -> {
+            switch(m.getName()) {
+                case "request": return proxies[0];
+                case "toString": return "response";
+                default: throw new UnsupportedOperationException(m.getName());
+            }
+        });
+        request = (HttpRequest.Received) proxies[0];
+
+        for(int i=0; i<processorCount; i++)
+            processors.add(new HttpProcessor() { });
+        chain = new ProcessorChain(rootProcessor, processors.toArray(new HttpProcessor[0]), extraProcessors, handler);
+    }
+
+    @Benchmark
+    public HttpRequest.Received chain() {
+        chain.execute(request);
+        return request;
+    }
+
+    @Benchmark
+    public HttpRequest.Received perRequestList() {
+        HttpRequest.Received request = this.request;
+
+        List<HttpProcessor> processors = new ArrayList<>();
+        processors.add(rootProcessor);
+        synchronized(this.processors) {
+            processors.addAll(this.processors);
+        }
+        processors.addAll(Arrays.asList(extraProcessors));
+        processors.add(new HandlerProcessor(handler));
+
+        ThrowingRunnable[] executors = new ThrowingRunnable[processors.size() + 2];
+        executors[executors.length - 1] = () -> { throw new AssertionError("Request handler called next function"); };
+        for(int i=processors.size() - 1; i >= 0; i--) {
+            HttpProcessor processor = processors.get(i);
+            ThrowingRunnable next = executors[i+1];
+            executors[i] = () -> {
+                try {
+                    processor.process(request, next);
+                    if(request.getResponse() == null)
+                        throw new IllegalStateException("Http processor "+processor+" caught exception but did not write response");
+                } catch(Exception e) {
+                    request.invalidateResponse();
+                    throw e;
+                }
+            };
+        }
+        try {
+            executors[0].run();
+        } catch(RuntimeException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new AssertionError(e);
+        }
+        return request;
+    }
+}
@@ -0,0 +1,272 @@
+package de.rccookie.http.server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.stream.Stream;
+
+import de.rccookie.http.Route;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that {@link RouteTrie} matches exactly the same routes as the regex of each
+ * {@link RoutePattern}, and that the most specific pattern is chosen if multiple match.
+ */
+class RouteTrieTest {
+
+    private static final String[] PATTERNS = {
+            "/",
+            "/users",
+            "/users/me",
+            "/users/<id>",
+            "/users/<id:[0-9]+>",
+            "/users/*",
+            "/users/**",
+            "/users/<id>/posts/<post>",
+            "/users/<id:[0-9]+>/posts",
+            "/files/file-*.txt",
+            "/files/<name>",
+            "/files/<name>.<ext>",
+            "/static/<path:.+>",
+            "/static/**",
+            "/docs/**/index",
+            "/docs/**",
+            "/a/b/d",
+            "/a/*/c",
+            "/a/<x>/<y>/**",
+            "/dir",
+            "/dir/",
+            "/dir/<x>",
+            "/**/deep",
+            "/v<version:[0-9]+>/items",
+            "/x**",
+            "/enc/<value>",
+            "/enc/a%20b",
+            "/enc/literal/<rest:[a-z]+\\/[a-z]+>",
+            "/opt/<value:[a-z]*>"
+    };
+
+    private static final Route[] ROUTES = {
+            Route.of("/"),
+            Route.of("/users"),
+            Route.of("/users/me"),
+            Route.of("/users/42"),
+            Route.of("/users/abc"),
+            Route.of("/users/42/posts"),
+            Route.of("/users/abc/posts"),
+            Route.of("/users/42/posts/7"),
+            Route.of("/users/a/b/c"),
+            Route.of("/files/file-1.txt"),
+            Route.of("/files/file-.txt"),
+            Route.of("/files/readme.md"),
+            Route.of("/files/a.b.c"),
+            Route.of("/static"),
+            Route.of("/static/css/app.css"),
+            Route.of("/docs"),
+            Route.of("/docs/index"),
+            Route.of("/docs/a/b/index"),
+            Route.of("/docs/a/b"),
+            Route.of("/a/b/c"),
+            Route.of("/a/b/d"),
+            Route.of("/a/x/c"),
+            Route.of("/a/x/y"),
+            Route.of("/a/x/y/z/w"),
+            Route.of("/dir"),
+            Route.of("/dir/x"),
+            Route.of("/deep"),
+            Route.of("/x/y/deep"),
+            Route.of("/v2/items"),
+            Route.of("/vx/items"),
+            Route.of("/xyz/abc"),
+            Route.of("/nothing"),
+            Route.of("/users/%34%32"),
+            Route.of("/enc/a%20b"),
+            Route.of("/enc/a%2Fb"),
+            Route.of("/enc/%C3%A4%3F"),
+            Route.of("/enc/literal/a/b"),
+            Route.of("/enc/literal/a%2Fb"),
+            Route.of("/opt/abc"),
+            Route.of("/opt/"),
+            // Trailing slashes and empty segments, which Route.of() would drop
+            Route.ofNames("dir", ""),
+            Route.ofNames("users", ""),
+            Route.ofNames("users", "42", ""),
+            Route.ofNames("docs", "index", ""),
+            Route.ofNames("opt", ""),
+            Route.ofNames("a", "", "c"),
+            Route.ofNames("", "deep")
+    };
+
+
+    private static RouteTrie<String> trie(String... patterns) {
+        RouteTrie<String> trie = new RouteTrie<>();
+        for(String pattern : patterns)
+            trie.put(RoutePattern.parse(pattern), pattern);
+        return trie;
+    }
+
+    private static Set<String> regexMatches(Route route) {
+        Set<String> matches = new TreeSet<>();
+        for(String pattern : PATTERNS)
+            if(RoutePattern.parse(pattern).regex().matcher(route.toString()).matches())
+                matches.add(pattern);
+        return matches;
+    }
+
+    static Stream<Route> routes() {
+        return Stream.of(ROUTES);
+    }
+
+
+    @ParameterizedTest
+    @MethodSource("routes")
+    void findsSamePatternsAsRegex(Route route) {
+        RouteTrie<String> trie = trie(PATTERNS);
+        Set<String> expected = regexMatches(route);
+
+        Set<String> actual = new TreeSet<>();
+        trie.forEachMatch(route, actual::add);
+        assertEquals(expected, actual, route.toString());
+
+        String value = trie.get(route);
+        if(expected.isEmpty())
+            assertNull(value, route.toString());
+        else assertTrue(expected.contains(value), route + " matched by " + value);
+        assertEquals(!expected.isEmpty(), trie.matches(route));
+    }
+
+    @ParameterizedTest
+    @MethodSource("routes")
+    void capturesSameVariablesAsRegex(Route route) {
+        RouteTrie<String> trie = trie(PATTERNS);
+        RouteTrie.Match<String> match = trie.match(route);
+        if(match == null) {
+            assertTrue(regexMatches(route).isEmpty(), route.toString());
+            return;
+        }
+        assertEquals(match.value, match.pattern.toString());
+        assertEquals(trie.get(route), match.value);
+
+        Matcher matcher = match.pattern.regex().matcher(route.toString());
+        assertTrue(matcher.matches(), route + " does not match " + match.pattern);
+        String[] expected = new String[match.pattern.variableCount()];
+        for(int i=0; i<expected.length; i++)
+            expected[i] = RoutePattern.decode(matcher.group("v" + i));
+        assertArrayEquals(expected, match.variables, route + " matched by " + match.pattern);
+    }
+
+    @ParameterizedTest
+    @MethodSource("routes")
+    void matchesEachPatternAloneLikeRegex(Route route) {
+        Set<String> expected = regexMatches(route);
+        for(String pattern : PATTERNS)
+            assertEquals(expected.contains(pattern), trie(pattern).matches(route), pattern + " on " + route);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            // Static before segment patterns before wildcards, before '**'
+            "/users/me,         /users/me",
+            "/users/42,         /users/<id:[0-9]+>",
+            "/users/abc,        /users/<id>",
+            "/users/a/b/c,      /users/**",
+            "/users,            /users",
+            // Patterns with literal parts before wildcards
+            "/files/file-1.txt, /files/file-*.txt",
+            "/files/readme.md,  /files/<name>.<ext>",
+            "/files/a,          /files/<name>",
+            // Multi-segment regex before '**'
+            "/static/css/a.css, /static/<path:.+>",
+            "/static,           /static/**",
+            // Backtracking after a matching static segment
+            "/a/b/c,            /a/*/c",
+            "/a/b/d,            /a/b/d",
+            "/a/b/x/y,          /a/<x>/<y>/**",
+            "/docs/a/b/c,       /docs/**",
+            "/y/z/deep,         /**/deep",
+            // Tails before '**'
+            "/x/y/deep,         /x**",
+            "/v12/items,        /v<version:[0-9]+>/items",
+            "/enc/a%20b,        /enc/<value>",
+            "/enc/literal/a/b,  /enc/literal/<rest:[a-z]+\\/[a-z]+>"
+    })
+    void prefersMostSpecificPattern(String route, String expected) {
+        assertEquals(expected, trie(PATTERNS).get(Route.of(route)));
+    }
+
+    @Test
+    void prefersWildcardsInInsertionOrder() {
+        Route route = Route.of("/users/abc");
+        assertEquals("/users/<id>", trie("/users/<id>", "/users/*").get(route));
+        assertEquals("/users/*", trie("/users/*", "/users/<id>").get(route));
+        // Segment patterns are tried before wildcards even if added later
+        assertEquals("/users/<id:[a-z]+>", trie("/users/*", "/users/<id:[a-z]+>").get(route));
+    }
+
+    @Test
+    void matchesDoubleWildcardGreedily() {
+        Route route = Route.of("/docs/a/b/index");
+        assertEquals("/docs/**/index", trie("/docs/**/index").get(route));
+        assertEquals("/docs/**", trie("/docs/**/index", "/docs/**").get(route));
+
+        RouteTrie.Match<String> match = trie("/**/<a>/<b>").match(route);
+        assertNotNull(match);
+        assertArrayEquals(new String[] { "b", "index" }, match.variables);
+    }
+
+    @Test
+    void distinguishesTrailingSlash() {
+        RouteTrie<String> trie = trie("/dir", "/dir/");
+        assertEquals("/dir", trie.get(Route.of("/dir")));
+        assertEquals("/dir/", trie.get(Route.ofNames("dir", "")));
+        assertNull(trie("/dir/<x>").get(Route.ofNames("dir", "")));
+        assertNull(trie("/dir/*").get(Route.ofNames("dir", "")));
+        assertEquals("/dir/**", trie("/dir/**").get(Route.ofNames("dir", "")));
+    }
+
+    @Test
+    void decodesVariables() {
+        RouteTrie.Match<String> match = trie("/enc/<value>").match(Route.of("/enc/a%2Fb%20c"));
+        assertNotNull(match);
+        assertArrayEquals(new String[] { "a/b c" }, match.variables);
+
+        match = trie("/users/<id>/posts/<post>").match(Route.of("/users/%C3%A4/posts/%2B"));
+        assertNotNull(match);
+        assertArrayEquals(new String[] { "ä", "+" }, match.variables);
+    }
+
+    @Test
+    void removesAndCopies() {
+        RouteTrie<String> trie = trie(PATTERNS);
+        RouteTrie<String> copy = trie.copy();
+        assertTrue(trie.removeIf(p -> p.startsWith("/users")));
+        List<String> expected = new ArrayList<>();
+        for(String pattern : PATTERNS)
+            if(!pattern.startsWith("/users")) expected.add(pattern);
+        assertEquals(expected.size(), trie.size());
+        assertEquals(PATTERNS.length, copy.size());
+
+        Set<String> remaining = new HashSet<>();
+        trie.forEach((pattern, value) -> {
+            assertEquals(pattern.toString(), value);
+            remaining.add(value);
+        });
+        assertEquals(new HashSet<>(expected), remaining);
+
+        assertEquals("/**/deep", trie.get(Route.of("/users/deep")));
+        assertNull(trie.get(Route.of("/users/42")));
+        assertEquals("/users/<id:[0-9]+>", copy.get(Route.of("/users/42")));
+    }
+}
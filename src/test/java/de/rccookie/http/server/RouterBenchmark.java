@@ -0,0 +1,107 @@
+package de.rccookie.http.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import de.rccookie.http.Route;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the lookups per second of the {@link RouteTrie} used by {@link HttpServer} with
+ * the previous implementation, which matched the regex of each route pattern one after
+ * another. The routes resemble a typical REST api, with a mix of parameterized and
+ * wildcard routes; the looked up routes hit routes at the start, in the middle and at the
+ * end of the registered routes, and miss all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouterBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RouterBenchmark.class.getSimpleName()).build()).run();
+    }
+
+
+    @Param({ "10", "100", "1000" })
+    public int routeCount;
+
+    private RouteTrie<String> trie;
+    private Map<RoutePattern, String> patterns;
+    private Route[] routes;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        trie = new RouteTrie<>();
+        patterns = new LinkedHashMap<>();
+        for(int i=0; i<routeCount; i++) {
+            String pattern;
+            switch(i % 5) {
+                case 0: pattern = "/api/v1/resource" + i + "/<id>"; break;
+                case 1: pattern = "/api/v1/resource" + i + "/<id>/items/<item:[0-9]+>"; break;
+                case 2: pattern = "/api/v2/<tenant>/resource" + i + "/*"; break;
+                case 3: pattern = "/static/bundle" + i + "/**"; break;
+                default: pattern = "/api/v1/resource" + i + "/<id>/file-*.json"; break;
+            }
+            RoutePattern routePattern = RoutePattern.parse(pattern);
+            trie.put(routePattern, pattern);
+            patterns.put(routePattern, pattern);
+        }
+
+        List<Route> routes = new ArrayList<>();
+        for(int i : new int[] { 0, routeCount / 2, routeCount - 1 }) {
+            switch(i % 5) {
+                case 0: routes.add(Route.of("/api/v1/resource" + i + "/12345")); break;
+                case 1: routes.add(Route.of("/api/v1/resource" + i + "/12345/items/42")); break;
+                case 2: routes.add(Route.of("/api/v2/acme/resource" + i + "/details")); break;
+                case 3: routes.add(Route.of("/static/bundle" + i + "/js/app.min.js")); break;
+                default: routes.add(Route.of("/api/v1/resource" + i + "/12345/file-report.json")); break;
+            }
+        }
+        routes.add(Route.of("/api/v1/unknown/12345"));
+        this.routes = routes.toArray(new Route[0]);
+        // Cache the string representation, as a request's route would be after the first access
+        for(Route route : this.routes)
+            route.toString();
+    }
+
+    private Route nextRoute() {
+        Route route = routes[next];
+        next = (next + 1) % routes.length;
+        return route;
+    }
+
+    @Benchmark
+    public String trie() {
+        return trie.get(nextRoute());
+    }
+
+    @Benchmark
+    public String linearRegex() {
+        Route route = nextRoute();
+        for(Map.Entry<RoutePattern, String> pattern : patterns.entrySet())
+            if(pattern.getKey().matches(route))
+                return pattern.getValue();
+        return null;
+    }
+}
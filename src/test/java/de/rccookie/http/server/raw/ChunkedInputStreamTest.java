@@ -0,0 +1,251 @@
+package de.rccookie.http.server.raw;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.rccookie.http.Body;
+import de.rccookie.http.HttpRequest;
+import de.rccookie.http.HttpResponse;
+import de.rccookie.http.ResponseCode;
+import de.rccookie.http.server.HttpRequestFailure;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests for {@link ChunkedInputStream} on both engines. The server echoes the decoded
+ * request body, and reports some of the request's fields, which may have been added as
+ * trailers, as response fields.
+ */
+class ChunkedInputStreamTest {
+
+    private static final String HEAD = "POST / HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n";
+
+    private final BlockingQueue<IOException> failures = new LinkedBlockingQueue<>();
+    private TestServer server;
+
+    @AfterEach
+    void stopServer() {
+        if(server != null)
+            server.close();
+    }
+
+    private void startServer(RawHttpServer.Engine engine) throws IOException {
+        server = new TestServer(engine, this::respond).start();
+    }
+
+    private void respond(HttpRequest.Respondable request) throws IOException {
+        byte[] body;
+        try {
+            body = request.body().stream().readAllBytes();
+        } catch(EOFException e) {
+            failures.add(e);
+            throw HttpRequestFailure.badRequest("Incomplete body");
+        }
+        HttpResponse.Sendable response = request.respond(ResponseCode.OK).setBody(Body.of(body));
+        response.header().set("X-Checksum", request.header().getString("x-checksum"));
+        response.header().set("X-Host", request.header().getString("host"));
+        response.header().set("X-Content-Type", request.header().getString("content-type"));
+        response.send();
+    }
+
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void decodesChunks(RawHttpServer.Engine engine) throws IOException {
+        startServer(engine);
+        assertEcho(HEAD + "5\r\nHello\r\n1\r\n \r\nA\r\nWorld, 123\r\n0\r\n\r\n", "Hello World, 123");
+        assertEcho(HEAD + "0\r\n\r\n", "");
+        // Hex digits of any case, leading zeros
+        assertEcho(HEAD + "00a\r\n0123456789\r\nB\r\nabcdefghijk\r\n000\r\n\r\n", "0123456789abcdefghijk");
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void ignoresChunkExtensions(RawHttpServer.Engine engine) throws IOException {
+        startServer(engine);
+        assertEcho(HEAD + "5;name=value\r\nHello\r\n" +
+                          "6 ; a ; b=\"x;y\\\"\"\r\n World\r\n" +
+                          "0;last\r\n\r\n", "Hello World");
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void addsTrailers(RawHttpServer.Engine engine) throws IOException {
+        startServer(engine);
+        TestServer.Response response = exchange(HEAD + "5\r\nHello\r\n0\r\nX-Checksum: abc\r\n\r\n");
+        assertEquals("Hello", response.text());
+        assertEquals("abc", response.header.get("x-checksum"));
+
+        // Continuation lines are joined with the previous field
+        response = exchange(HEAD + "5\r\nHello\r\n0\r\nx-checksum:abc\r\n  def \r\n\r\n");
+        assertEquals("abc def", response.header.get("x-checksum"));
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void ignoresProhibitedTrailers(RawHttpServer.Engine engine) throws IOException {
+        startServer(engine);
+        TestServer.Response response = exchange(HEAD + "5\r\nHello\r\n0\r\n" +
+                                                "Host: evil\r\nContent-Type: text/evil\r\nTransfer-Encoding: gzip\r\nX-Checksum: abc\r\n\r\n");
+        assertEquals("Hello", response.text());
+        assertEquals("localhost", response.header.get("x-host"));
+        assertNull(response.header.get("x-content-type"));
+        assertEquals("abc", response.header.get("x-checksum"));
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void readsFramingSplitAcrossPackets(RawHttpServer.Engine engine) throws IOException, InterruptedException {
+        startServer(engine);
+        try(Socket socket = server.connect()) {
+            OutputStream out = socket.getOutputStream();
+            // Each part has to be buffered separately, with the rest of the line still missing
+            String[] parts = { HEAD + "1", "0;ext", "=1\r", "\n0123456789abcdef\r", "\n0", "\r\nX-Check", "sum: abc\r\n", "\r", "\n" };
+            for(String part : parts) {
+                out.write(TestServer.ascii(part));
+                out.flush();
+                Thread.sleep(50);
+            }
+            TestServer.Response response = TestServer.readResponse(socket.getInputStream());
+            assertEquals(200, response.code, response.toString());
+            assertEquals("0123456789abcdef", response.text());
+            assertEquals("abc", response.header.get("x-checksum"));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void readsChunksLargerThanBuffer(RawHttpServer.Engine engine) throws IOException {
+        startServer(engine);
+        // Chunk sizes that don't align with the read buffer, such that size lines end up
+        // split between buffer refills, and large chunks get read past the buffer
+        StringBuilder request = new StringBuilder(HEAD), expected = new StringBuilder();
+        for(int size : new int[] { 8185, 3, 20000, 1, 8191, 65536, 7 }) {
+            request.append(Integer.toHexString(size)).append("\r\n");
+            for(int i=0; i<size; i++) {
+                char c = (char) ('a' + (expected.length() % 26));
+                request.append(c);
+                expected.append(c);
+            }
+            request.append("\r\n");
+        }
+        request.append("0\r\n\r\n");
+        assertEcho(request.toString(), expected.toString());
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void rejectsMalformedChunks(RawHttpServer.Engine engine) throws IOException {
+        startServer(engine);
+        String[] bodies = {
+                "\r\nHello\r\n0\r\n\r\n",       // Missing size
+                "G\r\nHello\r\n0\r\n\r\n",      // Invalid hex digit
+                "5x\r\nHello\r\n0\r\n\r\n",     // Garbage after size
+                "-5\r\nHello\r\n0\r\n\r\n",     // Negative size
+                "5\r\nHello!\r\n0\r\n\r\n",     // Data longer than size
+                "5\r\nHelloX0\r\n\r\n"          // Data not followed by line break
+        };
+        for(String body : bodies)
+            assertStatus(HEAD + body, 400);
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void rejectsOversizedChunk(RawHttpServer.Engine engine) throws IOException {
+        startServer(engine);
+        server.setMaxChunkSize(16);
+        assertEcho(HEAD + "10\r\n0123456789abcdef\r\n10\r\n0123456789abcdef\r\n0\r\n\r\n", "0123456789abcdef0123456789abcdef");
+        assertStatus(HEAD + "11\r\n", 413);
+        assertStatus(HEAD + "ffffffffffffffffffffffff\r\n", 413);
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void rejectsOversizedBody(RawHttpServer.Engine engine) throws IOException {
+        startServer(engine);
+        server.setMaxBodySize(32);
+        assertEcho(HEAD + "10\r\n0123456789abcdef\r\n10\r\n0123456789abcdef\r\n0\r\n\r\n", "0123456789abcdef0123456789abcdef");
+        assertStatus(HEAD + "10\r\n0123456789abcdef\r\n10\r\n0123456789abcdef\r\n1\r\n", 413);
+        assertStatus(HEAD + "21\r\n", 413);
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void failsOnPrematureEnd(RawHttpServer.Engine engine) throws IOException, InterruptedException {
+        startServer(engine);
+        String[] bodies = { "", "5", "5\r\nHel", "5\r\nHello", "5\r\nHello\r\n", "5\r\nHello\r\n0\r\n", "5\r\nHello\r\n0\r\nX-Checksum: abc\r\n" };
+        for(String body : bodies) {
+            try(Socket socket = server.connect()) {
+                socket.getOutputStream().write(TestServer.ascii(HEAD + body));
+                socket.shutdownOutput();
+                InputStream in = socket.getInputStream();
+                TestServer.Response response = TestServer.readResponse(in);
+                assertEquals(400, response.code, body);
+                assertEquals(-1, in.read());
+            }
+            assertInstanceOf(EOFException.class, failures.poll(10, TimeUnit.SECONDS), body);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void readsRequestPipelinedAfterChunkedBody(RawHttpServer.Engine engine) throws IOException {
+        startServer(engine);
+        try(Socket socket = server.connect()) {
+            socket.getOutputStream().write(TestServer.ascii(
+                    HEAD + "5\r\nHello\r\n0\r\nX-Checksum: abc\r\n\r\n" +
+                    HEAD + "3\r\nabc\r\n0\r\n\r\n" +
+                    "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+            InputStream in = socket.getInputStream();
+            TestServer.Response response = TestServer.readResponse(in);
+            assertEquals("Hello", response.text());
+            assertEquals("abc", response.header.get("x-checksum"));
+            response = TestServer.readResponse(in);
+            assertEquals("abc", response.text());
+            assertNull(response.header.get("x-checksum"));
+            response = TestServer.readResponse(in);
+            assertEquals(200, response.code);
+            assertEquals("", response.text());
+            assertEquals("keep-alive", response.header.get("connection"));
+        }
+    }
+
+
+    private TestServer.Response exchange(String request) throws IOException {
+        try(Socket socket = server.connect()) {
+            socket.getOutputStream().write(TestServer.ascii(request));
+            TestServer.Response response = TestServer.readResponse(socket.getInputStream());
+            assertEquals(200, response.code, response.toString());
+            return response;
+        }
+    }
+
+    private void assertEcho(String request, String expectedBody) throws IOException {
+        assertEquals(expectedBody, exchange(request).text());
+    }
+
+    /**
+     * Asserts that the server responds to the request with the given error code, and
+     * closes the connection afterwards as the rest of the body cannot be skipped.
+     */
+    private void assertStatus(String request, int code) throws IOException {
+        try(Socket socket = server.connect()) {
+            socket.getOutputStream().write(TestServer.ascii(request));
+            InputStream in = socket.getInputStream();
+            TestServer.Response response = TestServer.readResponse(in);
+            assertEquals(code, response.code, request);
+            assertEquals(-1, in.read());
+        }
+    }
+}
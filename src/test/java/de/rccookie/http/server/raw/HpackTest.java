@@ -0,0 +1,232 @@
+package de.rccookie.http.server.raw;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link HpackDecoder} and {@link HpackEncoder}, using the examples of RFC 7541
+ * appendix C and round trips between the encoder and decoder.
+ */
+class HpackTest {
+
+    @Test
+    void decodesRequestsWithoutHuffman() throws Exception {
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+        // C.3.1
+        assertFields(decode(decoder, "828684410f7777772e6578616d706c652e636f6d"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        // C.3.2, references the entry added by the first request
+        assertFields(decode(decoder, "828684be58086e6f2d6361636865"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+        // C.3.3
+        assertFields(decode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"),
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+        // Dynamic table is now [custom-key, cache-control, :authority]
+        assertFields(decode(decoder, "bebfc0"),
+                "custom-key", "custom-value", "cache-control", "no-cache", ":authority", "www.example.com");
+    }
+
+    @Test
+    void decodesRequestsWithHuffman() throws Exception {
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+        // C.4.1 - C.4.3
+        assertFields(decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertFields(decode(decoder, "828684be5886a8eb10649cbf"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+        assertFields(decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"),
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+    }
+
+    @Test
+    void evictsEntriesFromDynamicTable() throws Exception {
+        // C.6, responses with huffman and a table size of 256
+        HpackDecoder decoder = new HpackDecoder(256);
+        assertFields(decode(decoder, "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3"),
+                ":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+        // Adding ':status: 307' evicts ':status: 302'
+        assertFields(decode(decoder, "4883640effc1c0bf"),
+                ":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+        assertFields(decode(decoder, "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007"),
+                ":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT", "location", "https://www.example.com",
+                "content-encoding", "gzip", "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+        // Only the three entries added by the last response fit into the table
+        assertFields(decode(decoder, "bebfc0"),
+                "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1", "content-encoding", "gzip", "date", "Mon, 21 Oct 2013 20:13:22 GMT");
+        assertCompressionError(decoder, "c1");
+    }
+
+    @Test
+    void appliesTableSizeUpdates() throws Exception {
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+        decode(decoder, "828684410f7777772e6578616d706c652e636f6d");
+        assertFields(decode(decoder, "be"), ":authority", "www.example.com");
+        // Size 0 empties the table, the following update restores the size
+        assertFields(decode(decoder, "203fe11f82"), ":method", "GET");
+        assertCompressionError(decoder, "be");
+    }
+
+    @Test
+    void rejectsInvalidTableSizeUpdates() {
+        // Larger than the announced limit
+        assertCompressionError(new HpackDecoder(256), "3fe201");
+        // After the first header field of the block
+        assertCompressionError(new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE), "8220");
+    }
+
+    @Test
+    void rejectsMalformedBlocks() {
+        // Index 0
+        assertCompressionError(new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE), "80");
+        // Index past the static table with an empty dynamic table
+        assertCompressionError(new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE), "be");
+        // String longer than the header block
+        assertCompressionError(new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE), "400a6375");
+        // Integer overflow
+        assertCompressionError(new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE), "ffffffffff0f");
+        // Huffman string padded with a zero bit
+        assertCompressionError(new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE), "40811e0161");
+        // Huffman string containing EOS
+        assertCompressionError(new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE), "4084ffffffff0161");
+    }
+
+    @Test
+    void roundTripsThroughDynamicTable() throws Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+        String[] fields = {
+                ":status", "200",
+                "content-type", "text/html; charset=utf-8",
+                "x-custom", "custom value",
+                "content-length", "1234",
+                "set-cookie", "session=abc"
+        };
+
+        byte[] first = encode(encoder, fields);
+        assertFields(decode(decoder, first), fields);
+
+        byte[] second = encode(encoder, fields);
+        assertFields(decode(decoder, second), fields);
+        // ':status: 200' is in the static table, content-type and x-custom are indexed in the
+        // dynamic table, content-length and set-cookie reuse the indexed name only
+        assertEquals(0x88, second[0] & 0xFF);
+        assertTrue(second.length < first.length / 2, "Second block is not compressed: "+second.length+" vs "+first.length);
+    }
+
+    @Test
+    void roundTripsHuffmanAndLatin1() throws Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+        StringBuilder allOctets = new StringBuilder();
+        for(char c=0; c<256; c++)
+            allOctets.append(c);
+        String[] fields = {
+                "cache-control", "max-age=3600, must-revalidate",
+                "x-octets", allOctets.toString(),
+                "x-empty", ""
+        };
+        byte[] block = encode(encoder, fields);
+        assertFields(decode(decoder, block), fields);
+        // Common text is shorter huffman encoded, the first value is sent that way
+        assertEquals(0x80, block[1] & 0x80);
+
+        for(int length=0; length<64; length++) {
+            String value = allOctets.substring(32, 32 + length);
+            assertEquals(value, Hpack.huffmanDecode(huffman(value), 0, Hpack.huffmanLength(value)));
+        }
+    }
+
+    @Test
+    void signalsTableSizeChanges() throws Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+        String[] fields = { "x-custom", "custom value" };
+        assertFields(decode(decoder, encode(encoder, fields)), fields);
+
+        // The peer shrinks the table to 0 and grows it again before the next block, the
+        // decoder has to see both updates to evict the entry
+        encoder.setMaxTableSize(0);
+        encoder.setMaxTableSize(64);
+        byte[] block = encode(encoder, fields);
+        assertEquals(0x20, block[0] & 0xFF);
+        assertEquals(0x3f, block[1] & 0xFF);
+        assertEquals(0x21, block[2] & 0xFF);
+        assertFields(decode(decoder, block), fields);
+
+        // The entry was added again and fits into the smaller table
+        byte[] indexed = encode(encoder, fields);
+        assertArrayEquals(new byte[] { (byte) 0xbe }, indexed);
+        assertFields(decode(decoder, indexed), fields);
+
+        // Sizes above the default are capped to the default
+        encoder.setMaxTableSize(1 << 20);
+        byte[] capped = encode(encoder, fields);
+        assertArrayEquals(new byte[] { 0x3f, (byte) 0xe1, 0x1f, (byte) 0xbe }, capped);
+        assertFields(decode(decoder, capped), fields);
+    }
+
+
+    private static byte[] encode(HpackEncoder encoder, String... fields) {
+        ResponseHead out = ResponseHead.acquire();
+        try {
+            encoder.startBlock(out);
+            for(int i=0; i<fields.length; i+=2)
+                encoder.encode(fields[i], fields[i+1], out);
+            ByteBuffer buffer = out.buffer();
+            byte[] block = new byte[buffer.remaining()];
+            buffer.get(block);
+            return block;
+        } finally {
+            out.release();
+        }
+    }
+
+    private static byte[] huffman(String str) {
+        ResponseHead out = ResponseHead.acquire();
+        try {
+            Hpack.huffmanEncode(str, out);
+            ByteBuffer buffer = out.buffer();
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            assertEquals(Hpack.huffmanLength(str), data.length);
+            return data;
+        } finally {
+            out.release();
+        }
+    }
+
+    private static List<String> decode(HpackDecoder decoder, String hex) throws Http2Exception {
+        return decode(decoder, hex(hex));
+    }
+
+    private static List<String> decode(HpackDecoder decoder, byte[] block) throws Http2Exception {
+        List<String> fields = new ArrayList<>();
+        decoder.decode(block, 0, block.length, fields);
+        return fields;
+    }
+
+    private static void assertFields(List<String> actual, String... expected) {
+        assertEquals(Arrays.asList(expected), actual);
+    }
+
+    private static void assertCompressionError(HpackDecoder decoder, String hex) {
+        Http2Exception e = assertThrows(Http2Exception.class, () -> decode(decoder, hex));
+        assertEquals(Http2Exception.COMPRESSION_ERROR, e.errorCode);
+    }
+
+    static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i=0; i<bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+        return bytes;
+    }
+}
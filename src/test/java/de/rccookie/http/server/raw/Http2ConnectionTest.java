@@ -0,0 +1,615 @@
+package de.rccookie.http.server.raw;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import de.rccookie.http.Body;
+import de.rccookie.http.HttpRequest;
+import de.rccookie.http.ResponseCode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link Http2Connection}, using a minimal http/2 client on a plain socket
+ * against a running {@link TestServer}.
+ */
+class Http2ConnectionTest {
+
+    // Frame types and flags, RFC 9113 section 6
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private TestServer server;
+
+    @AfterEach
+    void stopServer() {
+        release.countDown();
+        if(server != null)
+            server.close();
+    }
+
+    private void startServer(RawHttpServer.Engine engine) throws IOException {
+        server = new TestServer(engine, this::respond).start();
+    }
+
+    /**
+     * Responds to <code>/large/&lt;size&gt;</code> with a body of the given size, to
+     * <code>/hold</code> once the test releases the request and with the size of the request
+     * body, to <code>/echo</code> with the size of the request body, and with the route
+     * otherwise.
+     */
+    private void respond(HttpRequest.Respondable request) throws Exception {
+        String route = request.route().toString();
+        byte[] body;
+        if(route.startsWith("/large/"))
+            body = pattern(Integer.parseInt(route.substring(7)));
+        else if(route.equals("/hold")) {
+            release.await();
+            body = (request.body().stream().readAllBytes().length + "").getBytes();
+        }
+        else if(route.equals("/echo"))
+            body = (request.body().stream().readAllBytes().length + "").getBytes();
+        else body = ("Hello " + route).getBytes(StandardCharsets.UTF_8);
+        request.respond(ResponseCode.OK).setBody(Body.of(body)).send();
+    }
+
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void exchangesPrefaceAndSettings(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        try(Client client = new Client(server.connect())) {
+            client.out.write(Http2Connection.PREFACE);
+            client.write(SETTINGS, 0, 0, new byte[0]);
+
+            Frame settings = client.read();
+            assertEquals(SETTINGS, settings.type);
+            assertEquals(0, settings.flags);
+            assertEquals(128, setting(settings, SETTINGS_MAX_CONCURRENT_STREAMS));
+
+            Frame windowUpdate = client.read();
+            assertEquals(WINDOW_UPDATE, windowUpdate.type);
+            assertEquals(0, windowUpdate.streamId);
+            assertEquals((1 << 20) - 65535, windowUpdate.payloadInt(0));
+
+            Frame ack = client.read();
+            assertEquals(SETTINGS, ack.type);
+            assertEquals(ACK, ack.flags);
+            assertEquals(0, ack.payload.length);
+
+            client.write(SETTINGS, ACK, 0, new byte[0]);
+            client.request(1, "/index", true);
+            client.assertResponse(1, "Hello /index");
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void answersPing(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        try(Client client = connect()) {
+            byte[] payload = { 1, 2, 3, 4, 5, 6, 7, 8 };
+            client.write(PING, 0, 0, payload);
+            Frame pong = client.read();
+            assertEquals(PING, pong.type);
+            assertEquals(ACK, pong.flags);
+            assertArrayEquals(payload, pong.payload);
+
+            // Acknowledgements are not answered
+            client.write(PING, ACK, 0, payload);
+            client.assertNoFrame();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void servesConcurrentStreams(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        try(Client client = connect()) {
+            for(int id=1; id<=9; id+=2)
+                client.request(id, "/stream/"+id, true);
+            List<Integer> remaining = new ArrayList<>(List.of(1, 3, 5, 7, 9));
+            while(!remaining.isEmpty()) {
+                Frame frame = client.read();
+                if(frame.type != DATA) continue;
+                assertEquals("Hello /stream/"+frame.streamId, new String(frame.payload, StandardCharsets.UTF_8));
+                assertEquals(END_STREAM, frame.flags & END_STREAM);
+                assertTrue(remaining.remove((Integer) frame.streamId));
+            }
+        }
+    }
+
+    @Test
+    void waitsForStreamWindow() throws Exception {
+        startServer(RawHttpServer.Engine.BLOCKING);
+        try(Client client = connect(SETTINGS_INITIAL_WINDOW_SIZE, 100)) {
+            client.request(1, "/large/1000", true);
+            client.assertHeaders(1, "200");
+            assertData(client.read(DATA), 1, 0, 100, false);
+            client.assertNoFrame();
+
+            // A connection window update does not help, the stream window is exhausted
+            client.windowUpdate(0, 1000);
+            client.assertNoFrame();
+
+            client.windowUpdate(1, 500);
+            assertData(client.read(DATA), 1, 100, 500, false);
+            client.windowUpdate(1, 500);
+            assertData(client.read(DATA), 1, 600, 400, true);
+        }
+    }
+
+    @Test
+    void appliesInitialWindowSizeToOpenStreams() throws Exception {
+        startServer(RawHttpServer.Engine.BLOCKING);
+        try(Client client = connect(SETTINGS_INITIAL_WINDOW_SIZE, 100)) {
+            client.request(1, "/large/1000", true);
+            client.assertHeaders(1, "200");
+            assertData(client.read(DATA), 1, 0, 100, false);
+
+            // The change of the initial window size also applies to the already open stream
+            client.write(SETTINGS, 0, 0, settings(SETTINGS_INITIAL_WINDOW_SIZE, 400));
+            Frame first = client.read(), second = client.read();
+            Frame data = first.type == DATA ? first : second, ack = first.type == DATA ? second : first;
+            assertData(data, 1, 100, 300, false);
+            assertEquals(SETTINGS, ack.type);
+            assertEquals(ACK, ack.flags);
+            client.assertNoFrame();
+        }
+    }
+
+    @Test
+    void waitsForConnectionWindow() throws Exception {
+        startServer(RawHttpServer.Engine.BLOCKING);
+        try(Client client = connect(SETTINGS_INITIAL_WINDOW_SIZE, 1 << 20)) {
+            client.request(1, "/large/70000", true);
+            client.assertHeaders(1, "200");
+            readData(client, 1, 0, 65535, false);
+            client.assertNoFrame();
+
+            // The stream window is large enough, but the connection window is exhausted
+            client.windowUpdate(1, 10000);
+            client.assertNoFrame();
+
+            client.windowUpdate(0, 10000);
+            readData(client, 1, 65535, 70000 - 65535, true);
+        }
+    }
+
+    @Test
+    void announcesConsumedRequestBody() throws Exception {
+        startServer(RawHttpServer.Engine.BLOCKING);
+        try(Client client = connect()) {
+            client.request(1, "/echo", false);
+            client.write(DATA, 0, 1, new byte[16384]);
+            client.write(DATA, 0, 1, new byte[16384]);
+            client.write(DATA, 0, 1, new byte[7232]);
+
+            // Half of the stream window has been consumed by the handler
+            Frame windowUpdate;
+            do windowUpdate = client.read(WINDOW_UPDATE);
+            while(windowUpdate.streamId != 1);
+            assertTrue(windowUpdate.payloadInt(0) >= 65535 / 2);
+
+            client.write(DATA, END_STREAM, 1, new byte[0]);
+            client.assertResponse(1, "40000");
+        }
+    }
+
+    @Test
+    void resetsStreamExceedingReceiveWindow() throws Exception {
+        startServer(RawHttpServer.Engine.BLOCKING);
+        try(Client client = connect()) {
+            // The handler does not read the body until released, so the window stays exhausted
+            client.request(1, "/hold", false);
+            for(int i=0; i<4; i++)
+                client.write(DATA, 0, 1, new byte[16384]);
+
+            Frame reset = client.read(RST_STREAM);
+            assertEquals(1, reset.streamId);
+            assertEquals(Http2Exception.FLOW_CONTROL_ERROR, reset.payloadInt(0));
+
+            // The connection stays usable
+            client.request(3, "/after", true);
+            client.assertResponse(3, "Hello /after");
+        }
+    }
+
+    @Test
+    void closesConnectionExceedingReceiveWindow() throws Exception {
+        startServer(RawHttpServer.Engine.BLOCKING);
+        try(Client client = connect()) {
+            // Each stream stays within its window, but together they exceed the 1 MiB
+            // connection window with the last frame
+            for(int id=1; id<=31; id+=2) {
+                client.request(id, "/hold", false);
+                client.write(DATA, 0, id, new byte[16384]);
+                client.write(DATA, 0, id, new byte[16384]);
+                client.write(DATA, 0, id, new byte[16384]);
+                client.write(DATA, 0, id, new byte[16383]);
+            }
+            client.request(33, "/hold", false);
+            client.write(DATA, 0, 33, new byte[(1 << 20) - 16 * 65535 + 1]);
+            client.assertGoAway(Http2Exception.FLOW_CONTROL_ERROR);
+        }
+    }
+
+    @Test
+    void refusesStreamsAboveConcurrencyLimit() throws Exception {
+        startServer(RawHttpServer.Engine.BLOCKING);
+        try(Client client = connect()) {
+            Frame settings = client.serverSettings;
+            int limit = setting(settings, SETTINGS_MAX_CONCURRENT_STREAMS);
+            for(int i=0; i<limit; i++)
+                client.request(2*i+1, "/hold", true);
+            client.request(2*limit+1, "/refused", true);
+
+            Frame reset = client.read(RST_STREAM);
+            assertEquals(2*limit+1, reset.streamId);
+            assertEquals(Http2Exception.REFUSED_STREAM, reset.payloadInt(0));
+
+            // Once the held streams finish, new streams are accepted again
+            release.countDown();
+            int finished = 0;
+            while(finished < limit) {
+                Frame frame = client.read();
+                if(frame.type == DATA && (frame.flags & END_STREAM) != 0)
+                    finished++;
+            }
+            client.request(2*limit+3, "/accepted", true);
+            client.assertResponse(2*limit+3, "Hello /accepted");
+        }
+    }
+
+    @Test
+    void sendsGoAwayOnProtocolErrors() throws Exception {
+        startServer(RawHttpServer.Engine.BLOCKING);
+
+        assertGoAway(Http2Exception.PROTOCOL_ERROR, c -> c.write(DATA, 0, 0, new byte[1]));
+        assertGoAway(Http2Exception.PROTOCOL_ERROR, c -> c.write(DATA, 0, 1, new byte[1]));
+        assertGoAway(Http2Exception.PROTOCOL_ERROR, c -> c.write(HEADERS, END_HEADERS | END_STREAM, 2, c.requestBlock("/even")));
+        assertGoAway(Http2Exception.PROTOCOL_ERROR, c -> c.write(PUSH_PROMISE, END_HEADERS, 1, new byte[4]));
+        assertGoAway(Http2Exception.PROTOCOL_ERROR, c -> c.write(CONTINUATION, END_HEADERS, 1, new byte[0]));
+        assertGoAway(Http2Exception.PROTOCOL_ERROR, c -> {
+            c.write(HEADERS, END_STREAM, 1, c.requestBlock("/continued"));
+            c.write(PING, 0, 0, new byte[8]);
+        });
+        assertGoAway(Http2Exception.PROTOCOL_ERROR, c -> c.write(SETTINGS, 0, 1, new byte[0]));
+        assertGoAway(Http2Exception.PROTOCOL_ERROR, c -> c.write(SETTINGS, 0, 0, settings(SETTINGS_MAX_FRAME_SIZE, 1000)));
+        assertGoAway(Http2Exception.PROTOCOL_ERROR, c -> c.windowUpdate(0, 0));
+        assertGoAway(Http2Exception.FRAME_SIZE_ERROR, c -> c.write(SETTINGS, 0, 0, new byte[5]));
+        assertGoAway(Http2Exception.FRAME_SIZE_ERROR, c -> c.write(PING, 0, 0, new byte[7]));
+        // Only the frame head, the server must not wait for the payload
+        assertGoAway(Http2Exception.FRAME_SIZE_ERROR, c -> c.out.write(new byte[] { 0, 0x40, 0x01, DATA, 0, 0, 0, 0, 1 }));
+        assertGoAway(Http2Exception.FLOW_CONTROL_ERROR, c -> c.write(SETTINGS, 0, 0, settings(SETTINGS_INITIAL_WINDOW_SIZE, 1L << 31)));
+        assertGoAway(Http2Exception.FLOW_CONTROL_ERROR, c -> c.windowUpdate(0, Integer.MAX_VALUE));
+        assertGoAway(Http2Exception.COMPRESSION_ERROR, c -> c.write(HEADERS, END_HEADERS | END_STREAM, 1, new byte[] { (byte) 0x80 }));
+
+        try(Client client = new Client(server.connect())) {
+            client.out.write(TestServer.ascii("PRI * HTTP/2.0\r\n\r\nXX\r\n\r\n"));
+            client.read(SETTINGS);
+            client.assertGoAway(Http2Exception.PROTOCOL_ERROR);
+        }
+    }
+
+    @Test
+    void resetsMalformedRequests() throws Exception {
+        startServer(RawHttpServer.Engine.BLOCKING);
+        try(Client client = connect()) {
+            // Missing :path, connection specific field
+            client.write(HEADERS, END_HEADERS | END_STREAM, 1, client.headerBlock(":method", "GET", ":scheme", "http"));
+            assertEquals(Http2Exception.PROTOCOL_ERROR, client.read(RST_STREAM).payloadInt(0));
+            client.write(HEADERS, END_HEADERS | END_STREAM, 3, client.headerBlock(":method", "GET", ":scheme", "http", ":path", "/", "connection", "close"));
+            assertEquals(Http2Exception.PROTOCOL_ERROR, client.read(RST_STREAM).payloadInt(0));
+
+            client.request(5, "/valid", true);
+            client.assertResponse(5, "Hello /valid");
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void upgradesHttp11Connection(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        try(Client client = new Client(server.connect())) {
+            // The settings of the upgrade request apply to the response on stream 1
+            String settings = Base64.getUrlEncoder().withoutPadding().encodeToString(settings(SETTINGS_INITIAL_WINDOW_SIZE, 100));
+            client.out.write(TestServer.ascii("GET /large/1000 HTTP/1.1\r\n" +
+                                              "Host: localhost\r\n" +
+                                              "Connection: Upgrade, HTTP2-Settings\r\n" +
+                                              "Upgrade: h2c\r\n" +
+                                              "HTTP2-Settings: " + settings + "\r\n" +
+                                              "\r\n"));
+            TestServer.Response switching = TestServer.readResponse(client.in);
+            assertEquals(101, switching.code);
+            assertEquals("h2c", switching.header.get("upgrade"));
+
+            client.out.write(Http2Connection.PREFACE);
+            client.write(SETTINGS, 0, 0, new byte[0]);
+            client.read(SETTINGS);
+
+            client.assertHeaders(1, "200");
+            assertData(client.read(DATA), 1, 0, 100, false);
+            client.windowUpdate(1, 900);
+            assertData(client.read(DATA), 1, 100, 900, true);
+
+            // Further requests use new streams of the connection
+            client.request(3, "/next", true);
+            client.assertResponse(3, "Hello /next");
+        }
+    }
+
+    @Test
+    void ignoresUpgradeWhenDisabled() throws Exception {
+        startServer(RawHttpServer.Engine.BLOCKING);
+        server.setHttp2Enabled(false);
+        try(Socket socket = server.connect()) {
+            socket.getOutputStream().write(TestServer.ascii("GET /plain HTTP/1.1\r\n" +
+                                                            "Host: localhost\r\n" +
+                                                            "Connection: Upgrade, HTTP2-Settings\r\n" +
+                                                            "Upgrade: h2c\r\n" +
+                                                            "HTTP2-Settings: \r\n" +
+                                                            "\r\n"));
+            TestServer.Response response = TestServer.readResponse(socket.getInputStream());
+            assertEquals(200, response.code);
+            assertEquals("Hello /plain", response.text());
+        }
+    }
+
+
+    private Client connect(long... settings) throws IOException {
+        Client client = new Client(server.connect());
+        client.out.write(Http2Connection.PREFACE);
+        client.write(SETTINGS, 0, 0, settings(settings));
+        client.serverSettings = client.read(SETTINGS);
+        client.read(WINDOW_UPDATE);
+        assertEquals(ACK, client.read(SETTINGS).flags);
+        return client;
+    }
+
+    private void assertGoAway(int errorCode, ClientAction action) throws Exception {
+        try(Client client = connect()) {
+            action.run(client);
+            client.assertGoAway(errorCode);
+        }
+    }
+
+    /**
+     * Reads <code>DATA</code> frames of the stream until the given number of bytes of the
+     * response body has been received. The end of the stream may also be sent in a separate,
+     * empty frame.
+     */
+    private static void readData(Client client, int streamId, int offset, int length, boolean end) throws IOException {
+        int received = 0;
+        boolean ended = false;
+        while(received < length || (end && !ended)) {
+            Frame data = client.read(DATA);
+            assertEquals(streamId, data.streamId);
+            assertArrayEquals(Arrays.copyOfRange(pattern(offset + received + data.payload.length), offset + received, offset + received + data.payload.length), data.payload);
+            received += data.payload.length;
+            ended = (data.flags & END_STREAM) != 0;
+            assertTrue(received <= length && (!ended || end && received == length), "Unexpected "+data);
+        }
+    }
+
+    private static void assertData(Frame frame, int streamId, int offset, int length, boolean end) {
+        assertEquals(DATA, frame.type);
+        assertEquals(streamId, frame.streamId);
+        assertEquals(end, (frame.flags & END_STREAM) != 0, "END_STREAM");
+        assertArrayEquals(Arrays.copyOfRange(pattern(offset + length), offset, offset + length), frame.payload);
+    }
+
+    private static int setting(Frame settings, int id) {
+        for(int i=0; i<settings.payload.length; i+=6)
+            if(((settings.payload[i] & 0xFF) << 8 | settings.payload[i+1] & 0xFF) == id)
+                return settings.payloadInt(i+2);
+        throw new AssertionError("Setting "+id+" not sent");
+    }
+
+    private static byte[] settings(long... idsAndValues) {
+        ByteBuffer settings = ByteBuffer.allocate(3 * idsAndValues.length);
+        for(int i=0; i<idsAndValues.length; i+=2)
+            settings.putShort((short) idsAndValues[i]).putInt((int) idsAndValues[i+1]);
+        return settings.array();
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for(int i=0; i<length; i++)
+            data[i] = (byte) (i % 251);
+        return data;
+    }
+
+
+    @FunctionalInterface
+    private interface ClientAction {
+        void run(Client client) throws Exception;
+    }
+
+    private static final class Frame {
+
+        final int type, flags, streamId;
+        final byte[] payload;
+        /**
+         * The decoded header fields of a <code>HEADERS</code> frame.
+         */
+        final List<String> fields = new ArrayList<>();
+
+        Frame(int type, int flags, int streamId, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+
+        int payloadInt(int off) {
+            return ByteBuffer.wrap(payload, off, 4).getInt();
+        }
+
+        @Override
+        public String toString() {
+            return "Frame{type=" + type + ", flags=" + flags + ", stream=" + streamId + ", length=" + payload.length + "}";
+        }
+    }
+
+    /**
+     * A minimal http/2 client, encoding requests with the server's own HPACK encoder.
+     */
+    private static final class Client implements AutoCloseable {
+
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+        final HpackEncoder encoder = new HpackEncoder();
+        final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+        Frame serverSettings;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        void write(int type, int flags, int streamId, byte[] payload) throws IOException {
+            ByteBuffer frame = ByteBuffer.allocate(9 + payload.length);
+            frame.put((byte) (payload.length >>> 16)).putShort((short) payload.length);
+            frame.put((byte) type).put((byte) flags).putInt(streamId).put(payload);
+            out.write(frame.array());
+            out.flush();
+        }
+
+        void windowUpdate(int streamId, int increment) throws IOException {
+            write(WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+        }
+
+        byte[] headerBlock(String... fields) {
+            ResponseHead block = ResponseHead.acquire();
+            try {
+                encoder.startBlock(block);
+                for(int i=0; i<fields.length; i+=2)
+                    encoder.encode(fields[i], fields[i+1], block);
+                ByteBuffer buffer = block.buffer();
+                byte[] data = new byte[buffer.remaining()];
+                buffer.get(data);
+                return data;
+            } finally {
+                block.release();
+            }
+        }
+
+        byte[] requestBlock(String path) {
+            return headerBlock(":method", "GET", ":scheme", "http", ":path", path, ":authority", "localhost");
+        }
+
+        void request(int streamId, String path, boolean endStream) throws IOException {
+            byte[] block = endStream ? requestBlock(path)
+                    : headerBlock(":method", "POST", ":scheme", "http", ":path", path, ":authority", "localhost");
+            write(HEADERS, END_HEADERS | (endStream ? END_STREAM : 0), streamId, block);
+        }
+
+        Frame read() throws IOException {
+            int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+            int type = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            int streamId = in.readInt() & 0x7FFFFFFF;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            Frame frame = new Frame(type, flags, streamId, payload);
+            // Every header block has to be decoded to keep the dynamic table in sync
+            if(type == HEADERS) {
+                assertEquals(END_HEADERS, flags & END_HEADERS, "Response header exceeds single frame");
+                decoder.decode(payload, 0, payload.length, frame.fields);
+            }
+            return frame;
+        }
+
+        /**
+         * Reads the next frame of the given type, skipping frames of other types except
+         * for <code>GOAWAY</code>.
+         */
+        Frame read(int type) throws IOException {
+            while(true) {
+                Frame frame = read();
+                if(frame.type == type)
+                    return frame;
+                if(frame.type == GOAWAY)
+                    throw new AssertionError("Unexpected GOAWAY with error "+frame.payloadInt(4));
+            }
+        }
+
+        void assertNoFrame() throws IOException {
+            socket.setSoTimeout(300);
+            try {
+                Frame frame = read();
+                throw new AssertionError("Unexpected frame "+frame);
+            } catch(SocketTimeoutException expected) {
+                // Nothing was sent
+            } finally {
+                socket.setSoTimeout(10000);
+            }
+        }
+
+        void assertHeaders(int streamId, String status) throws IOException {
+            Frame headers = read(HEADERS);
+            assertEquals(streamId, headers.streamId);
+            assertEquals(List.of(":status", status), headers.fields.subList(0, 2));
+        }
+
+        void assertResponse(int streamId, String body) throws IOException {
+            assertHeaders(streamId, "200");
+            Frame data = read(DATA);
+            assertEquals(streamId, data.streamId);
+            assertEquals(END_STREAM, data.flags & END_STREAM);
+            assertEquals(body, new String(data.payload, StandardCharsets.UTF_8));
+        }
+
+        void assertGoAway(int errorCode) throws IOException {
+            Frame goAway;
+            do goAway = read();
+            while(goAway.type != GOAWAY);
+            assertEquals(0, goAway.streamId);
+            assertEquals(errorCode, goAway.payloadInt(4));
+            // The connection gets closed after the GOAWAY
+            InputStream in = this.in;
+            assertEquals(-1, in.read());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.rccookie.http.Body;
+import de.rccookie.http.HttpRequest;
+import de.rccookie.http.ResponseCode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that pipelined requests are processed concurrently on both engines, while the
+ * responses are still sent in request order.
+ */
+class PipeliningTest {
+
+    private static final int COUNT = 8;
+
+    /**
+     * Counted down by the handler of the request with the respective index once it has
+     * generated its response, right before sending it.
+     */
+    private final CountDownLatch[] finished = new CountDownLatch[COUNT];
+    private final List<Integer> finishOrder = Collections.synchronizedList(new ArrayList<>());
+    private TestServer server;
+
+    PipeliningTest() {
+        for(int i=0; i<COUNT; i++)
+            finished[i] = new CountDownLatch(1);
+    }
+
+    @AfterEach
+    void stopServer() {
+        for(CountDownLatch latch : finished)
+            latch.countDown();
+        if(server != null)
+            server.close();
+    }
+
+    /**
+     * Each request <code>/i</code> waits for the request <code>/i+1</code> to finish, such
+     * that the handlers finish in reverse order. Other requests are answered right away.
+     */
+    private void respond(HttpRequest.Respondable request) throws InterruptedException {
+        String path = request.route().toString().substring(1);
+        if(path.matches("\\d+")) {
+            int index = Integer.parseInt(path);
+            if(index + 1 < COUNT)
+                assertTrue(finished[index + 1].await(10, TimeUnit.SECONDS), "Requests not processed concurrently");
+            finishOrder.add(index);
+            finished[index].countDown();
+        }
+        request.respond(ResponseCode.OK).setBody(Body.of(path)).send();
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void sendsResponsesInRequestOrder(RawHttpServer.Engine engine) throws IOException {
+        server = new TestServer(engine, this::respond).start();
+
+        try(Socket socket = server.connect()) {
+            StringBuilder requests = new StringBuilder();
+            for(int i=0; i<COUNT; i++)
+                requests.append("GET /").append(i).append(" HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            // All requests in a single packet
+            socket.getOutputStream().write(TestServer.ascii(requests.toString()));
+
+            InputStream in = socket.getInputStream();
+            for(int i=0; i<COUNT; i++) {
+                TestServer.Response response = TestServer.readResponse(in);
+                assertEquals(200, response.code, response.toString());
+                assertEquals(i+"", response.text());
+                assertEquals("keep-alive", response.header.get("connection"));
+            }
+            List<Integer> expectedOrder = new ArrayList<>();
+            for(int i=COUNT-1; i>=0; i--)
+                expectedOrder.add(i);
+            assertEquals(expectedOrder, finishOrder);
+
+            // The connection can still be used afterwards
+            socket.getOutputStream().write(TestServer.ascii("GET /next HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+            TestServer.Response response = TestServer.readResponse(in);
+            assertEquals(200, response.code);
+            assertEquals("next", response.text());
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import de.rccookie.http.Header;
+import de.rccookie.http.HttpRequest;
+import de.rccookie.http.Method;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the requests per second of the buffered {@link RequestParser} with the
+ * previous implementation, which read the request head byte by byte from the socket
+ * stream. Both read a typical browser request from an endless stream repeating it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParserBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RequestParserBenchmark.class.getSimpleName()).build()).run();
+    }
+
+
+    private static final byte[] REQUEST = (
+            "GET /api/v1/users/12345/posts?page=2&limit=20 HTTP/1.1\r\n" +
+            "Host: example.com\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n" +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+            "Accept-Language: en-US,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip, deflate, br\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Cookie: session=0123456789abcdef0123456789abcdef; theme=dark\r\n" +
+            "Upgrade-Insecure-Requests: 1\r\n" +
+            "Cache-Control: max-age=0\r\n" +
+            "\r\n"
+    ).getBytes(StandardCharsets.US_ASCII);
+
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress(0);
+
+
+    private ReplayConnection connection;
+    private InputStream unbufferedIn;
+
+    @Setup
+    public void setup() {
+        connection = new ReplayConnection();
+        unbufferedIn = new ReplayInputStream();
+    }
+
+    @Benchmark
+    public Header buffered() throws IOException {
+        RequestParser parser = connection.parser;
+        parser.parse();
+        return parser.header();
+    }
+
+    @Benchmark
+    public Header bufferedAndDecoded() throws IOException {
+        RequestParser parser = connection.parser;
+        parser.parse();
+        Header header = parser.header();
+        header.get("Host");
+        return header;
+    }
+
+    @Benchmark
+    public Header byteByByte() throws IOException {
+        return parseByteByByte(unbufferedIn);
+    }
+
+
+    /**
+     * The previous implementation of <code>RawHttpServer.receiveRequest()</code> and
+     * <code>parseHeaderAndBody()</code>, without creating the request object.
+     */
+    private static Header parseByteByByte(InputStream in) throws IOException {
+        StringBuilder method = new StringBuilder(7);
+        int c;
+        while((c = in.read()) > ' ')
+            method.append((char) c);
+        while((c = in.read()) <= ' ');
+
+        StringBuilder uri = new StringBuilder();
+        do uri.append((char) c);
+        while((c = in.read()) > ' ');
+        while((c = in.read()) <= ' ');
+
+        StringBuilder version = new StringBuilder(8);
+        do version.append(Character.toUpperCase((char) c));
+        while((c = in.read()) > ' ');
+        version.toString().toUpperCase();
+        Method.valueOf(method.toString().toUpperCase());
+
+        while(in.read() != '\n');
+
+        Map<String, List<String>> header = new HashMap<>();
+        c = in.read();
+        while(true) {
+            int d = in.read();
+            if(c == '\r' && d == '\n') break;
+
+            StringBuilder name = new StringBuilder();
+            name.append(Character.toLowerCase((char) c));
+            c = d;
+            while(c != ':') {
+                name.append(Character.toLowerCase((char) c));
+                c = in.read();
+            }
+            while((c = in.read()) <= ' ' && c != '\r');
+
+            StringBuilder value = new StringBuilder();
+            while(true) {
+                d = in.read();
+                while(c != '\r' || d != '\n') {
+                    value.append((char) c);
+                    c = d;
+                    d = in.read();
+                }
+                if((c = in.read()) == ' ' || c == '\t')
+                    value.append(' ');
+                else break;
+            }
+            header.computeIfAbsent(name.toString(), $ -> new ArrayList<>()).add(value.toString());
+        }
+        return Header.ofReceived(header);
+    }
+
+
+    private static final class ReplayConnection extends Connection {
+
+        private int offset = 0;
+
+        ReplayConnection() {
+            super(new RawHttpServer() {
+                @Override
+                protected void respond(HttpRequest.Respondable request) { }
+            }, ADDRESS, ADDRESS);
+        }
+
+        @Override
+        OutputStream out() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        int read0(byte[] b, int off, int len) {
+            int count = Math.min(len, REQUEST.length - offset);
+            System.arraycopy(REQUEST, offset, b, off, count);
+            offset = (offset + count) % REQUEST.length;
+            return count;
+        }
+
+        @Override
+        void shutdownInput() { }
+
+        @Override
+        void close() { }
+
+        @Override
+        boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        void awaitNextRequest() { }
+    }
+
+    /**
+     * Behaves like a socket input stream: not buffered, no synchronization.
+     */
+    private static final class ReplayInputStream extends InputStream {
+
+        private int offset = 0;
+
+        @Override
+        public int read() {
+            int b = REQUEST[offset];
+            offset = (offset + 1) % REQUEST.length;
+            return b;
+        }
+    }
+}
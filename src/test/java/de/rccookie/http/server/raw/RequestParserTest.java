@@ -0,0 +1,143 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+import de.rccookie.http.Body;
+import de.rccookie.http.HttpRequest;
+import de.rccookie.http.ResponseCode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests for the message framing of {@link RequestParser}, i.e. how the length of a request
+ * body is determined from <code>Content-Length</code> and <code>Transfer-Encoding</code>
+ * (RFC 9112, section 6).
+ */
+class RequestParserTest {
+
+    private TestServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new TestServer(RawHttpServer.Engine.BLOCKING, RequestParserTest::respond).start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    /**
+     * Responds with the received request body.
+     */
+    private static void respond(HttpRequest.Respondable request) throws IOException {
+        byte[] body = request.body().stream().readAllBytes();
+        request.respond(ResponseCode.OK).setBody(Body.of(body)).send();
+    }
+
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "Content-Length: 5\r\n",
+            "Content-Length: 5\r\nContent-Length: 5\r\n",
+            "Content-Length: 5, 5\r\n",
+            "content-length:5 \r\n"
+    })
+    void acceptsContentLength(String fields) throws IOException {
+        assertKeptAlive("POST / HTTP/1.1\r\nHost: localhost\r\n" + fields + "\r\nHello", "Hello");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "Content-Length: 5\r\nContent-Length: 6\r\n",
+            "Content-Length: 5, 6\r\n",
+            "Content-Length: 5,\r\n",
+            "Content-Length: \r\n",
+            "Content-Length: abc\r\n",
+            "Content-Length: -5\r\n",
+            "Content-Length: +5\r\n",
+            "Content-Length: 0x5\r\n",
+            "Content-Length: 99999999999999999999\r\n"
+    })
+    void rejectsInvalidContentLength(String fields) throws IOException {
+        assertBadRequest("POST / HTTP/1.1\r\nHost: localhost\r\n" + fields + "\r\nHello");
+        // Also on methods that don't need a body
+        assertBadRequest("GET / HTTP/1.1\r\nHost: localhost\r\n" + fields + "\r\n");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "Transfer-Encoding: chunked\r\n",
+            "Transfer-Encoding: CHUNKED\r\n",
+            "Transfer-Encoding: gzip, chunked\r\n",
+            "Transfer-Encoding: gzip\r\nTransfer-Encoding: chunked\r\n",
+            "Transfer-Encoding: gzip,,  chunked \r\n"
+    })
+    void acceptsChunkedAsFinalCoding(String fields) throws IOException {
+        assertKeptAlive("POST / HTTP/1.1\r\nHost: localhost\r\n" + fields + "\r\n5\r\nHello\r\n0\r\n\r\n", "Hello");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "Transfer-Encoding: gzip\r\n",
+            "Transfer-Encoding: chunked, gzip\r\n",
+            "Transfer-Encoding: chunked\r\nTransfer-Encoding: gzip\r\n",
+            "Transfer-Encoding: chunked, chunked\r\n",
+            "Transfer-Encoding: chunked\r\nTransfer-Encoding: chunked\r\n",
+            "Transfer-Encoding: \r\n"
+    })
+    void rejectsOtherFinalCodings(String fields) throws IOException {
+        assertBadRequest("POST / HTTP/1.1\r\nHost: localhost\r\n" + fields + "\r\n5\r\nHello\r\n0\r\n\r\n");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "Content-Length: 3\r\nTransfer-Encoding: chunked\r\n",
+            "Transfer-Encoding: chunked\r\nContent-Length: 100\r\nConnection: keep-alive\r\n"
+    })
+    void closesConnectionWithBothLengths(String fields) throws IOException {
+        try(Socket socket = server.connect()) {
+            // The second request would be smuggled if the content length was used
+            socket.getOutputStream().write(TestServer.ascii("POST / HTTP/1.1\r\nHost: localhost\r\n" + fields + "\r\n5\r\nHello\r\n0\r\n\r\n" +
+                                                            "GET /smuggled HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+            InputStream in = socket.getInputStream();
+            TestServer.Response response = TestServer.readResponse(in);
+            assertEquals(200, response.code);
+            assertEquals("Hello", response.text());
+            assertEquals("close", response.header.get("connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+
+    private void assertKeptAlive(String request, String expectedBody) throws IOException {
+        try(Socket socket = server.connect()) {
+            socket.getOutputStream().write(TestServer.ascii(request + "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+            InputStream in = socket.getInputStream();
+            TestServer.Response response = TestServer.readResponse(in);
+            assertEquals(200, response.code, response.toString());
+            assertEquals(expectedBody, response.text());
+            assertEquals("keep-alive", response.header.get("connection"));
+
+            TestServer.Response next = TestServer.readResponse(in);
+            assertEquals(200, next.code, next.toString());
+            assertEquals("", next.text());
+        }
+    }
+
+    private void assertBadRequest(String request) throws IOException {
+        try(Socket socket = server.connect()) {
+            socket.getOutputStream().write(TestServer.ascii(request));
+            InputStream in = socket.getInputStream();
+            TestServer.Response response = TestServer.readResponse(in);
+            assertEquals(400, response.code, response.toString());
+            assertEquals(-1, in.read());
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package de.rccookie.http.server.raw;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import de.rccookie.http.Body;
+import de.rccookie.http.Header;
+import de.rccookie.http.HttpRequest;
+import de.rccookie.http.Method;
+import de.rccookie.http.ResponseCode;
+import de.rccookie.http.server.RequestTarget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the serialization of tiny json responses into a single buffer with the previous
+ * implementation, which printed the head through a <code>PrintWriter</code> and wrote the
+ * body separately. <code>send</code> measures the complete send path of a response. The
+ * connection discards all data but counts the write calls, each of which would be a system
+ * call on a real socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseHeadBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ResponseHeadBenchmark.class.getSimpleName()).build()).run();
+    }
+
+
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress(0);
+    private static final Object JSON = Map.of("id", 12345, "name", "test", "active", true);
+
+
+    private RawHttpServer server;
+    private NullConnection connection;
+    private RequestTarget target;
+    private Header header;
+    private Body body;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new RawHttpServer() {
+            @Override
+            protected void respond(HttpRequest.Respondable request) { }
+        };
+        server.setLogLevel(null);
+        connection = new NullConnection(server);
+        target = RequestTarget.parse("http", "localhost", "/api/item/12345");
+
+        header = Header.newEmpty(null);
+        header.set("Server", "RcCookie");
+        header.set("Date", "Thu, 01 Jan 2026 00:00:00 GMT");
+        header.set("Content-Type", "application/json");
+        header.set("Connection", "keep-alive");
+        body = Body.ofJson(JSON);
+        header.set("Content-Length", body.contentLength()+"");
+    }
+
+    @Benchmark
+    public int send() throws IOException {
+        HttpRequestImpl request = new HttpRequestImpl(server, connection, target, "1.1", Method.GET, header, Body.EMPTY, ADDRESS, ADDRESS);
+        request.sequence = connection.nextSequence();
+        request.respond(ResponseCode.OK).setBody(Body.ofJson(JSON)).send();
+        return connection.writes;
+    }
+
+    @Benchmark
+    public int singleBuffer() throws IOException {
+        ResponseHead head = ResponseHead.acquire();
+        try {
+            head.statusLine("1.1", ResponseCode.OK);
+            header.forEach((n,vs) -> {
+                for(String v : vs)
+                    head.field(n, v);
+            });
+            head.end();
+            connection.write(head.buffer(), ByteBuffer.wrap(body.data()));
+        } finally {
+            head.release();
+        }
+        return connection.writes;
+    }
+
+    @Benchmark
+    public int printWriter() throws IOException, InterruptedException {
+        OutputStream rawOut = connection.out();
+        PrintWriter out = new PrintWriter(rawOut);
+        out.write("HTTP/");
+        out.write("1.1");
+        out.write(' ');
+        out.print(ResponseCode.OK.code());
+        out.print(' ');
+        out.print(ResponseCode.OK.httpName());
+        out.print('\r');
+        out.print('\n');
+        header.forEach((n,vs) -> {
+            for(String v : vs) {
+                out.print(n);
+                out.print(':');
+                out.print(' ');
+                out.print(v);
+                out.print('\r');
+                out.print('\n');
+            }
+        });
+        out.print('\r');
+        out.print('\n');
+        out.flush();
+        try(OutputStream outProxy = new FixedLengthOutputStream(rawOut, body.contentLength())) {
+            body.writeTo(outProxy);
+            out.flush();
+        }
+        return connection.writes;
+    }
+
+
+    private static final class NullConnection extends Connection {
+
+        int writes = 0;
+
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                writes++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writes++;
+            }
+        };
+
+        NullConnection(RawHttpServer server) {
+            super(server, ADDRESS, ADDRESS);
+        }
+
+        @Override
+        void write(ByteBuffer... buffers) {
+            // Gathering write
+            for(ByteBuffer buffer : buffers)
+                buffer.position(buffer.limit());
+            writes++;
+        }
+
+        @Override
+        OutputStream out() {
+            return out;
+        }
+
+        @Override
+        int read0(byte[] b, int off, int len) {
+            return -1;
+        }
+
+        @Override
+        void shutdownInput() { }
+
+        @Override
+        void close() { }
+
+        @Override
+        boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        void awaitNextRequest() { }
+    }
+}
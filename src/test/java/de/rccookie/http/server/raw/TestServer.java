@@ -0,0 +1,163 @@
+package de.rccookie.http.server.raw;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.rccookie.http.HttpRequest;
+
+/**
+ * A {@link RawHttpServer} for tests, listening on a free port of the loopback interface
+ * and responding using the given handler.
+ */
+final class TestServer extends RawHttpServer implements AutoCloseable {
+
+    private final Handler handler;
+    private int port = -1;
+
+    TestServer(Engine engine, Handler handler) {
+        this.handler = handler;
+        setEngine(engine);
+        setLogLevel(null);
+    }
+
+    /**
+     * Starts listening on a free port.
+     *
+     * @return This server
+     */
+    TestServer start() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+        listen(new ListenerConfig(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)));
+        return this;
+    }
+
+    @Override
+    protected void respond(HttpRequest.Respondable request) throws Exception {
+        handler.respond(request);
+    }
+
+    @Override
+    public void close() {
+        stop(0);
+    }
+
+    /**
+     * Opens a new connection to the server, with a read timeout such that a missing
+     * response fails the test rather than blocking it.
+     *
+     * @return A new connection to the server
+     */
+    Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(10000);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+
+    /**
+     * Reads a single http/1.1 response with a body delimited by its content length, by
+     * chunked transfer encoding or by the end of the connection.
+     *
+     * @param in The stream to read from
+     * @return The response read
+     */
+    static Response readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        Map<String, String> header = new HashMap<>();
+        for(String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            int colon = line.indexOf(':');
+            header.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+        int code = Integer.parseInt(statusLine.split(" ")[1]);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if(code / 100 == 1 || code == 204 || code == 304) {
+            // No body
+        }
+        else if("chunked".equalsIgnoreCase(header.get("transfer-encoding"))) {
+            for(int size; (size = Integer.parseInt(readLine(in).split(";")[0].trim(), 16)) != 0; ) {
+                body.write(readFully(in, size));
+                readLine(in);
+            }
+            while(!readLine(in).isEmpty());
+        }
+        else if(header.containsKey("content-length"))
+            body.write(readFully(in, Integer.parseInt(header.get("content-length"))));
+        else in.transferTo(body);
+        return new Response(statusLine, code, header, body.toByteArray());
+    }
+
+    /**
+     * Reads a line terminated by CRLF, without the line break.
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for(int b; (b = in.read()) != '\n'; ) {
+            if(b < 0)
+                throw new EOFException("Connection closed after '"+line+"'");
+            line.append((char) b);
+        }
+        if(line.length() == 0 || line.charAt(line.length() - 1) != '\r')
+            throw new IOException("Line not terminated by CRLF: "+line);
+        return line.substring(0, line.length() - 1);
+    }
+
+    static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = in.readNBytes(length);
+        if(data.length != length)
+            throw new EOFException("Connection closed after "+data.length+" of "+length+" bytes");
+        return data;
+    }
+
+    static byte[] ascii(String str) {
+        return str.getBytes(StandardCharsets.US_ASCII);
+    }
+
+
+    /**
+     * Generates and sends the response to a request.
+     */
+    @FunctionalInterface
+    interface Handler {
+        void respond(HttpRequest.Respondable request) throws Exception;
+    }
+
+    /**
+     * An http/1.1 response received from the server.
+     */
+    static final class Response {
+
+        final String statusLine;
+        final int code;
+        final Map<String, String> header;
+        final byte[] body;
+
+        Response(String statusLine, int code, Map<String, String> header, byte[] body) {
+            this.statusLine = statusLine;
+            this.code = code;
+            this.header = header;
+            this.body = body;
+        }
+
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return statusLine + " " + header + " " + text();
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package de.rccookie.http.server.raw;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import de.rccookie.http.HttpRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link WebSocketConnection} on both engines, using a minimal WebSocket client
+ * on a plain socket. The listener records all events it receives, and echoes messages
+ * unless the test makes it block.
+ */
+class WebSocketConnectionTest {
+
+    // Opcodes, RFC 6455 section 5.2
+    private static final int CONTINUATION = 0x0;
+    private static final int TEXT = 0x1;
+    private static final int BINARY = 0x2;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xA;
+    private static final int FIN = 0x80;
+
+    private static final String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private volatile WebSocket webSocket;
+    private volatile CountDownLatch blockListener = new CountDownLatch(0);
+    private TestServer server;
+
+    @AfterEach
+    void stopServer() {
+        blockListener.countDown();
+        if(server != null)
+            server.close();
+    }
+
+    private void startServer(RawHttpServer.Engine engine) throws IOException {
+        server = new TestServer(engine, this::respond).start();
+    }
+
+    private void respond(HttpRequest.Respondable request) {
+        String protocol = request.route().toString().equals("/chat") ? "chat" : null;
+        WebSocket.accept(request, protocol, new Listener());
+    }
+
+    /**
+     * Records the events, and echoes text and binary messages with a prefix. The text
+     * messages <code>"close"</code> and <code>"ping"</code> make the server close the
+     * WebSocket or send a ping.
+     */
+    private final class Listener implements WebSocket.Listener {
+
+        @Override
+        public void onOpen(WebSocket webSocket) {
+            WebSocketConnectionTest.this.webSocket = webSocket;
+            events.add("open");
+        }
+
+        @Override
+        public void onText(WebSocket webSocket, String text) throws Exception {
+            blockListener.await();
+            events.add("text:" + text);
+            if(text.equals("close"))
+                webSocket.close(WebSocket.GOING_AWAY, "going");
+            else if(text.equals("ping"))
+                webSocket.ping(TestServer.ascii("server"));
+            else if(!text.startsWith("quiet"))
+                webSocket.sendText("echo:" + text);
+        }
+
+        @Override
+        public void onBinary(WebSocket webSocket, byte[] data) throws Exception {
+            events.add("binary:" + data.length);
+            webSocket.sendBinary(data);
+        }
+
+        @Override
+        public void onPing(WebSocket webSocket, byte[] data) {
+            events.add("ping:" + new String(data, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void onPong(WebSocket webSocket, byte[] data) {
+            events.add("pong:" + new String(data, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void onClose(WebSocket webSocket, int code, String reason) {
+            events.add("close:" + code + ":" + reason);
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            events.add("error:" + error);
+        }
+    }
+
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void acceptsHandshake(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        try(Client client = new Client(server.connect())) {
+            client.out.write(TestServer.ascii("GET /chat HTTP/1.1\r\n" +
+                                              "Host: localhost\r\n" +
+                                              "Upgrade: websocket\r\n" +
+                                              "Connection: keep-alive, Upgrade\r\n" +
+                                              "Sec-WebSocket-Key: " + KEY + "\r\n" +
+                                              "Sec-WebSocket-Protocol: superchat, chat\r\n" +
+                                              "Sec-WebSocket-Version: 13\r\n" +
+                                              "\r\n"));
+            TestServer.Response response = TestServer.readResponse(client.in);
+            assertEquals(101, response.code);
+            assertEquals("websocket", response.header.get("upgrade").toLowerCase());
+            // Example of RFC 6455 section 1.3
+            assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", response.header.get("sec-websocket-accept"));
+            assertEquals("chat", response.header.get("sec-websocket-protocol"));
+            assertEvent("open");
+            assertEquals("chat", webSocket.protocol());
+            assertTrue(webSocket.isOpen());
+
+            client.send(FIN | TEXT, "Hello");
+            assertEvent("text:Hello");
+            client.assertText("echo:Hello");
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void rejectsInvalidHandshakes(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        assertEquals(400, handshake("Upgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Version: 13\r\n").code);
+        assertEquals(400, handshake("Upgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: c2hvcnQ=\r\nSec-WebSocket-Version: 13\r\n").code);
+        assertEquals(400, handshake("Sec-WebSocket-Key: " + KEY + "\r\nSec-WebSocket-Version: 13\r\n").code);
+        TestServer.Response response = handshake("Upgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: " + KEY + "\r\nSec-WebSocket-Version: 8\r\n");
+        assertEquals(426, response.code);
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void unmasksAndFramesMessages(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        try(Client client = open()) {
+            // Masked example of RFC 6455 section 5.7
+            client.write(new byte[] { (byte) 0x81, (byte) 0x85, 0x37, (byte) 0xfa, 0x21, 0x3d, 0x7f, (byte) 0x9f, 0x4d, 0x51, 0x58 });
+            assertEvent("text:Hello");
+            Frame echo = client.read();
+            assertArrayEquals(TestServer.ascii("echo:Hello"), echo.payload);
+            assertEquals(2, echo.headLength);
+
+            // 7 bit, 16 bit and 64 bit payload lengths
+            for(int length : new int[] { 125, 126, 65535, 65536, 300000 }) {
+                byte[] data = new byte[length];
+                ThreadLocalRandom.current().nextBytes(data);
+                client.send(FIN | BINARY, data);
+                assertEvent("binary:" + length);
+                Frame frame = client.read();
+                assertEquals(FIN | BINARY, frame.b0);
+                assertEquals(length <= 125 ? 2 : length <= 65535 ? 4 : 10, frame.headLength);
+                assertArrayEquals(data, frame.payload);
+            }
+
+            // Frames split at every byte
+            byte[] frame = client.frame(FIN | TEXT, TestServer.ascii("split"));
+            for(byte b : frame)
+                client.write(new byte[] { b });
+            assertEvent("text:split");
+            client.assertText("echo:split");
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void reassemblesFragmentedMessages(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        try(Client client = open()) {
+            // Control frames may be interleaved with the fragments of a message
+            client.send(TEXT, "Hel");
+            client.send(FIN | PING, "ping data");
+            client.send(CONTINUATION, "l");
+            client.send(FIN | CONTINUATION, "o ä");
+            assertEvent("ping:ping data");
+            assertEvent("text:Hello ä");
+
+            Frame pong = client.read();
+            assertEquals(FIN | PONG, pong.b0);
+            assertArrayEquals(TestServer.ascii("ping data"), pong.payload);
+            client.assertText("echo:Hello ä");
+
+            byte[] data = new byte[20000];
+            ThreadLocalRandom.current().nextBytes(data);
+            client.send(BINARY, Arrays.copyOf(data, 5000));
+            client.send(CONTINUATION, Arrays.copyOfRange(data, 5000, 5000));
+            client.send(FIN | CONTINUATION, Arrays.copyOfRange(data, 5000, 20000));
+            assertEvent("binary:20000");
+            assertArrayEquals(data, client.read().payload);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void exchangesPingsAndPongs(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        try(Client client = open()) {
+            client.send(FIN | TEXT, "ping");
+            assertEvent("text:ping");
+            Frame ping = client.read();
+            assertEquals(FIN | PING, ping.b0);
+            assertArrayEquals(TestServer.ascii("server"), ping.payload);
+            client.send(FIN | PONG, ping.payload);
+            assertEvent("pong:server");
+
+            // Unsolicited pongs are passed on as well
+            client.send(FIN | PONG, "heartbeat");
+            assertEvent("pong:heartbeat");
+            assertThrows(IllegalArgumentException.class, () -> webSocket.ping(new byte[126]));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void completesClientInitiatedClose(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        try(Client client = open()) {
+            client.send(FIN | CLOSE, closePayload(WebSocket.NORMAL_CLOSURE, "bye"));
+            Frame close = client.read();
+            assertEquals(FIN | CLOSE, close.b0);
+            assertArrayEquals(closePayload(WebSocket.NORMAL_CLOSURE, ""), close.payload);
+            client.assertClosed();
+            assertEvent("close:1000:bye");
+            assertFalse(webSocket.isOpen());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void completesServerInitiatedClose(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        try(Client client = open()) {
+            client.send(FIN | TEXT, "close");
+            assertEvent("text:close");
+            Frame close = client.read();
+            assertEquals(FIN | CLOSE, close.b0);
+            assertArrayEquals(closePayload(WebSocket.GOING_AWAY, "going"), close.payload);
+            assertFalse(webSocket.isOpen());
+            assertThrows(IOException.class, () -> webSocket.sendText("too late"));
+
+            // Messages sent before the client received the close frame are still received
+            client.send(FIN | TEXT, "quiet");
+            assertEvent("text:quiet");
+            client.send(FIN | CLOSE, closePayload(WebSocket.NORMAL_CLOSURE, ""));
+            client.assertClosed();
+            assertEvent("close:1000:");
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void reportsAbnormalClosure(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        try(Client client = open()) {
+            client.send(FIN | TEXT, "Hello");
+            assertEvent("text:Hello");
+        }
+        assertEvent("close:1006:null");
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void failsOnProtocolErrors(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        server.setMaxWebSocketMessageSize(1000);
+
+        // Unmasked client frame
+        assertProtocolError(WebSocket.PROTOCOL_ERROR, c -> c.write(new byte[] { (byte) (FIN | TEXT), 2, 'h', 'i' }));
+        // Reserved bits
+        assertProtocolError(WebSocket.PROTOCOL_ERROR, c -> c.send(FIN | 0x40 | TEXT, "hi"));
+        assertProtocolError(WebSocket.PROTOCOL_ERROR, c -> c.send(FIN | 0x3, "hi"));
+        assertProtocolError(WebSocket.PROTOCOL_ERROR, c -> c.send(FIN | CONTINUATION, "hi"));
+        assertProtocolError(WebSocket.PROTOCOL_ERROR, c -> {
+            c.send(TEXT, "h");
+            c.send(FIN | TEXT, "i");
+        });
+        // Fragmented and oversized control frames
+        assertProtocolError(WebSocket.PROTOCOL_ERROR, c -> c.send(PING, "hi"));
+        assertProtocolError(WebSocket.PROTOCOL_ERROR, c -> c.send(FIN | PING, new byte[126]));
+        assertProtocolError(WebSocket.PROTOCOL_ERROR, c -> c.send(FIN | CLOSE, new byte[1]));
+        assertProtocolError(WebSocket.PROTOCOL_ERROR, c -> c.send(FIN | CLOSE, closePayload(WebSocket.NO_STATUS, "")));
+        assertProtocolError(WebSocket.INVALID_PAYLOAD, c -> c.send(FIN | TEXT, new byte[] { (byte) 0xc3, 0x28 }));
+        assertProtocolError(WebSocket.MESSAGE_TOO_BIG, c -> c.send(FIN | BINARY, new byte[1001]));
+        assertProtocolError(WebSocket.MESSAGE_TOO_BIG, c -> {
+            c.send(BINARY, new byte[600]);
+            c.send(FIN | CONTINUATION, new byte[600]);
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void pausesReadingForSlowListener(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        try(Client client = open()) {
+            Connection connection = ((HttpRequestImpl) webSocket.request()).connection;
+            blockListener = new CountDownLatch(1);
+
+            // More messages than may be pending for the listener, in a single packet
+            ByteBuffer messages = ByteBuffer.allocate(200 * 32);
+            for(int i=0; i<200; i++)
+                messages.put(client.frame(FIN | TEXT, TestServer.ascii("quiet " + i)));
+            client.write(Arrays.copyOf(messages.array(), messages.position()));
+            waitFor(() -> connection.readPaused);
+
+            // Data sent while paused is received once the listener caught up
+            for(int i=200; i<300; i++)
+                client.send(FIN | TEXT, "quiet " + i);
+            Thread.sleep(100);
+            assertTrue(connection.readPaused);
+            assertTrue(events.isEmpty());
+
+            blockListener.countDown();
+            for(int i=0; i<300; i++)
+                assertEvent("text:quiet " + i);
+            assertFalse(connection.readPaused);
+
+            client.send(FIN | TEXT, "after");
+            assertEvent("text:after");
+            client.assertText("echo:after");
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RawHttpServer.Engine.class)
+    void closesWhilePaused(RawHttpServer.Engine engine) throws Exception {
+        startServer(engine);
+        try(Client client = open()) {
+            Connection connection = ((HttpRequestImpl) webSocket.request()).connection;
+            blockListener = new CountDownLatch(1);
+            ByteBuffer messages = ByteBuffer.allocate(100 * 32);
+            for(int i=0; i<100; i++)
+                messages.put(client.frame(FIN | TEXT, TestServer.ascii("quiet " + i)));
+            client.write(Arrays.copyOf(messages.array(), messages.position()));
+            waitFor(() -> connection.readPaused);
+
+            // The reader waiting for the listener notices the connection being closed
+            connection.close();
+            client.assertClosed();
+            blockListener.countDown();
+            for(int i=0; i<100; i++)
+                assertEvent("text:quiet " + i);
+            assertEvent("close:1006:null");
+        }
+    }
+
+
+    private TestServer.Response handshake(String fields) throws IOException {
+        try(Socket socket = server.connect()) {
+            socket.getOutputStream().write(TestServer.ascii("GET /ws HTTP/1.1\r\nHost: localhost\r\n" + fields + "\r\n"));
+            return TestServer.readResponse(socket.getInputStream());
+        }
+    }
+
+    private Client open() throws Exception {
+        Client client = new Client(server.connect());
+        client.out.write(TestServer.ascii("GET /ws HTTP/1.1\r\n" +
+                                          "Host: localhost\r\n" +
+                                          "Upgrade: websocket\r\n" +
+                                          "Connection: Upgrade\r\n" +
+                                          "Sec-WebSocket-Key: " + KEY + "\r\n" +
+                                          "Sec-WebSocket-Version: 13\r\n" +
+                                          "\r\n"));
+        assertEquals(101, TestServer.readResponse(client.in).code);
+        assertEvent("open");
+        return client;
+    }
+
+    private void assertProtocolError(int code, ClientAction action) throws Exception {
+        try(Client client = open()) {
+            action.run(client);
+            Frame close = client.read();
+            assertEquals(FIN | CLOSE, close.b0);
+            assertEquals(code, (close.payload[0] & 0xFF) << 8 | close.payload[1] & 0xFF);
+            client.assertClosed();
+            assertEvent("close:1006:null");
+        }
+    }
+
+    private void assertEvent(String expected) throws InterruptedException {
+        String event = events.poll(10, TimeUnit.SECONDS);
+        assertNotNull(event, "Expected event "+expected);
+        assertEquals(expected, event);
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while(!condition.test()) {
+            if(System.nanoTime() > end)
+                throw new AssertionError("Condition not reached");
+            Thread.sleep(5);
+        }
+    }
+
+    private static byte[] closePayload(int code, String reason) {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + reasonBytes.length).putShort((short) code).put(reasonBytes).array();
+    }
+
+
+    @FunctionalInterface
+    private interface ClientAction {
+        void run(Client client) throws Exception;
+    }
+
+    @FunctionalInterface
+    private interface Condition {
+        boolean test();
+    }
+
+    private static final class Frame {
+
+        final int b0;
+        final int headLength;
+        final byte[] payload;
+
+        Frame(int b0, int headLength, byte[] payload) {
+            this.b0 = b0;
+            this.headLength = headLength;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * A minimal WebSocket client, masking all frames it sends with a random key.
+     */
+    private static final class Client implements AutoCloseable {
+
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        byte[] frame(int b0, byte[] payload) {
+            int length = payload.length;
+            ByteBuffer frame = ByteBuffer.allocate(14 + length);
+            frame.put((byte) b0);
+            if(length <= 125)
+                frame.put((byte) (0x80 | length));
+            else if(length <= 0xFFFF)
+                frame.put((byte) (0x80 | 126)).putShort((short) length);
+            else frame.put((byte) (0x80 | 127)).putLong(length);
+            byte[] mask = new byte[4];
+            ThreadLocalRandom.current().nextBytes(mask);
+            frame.put(mask);
+            for(int i=0; i<length; i++)
+                frame.put((byte) (payload[i] ^ mask[i & 3]));
+            return Arrays.copyOf(frame.array(), frame.position());
+        }
+
+        void send(int b0, byte[] payload) throws IOException {
+            write(frame(b0, payload));
+        }
+
+        void send(int b0, String payload) throws IOException {
+            send(b0, payload.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void write(byte[] data) throws IOException {
+            out.write(data);
+            out.flush();
+        }
+
+        Frame read() throws IOException {
+            int b0 = in.readUnsignedByte(), b1 = in.readUnsignedByte();
+            assertEquals(0, b1 & 0x80, "Server frame is masked");
+            long length = b1 & 0x7F;
+            int headLength = 2;
+            if(length == 126) {
+                length = in.readUnsignedShort();
+                headLength += 2;
+            }
+            else if(length == 127) {
+                length = in.readLong();
+                headLength += 8;
+            }
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            return new Frame(b0, headLength, payload);
+        }
+
+        void assertText(String text) throws IOException {
+            Frame frame = read();
+            assertEquals(FIN | TEXT, frame.b0);
+            assertEquals(text, new String(frame.payload, StandardCharsets.UTF_8));
+        }
+
+        void assertClosed() throws IOException {
+            try {
+                assertEquals(-1, in.read());
+            } catch(EOFException expected) {
+                // Closed as well
+            }
+        }
+    }
+}